@@ -0,0 +1,73 @@
+package bluewave.neo4j.plugins;
+import java.util.concurrent.TimeUnit;
+import org.neo4j.graphdb.event.TransactionData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+//******************************************************************************
+//**  CaptureBenchmark Class
+//******************************************************************************
+/**
+ *   Measures the cost of extracting changes from a transaction in
+ *   beforeCommit() (ChangeSet) and encoding them into JSON on the logger
+ *   thread (ChangeSet.encode), for small to large transactions.
+ *
+ ******************************************************************************/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class CaptureBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int nodes;
+
+    @Param({"4"})
+    public int properties;
+
+    private TransactionData data;
+    private Tokens tokens;
+    private CaptureConfig config;
+    private ChangeSet changes;
+    private JsonWriter writer;
+
+
+  //**************************************************************************
+  //** setup
+  //**************************************************************************
+    @Setup
+    public void setup(){
+        data = FakeTransactionData.create(nodes, 2, properties, nodes);
+        tokens = new Tokens();
+        config = new CaptureConfig();
+        changes = new ChangeSet(data, tokens, config);
+        writer = new JsonWriter(64*1024);
+    }
+
+
+  //**************************************************************************
+  //** capture
+  //**************************************************************************
+  /** Snapshot taken on the committing thread
+   */
+    @Benchmark
+    public ChangeSet capture(){
+        return new ChangeSet(data, tokens, config);
+    }
+
+
+  //**************************************************************************
+  //** encode
+  //**************************************************************************
+  /** JSON encoding done by the logger thread
+   */
+    @Benchmark
+    public void encode(Blackhole bh){
+        ChangeSet.Chunks chunks = changes.encode(tokens, writer);
+        while (chunks.hasNext()) bh.consume(chunks.next());
+    }
+}
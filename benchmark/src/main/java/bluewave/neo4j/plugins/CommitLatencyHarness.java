@@ -0,0 +1,231 @@
+package bluewave.neo4j.plugins;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.dbms.api.DatabaseManagementServiceBuilder;
+import org.neo4j.graphdb.*;
+
+
+//******************************************************************************
+//**  CommitLatencyHarness Class
+//******************************************************************************
+/**
+ *   Runs a write workload against an embedded Neo4J database with and
+ *   without the transaction listener and reports the commit latency at p50,
+ *   p99 and p999. Runs alternate between the two so both see the same
+ *   database size and JIT state. Example:
+ *   <pre>
+ *   java -cp target/benchmarks.jar bluewave.neo4j.plugins.CommitLatencyHarness
+ *        -transactions 20000 -nodes 10 -properties 4 -relationships 10
+ *        -threads 4 -sinks file,database
+ *   </pre>
+ *
+ ******************************************************************************/
+
+public class CommitLatencyHarness {
+
+    private int transactions = 10000;
+    private int warmup = 2000;
+    private int rounds = 5;
+    private int threads = 1;
+    private int nodes = 10;
+    private int properties = 4;
+    private int relationships = 10;
+    private String sinks = "file";
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] arguments) throws Exception {
+        CommitLatencyHarness harness = new CommitLatencyHarness();
+        for (int i=0; i<arguments.length-1; i+=2){
+            String key = arguments[i].replaceFirst("^-+", "");
+            String value = arguments[i+1];
+            switch (key){
+                case "transactions": harness.transactions = Integer.parseInt(value); break;
+                case "warmup": harness.warmup = Integer.parseInt(value); break;
+                case "rounds": harness.rounds = Integer.parseInt(value); break;
+                case "threads": harness.threads = Integer.parseInt(value); break;
+                case "nodes": harness.nodes = Integer.parseInt(value); break;
+                case "properties": harness.properties = Integer.parseInt(value); break;
+                case "relationships": harness.relationships = Integer.parseInt(value); break;
+                case "sinks": harness.sinks = value; break;
+                default: throw new IllegalArgumentException("Unknown option: " + arguments[i]);
+            }
+        }
+        harness.run();
+        System.exit(0);
+    }
+
+
+  //**************************************************************************
+  //** run
+  //**************************************************************************
+    public void run() throws Exception {
+        File home = Files.createTempDirectory("bluewave-harness").toFile();
+        File pluginDir = new File(home, "plugins");
+        pluginDir.mkdirs();
+        writeConfig(pluginDir, new File(home, "logs"));
+
+        DatabaseManagementService dbms = new DatabaseManagementServiceBuilder(new File(home, "neo4j").toPath()).build();
+        try{
+            GraphDatabaseService db = dbms.database("neo4j");
+            Neo4JTransactionEventListener listener = new Neo4JTransactionEventListener(db, pluginDir);
+
+
+          //Warm up
+            System.out.println("Warming up...");
+            execute(db, warmup);
+            dbms.registerTransactionEventListener("neo4j", listener);
+            execute(db, warmup);
+            dbms.unregisterTransactionEventListener("neo4j", listener);
+
+
+          //Alternate between runs with and without the listener
+            int n = transactions/rounds;
+            long[] baseline = new long[0];
+            long[] plugin = new long[0];
+            for (int i=0; i<rounds; i++){
+                baseline = concat(baseline, execute(db, n));
+
+                dbms.registerTransactionEventListener("neo4j", listener);
+                plugin = concat(plugin, execute(db, n));
+                dbms.unregisterTransactionEventListener("neo4j", listener);
+            }
+            listener.close();
+
+
+          //Report results
+            Arrays.sort(baseline);
+            Arrays.sort(plugin);
+            System.out.println();
+            System.out.println("Commit latency (microseconds), " + threads + " thread(s), " +
+            nodes + " nodes, " + properties + " properties per node, " +
+            relationships + " relationships, sinks: " + sinks);
+            System.out.println(String.format("%-10s %10s %10s %10s", "", "p50", "p99", "p999"));
+            print("baseline", baseline);
+            print("plugin", plugin);
+            System.out.println(String.format("%-10s %10.1f %10.1f %10.1f", "added",
+            (percentile(plugin, 50)-percentile(baseline, 50))/1000.0,
+            (percentile(plugin, 99)-percentile(baseline, 99))/1000.0,
+            (percentile(plugin, 99.9)-percentile(baseline, 99.9))/1000.0));
+        }
+        finally{
+            dbms.shutdown();
+        }
+    }
+
+
+  //**************************************************************************
+  //** execute
+  //**************************************************************************
+  /** Runs the given number of transactions across all the threads
+   *  @return Commit latencies in nanoseconds
+   */
+    private long[] execute(GraphDatabaseService db, int count) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<long[]>> futures = new ArrayList<>();
+        for (int t=0; t<threads; t++){
+            int n = count/threads + (t<count%threads ? 1 : 0);
+            futures.add(executor.submit(() -> {
+                long[] latencies = new long[n];
+                for (int i=0; i<n; i++) latencies[i] = write(db);
+                return latencies;
+            }));
+        }
+
+        long[] latencies = new long[0];
+        for (Future<long[]> future : futures) latencies = concat(latencies, future.get());
+        executor.shutdown();
+        return latencies;
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Executes a single write transaction
+   *  @return Time spent in commit(), in nanoseconds
+   */
+    private long write(GraphDatabaseService db){
+        Label label = Label.label("Item");
+        RelationshipType type = RelationshipType.withName("LINKS_TO");
+        try (Transaction tx = db.beginTx()){
+            Node[] created = new Node[nodes];
+            for (int i=0; i<nodes; i++){
+                Node node = tx.createNode(label);
+                for (int j=0; j<properties; j++){
+                    node.setProperty("key" + j, j%2==0 ? "value " + i : (Object) (long) i);
+                }
+                created[i] = node;
+            }
+            for (int i=0; i<relationships && nodes>0; i++){
+                created[i%nodes].createRelationshipTo(created[(i+1)%nodes], type);
+            }
+
+            long t = System.nanoTime();
+            tx.commit();
+            return System.nanoTime()-t;
+        }
+    }
+
+
+  //**************************************************************************
+  //** writeConfig
+  //**************************************************************************
+    private void writeConfig(File pluginDir, File logDir) throws Exception {
+        String path = logDir.getCanonicalPath().replace("\\", "/");
+        StringBuilder str = new StringBuilder("{");
+        for (String sink : sinks.split(",")){
+            sink = sink.trim();
+            if (sink.isEmpty()) continue;
+            if (str.length()>1) str.append(",");
+            if (sink.equals("file")){
+                str.append("\"logger\":{\"path\":\"" + path + "\"}");
+            }
+            else if (sink.equals("database")){
+                str.append("\"database\":{\"path\":\"" + path + "/db/\"}");
+            }
+            else{
+                throw new IllegalArgumentException("Unsupported sink: " + sink);
+            }
+        }
+        str.append("}");
+        Files.write(new File(pluginDir, "config.json").toPath(),
+        str.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+  //**************************************************************************
+  //** print
+  //**************************************************************************
+    private static void print(String name, long[] sorted){
+        System.out.println(String.format("%-10s %10.1f %10.1f %10.1f", name,
+        percentile(sorted, 50)/1000.0, percentile(sorted, 99)/1000.0,
+        percentile(sorted, 99.9)/1000.0));
+    }
+
+
+  //**************************************************************************
+  //** percentile
+  //**************************************************************************
+    private static long percentile(long[] sorted, double p){
+        if (sorted.length==0) return 0;
+        int idx = (int) Math.ceil(sorted.length*p/100.0)-1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length-1))];
+    }
+
+
+  //**************************************************************************
+  //** concat
+  //**************************************************************************
+    private static long[] concat(long[] a, long[] b){
+        long[] c = Arrays.copyOf(a, a.length+b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
@@ -0,0 +1,151 @@
+package bluewave.neo4j.plugins;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.*;
+
+
+//******************************************************************************
+//**  FakeTransactionData Class
+//******************************************************************************
+/**
+ *   In-memory TransactionData used to benchmark the plugin without a
+ *   database. Creates a transaction with the given number of new nodes,
+ *   each with a set of labels and properties, and relationships between
+ *   consecutive nodes. Neo4J entities are implemented with dynamic proxies
+ *   that only answer the methods used by ChangeSet.
+ *
+ ******************************************************************************/
+
+public class FakeTransactionData {
+
+    private static final ClassLoader CL = FakeTransactionData.class.getClassLoader();
+
+
+  //**************************************************************************
+  //** create
+  //**************************************************************************
+  /** Returns a transaction with new nodes, labels, properties and
+   *  relationships
+   */
+    public static TransactionData create(int nodes, int labelsPerNode,
+        int propertiesPerNode, int relationships){
+
+        ArrayList<Node> createdNodes = new ArrayList<>();
+        ArrayList<LabelEntry> labels = new ArrayList<>();
+        ArrayList<PropertyEntry<Node>> nodeProperties = new ArrayList<>();
+        ArrayList<Relationship> createdRelationships = new ArrayList<>();
+        ArrayList<PropertyEntry<Relationship>> relationshipProperties = new ArrayList<>();
+
+        for (long id=0; id<nodes; id++){
+            Node node = node(id);
+            createdNodes.add(node);
+            for (int i=0; i<labelsPerNode; i++){
+                labels.add(labelEntry(node, Label.label("Label" + i)));
+            }
+            for (int i=0; i<propertiesPerNode; i++){
+                Object value = i%2==0 ? (Object) ("value " + id + "." + i) : (Object) (id*i);
+                nodeProperties.add(propertyEntry(node, "key" + i, value));
+            }
+        }
+
+        for (long id=0; id<relationships; id++){
+            long start = nodes==0 ? 0 : id%nodes;
+            long end = nodes==0 ? 0 : (id+1)%nodes;
+            Relationship r = relationship(id, RelationshipType.withName("LINKS_TO"), start, end);
+            createdRelationships.add(r);
+            relationshipProperties.add(propertyEntry(r, "weight", 1.5));
+        }
+
+        return (TransactionData) Proxy.newProxyInstance(CL, new Class[]{TransactionData.class},
+        (proxy, method, args) -> {
+            switch (method.getName()){
+                case "createdNodes": return createdNodes;
+                case "assignedLabels": return labels;
+                case "assignedNodeProperties": return nodeProperties;
+                case "createdRelationships": return createdRelationships;
+                case "assignedRelationshipProperties": return relationshipProperties;
+                case "deletedNodes":
+                case "removedLabels":
+                case "removedNodeProperties":
+                case "deletedRelationships":
+                case "removedRelationshipProperties":
+                    return Collections.emptyList();
+                case "isDeleted": return false;
+                case "username": return "neo4j";
+                case "metaData": return Collections.emptyMap();
+                case "getTransactionId": return 1L;
+                case "getCommitTime": return System.currentTimeMillis();
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+
+  //**************************************************************************
+  //** node
+  //**************************************************************************
+    private static Node node(long id){
+        return (Node) Proxy.newProxyInstance(CL, new Class[]{Node.class},
+        (proxy, method, args) -> {
+            switch (method.getName()){
+                case "getId": return id;
+                case "hashCode": return Long.hashCode(id);
+                case "equals": return proxy==args[0];
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+
+  //**************************************************************************
+  //** relationship
+  //**************************************************************************
+    private static Relationship relationship(long id, RelationshipType type, long start, long end){
+        return (Relationship) Proxy.newProxyInstance(CL, new Class[]{Relationship.class},
+        (proxy, method, args) -> {
+            switch (method.getName()){
+                case "getId": return id;
+                case "getType": return type;
+                case "getStartNodeId": return start;
+                case "getEndNodeId": return end;
+                case "hashCode": return Long.hashCode(id);
+                case "equals": return proxy==args[0];
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+
+  //**************************************************************************
+  //** labelEntry
+  //**************************************************************************
+    private static LabelEntry labelEntry(Node node, Label label){
+        return (LabelEntry) Proxy.newProxyInstance(CL, new Class[]{LabelEntry.class},
+        (proxy, method, args) -> {
+            switch (method.getName()){
+                case "node": return node;
+                case "label": return label;
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+
+  //**************************************************************************
+  //** propertyEntry
+  //**************************************************************************
+    @SuppressWarnings("unchecked")
+    private static <T extends Entity> PropertyEntry<T> propertyEntry(T entity, String key, Object value){
+        return (PropertyEntry<T>) Proxy.newProxyInstance(CL, new Class[]{PropertyEntry.class},
+        (proxy, method, args) -> {
+            switch (method.getName()){
+                case "entity": return entity;
+                case "key": return key;
+                case "value": return value;
+                case "previouslyCommittedValue": return null;
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,80 @@
+package bluewave.neo4j.plugins;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+//******************************************************************************
+//**  LoggerBenchmark Class
+//******************************************************************************
+/**
+ *   Measures the cost of Logger.log() on the committing threads with 1 to
+ *   64 producers. The logger thread is running with no sinks so the buffer
+ *   is drained and the changes are encoded, but nothing is written. If the
+ *   logger thread can't keep up, producers will block on a full buffer and
+ *   that will show up in the results.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class LoggerBenchmark {
+
+    @Param({"1", "100"})
+    public int nodes;
+
+    private Logger logger;
+    private ChangeSet changes;
+
+
+  //**************************************************************************
+  //** setup
+  //**************************************************************************
+    @Setup
+    public void setup(){
+        logger = new Logger();
+        changes = new ChangeSet(FakeTransactionData.create(nodes, 1, 4, nodes),
+        logger.getTokens(), new CaptureConfig());
+        new Thread(logger, "bluewave-logger").start();
+    }
+
+
+  //**************************************************************************
+  //** tearDown
+  //**************************************************************************
+    @TearDown
+    public void tearDown(){
+        logger.stop(10000);
+    }
+
+
+  //**************************************************************************
+  //** log
+  //**************************************************************************
+    @Benchmark
+    @Threads(1)
+    public boolean log1(){
+        return logger.log(changes, 1, System.currentTimeMillis(), "neo4j");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean log4(){
+        return logger.log(changes, 1, System.currentTimeMillis(), "neo4j");
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean log16(){
+        return logger.log(changes, 1, System.currentTimeMillis(), "neo4j");
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean log64(){
+        return logger.log(changes, 1, System.currentTimeMillis(), "neo4j");
+    }
+}
@@ -0,0 +1,139 @@
+package bluewave.neo4j.plugins;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import com.sun.net.httpserver.HttpServer;
+import javaxt.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+
+//******************************************************************************
+//**  SinkBenchmark Class
+//******************************************************************************
+/**
+ *   Measures the throughput of each sink, in events per second. Each
+ *   invocation writes and flushes a batch of pre-encoded events, the same
+ *   way a SinkStage does. The webserver sink posts to a local HTTP server
+ *   that discards the request body.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SinkBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    @Param({"file", "binary", "database", "webserver"})
+    public String sink;
+
+    @Param({"10"})
+    public int nodes;
+
+    private Sink target;
+    private Event[] batch;
+    private File dir;
+    private HttpServer server;
+
+
+  //**************************************************************************
+  //** setup
+  //**************************************************************************
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("bluewave-benchmark").toFile();
+
+
+      //Create a batch of encoded events
+        Tokens tokens = new Tokens();
+        ChangeSet changes = new ChangeSet(FakeTransactionData.create(nodes, 1, 4, nodes),
+        tokens, new CaptureConfig());
+        ChangeSet.Chunks chunks = changes.encode(tokens, new JsonWriter());
+        Changes data = chunks.next();
+        batch = new Event[BATCH_SIZE];
+        for (int i=0; i<batch.length; i++){
+            batch[i] = new Event();
+            batch[i].set(System.currentTimeMillis()*1000_000, i+1, i+1, "neo4j", "neo4j", data, null);
+        }
+
+
+      //Create sink
+        switch (sink){
+            case "file":
+            case "binary":
+                FileSink fileSink = new FileSink(dir);
+                JSONObject config = new JSONObject();
+                config.set("format", sink.equals("file") ? "text" : "binary");
+                fileSink.setConfig(config);
+                target = fileSink;
+                break;
+
+            case "database":
+                javaxt.sql.Database database = new javaxt.sql.Database();
+                database.setDriver("H2");
+                database.setHost(new File(dir, "database").getCanonicalPath());
+                DatabaseSink databaseSink = new DatabaseSink(database);
+                databaseSink.open();
+                target = databaseSink;
+                break;
+
+            case "webserver":
+                server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+                server.createContext("/", exchange -> {
+                    exchange.getRequestBody().readAllBytes();
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                });
+                server.setExecutor(Executors.newFixedThreadPool(4));
+                server.start();
+
+                JSONObject webconfig = new JSONObject();
+                webconfig.set("url", "http://127.0.0.1:" + server.getAddress().getPort() + "/");
+                target = new WebSink(webconfig);
+                break;
+
+            default:
+                throw new IllegalArgumentException(sink);
+        }
+    }
+
+
+  //**************************************************************************
+  //** tearDown
+  //**************************************************************************
+    @TearDown
+    public void tearDown(){
+        target.close();
+        if (server!=null) server.stop(0);
+        delete(dir);
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void write() throws Exception {
+        target.write(batch, batch.length);
+        target.flush();
+    }
+
+
+  //**************************************************************************
+  //** delete
+  //**************************************************************************
+    private static void delete(File file){
+        File[] files = file.listFiles();
+        if (files!=null){
+            for (File f : files) delete(f);
+        }
+        file.delete();
+    }
+}
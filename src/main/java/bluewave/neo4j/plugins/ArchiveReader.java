@@ -0,0 +1,738 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import static bluewave.neo4j.plugins.ArchiveSink.*;
+
+
+//******************************************************************************
+//**  ArchiveReader Class
+//******************************************************************************
+/**
+ *   Used to read rows from an archive created by the ArchiveSink. Row groups
+ *   are skipped, using the statistics in the footer, if they fall outside
+ *   the time range or don't have any rows for the user. Only the column
+ *   blocks needed for the selected columns and filters are read and
+ *   decompressed. Example:
+ <pre>
+    ArchiveReader reader = new ArchiveReader(new File("/bluewave/archive/20261018.arc"));
+    reader.setTimeRange(from, to);
+    reader.setUser("alice");
+    reader.setColumns("timestamp", "action", "label");
+    while (reader.next()){
+        console.log(reader.getTimestamp(), reader.getAction(), reader.getLabel());
+    }
+    reader.close();
+ </pre>
+ *   The main() method writes rows to standard out as a CSV:
+ <pre>
+    java -cp bluewave_tx-1.0.0.jar bluewave.neo4j.plugins.ArchiveReader -from 2026-09-01 -to 2026-10-01 -user alice -columns timestamp,action,label /bluewave/archive
+ </pre>
+ *
+ ******************************************************************************/
+
+public class ArchiveReader implements Closeable {
+
+    private final FileChannel channel;
+    private final long size;
+    private long position = HEADER_SIZE;
+
+  //Filters
+    private long from = Long.MIN_VALUE; //ns, inclusive
+    private long to = Long.MAX_VALUE; //ns, exclusive
+    private String user;
+    private final boolean[] selected = new boolean[COLUMNS.length];
+
+  //Current row group
+    private int rows;
+    private int row;
+    private final ArrayList<String> words = new ArrayList<>();
+    private final long[][] values = new long[COLUMNS.length][];
+    private String[] data;
+    private int userId;
+
+    private final Inflater inflater = new Inflater();
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[64*1024];
+
+    private long groupsRead;
+    private long groupsSkipped;
+    private long bytesRead;
+
+    private static final Pattern ARCHIVE = Pattern.compile("(\\d{8})(\\d{2})?\\.arc");
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public ArchiveReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try{
+            size = getValidLength(channel);
+        }
+        catch(IOException e){
+            channel.close();
+            throw e;
+        }
+        Arrays.fill(selected, true);
+    }
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] args) throws Exception {
+        if (args.length<1){
+            System.err.println(
+            "Usage: ArchiveReader [-from <date>] [-to <date>] [-user <username>] [-columns timestamp,sequence,transaction,chunk,database,user,action,type,entity,label,key,data] <files or directories>");
+            System.exit(1);
+        }
+
+        HashMap<String, String> options = new HashMap<>();
+        ArrayList<File> inputs = new ArrayList<>();
+        for (int i=0; i<args.length; i++){
+            if (args[i].startsWith("-") && i+1<args.length){
+                options.put(args[i].substring(1), args[++i]);
+            }
+            else{
+                inputs.add(new File(args[i]));
+            }
+        }
+
+        long from = options.containsKey("from") ? LogScanner.parseDate(options.get("from")) : 0;
+        long to = options.containsKey("to") ? LogScanner.parseDate(options.get("to")) : Long.MAX_VALUE;
+        String user = options.get("user");
+        String[] columns = options.containsKey("columns") ?
+            options.get("columns").split(",") : COLUMNS;
+
+        List<File> files = getFiles(inputs, from, to);
+        if (files.isEmpty()){
+            System.err.println("No archives found");
+            System.exit(1);
+        }
+
+        long t = System.currentTimeMillis();
+        long rows = 0;
+        long groupsRead = 0;
+        long groupsSkipped = 0;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64*1024);
+        writer.write(String.join(",", columns) + "\r\n");
+        for (File file : files){
+            try (ArchiveReader reader = new ArchiveReader(file)){
+                if (options.containsKey("from") || options.containsKey("to")){
+                    reader.setTimeRange(from, to);
+                }
+                reader.setUser(user);
+                reader.setColumns(columns);
+                while (reader.next()){
+                    for (int i=0; i<columns.length; i++){
+                        if (i>0) writer.write(',');
+                        Object value = reader.get(columns[i]);
+                        if (value!=null) writer.write(toCSV(value.toString()));
+                    }
+                    writer.write("\r\n");
+                    rows++;
+                }
+                groupsRead += reader.getRowGroupsRead();
+                groupsSkipped += reader.getRowGroupsSkipped();
+            }
+        }
+        writer.flush();
+
+        System.err.println(
+            "Read " + rows + " rows from " + files.size() + " archives in " +
+            (System.currentTimeMillis()-t) + "ms (" + groupsRead + " row groups read, " +
+            groupsSkipped + " skipped)"
+        );
+    }
+
+
+  //**************************************************************************
+  //** setTimeRange
+  //**************************************************************************
+  /** Used to limit rows to a time range
+   *  @param from Start time in milliseconds, inclusive
+   *  @param to End time in milliseconds, exclusive
+   */
+    public void setTimeRange(long from, long to){
+        this.from = from<=Long.MIN_VALUE/1000000 ? Long.MIN_VALUE : from*1000000;
+        this.to = to>=Long.MAX_VALUE/1000000 ? Long.MAX_VALUE : to*1000000;
+    }
+
+
+  //**************************************************************************
+  //** setUser
+  //**************************************************************************
+  /** Used to limit rows to a given user. Pass null to read rows for all
+   *  users.
+   */
+    public void setUser(String user){
+        this.user = user;
+    }
+
+
+  //**************************************************************************
+  //** setColumns
+  //**************************************************************************
+  /** Used to select the columns to read (see ArchiveSink.COLUMNS). All
+   *  columns are read by default.
+   */
+    public void setColumns(String... names){
+        Arrays.fill(selected, false);
+        for (String name : names) selected[getColumn(name)] = true;
+    }
+
+
+  //**************************************************************************
+  //** next
+  //**************************************************************************
+  /** Moves to the next row that matches the filters. Returns false when
+   *  there are no more rows.
+   */
+    public boolean next() throws IOException {
+        while (true){
+            row++;
+            while (row>=rows){
+                if (!readRowGroup()) return false;
+                row = 0;
+            }
+            if (values[TIMESTAMP]!=null){
+                long ts = values[TIMESTAMP][row];
+                if (ts<from || ts>=to) continue;
+            }
+            if (user!=null && values[USER][row]!=userId) continue;
+            return true;
+        }
+    }
+
+
+  //**************************************************************************
+  //** get
+  //**************************************************************************
+  /** Returns the value of a column in the current row
+   */
+    public Object get(String column){
+        switch (getColumn(column)){
+            case TIMESTAMP: return getTimestamp();
+            case SEQUENCE: return getSequence();
+            case TRANSACTION: return getTransactionId();
+            case CHUNK: return getChunk();
+            case DATABASE: return getDatabase();
+            case USER: return getUser();
+            case ACTION: return getAction();
+            case TYPE: return getType();
+            case ENTITY: return getEntityId();
+            case LABEL: return getLabel();
+            case KEY: return getKey();
+            default: return getData();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getTimestamp
+  //**************************************************************************
+  /** Returns the commit time of the current row in nanoseconds
+   */
+    public long getTimestamp(){
+        return getValue(TIMESTAMP);
+    }
+
+
+  //**************************************************************************
+  //** getSequence
+  //**************************************************************************
+    public long getSequence(){
+        return getValue(SEQUENCE);
+    }
+
+
+  //**************************************************************************
+  //** getTransactionId
+  //**************************************************************************
+    public long getTransactionId(){
+        return getValue(TRANSACTION);
+    }
+
+
+  //**************************************************************************
+  //** getChunk
+  //**************************************************************************
+    public int getChunk(){
+        return (int) getValue(CHUNK);
+    }
+
+
+  //**************************************************************************
+  //** getDatabase
+  //**************************************************************************
+    public String getDatabase(){
+        return getString(DATABASE);
+    }
+
+
+  //**************************************************************************
+  //** getUser
+  //**************************************************************************
+    public String getUser(){
+        return getString(USER);
+    }
+
+
+  //**************************************************************************
+  //** getAction
+  //**************************************************************************
+    public String getAction(){
+        return getString(ACTION);
+    }
+
+
+  //**************************************************************************
+  //** getType
+  //**************************************************************************
+    public String getType(){
+        return getString(TYPE);
+    }
+
+
+  //**************************************************************************
+  //** getEntityId
+  //**************************************************************************
+  /** Returns the node or relationship id of the current row. Returns null
+   *  for summaries.
+   */
+    public Long getEntityId(){
+        long id = getValue(ENTITY);
+        return id==Long.MIN_VALUE ? null : id;
+    }
+
+
+  //**************************************************************************
+  //** getLabel
+  //**************************************************************************
+  /** Returns the node label or relationship type of the current row
+   */
+    public String getLabel(){
+        return getString(LABEL);
+    }
+
+
+  //**************************************************************************
+  //** getKey
+  //**************************************************************************
+  /** Returns the property key of the current row
+   */
+    public String getKey(){
+        return getString(KEY);
+    }
+
+
+  //**************************************************************************
+  //** getData
+  //**************************************************************************
+  /** Returns the JSON array for the entity in the current row
+   */
+    public String getData(){
+        if (data==null) throw new IllegalStateException("Column not selected: data");
+        return data[row];
+    }
+
+
+  //**************************************************************************
+  //** getRowGroupsRead
+  //**************************************************************************
+    public long getRowGroupsRead(){
+        return groupsRead;
+    }
+
+
+  //**************************************************************************
+  //** getRowGroupsSkipped
+  //**************************************************************************
+    public long getRowGroupsSkipped(){
+        return groupsSkipped;
+    }
+
+
+  //**************************************************************************
+  //** getBytesRead
+  //**************************************************************************
+  /** Returns the number of column bytes read from disk
+   */
+    public long getBytesRead(){
+        return bytesRead;
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+
+  //**************************************************************************
+  //** getValue
+  //**************************************************************************
+    private long getValue(int column){
+        long[] arr = values[column];
+        if (arr==null) throw new IllegalStateException("Column not selected: " + COLUMNS[column]);
+        return arr[row];
+    }
+
+
+  //**************************************************************************
+  //** getString
+  //**************************************************************************
+    private String getString(int column){
+        int id = (int) getValue(column);
+        return id==0 ? null : words.get(id-1);
+    }
+
+
+  //**************************************************************************
+  //** getColumn
+  //**************************************************************************
+    private static int getColumn(String name){
+        for (int i=0; i<COLUMNS.length; i++){
+            if (COLUMNS[i].equalsIgnoreCase(name.trim())) return i;
+        }
+        throw new IllegalArgumentException("Unknown column: " + name);
+    }
+
+
+  //**************************************************************************
+  //** readRowGroup
+  //**************************************************************************
+  /** Reads the next row group that matches the filters. Returns false when
+   *  there are no more row groups.
+   */
+    private boolean readRowGroup() throws IOException {
+        while (position<size){
+            ByteBuffer footer = readFooter(channel, position);
+            long blockStart = position + 8 + footer.capacity();
+
+            rows = footer.getInt();
+            long minTimestamp = footer.getLong();
+            long maxTimestamp = footer.getLong();
+            footer.getLong(); //min sequence
+            footer.getLong(); //max sequence
+            int numWords = footer.getInt();
+            words.clear();
+            for (int i=0; i<numWords; i++) words.add(getString(footer));
+            int numUsers = footer.getInt();
+            boolean hasUser = false;
+            userId = user==null ? 0 : words.indexOf(user)+1;
+            for (int i=0; i<numUsers; i++){
+                if (footer.getInt()==userId) hasUser = true;
+            }
+
+            int numColumns = footer.getInt();
+            int[] encoding = new int[numColumns];
+            int[] rawLength = new int[numColumns];
+            int[] length = new int[numColumns];
+            int[] checksum = new int[numColumns];
+            long[] offset = new long[numColumns];
+            long next = blockStart;
+            for (int i=0; i<numColumns; i++){
+                encoding[i] = footer.get();
+                rawLength[i] = footer.getInt();
+                length[i] = footer.getInt();
+                checksum[i] = footer.getInt();
+                offset[i] = next;
+                next += length[i];
+            }
+            position = next;
+
+
+          //Skip row groups outside the time range or without the user
+            boolean skip = maxTimestamp<from || minTimestamp>=to;
+            if (user!=null && (userId==0 || !hasUser)) skip = true;
+            if (skip){
+                groupsSkipped++;
+                continue;
+            }
+
+
+          //Read the blocks needed for the selected columns and filters
+            boolean timeFilter = from!=Long.MIN_VALUE || to!=Long.MAX_VALUE;
+            data = null;
+            for (int i=0; i<COLUMNS.length; i++){
+                values[i] = null;
+                boolean required = selected[i] ||
+                    (i==TIMESTAMP && timeFilter) ||
+                    (i==USER && user!=null);
+                if (!required) continue;
+                if (i>=numColumns) throw new IOException("Missing column: " + COLUMNS[i]);
+
+                byte[] block = readBlock(offset[i], length[i], checksum[i], encoding[i], rawLength[i]);
+                if (i==DATA) data = decodeStrings(block, rawLength[i]);
+                else values[i] = decodeLongs(i, block);
+            }
+            groupsRead++;
+            return true;
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** readBlock
+  //**************************************************************************
+  /** Reads, verifies and decompresses a column block
+   */
+    private byte[] readBlock(long offset, int length, int checksum, int encoding, int rawLength)
+        throws IOException {
+
+        ByteBuffer block = ByteBuffer.allocate(length);
+        while (block.hasRemaining()){
+            if (channel.read(block, offset+block.position())<0) throw new EOFException();
+        }
+        bytesRead += length;
+        byte[] bytes = block.array();
+
+        crc.reset();
+        crc.update(bytes);
+        if ((int) crc.getValue()!=checksum) throw new IOException("Invalid checksum");
+        if (encoding==RAW) return bytes;
+
+        if (buffer.length<rawLength) buffer = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(bytes);
+        try{
+            int n = 0;
+            while (n<rawLength && !inflater.finished()){
+                int len = inflater.inflate(buffer, n, rawLength-n);
+                if (len==0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += len;
+            }
+            if (n!=rawLength) throw new IOException("Invalid block length");
+        }
+        catch(DataFormatException e){
+            throw new IOException(e);
+        }
+        return buffer;
+    }
+
+
+  //**************************************************************************
+  //** decodeLongs
+  //**************************************************************************
+  /** Decodes the varints in a column block
+   */
+    private long[] decodeLongs(int column, byte[] block){
+        long[] arr = new long[rows];
+        int[] pos = new int[1];
+        long prev = 0;
+        for (int i=0; i<rows; i++){
+            long v = getVarLong(block, pos);
+            switch (column){
+                case TIMESTAMP:
+                case SEQUENCE:
+                case TRANSACTION:
+                    prev += BinaryLogReader.unZigZag(v);
+                    arr[i] = prev;
+                    break;
+                case ENTITY:
+                    if (v==0) arr[i] = Long.MIN_VALUE;
+                    else{
+                        prev += BinaryLogReader.unZigZag(v-1);
+                        arr[i] = prev;
+                    }
+                    break;
+                default:
+                    arr[i] = v;
+            }
+        }
+        return arr;
+    }
+
+
+  //**************************************************************************
+  //** decodeStrings
+  //**************************************************************************
+    private String[] decodeStrings(byte[] block, int length){
+        String[] arr = new String[rows];
+        int[] pos = new int[1];
+        for (int i=0; i<rows && pos[0]<length; i++){
+            int len = (int) getVarLong(block, pos);
+            arr[i] = new String(block, pos[0], len, StandardCharsets.UTF_8);
+            pos[0] += len;
+        }
+        return arr;
+    }
+
+
+  //**************************************************************************
+  //** getVarLong
+  //**************************************************************************
+    private static long getVarLong(byte[] b, int[] pos){
+        long v = 0;
+        int shift = 0;
+        while (true){
+            byte x = b[pos[0]++];
+            v |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80)==0) return v;
+            shift += 7;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getString
+  //**************************************************************************
+    private static String getString(ByteBuffer buffer){
+        byte[] b = new byte[buffer.getInt()];
+        buffer.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+
+  //**************************************************************************
+  //** readFooter
+  //**************************************************************************
+  /** Returns the footer of the row group at a given position. Throws an
+   *  IOException if the footer is incomplete or corrupt.
+   */
+    private static ByteBuffer readFooter(FileChannel channel, long position) throws IOException {
+        long size = channel.size();
+        if (position+8>size) throw new EOFException();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (header.hasRemaining()){
+            if (channel.read(header, position+header.position())<0) throw new EOFException();
+        }
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length<=0 || position+8+length>size) throw new EOFException();
+
+        ByteBuffer footer = ByteBuffer.allocate(length);
+        while (footer.hasRemaining()){
+            if (channel.read(footer, position+8+footer.position())<0) throw new EOFException();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(footer.array());
+        if ((int) crc.getValue()!=checksum) throw new IOException("Invalid checksum");
+        footer.flip();
+        return footer;
+    }
+
+
+  //**************************************************************************
+  //** getValidLength
+  //**************************************************************************
+  /** Returns the length of an archive up to the end of the last complete row
+   *  group. Used to ignore (or truncate) a row group that was only partially
+   *  written when the server stopped.
+   */
+    static long getValidLength(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()){
+            if (channel.read(header, header.position())<0) break;
+        }
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        if (header.remaining()<HEADER_SIZE) throw new IOException("Invalid archive");
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Invalid archive");
+        int version = header.get();
+        if (version>VERSION) throw new IOException("Unsupported archive version: " + version);
+
+        long size = channel.size();
+        long position = HEADER_SIZE;
+        while (position<size){
+            try{
+                ByteBuffer footer = readFooter(channel, position);
+                long next = position + 8 + footer.capacity();
+                footer.getInt(); //rows
+                footer.position(footer.position()+32); //min/max timestamp and sequence
+                int numWords = footer.getInt();
+                for (int i=0; i<numWords; i++){
+                    int length = footer.getInt();
+                    footer.position(footer.position()+length);
+                }
+                int numUsers = footer.getInt();
+                footer.position(footer.position()+numUsers*4);
+                int numColumns = footer.getInt();
+                for (int i=0; i<numColumns; i++){
+                    footer.get(); //encoding
+                    footer.getInt(); //raw length
+                    next += footer.getInt();
+                    footer.getInt(); //checksum
+                }
+                if (next>size) break;
+                position = next;
+            }
+            catch(Exception e){
+                break;
+            }
+        }
+        return position;
+    }
+
+
+  //**************************************************************************
+  //** getFiles
+  //**************************************************************************
+  /** Returns archives in the given files and directories. Archives in a
+   *  directory are skipped, based on their names, if they fall outside the
+   *  time range (milliseconds).
+   */
+    public static List<File> getFiles(List<File> inputs, long from, long to){
+        ZoneId zone = ZoneId.systemDefault();
+        ArrayList<File> files = new ArrayList<>();
+        for (File input : inputs){
+            if (input.isDirectory()){
+                File[] arr = input.listFiles();
+                ArrayList<File> archives = new ArrayList<>();
+                if (arr!=null){
+                    for (File file : arr){
+                        Matcher m = ARCHIVE.matcher(file.getName());
+                        if (!file.isFile() || !m.matches()) continue;
+                        ZonedDateTime start = LocalDate.parse(m.group(1),
+                            DateTimeFormatter.BASIC_ISO_DATE).atStartOfDay(zone);
+                        ZonedDateTime end;
+                        if (m.group(2)==null){
+                            end = start.plusDays(1);
+                        }
+                        else{
+                            start = start.plusHours(Integer.parseInt(m.group(2)));
+                            end = start.plusHours(1);
+                        }
+                        if (end.toInstant().toEpochMilli()<=from) continue;
+                        if (start.toInstant().toEpochMilli()>=to) continue;
+                        archives.add(file);
+                    }
+                }
+                archives.sort(Comparator.comparing(File::getName));
+                files.addAll(archives);
+            }
+            else if (input.isFile()){
+                files.add(input);
+            }
+        }
+        return files;
+    }
+
+
+  //**************************************************************************
+  //** toCSV
+  //**************************************************************************
+    private static String toCSV(String value){
+        if (value.indexOf(',')>=0 || value.indexOf('"')>=0 || value.indexOf('\n')>=0){
+            value = "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
@@ -0,0 +1,643 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javaxt.json.JSONObject;
+
+
+//******************************************************************************
+//**  ArchiveSink Class
+//******************************************************************************
+/**
+ *   Used to write changes to a columnar archive for analytics. Each changed
+ *   entity is stored as a row, the same way as the DatabaseSink, in a file
+ *   for each day (e.g. 20261018.arc) or hour (e.g. 2026101813.arc). Rows are
+ *   collected into row groups and each column of a group is written as a
+ *   separate block. An archive starts with a 5 byte header (the magic number
+ *   "BWCA" followed by a version number) and is followed by a series of row
+ *   groups. Each row group consists of:
+ *   <ul>
+ *   <li>footer length (4 byte int)</li>
+ *   <li>CRC32 checksum of the footer (4 byte int)</li>
+ *   <li>footer: number of rows, min/max timestamp, min/max sequence, the
+ *   string dictionary, the users in the group and the length and checksum
+ *   of every column block</li>
+ *   <li>column blocks, in the order of the COLUMNS array</li>
+ *   </ul>
+ *   The footer comes before the blocks so a reader can skip a row group, or
+ *   any column it doesn't need, without reading the blocks. Timestamps,
+ *   sequence numbers, transaction ids and entity ids are stored as varint
+ *   deltas. Strings (database, user, action, type, label and key) are stored
+ *   as ids in the dictionary of the row group. Blocks are compressed with
+ *   Deflate unless that doesn't make them smaller.
+ *   <p/>
+ *   Use the ArchiveReader to read the rows back.
+ *
+ ******************************************************************************/
+
+public class ArchiveSink implements Sink {
+
+    public static final byte[] MAGIC = new byte[]{'B','W','C','A'};
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = MAGIC.length+1;
+
+  //Columns
+    public static final int TIMESTAMP = 0;
+    public static final int SEQUENCE = 1;
+    public static final int TRANSACTION = 2;
+    public static final int CHUNK = 3;
+    public static final int DATABASE = 4;
+    public static final int USER = 5;
+    public static final int ACTION = 6;
+    public static final int TYPE = 7;
+    public static final int ENTITY = 8;
+    public static final int LABEL = 9;
+    public static final int KEY = 10;
+    public static final int DATA = 11;
+    public static final String[] COLUMNS = new String[]{
+        "timestamp", "sequence", "transaction", "chunk", "database", "user",
+        "action", "type", "entity", "label", "key", "data"
+    };
+
+  //Block encodings
+    static final int RAW = 0;
+    static final int DEFLATE = 1;
+
+    public enum Partition {
+        DAY, HOUR
+    }
+
+    private final File dir;
+    private Partition partition = Partition.DAY;
+    private int rowGroupSize = 65536;
+    private long flushInterval = 60000; //ms
+    private boolean compress = true;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private FileChannel channel;
+    private long partitionStart = Long.MAX_VALUE; //ms, inclusive
+    private long partitionEnd = Long.MIN_VALUE; //ms, exclusive
+
+  //Current row group
+    private final Column[] columns = new Column[COLUMNS.length];
+    private final HashMap<String, Integer> dictionary = new HashMap<>();
+    private final ArrayList<String> words = new ArrayList<>();
+    private final BitSet users = new BitSet();
+    private int rows;
+    private int pending; //events in the current row group
+    private long created; //ms
+    private long minTimestamp, maxTimestamp;
+    private long minSequence, maxSequence;
+    private long prevTimestamp, prevSequence, prevTransactionId, prevEntityId;
+
+    private final JsonReader reader = new JsonReader();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[64*1024];
+
+    private long rowCount;
+    private long groupCount;
+
+
+  //**************************************************************************
+  //** Column Class
+  //**************************************************************************
+  /** Growable byte array used to encode the values in a column
+   */
+    private static class Column {
+        private byte[] bytes = new byte[16*1024];
+        private int size;
+
+        private void putVarLong(long v){
+            ensureCapacity(10);
+            while ((v & ~0x7FL)!=0){
+                bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        private void putBytes(byte[] b, int off, int len){
+            putVarLong(len);
+            ensureCapacity(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        private void ensureCapacity(int n){
+            if (size+n>bytes.length){
+                bytes = java.util.Arrays.copyOf(bytes, Math.max(bytes.length*2, size+n));
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param dir Directory used to store the archive files
+   */
+    public ArchiveSink(File dir) {
+        this.dir = dir;
+        for (int i=0; i<columns.length; i++) columns[i] = new Column();
+    }
+
+
+  //**************************************************************************
+  //** setConfig
+  //**************************************************************************
+  /** Used to set options from the "archive" section of the config file:
+   *  "partition" ("day" or "hour"), "rowGroupSize" (rows), "flushInterval"
+   *  (milliseconds) and "compression" ("deflate" or "none").
+   */
+    public void setConfig(JSONObject config){
+        if (config==null) return;
+
+        String partition = config.get("partition").toString();
+        if (partition!=null) this.partition = Partition.valueOf(partition.toUpperCase());
+
+        Integer rowGroupSize = config.get("rowGroupSize").toInteger();
+        if (rowGroupSize!=null && rowGroupSize>0) this.rowGroupSize = rowGroupSize;
+
+        Long flushInterval = config.get("flushInterval").toLong();
+        if (flushInterval!=null && flushInterval>0) this.flushInterval = flushInterval;
+
+        String compression = config.get("compression").toString();
+        if (compression!=null) compress = !compression.equalsIgnoreCase("none");
+    }
+
+
+  //**************************************************************************
+  //** isDurable
+  //**************************************************************************
+    public boolean isDurable(){
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** open
+  //**************************************************************************
+    public void open() throws Exception {
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Adds rows to the current row group. The row group is written whenever
+   *  it fills up or the partition changes. A transaction is never split
+   *  across row groups.
+   */
+    public void write(Event[] events, int length) throws Exception {
+        try{
+            for (int i=0; i<length; i++){
+                Event event = events[i];
+                if (event.data!=null){
+                    long ms = event.timestamp/1000000;
+                    if (ms<partitionStart || ms>=partitionEnd){
+                        writeRowGroup();
+                        openPartition(ms);
+                    }
+                    addRows(event);
+                }
+                if (rows>0) pending++;
+                if (rows>=rowGroupSize) writeRowGroup();
+            }
+        }
+        catch(Exception e){
+            discard();
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** flush
+  //**************************************************************************
+  /** Writes the current row group if it is older than the flush interval.
+   *  Small row groups compress poorly so rows are otherwise held until the
+   *  group is full, the partition changes, or finish() is called.
+   */
+    public void flush() throws Exception {
+        if (rows>0 && System.currentTimeMillis()-created>=flushInterval){
+            try{
+                writeRowGroup();
+            }
+            catch(Exception e){
+                discard();
+                throw e;
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** sync
+  //**************************************************************************
+  /** Forces the row groups that have been written to disk. Rows in the
+   *  current row group are not written (see getPendingCount).
+   */
+    public void sync() throws Exception {
+        try{
+            if (channel!=null) channel.force(false);
+        }
+        catch(Exception e){
+            discard();
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getPendingCount
+  //**************************************************************************
+  /** Returns the number of events in the current row group. The spool
+   *  position is only saved once their row group has been written.
+   */
+    public int getPendingCount(){
+        return pending;
+    }
+
+
+  //**************************************************************************
+  //** finish
+  //**************************************************************************
+  /** Writes the current row group and forces it to disk
+   */
+    public void finish() throws Exception {
+        try{
+            writeRowGroup();
+            if (channel!=null) channel.force(false);
+        }
+        catch(Exception e){
+            discard();
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** discard
+  //**************************************************************************
+  /** Discards the current row group and closes the archive. Called when the
+   *  sink fails since the stage sends the events again. A partial row group
+   *  at the end of the file is truncated when the archive is reopened.
+   */
+    private void discard(){
+        clear();
+        closeChannel();
+    }
+
+
+  //**************************************************************************
+  //** addRows
+  //**************************************************************************
+  /** Adds a row for every entity in an event. Nodes get a row for each
+   *  label, relationships store their type in the label column, and
+   *  properties store their key. Summaries have a row for every label, type
+   *  or key, without an entity id.
+   */
+    private void addRows(Event event){
+        Changes changes = event.data;
+        byte[] json = changes.getBytes();
+
+        for (int i=0; i<changes.size(); i++){
+            String type = changes.getType(i);
+            int actionId = getId(changes.getAction(i));
+            int typeId = getId(type);
+            boolean summary = type.endsWith("_summary");
+            boolean hasKey = type.startsWith("properties") || type.startsWith("relationship_property");
+            boolean hasLabels = type.startsWith("nodes") || type.startsWith("labels");
+
+            reader.reset(json, changes.getOffset(i), changes.getLength(i));
+            reader.beginArray();
+            while (reader.hasNext()){
+                int start = reader.getPosition();
+                reader.beginArray();
+                Long entityId = null;
+                if (!summary && reader.peek()==JsonReader.Token.NUMBER){
+                    entityId = reader.nextLong();
+                }
+                int labelId = 0;
+                int keyId = 0;
+                ArrayList<String> labels = null;
+                if (hasLabels && !summary){
+                    while (reader.hasNext()){
+                        if (labels==null) labels = new ArrayList<>();
+                        labels.add(reader.nextString());
+                    }
+                }
+                else{
+                    String name = reader.nextString();
+                    if (hasKey) keyId = getId(name);
+                    else labelId = getId(name);
+                }
+                reader.endArray();
+                int end = reader.getPosition();
+
+                if (labels==null){
+                    addRow(event, actionId, typeId, entityId, labelId, keyId, json, start, end);
+                }
+                else{
+                    for (String label : labels){
+                        addRow(event, actionId, typeId, entityId, getId(label), keyId, json, start, end);
+                    }
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** addRow
+  //**************************************************************************
+    private void addRow(Event event, int actionId, int typeId, Long entityId,
+        int labelId, int keyId, byte[] json, int start, int end){
+
+        if (rows==0){
+            created = System.currentTimeMillis();
+            minTimestamp = maxTimestamp = event.timestamp;
+            minSequence = maxSequence = event.sequence;
+        }
+        else{
+            minTimestamp = Math.min(minTimestamp, event.timestamp);
+            maxTimestamp = Math.max(maxTimestamp, event.timestamp);
+            minSequence = Math.min(minSequence, event.sequence);
+            maxSequence = Math.max(maxSequence, event.sequence);
+        }
+
+        columns[TIMESTAMP].putVarLong(BinaryLogWriter.zigZag(event.timestamp-prevTimestamp));
+        prevTimestamp = event.timestamp;
+        columns[SEQUENCE].putVarLong(BinaryLogWriter.zigZag(event.sequence-prevSequence));
+        prevSequence = event.sequence;
+        columns[TRANSACTION].putVarLong(BinaryLogWriter.zigZag(event.transactionId-prevTransactionId));
+        prevTransactionId = event.transactionId;
+        columns[CHUNK].putVarLong(event.chunk);
+        columns[DATABASE].putVarLong(getId(event.database));
+        int userId = getId(event.user);
+        columns[USER].putVarLong(userId);
+        users.set(userId);
+        columns[ACTION].putVarLong(actionId);
+        columns[TYPE].putVarLong(typeId);
+
+      //Entity ids are stored as the difference from the previous entity id
+      //plus one. Zero is used for rows without an entity id.
+        if (entityId==null) columns[ENTITY].putVarLong(0);
+        else{
+            columns[ENTITY].putVarLong(BinaryLogWriter.zigZag(entityId-prevEntityId)+1);
+            prevEntityId = entityId;
+        }
+
+        columns[LABEL].putVarLong(labelId);
+        columns[KEY].putVarLong(keyId);
+        columns[DATA].putBytes(json, start, end-start);
+        rows++;
+    }
+
+
+  //**************************************************************************
+  //** getId
+  //**************************************************************************
+  /** Returns the dictionary id for a given string. Ids start at 1, 0 is
+   *  used for null.
+   */
+    private int getId(String str){
+        if (str==null) return 0;
+        Integer id = dictionary.get(str);
+        if (id==null){
+            words.add(str);
+            id = words.size();
+            dictionary.put(str, id);
+        }
+        return id;
+    }
+
+
+  //**************************************************************************
+  //** writeRowGroup
+  //**************************************************************************
+  /** Compresses the columns in the current row group and appends them to the
+   *  archive, preceded by the footer.
+   */
+    private void writeRowGroup() throws IOException {
+        if (rows==0) return;
+
+        ArrayList<byte[]> blocks = new ArrayList<>();
+        ByteArrayOutputStream footer = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(footer);
+        out.writeInt(rows);
+        out.writeLong(minTimestamp);
+        out.writeLong(maxTimestamp);
+        out.writeLong(minSequence);
+        out.writeLong(maxSequence);
+        out.writeInt(words.size());
+        for (String word : words) writeString(out, word);
+        out.writeInt(users.cardinality());
+        for (int i=users.nextSetBit(0); i>=0; i=users.nextSetBit(i+1)) out.writeInt(i);
+        out.writeInt(columns.length);
+        for (Column column : columns){
+            byte[] block = compress(column);
+            int encoding = block.length>0 ? DEFLATE : RAW;
+            if (encoding==RAW) block = java.util.Arrays.copyOf(column.bytes, column.size);
+            crc.reset();
+            crc.update(block);
+            out.writeByte(encoding);
+            out.writeInt(column.size);
+            out.writeInt(block.length);
+            out.writeInt((int) crc.getValue());
+            blocks.add(block);
+        }
+        out.flush();
+
+        byte[] f = footer.toByteArray();
+        crc.reset();
+        crc.update(f);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(f.length);
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[blocks.size()+2];
+        buffers[0] = header;
+        buffers[1] = ByteBuffer.wrap(f);
+        for (int i=0; i<blocks.size(); i++) buffers[i+2] = ByteBuffer.wrap(blocks.get(i));
+        long remaining = 0;
+        for (ByteBuffer b : buffers) remaining += b.remaining();
+        while (remaining>0) remaining -= channel.write(buffers);
+
+        rowCount += rows;
+        groupCount++;
+        clear();
+    }
+
+
+  //**************************************************************************
+  //** clear
+  //**************************************************************************
+  /** Resets the current row group
+   */
+    private void clear(){
+        for (Column column : columns) column.size = 0;
+        dictionary.clear();
+        words.clear();
+        users.clear();
+        rows = 0;
+        pending = 0;
+        prevTimestamp = prevSequence = prevTransactionId = prevEntityId = 0;
+    }
+
+
+  //**************************************************************************
+  //** compress
+  //**************************************************************************
+  /** Returns the deflated bytes in a column. Returns an empty array if
+   *  compression is disabled or the deflated bytes are no smaller than the
+   *  original.
+   */
+    private byte[] compress(Column column){
+        if (!compress || column.size==0) return new byte[0];
+        deflater.reset();
+        deflater.setInput(column.bytes, 0, column.size);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()){
+            if (size==buffer.length) buffer = java.util.Arrays.copyOf(buffer, buffer.length*2);
+            size += deflater.deflate(buffer, size, buffer.length-size);
+            if (size>=column.size) return new byte[0];
+        }
+        return java.util.Arrays.copyOf(buffer, size);
+    }
+
+
+  //**************************************************************************
+  //** writeString
+  //**************************************************************************
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] b = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+
+  //**************************************************************************
+  //** openPartition
+  //**************************************************************************
+  /** Opens the archive for a given time. An existing archive (e.g. after a
+   *  restart) is truncated to the end of the last complete row group before
+   *  new row groups are appended.
+   */
+    private void openPartition(long ms) throws IOException {
+        closeChannel();
+
+        ChronoUnit unit = partition==Partition.DAY ? ChronoUnit.DAYS : ChronoUnit.HOURS;
+        ZonedDateTime start = Instant.ofEpochMilli(ms).atZone(zone).truncatedTo(unit);
+        partitionStart = start.toInstant().toEpochMilli();
+        partitionEnd = start.plus(1, unit).toInstant().toEpochMilli();
+
+        String pattern = partition==Partition.DAY ? "yyyyMMdd" : "yyyyMMddHH";
+        File file = new File(dir, start.format(DateTimeFormatter.ofPattern(pattern)) + ".arc");
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long size = channel.size();
+        if (size<HEADER_SIZE){
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            header.put(VERSION);
+            header.flip();
+            while (header.hasRemaining()) channel.write(header);
+        }
+        else{
+            long end = ArchiveReader.getValidLength(channel);
+            if (end<size) channel.truncate(end);
+            channel.position(end);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getRowCount
+  //**************************************************************************
+  /** Returns the number of rows written to the archive
+   */
+    public long getRowCount(){
+        return rowCount;
+    }
+
+
+  //**************************************************************************
+  //** getRowGroupCount
+  //**************************************************************************
+    public long getRowGroupCount(){
+        return groupCount;
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Writes the current row group and closes the archive
+   */
+    public void close(){
+        try{
+            writeRowGroup();
+        }
+        catch(Exception e){
+            e.printStackTrace();
+        }
+        closeChannel();
+        deflater.end();
+    }
+
+
+  //**************************************************************************
+  //** closeChannel
+  //**************************************************************************
+    private void closeChannel(){
+        if (channel==null) return;
+        try{
+            channel.force(false);
+            channel.close();
+        }
+        catch(Exception e){}
+        channel = null;
+        partitionStart = Long.MAX_VALUE;
+        partitionEnd = Long.MIN_VALUE;
+    }
+
+
+  //**************************************************************************
+  //** Provider Class
+  //**************************************************************************
+  /** Creates an ArchiveSink from the "archive" section of the config file.
+   *  Archives are written to the given "path".
+   */
+    public static class Provider implements SinkProvider {
+
+        public String getName(){
+            return "archive";
+        }
+
+        public Sink create(JSONObject config, Context context) throws Exception {
+            String path = config.get("path").toString();
+            if (path==null) throw new IllegalArgumentException("Missing archive path");
+            javaxt.io.Directory dir = new javaxt.io.Directory(path.replace("\\", "/"));
+            ArchiveSink sink = new ArchiveSink(new File(dir.toString()));
+            sink.setConfig(config);
+            return sink;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import javaxt.json.JSONArray;
+import javaxt.json.JSONObject;
+import static bluewave.neo4j.plugins.BinaryLogWriter.*;
+
+
+//******************************************************************************
+//**  BinaryLogReader Class
+//******************************************************************************
+/**
+ *   Used to stream records from a binary log segment created by the
+ *   BinaryLogWriter. Blocks are read and verified one at a time so memory
+ *   use is bounded by the block size. Example:
+ <pre>
+    try (BinaryLogReader reader = new BinaryLogReader(file)){
+        Event event = new Event();
+        while (reader.next(event)){
+            ...
+        }
+    }
+ </pre>
+ *
+ ******************************************************************************/
+
+public class BinaryLogReader implements Closeable {
+
+    private DataInputStream input;
+    private boolean skipCorruptBlocks;
+    private long corruptBlocks;
+
+    private byte[] block = new byte[64*1024];
+    private int blockSize;
+    private int offset;
+
+    private final ArrayList<String> dictionary = new ArrayList<>();
+    private long prevTimestamp;
+    private long prevSequence;
+    private long prevTransactionId;
+    private final CRC32 crc = new CRC32();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public BinaryLogReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public BinaryLogReader(InputStream input) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(input, 64*1024));
+
+        byte[] header = new byte[HEADER_SIZE];
+        this.input.readFully(header);
+        for (int i=0; i<MAGIC.length; i++){
+            if (header[i]!=MAGIC[i]){
+                close();
+                throw new IOException("Not a binary log segment");
+            }
+        }
+        int version = header[MAGIC.length];
+        if (version!=VERSION){
+            close();
+            throw new IOException("Unsupported version: " + version);
+        }
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to read blocks from the middle of a segment (e.g. a split created
+   *  by the LogScanner). The input should start at a block boundary, after
+   *  the header.
+   *  @param version Version from the segment header
+   */
+    BinaryLogReader(InputStream input, int version) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(input, 64*1024));
+        if (version!=VERSION){
+            close();
+            throw new IOException("Unsupported version: " + version);
+        }
+    }
+
+
+  //**************************************************************************
+  //** isBinaryLog
+  //**************************************************************************
+  /** Returns true if the given file starts with the binary log header
+   */
+    public static boolean isBinaryLog(File file){
+        try (InputStream in = new FileInputStream(file)){
+            byte[] b = new byte[MAGIC.length];
+            if (in.read(b)!=b.length) return false;
+            return java.util.Arrays.equals(b, MAGIC);
+        }
+        catch(IOException e){
+            return false;
+        }
+    }
+
+
+  //**************************************************************************
+  //** setSkipCorruptBlocks
+  //**************************************************************************
+  /** By default, the reader throws an exception if a block fails the checksum
+   *  test. If true, corrupt blocks are skipped instead.
+   */
+    public void setSkipCorruptBlocks(boolean skipCorruptBlocks){
+        this.skipCorruptBlocks = skipCorruptBlocks;
+    }
+
+
+  //**************************************************************************
+  //** getCorruptBlocks
+  //**************************************************************************
+    public long getCorruptBlocks(){
+        return corruptBlocks;
+    }
+
+
+  //**************************************************************************
+  //** next
+  //**************************************************************************
+  /** Reads the next record into the given event.
+   *  @return False if there are no more records
+   */
+    public boolean next(Event event) throws IOException {
+        while (offset>=blockSize){
+            if (!readBlock()) return false;
+        }
+
+        int length = (int) getVarLong();
+        int end = offset+length;
+        if (length<0 || end>blockSize) throw new IOException("Invalid record length");
+
+        prevTimestamp += unZigZag(getVarLong());
+        prevSequence += unZigZag(getVarLong());
+        prevTransactionId += unZigZag(getVarLong());
+        int chunk = (int) getVarLong();
+        int chunks = (int) getVarLong();
+        String database = getString();
+        String user = getString();
+        JSONArray data = getArray();
+        event.set(prevTimestamp, prevSequence, prevTransactionId, database, user, Changes.parse(data), null);
+        event.setChunk(chunk, chunks);
+
+        offset = end;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+    public void close() throws IOException {
+        if (input!=null) input.close();
+        input = null;
+    }
+
+
+  //**************************************************************************
+  //** readBlock
+  //**************************************************************************
+    private boolean readBlock() throws IOException {
+        while (true){
+            int length;
+            try{
+                length = input.readInt();
+            }
+            catch(EOFException e){
+                return false;
+            }
+            if (length<0) throw new IOException("Invalid block length");
+
+          //Read checksum and payload. A partial block at the end of the
+          //segment (e.g. after a crash) is treated as the end of the file.
+            int checksum;
+            try{
+                checksum = input.readInt();
+                if (block.length<length) block = new byte[length];
+                input.readFully(block, 0, length);
+            }
+            catch(EOFException e){
+                corruptBlocks++;
+                return false;
+            }
+
+            crc.reset();
+            crc.update(block, 0, length);
+            if ((int) crc.getValue()!=checksum){
+                corruptBlocks++;
+                if (skipCorruptBlocks) continue;
+                throw new IOException("Checksum mismatch");
+            }
+
+            blockSize = length;
+            offset = 0;
+            prevTimestamp = 0;
+            prevSequence = 0;
+            prevTransactionId = 0;
+            dictionary.clear();
+            return true;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getArray
+  //**************************************************************************
+    private JSONArray getArray() throws IOException {
+        int tag = getByte();
+        if (tag==NULL) return null;
+        if (tag!=ARRAY) throw new IOException("Expected array");
+        return readArray();
+    }
+
+
+  //**************************************************************************
+  //** readArray
+  //**************************************************************************
+    private JSONArray readArray() throws IOException {
+        JSONArray arr = new JSONArray();
+        int n = (int) getVarLong();
+        for (int i=0; i<n; i++){
+            arr.add(getValue());
+        }
+        return arr;
+    }
+
+
+  //**************************************************************************
+  //** getValue
+  //**************************************************************************
+    private Object getValue() throws IOException {
+        int tag = getByte();
+        switch (tag){
+            case NULL: return null;
+            case LONG: return unZigZag(getVarLong());
+            case DOUBLE: return Double.longBitsToDouble(getVarLong());
+            case TRUE: return true;
+            case FALSE: return false;
+            case STRING: return getString();
+            case ARRAY: return readArray();
+            case OBJECT:
+                JSONObject json = new JSONObject();
+                int n = (int) getVarLong();
+                for (int i=0; i<n; i++){
+                    String key = getString();
+                    json.set(key, getValue());
+                }
+                return json;
+            default:
+                throw new IOException("Invalid tag: " + tag);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getString
+  //**************************************************************************
+    private String getString() throws IOException {
+        int ref = (int) getVarLong();
+        if (ref==NULL_REF) return null;
+        if (ref==NEW_REF){
+            int length = (int) getVarLong();
+            if (length<0 || offset+length>blockSize) throw new IOException("Invalid string length");
+            String str = new String(block, offset, length, StandardCharsets.UTF_8);
+            offset += length;
+            dictionary.add(str);
+            return str;
+        }
+        int id = ref-FIRST_ID;
+        if (id>=dictionary.size()) throw new IOException("Invalid string ref: " + ref);
+        return dictionary.get(id);
+    }
+
+
+  //**************************************************************************
+  //** getByte
+  //**************************************************************************
+    private int getByte() throws IOException {
+        if (offset>=blockSize) throw new IOException("Unexpected end of block");
+        return block[offset++] & 0xFF;
+    }
+
+
+  //**************************************************************************
+  //** getVarLong
+  //**************************************************************************
+    private long getVarLong() throws IOException {
+        long v = 0;
+        for (int shift=0; shift<64; shift+=7){
+            int b = getByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80)==0) return v;
+        }
+        throw new IOException("Invalid varint");
+    }
+
+
+  //**************************************************************************
+  //** unZigZag
+  //**************************************************************************
+    static long unZigZag(long v){
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,449 @@
+package bluewave.neo4j.plugins;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+
+//******************************************************************************
+//**  BinaryLogWriter Class
+//******************************************************************************
+/**
+ *   Used to encode events in a compact binary format. A binary log segment
+ *   starts with a 5 byte header (the magic number "BWTX" followed by a
+ *   version number) and is followed by a series of blocks. Each block
+ *   consists of:
+ *   <ul>
+ *   <li>payload length (4 byte int)</li>
+ *   <li>CRC32 checksum of the payload (4 byte int)</li>
+ *   <li>payload: a series of length-prefixed records</li>
+ *   </ul>
+ *   Each record holds a single transaction (or a chunk of a large one): the
+ *   timestamp, sequence number, transaction id, chunk number, number of
+ *   chunks, database, user, and the changes. Numbers are written as
+ *   varints. Timestamps, sequence numbers and transaction ids are stored as
+ *   the difference from the previous record. Strings (database, user,
+ *   actions, types, labels, etc) are
+ *   dictionary encoded: the first time a string appears in a block it is
+ *   written in full and assigned an id. After that, only the id is written.
+ *   Blocks don't depend on each other so a segment can be appended to after
+ *   a restart and a reader can skip a corrupt block.
+ *   <p/>
+ *   Use the BinaryLogReader to read the records back.
+ *
+ ******************************************************************************/
+
+public class BinaryLogWriter {
+
+    public static final byte[] MAGIC = new byte[]{'B','W','T','X'};
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = MAGIC.length+1;
+
+  //Value tags
+    static final int NULL = 0;
+    static final int LONG = 1;
+    static final int STRING = 2;
+    static final int ARRAY = 3;
+    static final int DOUBLE = 4;
+    static final int TRUE = 5;
+    static final int FALSE = 6;
+    static final int OBJECT = 7;
+
+  //String refs: 0 is null, 1 is followed by a new string, ids start at 2
+    static final int NULL_REF = 0;
+    static final int NEW_REF = 1;
+    static final int FIRST_ID = 2;
+
+    private byte[] block = new byte[64*1024];
+    private int blockSize = 8;  //leave room for the block header
+    private byte[] record = new byte[1024];
+    private int recordSize;
+    private int count;
+
+    private final HashMap<String, Integer> dictionary = new HashMap<>();
+    private long prevTimestamp;
+    private long prevSequence;
+    private long prevTransactionId;
+    private final CRC32 crc = new CRC32();
+
+    private byte[] json;
+    private int pos;
+
+
+  //**************************************************************************
+  //** getHeader
+  //**************************************************************************
+  /** Returns the segment header
+   */
+    public static ByteBuffer getHeader(){
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.put(VERSION);
+        header.flip();
+        return header;
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Encodes an event and adds it to the current block
+   */
+    public void add(Event event){
+        recordSize = 0;
+        putVarLong(zigZag(event.timestamp-prevTimestamp));
+        prevTimestamp = event.timestamp;
+        putVarLong(zigZag(event.sequence-prevSequence));
+        prevSequence = event.sequence;
+        putVarLong(zigZag(event.transactionId-prevTransactionId));
+        prevTransactionId = event.transactionId;
+        putVarLong(event.chunk);
+        putVarLong(event.chunks);
+        putString(event.database);
+        putString(event.user);
+        if (event.data==null) putByte(NULL);
+        else putJson(event.data.getBytes());
+
+        ensureBlockCapacity(recordSize+5);
+        blockSize = putVarInt(block, blockSize, recordSize);
+        System.arraycopy(record, 0, block, blockSize, recordSize);
+        blockSize += recordSize;
+        count++;
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of bytes in the current block, including the block
+   *  header
+   */
+    public int size(){
+        return count==0 ? 0 : blockSize;
+    }
+
+
+  //**************************************************************************
+  //** writeTo
+  //**************************************************************************
+  /** Writes the current block to the given channel and starts a new block.
+   *  @return Number of bytes written
+   */
+    public int writeTo(WritableByteChannel channel) throws java.io.IOException {
+        if (count==0) return 0;
+
+        int payloadLength = blockSize-8;
+        crc.reset();
+        crc.update(block, 8, payloadLength);
+        putInt(block, 0, payloadLength);
+        putInt(block, 4, (int) crc.getValue());
+
+        ByteBuffer buffer = ByteBuffer.wrap(block, 0, blockSize);
+        int n = blockSize;
+        try{
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+        finally{
+            reset();
+        }
+        return n;
+    }
+
+
+  //**************************************************************************
+  //** reset
+  //**************************************************************************
+  /** Discards the current block and clears the dictionary
+   */
+    public void reset(){
+        blockSize = 8;
+        count = 0;
+        prevTimestamp = 0;
+        prevSequence = 0;
+        prevTransactionId = 0;
+        dictionary.clear();
+    }
+
+
+  //**************************************************************************
+  //** putJson
+  //**************************************************************************
+  /** Converts encoded JSON into tagged values. The JSON is scanned in place
+   *  so there's no need to parse it into JSONArrays first.
+   */
+    private void putJson(byte[] json){
+        this.json = json;
+        pos = 0;
+        try{
+            putJsonValue();
+        }
+        finally{
+            this.json = null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** putJsonValue
+  //**************************************************************************
+    private void putJsonValue(){
+        skipWhitespace();
+        byte b = json[pos];
+        if (b=='['){
+            pos++;
+            putByte(ARRAY);
+            int count = 0;
+            int countOffset = recordSize;
+            putVarLong(0); //placeholder
+            skipWhitespace();
+            if (json[pos]==']') pos++;
+            else{
+                while (true){
+                    putJsonValue();
+                    count++;
+                    skipWhitespace();
+                    if (json[pos++]==']') break;
+                }
+            }
+            setCount(countOffset, count);
+        }
+        else if (b=='{'){
+            pos++;
+            putByte(OBJECT);
+            int count = 0;
+            int countOffset = recordSize;
+            putVarLong(0); //placeholder
+            skipWhitespace();
+            if (json[pos]=='}') pos++;
+            else{
+                while (true){
+                    skipWhitespace();
+                    putString(readJsonString());
+                    skipWhitespace();
+                    pos++; //colon
+                    putJsonValue();
+                    count++;
+                    skipWhitespace();
+                    if (json[pos++]=='}') break;
+                }
+            }
+            setCount(countOffset, count);
+        }
+        else if (b=='"'){
+            putByte(STRING);
+            putString(readJsonString());
+        }
+        else if (b=='t'){
+            pos += 4;
+            putByte(TRUE);
+        }
+        else if (b=='f'){
+            pos += 5;
+            putByte(FALSE);
+        }
+        else if (b=='n'){
+            pos += 4;
+            putByte(NULL);
+        }
+        else{
+            int start = pos;
+            boolean isDouble = false;
+            while (pos<json.length){
+                byte c = json[pos];
+                if (c=='.' || c=='e' || c=='E') isDouble = true;
+                else if (c!='-' && c!='+' && (c<'0' || c>'9')) break;
+                pos++;
+            }
+            String str = new String(json, start, pos-start, StandardCharsets.US_ASCII);
+            if (isDouble){
+                putByte(DOUBLE);
+                putVarLong(Double.doubleToRawLongBits(Double.parseDouble(str)));
+            }
+            else{
+                putByte(LONG);
+                putVarLong(zigZag(Long.parseLong(str)));
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** setCount
+  //**************************************************************************
+  /** Replaces the 1 byte placeholder for the number of entries in an array
+   *  or object. Values after the placeholder are shifted if the count needs
+   *  more than 1 byte.
+   */
+    private void setCount(int countOffset, int count){
+        int n = 0;
+        for (long v=count; (v & ~0x7FL)!=0; v >>>= 7) n++;
+        if (n>0){
+            ensureRecordCapacity(n);
+            System.arraycopy(record, countOffset+1, record, countOffset+1+n, recordSize-countOffset-1);
+            recordSize += n;
+        }
+        putVarInt(record, countOffset, count);
+    }
+
+
+  //**************************************************************************
+  //** readJsonString
+  //**************************************************************************
+  /** Returns the string at the current position and moves past the closing
+   *  quote
+   */
+    private String readJsonString(){
+        int start = ++pos;
+        boolean escaped = false;
+        while (json[pos]!='"'){
+            if (json[pos]=='\\'){
+                escaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        int end = pos++;
+        if (!escaped) return new String(json, start, end-start, StandardCharsets.UTF_8);
+
+      //Unescape. Uncommon so we don't mind going through a StringBuilder.
+        String str = new String(json, start, end-start, StandardCharsets.UTF_8);
+        StringBuilder out = new StringBuilder(str.length());
+        for (int i=0; i<str.length(); i++){
+            char c = str.charAt(i);
+            if (c!='\\' || i+1==str.length()){
+                out.append(c);
+                continue;
+            }
+            c = str.charAt(++i);
+            switch (c){
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'u':
+                    out.append((char) Integer.parseInt(str.substring(i+1, i+5), 16));
+                    i += 4;
+                    break;
+                default: out.append(c); break;
+            }
+        }
+        return out.toString();
+    }
+
+
+  //**************************************************************************
+  //** skipWhitespace
+  //**************************************************************************
+    private void skipWhitespace(){
+        while (pos<json.length){
+            byte b = json[pos];
+            if (b!=' ' && b!='\n' && b!='\r' && b!='\t') break;
+            pos++;
+        }
+    }
+
+
+  //**************************************************************************
+  //** putString
+  //**************************************************************************
+  /** Writes a dictionary reference, followed by the string itself the first
+   *  time it appears in the block.
+   */
+    private void putString(String str){
+        if (str==null){
+            putVarLong(NULL_REF);
+            return;
+        }
+        Integer id = dictionary.get(str);
+        if (id!=null){
+            putVarLong(id);
+            return;
+        }
+
+        dictionary.put(str, dictionary.size()+FIRST_ID);
+        putVarLong(NEW_REF);
+        byte[] b = str.getBytes(StandardCharsets.UTF_8);
+        putVarLong(b.length);
+        ensureRecordCapacity(b.length);
+        System.arraycopy(b, 0, record, recordSize, b.length);
+        recordSize += b.length;
+    }
+
+
+  //**************************************************************************
+  //** putByte
+  //**************************************************************************
+    private void putByte(int b){
+        ensureRecordCapacity(1);
+        record[recordSize++] = (byte) b;
+    }
+
+
+  //**************************************************************************
+  //** putVarLong
+  //**************************************************************************
+    private void putVarLong(long v){
+        ensureRecordCapacity(10);
+        while ((v & ~0x7FL)!=0){
+            record[recordSize++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        record[recordSize++] = (byte) v;
+    }
+
+
+  //**************************************************************************
+  //** putVarInt
+  //**************************************************************************
+    private static int putVarInt(byte[] b, int offset, int v){
+        while ((v & ~0x7F)!=0){
+            b[offset++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        b[offset++] = (byte) v;
+        return offset;
+    }
+
+
+  //**************************************************************************
+  //** putInt
+  //**************************************************************************
+    private static void putInt(byte[] b, int offset, int v){
+        b[offset] = (byte) (v >>> 24);
+        b[offset+1] = (byte) (v >>> 16);
+        b[offset+2] = (byte) (v >>> 8);
+        b[offset+3] = (byte) v;
+    }
+
+
+  //**************************************************************************
+  //** zigZag
+  //**************************************************************************
+  /** Maps signed numbers to unsigned so small negative numbers stay small
+   */
+    static long zigZag(long v){
+        return (v << 1) ^ (v >> 63);
+    }
+
+
+  //**************************************************************************
+  //** ensureRecordCapacity
+  //**************************************************************************
+    private void ensureRecordCapacity(int n){
+        if (recordSize+n>record.length){
+            record = java.util.Arrays.copyOf(record, Math.max(record.length*2, recordSize+n));
+        }
+    }
+
+
+  //**************************************************************************
+  //** ensureBlockCapacity
+  //**************************************************************************
+    private void ensureBlockCapacity(int n){
+        if (blockSize+n>block.length){
+            block = java.util.Arrays.copyOf(block, Math.max(block.length*2, blockSize+n));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package bluewave.neo4j.plugins;
+import javaxt.json.JSONObject;
+
+
+//******************************************************************************
+//**  CaptureConfig Class
+//******************************************************************************
+/**
+ *   Options used to control how much of a transaction is captured and how
+ *   it is encoded. Instances are shared by the listener and the logger and
+ *   are not modified after the config file is parsed. A new instance is
+ *   created when the config file is reloaded.
+ *
+ ******************************************************************************/
+
+public class CaptureConfig {
+
+    private int maxValueSize = 1024;
+    private int chunkSize = 10000;
+    private int summaryThreshold = 1000000;
+    private CaptureFilter filter;
+
+
+  //**************************************************************************
+  //** setConfig
+  //**************************************************************************
+  /** Used to set options from the "capture" section of the config file:
+   *  "maxValueSize" (bytes), "chunkSize" (entries) and "summaryThreshold"
+   *  (entries). Use 0 to disable a limit.
+   */
+    public void setConfig(JSONObject config){
+        if (config==null) return;
+
+        Integer maxValueSize = config.get("maxValueSize").toInteger();
+        if (maxValueSize!=null) this.maxValueSize = Math.max(0, maxValueSize);
+
+        Integer chunkSize = config.get("chunkSize").toInteger();
+        if (chunkSize!=null) this.chunkSize = Math.max(0, chunkSize);
+
+        Integer summaryThreshold = config.get("summaryThreshold").toInteger();
+        if (summaryThreshold!=null) this.summaryThreshold = Math.max(0, summaryThreshold);
+    }
+
+
+  //**************************************************************************
+  //** getMaxValueSize
+  //**************************************************************************
+  /** Returns the max number of bytes to log for a property value. Larger
+   *  values are logged as a size and hash. Returns 0 if there is no limit.
+   */
+    public int getMaxValueSize(){
+        return maxValueSize;
+    }
+
+
+  //**************************************************************************
+  //** getChunkSize
+  //**************************************************************************
+  /** Returns the max number of entries (nodes, relationships, properties,
+   *  etc) in a single chunk of a transaction record. Returns 0 if records
+   *  are never split.
+   */
+    public int getChunkSize(){
+        return chunkSize;
+    }
+
+
+  //**************************************************************************
+  //** getSummaryThreshold
+  //**************************************************************************
+  /** Returns the max number of entries to capture for a transaction. Larger
+   *  transactions are logged as a summary with counts per label,
+   *  relationship type and property key. Returns 0 if there is no limit.
+   */
+    public int getSummaryThreshold(){
+        return summaryThreshold;
+    }
+
+
+  //**************************************************************************
+  //** setFilter
+  //**************************************************************************
+  /** Used to set the rules that decide which changes are captured
+   */
+    public void setFilter(CaptureFilter filter){
+        this.filter = filter;
+    }
+
+
+  //**************************************************************************
+  //** getFilter
+  //**************************************************************************
+  /** Returns the rules that decide which changes are captured. Returns null
+   *  if everything is captured.
+   */
+    public CaptureFilter getFilter(){
+        return filter;
+    }
+}
\ No newline at end of file
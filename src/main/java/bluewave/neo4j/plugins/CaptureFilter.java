@@ -0,0 +1,414 @@
+package bluewave.neo4j.plugins;
+import java.util.*;
+import javaxt.json.JSONArray;
+import javaxt.json.JSONObject;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.TransactionData;
+
+
+//******************************************************************************
+//**  CaptureFilter Class
+//******************************************************************************
+/**
+ *   Rules used to decide which changes to capture, compiled from the
+ *   "filter" section of the config file. Labels, relationship types and
+ *   property keys are compiled into token id bitsets when the config is
+ *   parsed so the checks in beforeCommit() are simple bit tests on the ids
+ *   the ChangeSet already has. Change kinds are compiled into a bitmask so
+ *   excluded kinds are never iterated.
+ *   <p/>
+ *   Nodes are selected by label. A node is captured if it has at least one
+ *   included label (when labels are included) and no excluded labels. Labels
+ *   can also be sampled, in which case only a fraction of the nodes with the
+ *   label are captured. Sampling is done on a hash of the entity id so an
+ *   entity is either always or never captured, and its history stays
+ *   complete. Relationships are selected by type in the same way.
+ *
+ ******************************************************************************/
+
+public class CaptureFilter {
+
+  //Change kinds. Names match the methods in TransactionData.
+    public static final int CREATED_NODES = 1;
+    public static final int DELETED_NODES = 1<<1;
+    public static final int CREATED_RELATIONSHIPS = 1<<2;
+    public static final int DELETED_RELATIONSHIPS = 1<<3;
+    public static final int ASSIGNED_LABELS = 1<<4;
+    public static final int REMOVED_LABELS = 1<<5;
+    public static final int ASSIGNED_NODE_PROPERTIES = 1<<6;
+    public static final int REMOVED_NODE_PROPERTIES = 1<<7;
+    public static final int ASSIGNED_RELATIONSHIP_PROPERTIES = 1<<8;
+    public static final int REMOVED_RELATIONSHIP_PROPERTIES = 1<<9;
+    private static final String[] KINDS = {
+        "createdNodes", "deletedNodes", "createdRelationships",
+        "deletedRelationships", "assignedLabels", "removedLabels",
+        "assignedNodeProperties", "removedNodeProperties",
+        "assignedRelationshipProperties", "removedRelationshipProperties"
+    };
+
+    private final Tokens tokens;
+    private int changes = (1<<KINDS.length)-1;
+    private Set<String> includedUsers;
+    private Set<String> excludedUsers;
+    private BitSet includedLabels;
+    private BitSet excludedLabels;
+    private BitSet includedTypes;
+    private BitSet excludedTypes;
+    private BitSet includedKeys;
+    private BitSet excludedKeys;
+    private double[] labelRates;
+    private double[] typeRates;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to compile rules from the "filter" section of the config file.
+   *  The "include" and "exclude" sections can have "labels", "types"
+   *  (relationship types), "properties" (property keys), "users" and
+   *  "changes" (e.g. "assignedNodeProperties"). The "sample" section can
+   *  have "labels" and "types" with a rate between 0 and 1 for each name.
+   *  @param tokens Used to map names to token ids. Must be the same tokens
+   *  used to create ChangeSets.
+   */
+    public CaptureFilter(JSONObject config, Tokens tokens){
+        this.tokens = tokens;
+        if (config==null) return;
+
+        JSONObject include = config.get("include").toJSONObject();
+        if (include!=null){
+            includedUsers = getNames(include, "users");
+            includedLabels = getTokens(include, "labels");
+            includedTypes = getTokens(include, "types");
+            includedKeys = getTokens(include, "properties");
+            Set<String> kinds = getNames(include, "changes");
+            if (kinds!=null) changes = getKinds(kinds);
+        }
+
+        JSONObject exclude = config.get("exclude").toJSONObject();
+        if (exclude!=null){
+            excludedUsers = getNames(exclude, "users");
+            excludedLabels = getTokens(exclude, "labels");
+            excludedTypes = getTokens(exclude, "types");
+            excludedKeys = getTokens(exclude, "properties");
+            Set<String> kinds = getNames(exclude, "changes");
+            if (kinds!=null) changes &= ~getKinds(kinds);
+        }
+
+        JSONObject sample = config.get("sample").toJSONObject();
+        if (sample!=null){
+            labelRates = getRates(sample, "labels");
+            typeRates = getRates(sample, "types");
+        }
+    }
+
+
+  //**************************************************************************
+  //** acceptUser
+  //**************************************************************************
+  /** Returns true if transactions from the given user should be captured
+   */
+    public boolean acceptUser(String user){
+        if (includedUsers!=null && !includedUsers.contains(user)) return false;
+        if (excludedUsers!=null && excludedUsers.contains(user)) return false;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** acceptChanges
+  //**************************************************************************
+  /** Returns true if the given kind of change (e.g. CREATED_NODES) should be
+   *  captured
+   */
+    public boolean acceptChanges(int kind){
+        return (changes & kind)!=0;
+    }
+
+
+  //**************************************************************************
+  //** acceptKey
+  //**************************************************************************
+  /** Returns true if changes to the given property key should be captured
+   *  @param key Token id of the property key
+   */
+    public boolean acceptKey(int key){
+        return accept(key, includedKeys, excludedKeys);
+    }
+
+
+  //**************************************************************************
+  //** hasNodeRules
+  //**************************************************************************
+  /** Returns true if nodes are selected by label
+   */
+    public boolean hasNodeRules(){
+        return includedLabels!=null || excludedLabels!=null || labelRates!=null;
+    }
+
+
+  //**************************************************************************
+  //** hasRelationshipRules
+  //**************************************************************************
+  /** Returns true if relationships are selected by type
+   */
+    public boolean hasRelationshipRules(){
+        return includedTypes!=null || excludedTypes!=null || typeRates!=null;
+    }
+
+
+  //**************************************************************************
+  //** acceptRelationship
+  //**************************************************************************
+  /** Returns true if changes to a relationship should be captured
+   *  @param id Relationship id, used for sampling
+   *  @param type Token id of the relationship type
+   */
+    public boolean acceptRelationship(long id, int type){
+        if (!accept(type, includedTypes, excludedTypes)) return false;
+        return sample(id, type, typeRates);
+    }
+
+
+  //**************************************************************************
+  //** acceptRelationship
+  //**************************************************************************
+    public boolean acceptRelationship(Relationship r){
+        if (!hasRelationshipRules()) return true;
+        int type;
+        try{
+            type = tokens.getId(r.getType().name());
+        }
+        catch(Exception e){
+            type = -1;
+        }
+        return acceptRelationship(r.getId(), type);
+    }
+
+
+  //**************************************************************************
+  //** getNodes
+  //**************************************************************************
+  /** Returns a selection used to test the nodes in a transaction against the
+   *  label rules. Returns null if there are no label rules.
+   */
+    public Selection getNodes(TransactionData data){
+        if (!hasNodeRules()) return null;
+        return new Selection(data);
+    }
+
+
+  //**************************************************************************
+  //** accept
+  //**************************************************************************
+    private static boolean accept(int id, BitSet include, BitSet exclude){
+        if (include!=null && (id<0 || !include.get(id))) return false;
+        if (exclude!=null && id>=0 && exclude.get(id)) return false;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** sample
+  //**************************************************************************
+  /** Returns true if an entity falls within the sampling rate for a token.
+   *  The decision is based on a hash of the entity id.
+   */
+    private static boolean sample(long id, int token, double[] rates){
+        if (rates==null || token<0 || token>=rates.length) return true;
+        double rate = rates[token];
+        if (rate>=1) return true;
+        if (rate<=0) return false;
+
+        long h = id * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= (h >>> 29);
+        return (h >>> 11) * 0x1.0p-53 < rate;
+    }
+
+
+  //**************************************************************************
+  //** getNames
+  //**************************************************************************
+    private static Set<String> getNames(JSONObject json, String key){
+        JSONArray arr = json.get(key).toJSONArray();
+        if (arr==null) return null;
+        HashSet<String> names = new HashSet<>();
+        for (int i=0; i<arr.length(); i++){
+            String name = arr.get(i).toString();
+            if (name!=null) names.add(name);
+        }
+        return names;
+    }
+
+
+  //**************************************************************************
+  //** getTokens
+  //**************************************************************************
+    private BitSet getTokens(JSONObject json, String key){
+        Set<String> names = getNames(json, key);
+        if (names==null) return null;
+        BitSet bits = new BitSet();
+        for (String name : names) bits.set(tokens.getId(name));
+        return bits;
+    }
+
+
+  //**************************************************************************
+  //** getRates
+  //**************************************************************************
+    private double[] getRates(JSONObject json, String key){
+        JSONObject rates = json.get(key).toJSONObject();
+        if (rates==null || rates.isEmpty()) return null;
+        double[] arr = new double[0];
+        for (String name : rates.keySet()){
+            Double rate = rates.get(name).toDouble();
+            if (rate==null) continue;
+            int id = tokens.getId(name);
+            if (id>=arr.length){
+                int n = arr.length;
+                arr = Arrays.copyOf(arr, id+1);
+                Arrays.fill(arr, n, arr.length, 1.0);
+            }
+            arr[id] = Math.max(0, Math.min(1, rate));
+        }
+        return arr;
+    }
+
+
+  //**************************************************************************
+  //** getKinds
+  //**************************************************************************
+    private static int getKinds(Set<String> names){
+        int kinds = 0;
+        for (int i=0; i<KINDS.length; i++){
+            if (names.contains(KINDS[i])) kinds |= (1<<i);
+        }
+        return kinds;
+    }
+
+
+  //**************************************************************************
+  //** Selection Class
+  //**************************************************************************
+  /** Used to test the nodes in a transaction against the label rules.
+   *  Decisions are cached by node id so the labels for a node are only read
+   *  once per transaction. Labels for deleted nodes can't be read from the
+   *  node so they're collected from the removed labels instead.
+   */
+    public class Selection {
+
+        private final TransactionData data;
+        private long[] ids = new long[16];
+        private byte[] states = new byte[16];
+        private int size;
+        private Selection deleted;
+
+        private static final byte EMPTY = 0;
+        private static final byte ACCEPT = 1;
+        private static final byte REJECT = 2;
+        private static final byte INCLUDED = 4;
+        private static final byte EXCLUDED = 8;
+        private static final byte SEEN = 16;
+
+
+        private Selection(TransactionData data){
+            this.data = data;
+        }
+
+
+      /** Returns true if changes to the node should be captured */
+        public boolean accept(Node node){
+            long id = node.getId();
+            int i = find(id);
+            if (states[i]!=EMPTY) return states[i]==ACCEPT;
+
+            byte state;
+            if (data.isDeleted(node)){
+                state = getDeleted().state(id);
+            }
+            else{
+                state = 0;
+                for (Label label : node.getLabels()){
+                    state = update(state, id, tokens.getId(label.name()));
+                }
+                state = decide(state);
+            }
+            put(i, id, state);
+            return state==ACCEPT;
+        }
+
+
+      /** Returns the decision for a deleted node, based on removed labels */
+        private Selection getDeleted(){
+            if (deleted==null){
+                deleted = new Selection(data);
+                for (LabelEntry entry : data.removedLabels()){
+                    long id = entry.node().getId();
+                    int i = deleted.find(id);
+                    byte state = deleted.update(deleted.states[i], id, tokens.getId(entry.label().name()));
+                    deleted.put(i, id, (byte) (state | SEEN));
+                }
+            }
+            return deleted;
+        }
+
+
+        private byte state(long id){
+            return decide(states[find(id)]);
+        }
+
+
+      /** Adds a label to the flags for a node */
+        private byte update(byte state, long id, int label){
+            if (includedLabels!=null && label>=0 && includedLabels.get(label)) state |= INCLUDED;
+            if (excludedLabels!=null && label>=0 && excludedLabels.get(label)) state |= EXCLUDED;
+            if (!sample(id, label, labelRates)) state |= EXCLUDED;
+            return state;
+        }
+
+
+      /** Converts label flags into a decision */
+        private byte decide(byte state){
+            if ((state & EXCLUDED)!=0) return REJECT;
+            if (includedLabels!=null && (state & INCLUDED)==0) return REJECT;
+            return ACCEPT;
+        }
+
+
+      /** Returns the slot for a node id (open addressing) */
+        private int find(long id){
+            int mask = ids.length-1;
+            int i = Long.hashCode(id * 0x9E3779B97F4A7C15L) & mask;
+            while (states[i]!=EMPTY && ids[i]!=id) i = (i+1) & mask;
+            return i;
+        }
+
+
+        private void put(int i, long id, byte state){
+            boolean added = states[i]==EMPTY;
+            ids[i] = id;
+            states[i] = state;
+            if (added && ++size*2>ids.length) grow();
+        }
+
+
+        private void grow(){
+            long[] oldIds = ids;
+            byte[] oldStates = states;
+            ids = new long[oldIds.length*2];
+            states = new byte[oldStates.length*2];
+            for (int i=0; i<oldIds.length; i++){
+                if (oldStates[i]!=EMPTY){
+                    int j = find(oldIds[i]);
+                    ids[j] = oldIds[i];
+                    states[j] = oldStates[i];
+                }
+            }
+        }
+    }
+}
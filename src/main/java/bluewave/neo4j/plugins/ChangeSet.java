@@ -0,0 +1,994 @@
+package bluewave.neo4j.plugins;
+import java.util.*;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+
+
+//******************************************************************************
+//**  ChangeSet Class
+//******************************************************************************
+/**
+ *   Compact snapshot of the changes in a transaction. The snapshot is taken
+ *   in beforeCommit() and only stores entity ids, token ids (labels,
+ *   relationship types, property keys) and references to property values in
+ *   flat arrays so that very little work is done on the committing thread.
+ *   The snapshot is encoded as JSON by the Logger thread after the
+ *   transaction commits.
+ *   <p/>
+ *   Memory is bounded for very large transactions. Once the number of
+ *   entries reaches the summary threshold, the snapshot switches to a summary
+ *   that only counts changes per label, relationship type and property key.
+ *   Large snapshots are encoded in fixed-size chunks so no single chunk of
+ *   the record is bigger than the chunk size.
+ *   <p/>
+ *   Changes that don't match the capture filter are skipped as they are
+ *   read from the transaction so they are never copied into the snapshot.
+ *
+ ******************************************************************************/
+
+public class ChangeSet {
+
+    private String user;
+    private final int maxValueSize;
+    private final int chunkSize;
+    private final int summaryThreshold;
+    private int entries;
+    private boolean summary;
+
+    private Ids createdNodes = new Ids();
+    private Ids deletedNodes = new Ids();
+    private Relationships createdRelationships = new Relationships();
+    private Relationships deletedRelationships = new Relationships();
+    private Labels assignedLabels = new Labels();
+    private Labels removedLabels = new Labels();
+    private Properties assignedNodeProperties = new Properties(true);
+    private Properties removedNodeProperties = new Properties(false);
+    private Properties assignedRelationshipProperties = new Properties(true);
+    private Properties removedRelationshipProperties = new Properties(false);
+
+  //Counts used in summary mode
+    private long numCreatedNodes;
+    private long numDeletedNodes;
+    private Counts createdRelationshipTypes;
+    private Counts deletedRelationshipTypes;
+    private Counts assignedLabelCounts;
+    private Counts removedLabelCounts;
+    private Counts assignedNodePropertyKeys;
+    private Counts removedNodePropertyKeys;
+    private Counts assignedRelationshipPropertyKeys;
+    private Counts removedRelationshipPropertyKeys;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to create a snapshot of the changes in a transaction.
+   *  @param tokens Used to map labels, relationship types and property keys
+   *  to token ids
+   *  @param config Capture options (max value size, chunk size, filter, etc)
+   */
+    public ChangeSet(TransactionData data, Tokens tokens, CaptureConfig config){
+        this.user = data.username();
+        this.maxValueSize = config.getMaxValueSize();
+        this.chunkSize = config.getChunkSize();
+        this.summaryThreshold = config.getSummaryThreshold();
+
+
+      //Get filter. Nodes and relationships are only tested if there are
+      //rules for them.
+        CaptureFilter filter = config.getFilter();
+        CaptureFilter.Selection nodes = filter==null ? null : filter.getNodes(data);
+        boolean filterTypes = filter!=null && filter.hasRelationshipRules();
+
+
+      //Get nodes
+        for (Node node : iterate(data.createdNodes(), filter, CaptureFilter.CREATED_NODES)){
+            if (nodes!=null && !nodes.accept(node)) continue;
+            if (summary) numCreatedNodes++;
+            else{
+                createdNodes.add(node.getId());
+                checkSize();
+            }
+        }
+
+        for (Node node : iterate(data.deletedNodes(), filter, CaptureFilter.DELETED_NODES)){
+            if (nodes!=null && !nodes.accept(node)) continue;
+            if (summary) numDeletedNodes++;
+            else{
+                deletedNodes.add(node.getId());
+                checkSize();
+            }
+        }
+
+
+      //Get relationships. The type and end points of deleted relationships
+      //are still available in beforeCommit().
+        for (Relationship r : iterate(data.createdRelationships(), filter, CaptureFilter.CREATED_RELATIONSHIPS)){
+            if (filterTypes && !filter.acceptRelationship(r)) continue;
+            if (summary) createdRelationshipTypes.add(getType(r, tokens));
+            else{
+                createdRelationships.add(r, tokens);
+                checkSize();
+            }
+        }
+
+        for (Relationship r : iterate(data.deletedRelationships(), filter, CaptureFilter.DELETED_RELATIONSHIPS)){
+            if (filterTypes && !filter.acceptRelationship(r)) continue;
+            if (summary) deletedRelationshipTypes.add(getType(r, tokens));
+            else{
+                deletedRelationships.add(r, tokens);
+                checkSize();
+            }
+        }
+
+
+      //Get labels. Labels for new nodes are reported as assigned labels and
+      //labels for deleted nodes are reported as removed labels so there's no
+      //need to call node.getLabels().
+        for (LabelEntry entry : iterate(data.assignedLabels(), filter, CaptureFilter.ASSIGNED_LABELS)){
+            if (nodes!=null && !nodes.accept(entry.node())) continue;
+            int label = tokens.getId(entry.label().name());
+            if (summary) assignedLabelCounts.add(label);
+            else{
+                assignedLabels.add(entry.node().getId(), label);
+                checkSize();
+            }
+        }
+
+        for (LabelEntry entry : iterate(data.removedLabels(), filter, CaptureFilter.REMOVED_LABELS)){
+            if (nodes!=null && !nodes.accept(entry.node())) continue;
+            int label = tokens.getId(entry.label().name());
+            if (summary) removedLabelCounts.add(label);
+            else{
+                removedLabels.add(entry.node().getId(), label);
+                checkSize();
+            }
+        }
+
+
+      //Get properties. Values are immutable so we only keep references.
+        for (PropertyEntry<Node> entry : iterate(data.assignedNodeProperties(), filter, CaptureFilter.ASSIGNED_NODE_PROPERTIES)){
+            int key = tokens.getId(entry.key());
+            if (filter!=null && !filter.acceptKey(key)) continue;
+            if (nodes!=null && !nodes.accept(entry.entity())) continue;
+            if (summary) assignedNodePropertyKeys.add(key);
+            else{
+                assignedNodeProperties.add(entry.entity().getId(), key,
+                entry.value(), entry.previouslyCommittedValue());
+                checkSize();
+            }
+        }
+
+        for (PropertyEntry<Node> entry : iterate(data.removedNodeProperties(), filter, CaptureFilter.REMOVED_NODE_PROPERTIES)){
+            int key = tokens.getId(entry.key());
+            if (filter!=null && !filter.acceptKey(key)) continue;
+            if (nodes!=null && !nodes.accept(entry.entity())) continue;
+            if (summary) removedNodePropertyKeys.add(key);
+            else{
+                removedNodeProperties.add(entry.entity().getId(), key,
+                null, entry.previouslyCommittedValue());
+                checkSize();
+            }
+        }
+
+        for (PropertyEntry<Relationship> entry : iterate(data.assignedRelationshipProperties(), filter, CaptureFilter.ASSIGNED_RELATIONSHIP_PROPERTIES)){
+            int key = tokens.getId(entry.key());
+            if (filter!=null && !filter.acceptKey(key)) continue;
+            if (filterTypes && !filter.acceptRelationship(entry.entity())) continue;
+            if (summary) assignedRelationshipPropertyKeys.add(key);
+            else{
+                assignedRelationshipProperties.add(entry.entity().getId(), key,
+                entry.value(), entry.previouslyCommittedValue());
+                checkSize();
+            }
+        }
+
+        for (PropertyEntry<Relationship> entry : iterate(data.removedRelationshipProperties(), filter, CaptureFilter.REMOVED_RELATIONSHIP_PROPERTIES)){
+            int key = tokens.getId(entry.key());
+            if (filter!=null && !filter.acceptKey(key)) continue;
+            if (filterTypes && !filter.acceptRelationship(entry.entity())) continue;
+            if (summary) removedRelationshipPropertyKeys.add(key);
+            else{
+                removedRelationshipProperties.add(entry.entity().getId(), key,
+                null, entry.previouslyCommittedValue());
+                checkSize();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to create an empty snapshot. Changes are added with the add
+   *  methods (e.g. when changes from several transactions are coalesced).
+   */
+    ChangeSet(String user, CaptureConfig config){
+        this.user = user;
+        this.maxValueSize = config.getMaxValueSize();
+        this.chunkSize = config.getChunkSize();
+        this.summaryThreshold = config.getSummaryThreshold();
+    }
+
+
+  //**************************************************************************
+  //** getUser
+  //**************************************************************************
+    public String getUser(){
+        return user;
+    }
+
+
+  //**************************************************************************
+  //** isSummary
+  //**************************************************************************
+  /** Returns true if the transaction was too big to capture in full and
+   *  only counts were kept
+   */
+    public boolean isSummary(){
+        return summary;
+    }
+
+
+  //**************************************************************************
+  //** isEmpty
+  //**************************************************************************
+  /** Returns true if there's nothing to log
+   */
+    public boolean isEmpty(){
+        return !summary && entries==0;
+    }
+
+
+  //**************************************************************************
+  //** Handler Interface
+  //**************************************************************************
+  /** Used to read the changes in a snapshot, one change at a time. Ids are
+   *  entity ids and labels, types and keys are token ids.
+   */
+    interface Handler {
+        public void node(boolean created, long id);
+        public void relationship(boolean created, long id, int type, long start, long end);
+        public void label(boolean assigned, long nodeID, int label);
+        public void property(boolean node, boolean assigned, long id, int key,
+            Object value, Object previousValue);
+    }
+
+
+  //**************************************************************************
+  //** forEach
+  //**************************************************************************
+  /** Passes all the changes in the snapshot to the given handler. Changes
+   *  are reported in the following order: created nodes and relationships,
+   *  deleted relationships and nodes, labels, then properties. Summaries
+   *  don't have individual changes so nothing is reported.
+   */
+    void forEach(Handler handler){
+        if (summary) return;
+
+        for (int i=0; i<createdNodes.size; i++) handler.node(true, createdNodes.ids[i]);
+        createdRelationships.forEach(true, handler);
+        deletedRelationships.forEach(false, handler);
+        for (int i=0; i<deletedNodes.size; i++) handler.node(false, deletedNodes.ids[i]);
+
+        for (int i=0; i<assignedLabels.size; i++){
+            handler.label(true, assignedLabels.nodes[i], assignedLabels.labels[i]);
+        }
+        for (int i=0; i<removedLabels.size; i++){
+            handler.label(false, removedLabels.nodes[i], removedLabels.labels[i]);
+        }
+
+        assignedNodeProperties.forEach(true, handler);
+        removedNodeProperties.forEach(true, handler);
+        assignedRelationshipProperties.forEach(false, handler);
+        removedRelationshipProperties.forEach(false, handler);
+    }
+
+
+  //**************************************************************************
+  //** addNode
+  //**************************************************************************
+  /** Adds a created or deleted node to the snapshot
+   */
+    void addNode(boolean created, long id){
+        if (summary){
+            if (created) numCreatedNodes++;
+            else numDeletedNodes++;
+        }
+        else{
+            (created ? createdNodes : deletedNodes).add(id);
+            checkSize();
+        }
+    }
+
+
+  //**************************************************************************
+  //** addRelationship
+  //**************************************************************************
+  /** Adds a created or deleted relationship to the snapshot
+   */
+    void addRelationship(boolean created, long id, int type, long start, long end){
+        if (summary) (created ? createdRelationshipTypes : deletedRelationshipTypes).add(type);
+        else{
+            (created ? createdRelationships : deletedRelationships).add(id, type, start, end);
+            checkSize();
+        }
+    }
+
+
+  //**************************************************************************
+  //** addLabel
+  //**************************************************************************
+  /** Adds an assigned or removed label to the snapshot
+   */
+    void addLabel(boolean assigned, long nodeID, int label){
+        if (summary) (assigned ? assignedLabelCounts : removedLabelCounts).add(label);
+        else{
+            (assigned ? assignedLabels : removedLabels).add(nodeID, label);
+            checkSize();
+        }
+    }
+
+
+  //**************************************************************************
+  //** addProperty
+  //**************************************************************************
+  /** Adds an assigned or removed property to the snapshot
+   *  @param node True for a node property, false for a relationship property
+   */
+    void addProperty(boolean node, boolean assigned, long id, int key,
+        Object value, Object previousValue){
+        if (summary){
+            if (node) (assigned ? assignedNodePropertyKeys : removedNodePropertyKeys).add(key);
+            else (assigned ? assignedRelationshipPropertyKeys : removedRelationshipPropertyKeys).add(key);
+        }
+        else{
+            Properties properties;
+            if (node) properties = assigned ? assignedNodeProperties : removedNodeProperties;
+            else properties = assigned ? assignedRelationshipProperties : removedRelationshipProperties;
+            properties.add(id, key, assigned ? value : null, previousValue);
+            checkSize();
+        }
+    }
+
+
+  //**************************************************************************
+  //** checkSize
+  //**************************************************************************
+  /** Switches to summary mode once the number of entries reaches the
+   *  summary threshold
+   */
+    private void checkSize(){
+        entries++;
+        if (summaryThreshold>0 && entries>=summaryThreshold) toSummary();
+    }
+
+
+  //**************************************************************************
+  //** toSummary
+  //**************************************************************************
+  /** Converts the entries captured so far into counts and releases the
+   *  arrays
+   */
+    private void toSummary(){
+        summary = true;
+
+        numCreatedNodes = createdNodes.size;
+        numDeletedNodes = deletedNodes.size;
+        createdRelationshipTypes = new Counts(createdRelationships.types, createdRelationships.size);
+        deletedRelationshipTypes = new Counts(deletedRelationships.types, deletedRelationships.size);
+        assignedLabelCounts = new Counts(assignedLabels.labels, assignedLabels.size);
+        removedLabelCounts = new Counts(removedLabels.labels, removedLabels.size);
+        assignedNodePropertyKeys = new Counts(assignedNodeProperties.keys, assignedNodeProperties.size);
+        removedNodePropertyKeys = new Counts(removedNodeProperties.keys, removedNodeProperties.size);
+        assignedRelationshipPropertyKeys = new Counts(assignedRelationshipProperties.keys, assignedRelationshipProperties.size);
+        removedRelationshipPropertyKeys = new Counts(removedRelationshipProperties.keys, removedRelationshipProperties.size);
+
+        createdNodes = null;
+        deletedNodes = null;
+        createdRelationships = null;
+        deletedRelationships = null;
+        assignedLabels = null;
+        removedLabels = null;
+        assignedNodeProperties = null;
+        removedNodeProperties = null;
+        assignedRelationshipProperties = null;
+        removedRelationshipProperties = null;
+    }
+
+
+  //**************************************************************************
+  //** encode
+  //**************************************************************************
+  /** Returns an iterator used to encode the changes in one or more chunks.
+   *  Each chunk is a JSON array with an entry for each type of change. Each
+   *  entry is an array with an action, a type, and the changes:
+   *  <ul>
+   *  <li>nodes: [id, label, label, ...]</li>
+   *  <li>relationships: [id, type, start node id, end node id]</li>
+   *  <li>labels: [node id, label, label, ...] for nodes that were neither
+   *  created nor deleted in the transaction</li>
+   *  <li>properties and relationship_property: [id, key, value, previous
+   *  value] for assigned properties and [id, key, previous value] for
+   *  removed properties</li>
+   *  </ul>
+   *  In summary mode, the types have a "_summary" suffix and each change is
+   *  a [key, count] pair, where the key is a label, relationship type or
+   *  property key. The node summaries have a single [null, count] pair.
+   *  <p/>
+   *  The JSON is streamed into the given writer so no intermediate objects
+   *  are created. Called by the Logger thread.
+   *  @param writer Reusable writer. The writer is reset before each chunk.
+   */
+    public Chunks encode(Tokens tokens, JsonWriter writer){
+        ArrayList<Section> sections = new ArrayList<>();
+
+        if (summary){
+            add(sections, "create", "nodes_summary", new Total(numCreatedNodes));
+            add(sections, "delete", "nodes_summary", new Total(numDeletedNodes));
+            add(sections, "create", "relationships_summary", createdRelationshipTypes);
+            add(sections, "delete", "relationships_summary", deletedRelationshipTypes);
+            add(sections, "create", "labels_summary", assignedLabelCounts);
+            add(sections, "delete", "labels_summary", removedLabelCounts);
+            add(sections, "create", "properties_summary", assignedNodePropertyKeys);
+            add(sections, "delete", "properties_summary", removedNodePropertyKeys);
+            add(sections, "create", "relationship_property_summary", assignedRelationshipPropertyKeys);
+            add(sections, "delete", "relationship_property_summary", removedRelationshipPropertyKeys);
+        }
+        else{
+            createdNodes.sort();
+            deletedNodes.sort();
+            assignedLabels.sort();
+            removedLabels.sort();
+
+            add(sections, "create", "nodes", new Nodes(createdNodes, assignedLabels));
+            add(sections, "delete", "nodes", new Nodes(deletedNodes, removedLabels));
+            add(sections, "create", "relationships", createdRelationships);
+            add(sections, "delete", "relationships", deletedRelationships);
+            add(sections, "create", "labels", new LabelChanges(assignedLabels, createdNodes));
+            add(sections, "delete", "labels", new LabelChanges(removedLabels, deletedNodes));
+            add(sections, "create", "properties", assignedNodeProperties);
+            add(sections, "delete", "properties", removedNodeProperties);
+            add(sections, "create", "relationship_property", assignedRelationshipProperties);
+            add(sections, "delete", "relationship_property", removedRelationshipProperties);
+        }
+
+        return new Chunks(sections, tokens, writer);
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+    private static void add(ArrayList<Section> sections, String action, String type, Entries entries){
+        if (entries.size()>0) sections.add(new Section(action, type, entries));
+    }
+
+
+  //**************************************************************************
+  //** getType
+  //**************************************************************************
+    private static int getType(Relationship r, Tokens tokens){
+        try{
+            return tokens.getId(r.getType().name());
+        }
+        catch(Exception e){
+            return -1;
+        }
+    }
+
+
+  //**************************************************************************
+  //** iterate
+  //**************************************************************************
+  /** Returns an empty list instead of null
+   */
+    private static <T> Iterable<T> iterate(Iterable<T> it){
+        return it==null ? Collections.emptyList() : it;
+    }
+
+
+  //**************************************************************************
+  //** iterate
+  //**************************************************************************
+  /** Returns an empty list if the given kind of change is excluded by the
+   *  filter
+   */
+    private static <T> Iterable<T> iterate(Iterable<T> it, CaptureFilter filter, int kind){
+        if (filter!=null && !filter.acceptChanges(kind)) return Collections.emptyList();
+        return iterate(it);
+    }
+
+
+  //**************************************************************************
+  //** grow
+  //**************************************************************************
+    private static long[] grow(long[] arr){
+        return Arrays.copyOf(arr, Math.max(16, arr.length*2));
+    }
+
+    private static int[] grow(int[] arr){
+        return Arrays.copyOf(arr, Math.max(16, arr.length*2));
+    }
+
+    private static Object[] grow(Object[] arr){
+        return Arrays.copyOf(arr, Math.max(16, arr.length*2));
+    }
+
+
+  //**************************************************************************
+  //** Chunks Class
+  //**************************************************************************
+  /** Used to encode a snapshot one chunk at a time. Each chunk has up to
+   *  chunkSize entries. Only one chunk is held in memory at a time.
+   */
+    public class Chunks {
+        private final ArrayList<Section> sections;
+        private final Tokens tokens;
+        private final JsonWriter writer;
+        private final int count;
+        private final int size;
+        private int chunk;
+        private int section;
+        private int position;
+
+        private Chunks(ArrayList<Section> sections, Tokens tokens, JsonWriter writer){
+            this.sections = sections;
+            this.tokens = tokens;
+            this.writer = writer;
+
+            long total = 0;
+            for (Section s : sections) total += s.entries.size();
+            size = chunkSize>0 ? chunkSize : Integer.MAX_VALUE;
+            count = (int) Math.max(1, (total+size-1)/size);
+        }
+
+      /** Returns the total number of chunks */
+        public int size(){
+            return count;
+        }
+
+        public boolean hasNext(){
+            return chunk<count;
+        }
+
+      /** Encodes the next chunk */
+        public Changes next(){
+            if (!hasNext()) throw new NoSuchElementException();
+            Changes.Encoder encoder = new Changes.Encoder(writer);
+            int n = 0;
+            while (n<size && section<sections.size()){
+                Section s = sections.get(section);
+                encoder.beginSection(s.action, s.type);
+                int end = (int) Math.min(s.entries.size(), (long) position+size-n);
+                for (; position<end; position++){
+                    s.entries.write(position, tokens, writer);
+                    n++;
+                }
+                encoder.endSection();
+                if (position>=s.entries.size()){
+                    section++;
+                    position = 0;
+                }
+            }
+            chunk++;
+            return encoder.finish();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Section Class
+  //**************************************************************************
+    private static class Section {
+        private final String action;
+        private final String type;
+        private final Entries entries;
+
+        private Section(String action, String type, Entries entries){
+            this.action = action;
+            this.type = type;
+            this.entries = entries;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Entries Interface
+  //**************************************************************************
+  /** List of changes that can be written one entry at a time
+   */
+    private interface Entries {
+        public int size();
+        public void write(int i, Tokens tokens, JsonWriter writer);
+    }
+
+
+  //**************************************************************************
+  //** Ids Class
+  //**************************************************************************
+  /** List of node ids
+   */
+    private static class Ids {
+        private long[] ids = new long[0];
+        private int size;
+        private boolean sorted = true;
+
+        private void add(long id){
+            if (size==ids.length) ids = grow(ids);
+            if (size>0 && id<ids[size-1]) sorted = false;
+            ids[size++] = id;
+        }
+
+        private void sort(){
+            if (!sorted) Arrays.sort(ids, 0, size);
+            sorted = true;
+        }
+
+        private boolean contains(long id){
+            return Arrays.binarySearch(ids, 0, size, id)>=0;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Nodes Class
+  //**************************************************************************
+  /** Used to write an entry for each node. Each entry is an array with the
+   *  node id followed by the node labels.
+   */
+    private static class Nodes implements Entries {
+        private final Ids nodes;
+        private final Labels labels;
+
+        private Nodes(Ids nodes, Labels labels){
+            this.nodes = nodes;
+            this.labels = labels;
+        }
+
+        public int size(){
+            return nodes.size;
+        }
+
+        public void write(int i, Tokens tokens, JsonWriter writer){
+            long nodeID = nodes.ids[i];
+            writer.beginArray();
+            writer.value(nodeID);
+            int j = labels.indexOf(nodeID);
+            if (j>=0){
+                for (; j<labels.size && labels.nodes[j]==nodeID; j++){
+                    String label = tokens.getName(labels.labels[j]);
+                    if (label!=null) writer.value(label);
+                }
+            }
+            writer.endArray();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Relationships Class
+  //**************************************************************************
+  /** List of relationships, stored as parallel arrays of relationship ids,
+   *  type tokens, and start and end node ids
+   */
+    private static class Relationships implements Entries {
+        private long[] ids = new long[0];
+        private int[] types = new int[0];
+        private long[] start = new long[0];
+        private long[] end = new long[0];
+        private int size;
+
+        private void add(Relationship r, Tokens tokens){
+            if (size==ids.length){
+                ids = grow(ids);
+                types = grow(types);
+                start = grow(start);
+                end = grow(end);
+            }
+            ids[size] = r.getId();
+            try{
+                types[size] = tokens.getId(r.getType().name());
+                start[size] = r.getStartNodeId();
+                end[size] = r.getEndNodeId();
+            }
+            catch(Exception e){
+              //Don't fail the transaction if the relationship can't be read
+                types[size] = -1;
+                start[size] = -1;
+                end[size] = -1;
+            }
+            size++;
+        }
+
+        private void add(long id, int type, long startNode, long endNode){
+            if (size==ids.length){
+                ids = grow(ids);
+                types = grow(types);
+                start = grow(start);
+                end = grow(end);
+            }
+            ids[size] = id;
+            types[size] = type;
+            start[size] = startNode;
+            end[size] = endNode;
+            size++;
+        }
+
+        private void forEach(boolean created, Handler handler){
+            for (int i=0; i<size; i++){
+                handler.relationship(created, ids[i], types[i], start[i], end[i]);
+            }
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public void write(int i, Tokens tokens, JsonWriter writer){
+            writer.beginArray();
+            writer.value(ids[i]);
+            writer.value(tokens.getName(types[i]));
+            writer.value(start[i]);
+            writer.value(end[i]);
+            writer.endArray();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Labels Class
+  //**************************************************************************
+  /** List of label entries, stored as parallel arrays of node ids and label
+   *  tokens. Entries are sorted by node id before they are encoded.
+   */
+    private static class Labels {
+        private long[] nodes = new long[0];
+        private int[] labels = new int[0];
+        private int size;
+        private boolean sorted = true;
+
+        private void add(long nodeID, int label){
+            if (size==nodes.length){
+                nodes = grow(nodes);
+                labels = grow(labels);
+            }
+            if (size>0 && nodeID<nodes[size-1]) sorted = false;
+            nodes[size] = nodeID;
+            labels[size++] = label;
+        }
+
+      /** Returns the index of the first entry for the given node, or -1 */
+        private int indexOf(long nodeID){
+            int j = Arrays.binarySearch(nodes, 0, size, nodeID);
+            if (j<0) return -1;
+            while (j>0 && nodes[j-1]==nodeID) j--;
+            return j;
+        }
+
+      /** Sorts entries by node id using an insertion sort for small ranges
+       *  and a quicksort otherwise, so there's no boxing or index arrays.
+       */
+        private void sort(){
+            if (!sorted) sort(0, size-1);
+            sorted = true;
+        }
+
+        private void sort(int lo, int hi){
+            while (hi-lo>16){
+                long pivot = nodes[(lo+hi) >>> 1];
+                int i = lo, j = hi;
+                while (i<=j){
+                    while (nodes[i]<pivot) i++;
+                    while (nodes[j]>pivot) j--;
+                    if (i<=j) swap(i++, j--);
+                }
+                if (j-lo<hi-i){
+                    sort(lo, j);
+                    lo = i;
+                }
+                else{
+                    sort(i, hi);
+                    hi = j;
+                }
+            }
+
+            for (int i=lo+1; i<=hi; i++){
+                long k = nodes[i];
+                int v = labels[i];
+                int j = i-1;
+                while (j>=lo && nodes[j]>k){
+                    nodes[j+1] = nodes[j];
+                    labels[j+1] = labels[j];
+                    j--;
+                }
+                nodes[j+1] = k;
+                labels[j+1] = v;
+            }
+        }
+
+        private void swap(int i, int j){
+            long k = nodes[i]; nodes[i] = nodes[j]; nodes[j] = k;
+            int v = labels[i]; labels[i] = labels[j]; labels[j] = v;
+        }
+    }
+
+
+  //**************************************************************************
+  //** LabelChanges Class
+  //**************************************************************************
+  /** Used to write an entry for each node with label changes. Nodes in the
+   *  skip list (e.g. created nodes) are left out since their labels are
+   *  included in the nodes section.
+   */
+    private static class LabelChanges implements Entries {
+        private final Labels labels;
+        private int[] starts = new int[0];
+        private int size;
+
+        private LabelChanges(Labels labels, Ids skip){
+            this.labels = labels;
+            int i = 0;
+            while (i<labels.size){
+                long nodeID = labels.nodes[i];
+                if (!skip.contains(nodeID)){
+                    if (size==starts.length) starts = grow(starts);
+                    starts[size++] = i;
+                }
+                while (i<labels.size && labels.nodes[i]==nodeID) i++;
+            }
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public void write(int n, Tokens tokens, JsonWriter writer){
+            int i = starts[n];
+            long nodeID = labels.nodes[i];
+            writer.beginArray();
+            writer.value(nodeID);
+            for (; i<labels.size && labels.nodes[i]==nodeID; i++){
+                String label = tokens.getName(labels.labels[i]);
+                if (label!=null) writer.value(label);
+            }
+            writer.endArray();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Properties Class
+  //**************************************************************************
+  /** List of property changes, stored as parallel arrays of entity ids,
+   *  property key tokens, and values
+   */
+    private class Properties implements Entries {
+        private final boolean assigned;
+        private long[] ids = new long[0];
+        private int[] keys = new int[0];
+        private Object[] values = new Object[0];
+        private Object[] previousValues = new Object[0];
+        private int size;
+
+        private Properties(boolean assigned){
+            this.assigned = assigned;
+        }
+
+        private void add(long id, int key, Object value, Object previousValue){
+            if (size==ids.length){
+                ids = grow(ids);
+                keys = grow(keys);
+                if (assigned) values = grow(values);
+                previousValues = grow(previousValues);
+            }
+            ids[size] = id;
+            keys[size] = key;
+            if (assigned) values[size] = value;
+            previousValues[size] = previousValue;
+            size++;
+        }
+
+        private void forEach(boolean node, Handler handler){
+            for (int i=0; i<size; i++){
+                handler.property(node, assigned, ids[i], keys[i],
+                assigned ? values[i] : null, previousValues[i]);
+            }
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public void write(int i, Tokens tokens, JsonWriter writer){
+            writer.beginArray();
+            writer.value(ids[i]);
+            writer.value(tokens.getName(keys[i]));
+            if (assigned) ValueEncoder.write(values[i], writer, maxValueSize);
+            ValueEncoder.write(previousValues[i], writer, maxValueSize);
+            writer.endArray();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Counts Class
+  //**************************************************************************
+  /** Number of changes per token (label, relationship type or property key).
+   *  Used in summary mode so memory only depends on the number of tokens.
+   */
+    private static class Counts implements Entries {
+        private long[] counts = new long[16];
+        private long unknown;
+        private int[] tokens;
+        private int size = -1;
+
+        private Counts(int[] tokens, int n){
+            for (int i=0; i<n; i++) add(tokens[i]);
+        }
+
+        private void add(int token){
+            if (token<0){
+                unknown++;
+                return;
+            }
+            if (token>=counts.length){
+                counts = Arrays.copyOf(counts, Math.max(token+1, counts.length*2));
+            }
+            counts[token]++;
+        }
+
+      /** Returns the number of tokens with changes */
+        public int size(){
+            if (size<0){
+                tokens = new int[0];
+                size = 0;
+                for (int i=0; i<counts.length; i++){
+                    if (counts[i]>0){
+                        if (size==tokens.length) tokens = grow(tokens);
+                        tokens[size++] = i;
+                    }
+                }
+                if (unknown>0){
+                    if (size==tokens.length) tokens = grow(tokens);
+                    tokens[size++] = -1;
+                }
+            }
+            return size;
+        }
+
+        public void write(int i, Tokens names, JsonWriter writer){
+            int token = tokens[i];
+            writer.beginArray();
+            writer.value(names.getName(token));
+            writer.value(token<0 ? unknown : counts[token]);
+            writer.endArray();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Total Class
+  //**************************************************************************
+    private static class Total implements Entries {
+        private final long count;
+
+        private Total(long count){
+            this.count = count;
+        }
+
+        public int size(){
+            return count>0 ? 1 : 0;
+        }
+
+        public void write(int i, Tokens tokens, JsonWriter writer){
+            writer.beginArray();
+            writer.value((String) null);
+            writer.value(count);
+            writer.endArray();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package bluewave.neo4j.plugins;
+import java.util.*;
+import java.time.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import javaxt.sql.Database;
+
+
+//******************************************************************************
+//**  ChangeStore Class
+//******************************************************************************
+/**
+ *   Used to store and query changes in an H2 database. Each changed entity
+ *   (node, relationship, label or property) is stored in a separate row with
+ *   the entity id and token ids for the user, label (or relationship type)
+ *   and property key. The data column only has the values that follow the
+ *   id and names in the JSON entry for the change, if any. Rows are
+ *   partitioned by day into CHANGE_yyyyMMdd tables (using the commit date in
+ *   the local time zone). Each partition is indexed by entity id, user, label
+ *   and timestamp so history queries only touch the partitions and rows they
+ *   need. Old partitions are dropped whole when they fall out of the
+ *   retention period, which is much cheaper than deleting rows.
+ *   <p/>
+ *   Rows are written by the DatabaseSink. Queries can be run from any thread
+ *   and are exposed to Cypher via the TransactionProcedures class.
+ *
+ ******************************************************************************/
+
+public class ChangeStore {
+
+    private static volatile ChangeStore instance;
+
+    private static final String PREFIX = "CHANGE_";
+    private static final long MAX_TIME = 253402300799999L; //9999-12-31
+
+    private static final String SELECT =
+    "SELECT c.ts, c.seq, c.txid, c.chunk, d.name, u.name, a.name, t.name, " +
+    "c.entity_id, l.name, k.name, c.data FROM (";
+
+    private static final String JOIN = ") c " +
+    "LEFT JOIN TOKEN d ON d.id=c.db_id " +
+    "LEFT JOIN TOKEN u ON u.id=c.user_id " +
+    "LEFT JOIN TOKEN a ON a.id=c.action_id " +
+    "LEFT JOIN TOKEN t ON t.id=c.type_id " +
+    "LEFT JOIN TOKEN l ON l.id=c.label_id " +
+    "LEFT JOIN TOKEN k ON k.id=c.key_id " +
+    "ORDER BY c.ts, c.seq, c.id LIMIT ?";
+
+    private final Database database;
+    private final ConcurrentSkipListSet<Integer> partitions = new ConcurrentSkipListSet<>();
+    private final ZoneId zone = ZoneId.systemDefault();
+    private int retention; //days
+
+
+  //**************************************************************************
+  //** Change Class
+  //**************************************************************************
+  /** A row in the change store. Fields are public so instances can be
+   *  returned directly by the procedures.
+   */
+    public static class Change {
+        public long timestamp; //ms
+        public long sequence;
+        public long transaction;
+        public long chunk;
+        public String database;
+        public String user;
+        public String action;
+        public String type;
+        public Long entityId;
+        public String label;
+        public String key;
+        public String data;
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public ChangeStore(Database database){
+        this.database = database;
+    }
+
+
+  //**************************************************************************
+  //** getInstance
+  //**************************************************************************
+  /** Returns the store used by the plugin, or null if the "database" section
+   *  is missing from the config file
+   */
+    public static ChangeStore getInstance(){
+        return instance;
+    }
+
+
+  //**************************************************************************
+  //** setInstance
+  //**************************************************************************
+    public static void setInstance(ChangeStore store){
+        instance = store;
+    }
+
+
+  //**************************************************************************
+  //** setRetention
+  //**************************************************************************
+  /** Number of days of changes to keep. Partitions older than that are
+   *  dropped. Use 0 to keep everything (default).
+   */
+    public void setRetention(int days){
+        retention = Math.max(0, days);
+    }
+
+
+  //**************************************************************************
+  //** init
+  //**************************************************************************
+  /** Creates the token table, finds existing partitions, and drops any
+   *  partitions that are past the retention period
+   */
+    public void init(java.sql.Connection c) throws Exception {
+        try (java.sql.Statement stmt = c.createStatement()){
+            stmt.execute("CREATE TABLE IF NOT EXISTS TOKEN(id int primary key, name varchar)");
+            stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS IDX_TOKEN_NAME ON TOKEN(name)");
+        }
+
+        partitions.clear();
+        try (java.sql.ResultSet rs = c.getMetaData().getTables(null, null, PREFIX + "%", null)){
+            while (rs.next()){
+                Integer day = getDay(rs.getString("TABLE_NAME"));
+                if (day!=null) partitions.add(day);
+            }
+        }
+
+        dropExpiredPartitions(c);
+    }
+
+
+  //**************************************************************************
+  //** getDay
+  //**************************************************************************
+  /** Returns the partition key (yyyyMMdd) for a given time in milliseconds
+   */
+    public int getDay(long ms){
+        LocalDate date = Instant.ofEpochMilli(ms).atZone(zone).toLocalDate();
+        return date.getYear()*10000 + date.getMonthValue()*100 + date.getDayOfMonth();
+    }
+
+
+  //**************************************************************************
+  //** getDay
+  //**************************************************************************
+  /** Returns the partition key for a given table name, or null if the table
+   *  isn't a partition
+   */
+    private static Integer getDay(String tableName){
+        if (tableName==null) return null;
+        tableName = tableName.toUpperCase();
+        if (!tableName.startsWith(PREFIX) || tableName.length()!=PREFIX.length()+8) return null;
+        try{
+            return Integer.parseInt(tableName.substring(PREFIX.length()));
+        }
+        catch(Exception e){
+            return null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getTableName
+  //**************************************************************************
+    public static String getTableName(int day){
+        return PREFIX + day;
+    }
+
+
+  //**************************************************************************
+  //** hasPartition
+  //**************************************************************************
+  /** Returns true if a partition exists for the given day
+   */
+    public boolean hasPartition(int day){
+        return partitions.contains(day);
+    }
+
+
+  //**************************************************************************
+  //** createPartition
+  //**************************************************************************
+  /** Creates a partition for the given day, if it doesn't already exist.
+   *  Note that H2 commits the current transaction before running DDL.
+   *  @return Name of the partition table
+   */
+    public String createPartition(java.sql.Connection c, int day) throws Exception {
+        String table = getTableName(day);
+        if (partitions.contains(day)) return table;
+
+        try (java.sql.Statement stmt = c.createStatement()){
+            stmt.execute(
+            "CREATE TABLE IF NOT EXISTS " + table + "(" +
+            "id bigint auto_increment primary key, " +
+            "ts bigint not null, " +
+            "seq bigint, " +
+            "txid bigint, " +
+            "chunk int, " +
+            "db_id int, " +
+            "user_id int, " +
+            "action_id int, " +
+            "type_id int, " +
+            "entity_id bigint, " +
+            "label_id int, " +
+            "key_id int, " +
+            "data varchar)");
+
+            stmt.execute("CREATE INDEX IF NOT EXISTS IDX_" + table + "_ENTITY ON " + table + "(entity_id, ts)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS IDX_" + table + "_USER ON " + table + "(user_id, ts)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS IDX_" + table + "_LABEL ON " + table + "(label_id, ts)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS IDX_" + table + "_TS ON " + table + "(ts)");
+        }
+
+        partitions.add(day);
+        return table;
+    }
+
+
+  //**************************************************************************
+  //** dropExpiredPartitions
+  //**************************************************************************
+  /** Drops partitions that are older than the retention period
+   *  @return Names of the tables that were dropped
+   */
+    public List<String> dropExpiredPartitions(java.sql.Connection c) throws Exception {
+        ArrayList<String> tables = new ArrayList<>();
+        if (retention<=0) return tables;
+
+        int cutoff = getDay(System.currentTimeMillis()-retention*86400000L);
+        for (Integer day : partitions.headSet(cutoff)){
+            String table = getTableName(day);
+            try (java.sql.Statement stmt = c.createStatement()){
+                stmt.execute("DROP TABLE IF EXISTS " + table);
+            }
+            partitions.remove(day);
+            tables.add(table);
+        }
+        return tables;
+    }
+
+
+  //**************************************************************************
+  //** getHistory
+  //**************************************************************************
+  /** Returns changes to a node or relationship, in commit order. Node and
+   *  relationship ids are not unique so the type of each change should be
+   *  checked.
+   *  @param from Start time in milliseconds (inclusive)
+   *  @param to End time in milliseconds (inclusive)
+   */
+    public List<Change> getHistory(long entityId, long from, long to, int limit) throws Exception {
+        return find("entity_id", entityId, from, to, limit);
+    }
+
+
+  //**************************************************************************
+  //** getChangesByUser
+  //**************************************************************************
+  /** Returns changes made by a user, in commit order
+   */
+    public List<Change> getChangesByUser(String user, long from, long to, int limit) throws Exception {
+        if (user==null) return new ArrayList<>();
+        return find("user_id", user, from, to, limit);
+    }
+
+
+  //**************************************************************************
+  //** getChangesByLabel
+  //**************************************************************************
+  /** Returns changes to nodes with a given label or relationships with a
+   *  given type, in commit order
+   */
+    public List<Change> getChangesByLabel(String label, long from, long to, int limit) throws Exception {
+        if (label==null) return new ArrayList<>();
+        return find("label_id", label, from, to, limit);
+    }
+
+
+  //**************************************************************************
+  //** find
+  //**************************************************************************
+  /** Returns rows where the given indexed column matches a value. Each
+   *  partition in the time range is queried separately so the index on
+   *  (column, ts) can be used. If the value is a string, the column holds a
+   *  token id and the token is looked up by name in the same query.
+   */
+    private List<Change> find(String column, Object value, long from, long to, int limit) throws Exception {
+        ArrayList<Change> changes = new ArrayList<>();
+        from = Math.max(from, 0);
+        to = Math.min(to, MAX_TIME);
+        if (from>to || limit<=0) return changes;
+
+        NavigableSet<Integer> days = partitions.subSet(getDay(from), true, getDay(to), true);
+        if (days.isEmpty()) return changes;
+
+        StringBuilder sql = new StringBuilder(SELECT);
+        int n = 0;
+        for (Integer day : days){
+            if (n++>0) sql.append(" UNION ALL ");
+            sql.append("SELECT p.* FROM ");
+            sql.append(getTableName(day));
+            sql.append(" p");
+            if (value instanceof String){
+                sql.append(" JOIN TOKEN n ON n.id=p.");
+                sql.append(column);
+                sql.append(" WHERE n.name=?");
+            }
+            else{
+                sql.append(" WHERE p.");
+                sql.append(column);
+                sql.append("=?");
+            }
+            sql.append(" AND p.ts>=? AND p.ts<=?");
+        }
+        sql.append(JOIN);
+
+        javaxt.sql.Connection conn = null;
+        try{
+            conn = database.getConnection();
+            try (java.sql.PreparedStatement stmt = conn.getConnection().prepareStatement(sql.toString())){
+                int idx = 1;
+                for (int i=0; i<n; i++){
+                    stmt.setObject(idx++, value);
+                    stmt.setLong(idx++, from);
+                    stmt.setLong(idx++, to);
+                }
+                stmt.setInt(idx, limit);
+
+                try (java.sql.ResultSet rs = stmt.executeQuery()){
+                    while (rs.next()){
+                        Change change = new Change();
+                        change.timestamp = rs.getLong(1);
+                        change.sequence = rs.getLong(2);
+                        change.transaction = rs.getLong(3);
+                        change.chunk = rs.getLong(4);
+                        change.database = rs.getString(5);
+                        change.user = rs.getString(6);
+                        change.action = rs.getString(7);
+                        change.type = rs.getString(8);
+                        long entityId = rs.getLong(9);
+                        change.entityId = rs.wasNull() ? null : entityId;
+                        change.label = rs.getString(10);
+                        change.key = rs.getString(11);
+                        change.data = rs.getString(12);
+                        changes.add(change);
+                    }
+                }
+            }
+            conn.close();
+        }
+        catch(Exception e){
+            if (conn!=null) conn.close();
+            throw e;
+        }
+        return changes;
+    }
+
+}
@@ -0,0 +1,300 @@
+package bluewave.neo4j.plugins;
+import java.nio.charset.StandardCharsets;
+import javaxt.json.JSONArray;
+import javaxt.json.JSONObject;
+import javaxt.json.JSONValue;
+
+
+//******************************************************************************
+//**  Changes Class
+//******************************************************************************
+/**
+ *   Immutable, encoded copy of the changes in a transaction. The changes are
+ *   stored as a UTF-8 JSON array with an entry for each type of change (e.g.
+ *   [["create","nodes",[[1,"Person"]]], ...]). The bytes are created once by
+ *   the logger thread and shared by all the sinks, which write them as-is.
+ *   The action, type, and location of the data in each entry are indexed so
+ *   sinks that store entries separately (e.g. DatabaseSink) don't have to
+ *   parse the JSON.
+ *
+ ******************************************************************************/
+
+public class Changes {
+
+    private final byte[] json;
+    private String[] actions;
+    private String[] types;
+    private int[] offsets;
+    private int[] lengths;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to create an instance from JSON without an index. The index is
+   *  created from the JSON on demand.
+   */
+    public Changes(byte[] json){
+        this.json = json;
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    Changes(byte[] json, String[] actions, String[] types, int[] offsets, int[] lengths){
+        this.json = json;
+        this.actions = actions;
+        this.types = types;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+
+  //**************************************************************************
+  //** getBytes
+  //**************************************************************************
+  /** Returns the JSON encoded changes. The array should not be modified.
+   */
+    public byte[] getBytes(){
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of entries
+   */
+    public int size(){
+        index();
+        return actions.length;
+    }
+
+
+  //**************************************************************************
+  //** getAction
+  //**************************************************************************
+    public String getAction(int i){
+        index();
+        return actions[i];
+    }
+
+
+  //**************************************************************************
+  //** getType
+  //**************************************************************************
+    public String getType(int i){
+        index();
+        return types[i];
+    }
+
+
+  //**************************************************************************
+  //** getData
+  //**************************************************************************
+  /** Returns the data for the given entry as a JSON string
+   */
+    public String getData(int i){
+        index();
+        return new String(json, offsets[i], lengths[i], StandardCharsets.UTF_8);
+    }
+
+
+  //**************************************************************************
+  //** getOffset
+  //**************************************************************************
+  /** Returns the offset of the data for the given entry in getBytes()
+   */
+    public int getOffset(int i){
+        index();
+        return offsets[i];
+    }
+
+
+  //**************************************************************************
+  //** getLength
+  //**************************************************************************
+  /** Returns the number of bytes of data for the given entry
+   */
+    public int getLength(int i){
+        index();
+        return lengths[i];
+    }
+
+
+  //**************************************************************************
+  //** toString
+  //**************************************************************************
+    public String toString(){
+        return new String(json, StandardCharsets.UTF_8);
+    }
+
+
+  //**************************************************************************
+  //** toJSONArray
+  //**************************************************************************
+    public JSONArray toJSONArray(){
+        return new JSONArray(toString());
+    }
+
+
+  //**************************************************************************
+  //** index
+  //**************************************************************************
+  /** Used to index changes that were created from JSON (e.g. changes read
+   *  back from a spill file or a text log). The entries are located with a
+   *  JsonReader so the JSON doesn't have to be parsed into JSONArrays.
+   */
+    private synchronized void index(){
+        if (actions!=null) return;
+        String[] actions = new String[10];
+        String[] types = new String[10];
+        int[] offsets = new int[10];
+        int[] lengths = new int[10];
+        int count = 0;
+
+        JsonReader reader = new JsonReader(json);
+        if (reader.peek()==JsonReader.Token.ARRAY){
+            reader.beginArray();
+            while (reader.hasNext()){
+                if (count==actions.length){
+                    int n = count*2;
+                    actions = java.util.Arrays.copyOf(actions, n);
+                    types = java.util.Arrays.copyOf(types, n);
+                    offsets = java.util.Arrays.copyOf(offsets, n);
+                    lengths = java.util.Arrays.copyOf(lengths, n);
+                }
+                reader.beginArray();
+                actions[count] = reader.nextString();
+                types[count] = reader.nextString();
+                reader.peek();
+                offsets[count] = reader.getPosition();
+                reader.skipValue();
+                lengths[count] = reader.getPosition()-offsets[count];
+                reader.endArray();
+                count++;
+            }
+        }
+
+        this.types = java.util.Arrays.copyOf(types, count);
+        this.offsets = java.util.Arrays.copyOf(offsets, count);
+        this.lengths = java.util.Arrays.copyOf(lengths, count);
+        this.actions = java.util.Arrays.copyOf(actions, count);
+    }
+
+
+  //**************************************************************************
+  //** parse
+  //**************************************************************************
+  /** Used to encode changes from a JSON array
+   */
+    public static Changes parse(JSONArray arr){
+        if (arr==null) return null;
+        return parse(arr, new JsonWriter());
+    }
+
+
+  //**************************************************************************
+  //** parse
+  //**************************************************************************
+    private static Changes parse(JSONArray arr, JsonWriter writer){
+        Encoder encoder = new Encoder(writer);
+        for (int i=0; i<arr.length(); i++){
+            JSONArray section = arr.get(i).toJSONArray();
+            if (section==null) continue;
+            encoder.beginSection(section.get(0).toString(), section.get(1).toString());
+            JSONArray data = section.get(2).toJSONArray();
+            if (data!=null){
+                for (int j=0; j<data.length(); j++) write(data.get(j), writer);
+            }
+            encoder.endSection();
+        }
+        return encoder.finish();
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+    private static void write(JSONValue value, JsonWriter writer){
+        Object obj = value==null ? null : value.toObject();
+        if (obj instanceof JSONArray){
+            JSONArray arr = (JSONArray) obj;
+            writer.beginArray();
+            for (int i=0; i<arr.length(); i++) write(arr.get(i), writer);
+            writer.endArray();
+        }
+        else if (obj instanceof JSONObject){
+            JSONObject json = (JSONObject) obj;
+            writer.beginObject();
+            for (String key : json.keySet()){
+                writer.key(key);
+                write(json.get(key), writer);
+            }
+            writer.endObject();
+        }
+        else{
+            writer.value(obj);
+        }
+    }
+
+
+  //**************************************************************************
+  //** Encoder Class
+  //**************************************************************************
+  /** Used to stream changes into a JsonWriter and keep track of where each
+   *  entry starts and ends. Entries are written between beginSection() and
+   *  endSection() calls using the JsonWriter directly.
+   */
+    public static class Encoder {
+        private final JsonWriter writer;
+        private String[] actions = new String[10];
+        private String[] types = new String[10];
+        private int[] offsets = new int[10];
+        private int[] lengths = new int[10];
+        private int count;
+
+        public Encoder(JsonWriter writer){
+            this.writer = writer;
+            writer.reset();
+            writer.beginArray();
+        }
+
+        public JsonWriter getWriter(){
+            return writer;
+        }
+
+        public void beginSection(String action, String type){
+            if (count==actions.length){
+                int n = count*2;
+                actions = java.util.Arrays.copyOf(actions, n);
+                types = java.util.Arrays.copyOf(types, n);
+                offsets = java.util.Arrays.copyOf(offsets, n);
+                lengths = java.util.Arrays.copyOf(lengths, n);
+            }
+            actions[count] = action;
+            types[count] = type;
+            writer.beginArray().value(action).value(type);
+            offsets[count] = writer.size() + 1; //skip the comma
+            writer.beginArray();
+        }
+
+        public void endSection(){
+            writer.endArray();
+            lengths[count] = writer.size()-offsets[count];
+            writer.endArray();
+            count++;
+        }
+
+        public Changes finish(){
+            writer.endArray();
+            return new Changes(writer.toByteArray(),
+                java.util.Arrays.copyOf(actions, count),
+                java.util.Arrays.copyOf(types, count),
+                java.util.Arrays.copyOf(offsets, count),
+                java.util.Arrays.copyOf(lengths, count)
+            );
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package bluewave.neo4j.plugins;
+import java.util.*;
+import javaxt.json.JSONArray;
+import javaxt.json.JSONObject;
+
+
+//******************************************************************************
+//**  Coalescer Class
+//******************************************************************************
+/**
+ *   Used to fold the changes from many transactions into a single net
+ *   change. Changes are collected for a time window (or until the window
+ *   holds a given number of events) and then released as one record.
+ *   Within a window, an entity that is created and then deleted disappears
+ *   entirely, repeated property updates keep only the last value (with the
+ *   value from before the window as the previous value), and labels or
+ *   properties that are set and then removed cancel out.
+ *   <p/>
+ *   State is kept per entity id in open addressing maps with primitive
+ *   keys, and the label and property changes for each entity are kept in
+ *   parallel arrays, so memory only grows with the number of distinct
+ *   entities and keys in the window. Snapshots are folded in before they are
+ *   encoded so there is no JSON parsing. Used by the Logger thread only.
+ *
+ ******************************************************************************/
+
+public class Coalescer {
+
+    private final CaptureConfig config;
+    private long window = 5000; //ms
+    private int maxEvents = 10000;
+    private int maxEntities = 100000;
+    private Set<String> sinks;
+
+  //Entities
+    private final Entities nodes = new Entities();
+    private final Entities relationships = new Entities();
+
+  //Label and property changes. Each entity has a linked list of changes.
+    private int[] keys = new int[64];
+    private byte[] flags = new byte[64];
+    private Object[] values = new Object[64];
+    private Object[] previousValues = new Object[64];
+    private int[] next = new int[64];
+    private int size;
+
+  //Current window
+    private long start;
+    private int events;
+    private String database;
+    private String user;
+    private long timestamp;
+    private long sequence;
+    private long transactionId;
+
+  //Counters. Updated by the logger thread, read by the metrics.
+    private volatile long eventsIn;
+    private volatile long eventsOut;
+
+    private static final byte CREATED = 1;
+    private static final byte DELETED = 2;
+    private static final byte CANCELLED = 4;
+
+    private static final byte LABEL = 1;
+    private static final byte EXISTED = 2;
+    private static final byte PRESENT = 4;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param json Options from the "coalesce" section of the config file:
+   *  "window" (milliseconds), "maxEvents" and "maxEntities" (max number of
+   *  transactions and distinct entities in a window), and "sinks" (names of
+   *  the sinks that get coalesced records, e.g. ["webserver"]). All sinks get
+   *  coalesced records if no sinks are given.
+   *  @param config Capture options used to encode the coalesced records
+   */
+    public Coalescer(JSONObject json, CaptureConfig config){
+        this.config = config;
+        if (json==null) return;
+
+        Long window = json.get("window").toLong();
+        if (window!=null) this.window = Math.max(0, window);
+
+        Integer maxEvents = json.get("maxEvents").toInteger();
+        if (maxEvents!=null && maxEvents>0) this.maxEvents = maxEvents;
+
+        Integer maxEntities = json.get("maxEntities").toInteger();
+        if (maxEntities!=null && maxEntities>0) this.maxEntities = maxEntities;
+
+        JSONArray arr = json.get("sinks").toJSONArray();
+        if (arr!=null){
+            sinks = new HashSet<>();
+            for (int i=0; i<arr.length(); i++){
+                String sink = arr.get(i).toString();
+                if (sink!=null) sinks.add(sink);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** accepts
+  //**************************************************************************
+  /** Returns true if the given sink should get coalesced records
+   *  @param sink Name of a sink (e.g. "webserver")
+   */
+    public boolean accepts(String sink){
+        return sinks==null || sinks.contains(sink);
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Folds the changes from a transaction into the current window. Returns
+   *  false if the event can't be added, in which case the window should be
+   *  released with poll() before trying again. Events that still can't be
+   *  added to an empty window (e.g. summaries) should be logged as-is.
+   */
+    public boolean add(Event event){
+        ChangeSet changes = event.changes;
+        if (changes==null || changes.isSummary()) return false;
+
+        if (events>0){
+            if (!Objects.equals(database, event.database)) return false;
+            if (events>=maxEvents) return false;
+            if (nodes.size+relationships.size>=maxEntities) return false;
+            if (conflicts(changes)) return false;
+        }
+        else{
+            start = System.currentTimeMillis();
+            database = event.database;
+            user = event.user;
+        }
+
+        changes.forEach(handler);
+
+        if (!Objects.equals(user, event.user)) user = null;
+        timestamp = event.timestamp;
+        sequence = event.sequence;
+        transactionId = event.transactionId;
+        events++;
+        eventsIn++;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** isDue
+  //**************************************************************************
+  /** Returns true if the current window should be released
+   */
+    public boolean isDue(){
+        return events>0 && System.currentTimeMillis()-start>=window;
+    }
+
+
+  //**************************************************************************
+  //** getDelay
+  //**************************************************************************
+  /** Returns the number of milliseconds until the current window is due, up
+   *  to the given max
+   */
+    public long getDelay(long max){
+        if (events==0) return max;
+        long delay = start+window-System.currentTimeMillis();
+        return Math.max(1, Math.min(max, delay));
+    }
+
+
+  //**************************************************************************
+  //** poll
+  //**************************************************************************
+  /** Releases the current window. The net changes are copied into the given
+   *  event with the sequence number, transaction id and commit time of the
+   *  last transaction in the window. The user is null if the window has
+   *  changes from more than one user.
+   *  @return False if there are no net changes (e.g. every entity that was
+   *  created was also deleted)
+   */
+    public boolean poll(Event event){
+        if (events==0) return false;
+
+        ChangeSet changes = new ChangeSet(user, config);
+        nodes.write(true, changes);
+        relationships.write(false, changes);
+        event.set(timestamp, sequence, transactionId, database, user, null, changes);
+        clear();
+
+        if (changes.isEmpty()) return false;
+        eventsOut++;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** getEventsIn
+  //**************************************************************************
+  /** Returns the number of transactions that have been coalesced
+   */
+    public long getEventsIn(){
+        return eventsIn;
+    }
+
+
+  //**************************************************************************
+  //** getEventsOut
+  //**************************************************************************
+  /** Returns the number of coalesced records that have been released
+   */
+    public long getEventsOut(){
+        return eventsOut;
+    }
+
+
+  //**************************************************************************
+  //** getPending
+  //**************************************************************************
+  /** Returns the number of transactions in the current window
+   */
+    public int getPending(){
+        return events;
+    }
+
+
+  //**************************************************************************
+  //** clear
+  //**************************************************************************
+  /** Resets the window. Arrays are released if they grew past their
+   *  initial size so a burst doesn't pin memory.
+   */
+    private void clear(){
+        nodes.clear();
+        relationships.clear();
+        if (keys.length>1024){
+            keys = new int[64];
+            flags = new byte[64];
+            values = new Object[64];
+            previousValues = new Object[64];
+            next = new int[64];
+        }
+        else{
+            Arrays.fill(values, 0, size, null);
+            Arrays.fill(previousValues, 0, size, null);
+        }
+        size = 0;
+        events = 0;
+        database = null;
+        user = null;
+    }
+
+
+  //**************************************************************************
+  //** conflicts
+  //**************************************************************************
+  /** Returns true if the transaction creates an entity with the same id as
+   *  one that was deleted in the current window. Neo4J reuses ids, so the
+   *  new entity can't be folded into the old one.
+   */
+    private boolean conflicts(ChangeSet changes){
+        boolean[] conflict = new boolean[1];
+        changes.forEach(new ChangeSet.Handler(){
+            public void node(boolean created, long id){
+                if (created && nodes.isLive(id)) conflict[0] = true;
+            }
+            public void relationship(boolean created, long id, int type, long start, long end){
+                if (created && relationships.isLive(id)) conflict[0] = true;
+            }
+            public void label(boolean assigned, long nodeID, int label){}
+            public void property(boolean node, boolean assigned, long id, int key,
+                Object value, Object previousValue){}
+        });
+        return conflict[0];
+    }
+
+
+  //**************************************************************************
+  //** handler
+  //**************************************************************************
+  /** Used to fold changes into the current window
+   */
+    private final ChangeSet.Handler handler = new ChangeSet.Handler(){
+
+        public void node(boolean created, long id){
+            nodes.update(created, id, -1, -1, -1);
+        }
+
+        public void relationship(boolean created, long id, int type, long start, long end){
+            relationships.update(created, id, type, start, end);
+        }
+
+        public void label(boolean assigned, long nodeID, int label){
+            int slot = nodes.getSlot(nodeID);
+            if ((nodes.states[slot] & CANCELLED)!=0) return;
+            int i = find(nodes, slot, LABEL, label);
+            if (i<0) i = addEntry(nodes, slot, LABEL, label, assigned ? 0 : EXISTED, null);
+            flags[i] = (byte) (assigned ? flags[i] | PRESENT : flags[i] & ~PRESENT);
+        }
+
+        public void property(boolean node, boolean assigned, long id, int key,
+            Object value, Object previousValue){
+            Entities entities = node ? nodes : relationships;
+            int slot = entities.getSlot(id);
+            if ((entities.states[slot] & CANCELLED)!=0) return;
+            int i = find(entities, slot, (byte) 0, key);
+            if (i<0){
+                boolean existed = !assigned || previousValue!=null;
+                i = addEntry(entities, slot, (byte) 0, key, existed ? EXISTED : 0, previousValue);
+            }
+            if (assigned){
+                flags[i] |= PRESENT;
+                values[i] = value;
+            }
+            else{
+                flags[i] &= ~PRESENT;
+                values[i] = null;
+            }
+        }
+    };
+
+
+  //**************************************************************************
+  //** find
+  //**************************************************************************
+  /** Returns the index of the label or property change for an entity, or -1
+   */
+    private int find(Entities entities, int slot, byte type, int key){
+        for (int i=entities.heads[slot]; i>=0; i=next[i]){
+            if (keys[i]==key && (flags[i] & LABEL)==type) return i;
+        }
+        return -1;
+    }
+
+
+  //**************************************************************************
+  //** addEntry
+  //**************************************************************************
+    private int addEntry(Entities entities, int slot, byte type, int key, int state,
+        Object previousValue){
+        if (size==keys.length){
+            int n = keys.length*2;
+            keys = Arrays.copyOf(keys, n);
+            flags = Arrays.copyOf(flags, n);
+            values = Arrays.copyOf(values, n);
+            previousValues = Arrays.copyOf(previousValues, n);
+            next = Arrays.copyOf(next, n);
+        }
+        int i = size++;
+        keys[i] = key;
+        flags[i] = (byte) (type | state);
+        values[i] = null;
+        previousValues[i] = previousValue;
+        next[i] = entities.heads[slot];
+        entities.heads[slot] = i;
+        return i;
+    }
+
+
+  //**************************************************************************
+  //** Entities Class
+  //**************************************************************************
+  /** Net state for a set of entities (nodes or relationships). Entity ids
+   *  are mapped to slots with an open addressing hash table. Slots are
+   *  assigned in the order entities are first seen.
+   */
+    private class Entities {
+        private long[] table = new long[64];
+        private int[] tableSlots = new int[64]; //slot+1, 0 if empty
+        private long[] ids = new long[32];
+        private byte[] states = new byte[32];
+        private int[] types = new int[32];
+        private long[] starts = new long[32];
+        private long[] ends = new long[32];
+        private int[] heads = new int[32];
+        private int size;
+
+      /** Returns the slot for an entity, adding it if needed */
+        private int getSlot(long id){
+            int i = find(id);
+            if (tableSlots[i]!=0) return tableSlots[i]-1;
+
+            if (size==ids.length){
+                int n = ids.length*2;
+                ids = Arrays.copyOf(ids, n);
+                states = Arrays.copyOf(states, n);
+                types = Arrays.copyOf(types, n);
+                starts = Arrays.copyOf(starts, n);
+                ends = Arrays.copyOf(ends, n);
+                heads = Arrays.copyOf(heads, n);
+            }
+            int slot = size++;
+            ids[slot] = id;
+            states[slot] = 0;
+            types[slot] = -1;
+            heads[slot] = -1;
+            table[i] = id;
+            tableSlots[i] = slot+1;
+            if (size*2>table.length) rehash(table.length*2);
+            return slot;
+        }
+
+      /** Returns true if the entity has changes in the window that would be
+       *  mixed up with a new entity with the same id */
+        private boolean isLive(long id){
+            int i = find(id);
+            if (tableSlots[i]==0) return false;
+            return (states[tableSlots[i]-1] & CANCELLED)==0;
+        }
+
+      /** Applies a create or delete */
+        private void update(boolean created, long id, int type, long start, long end){
+            int slot = getSlot(id);
+            byte state = states[slot];
+            if (created){
+                states[slot] = CREATED;
+                heads[slot] = -1;
+            }
+            else if ((state & CREATED)!=0){
+                states[slot] = CANCELLED;
+                heads[slot] = -1;
+            }
+            else{
+              //Changes made before the delete are moot. The labels and
+              //properties removed by the delete are added next.
+                states[slot] = DELETED;
+                heads[slot] = -1;
+            }
+            if (type>=0 || types[slot]<0){
+                types[slot] = type;
+                starts[slot] = start;
+                ends[slot] = end;
+            }
+        }
+
+      /** Adds the net changes to a snapshot */
+        private void write(boolean node, ChangeSet changes){
+            for (int slot=0; slot<size; slot++){
+                byte state = states[slot];
+                if ((state & CANCELLED)!=0) continue;
+                long id = ids[slot];
+
+                if ((state & (CREATED|DELETED))!=0){
+                    boolean created = (state & CREATED)!=0;
+                    if (node) changes.addNode(created, id);
+                    else changes.addRelationship(created, id, types[slot], starts[slot], ends[slot]);
+                }
+
+                for (int i=heads[slot]; i>=0; i=next[i]){
+                    byte f = flags[i];
+                    boolean existed = (f & EXISTED)!=0;
+                    boolean present = (f & PRESENT)!=0;
+                    if ((f & LABEL)!=0){
+                        if (present!=existed) changes.addLabel(present, id, keys[i]);
+                    }
+                    else if (present){
+                        if (existed && Objects.deepEquals(values[i], previousValues[i])) continue;
+                        changes.addProperty(node, true, id, keys[i], values[i], previousValues[i]);
+                    }
+                    else if (existed){
+                        changes.addProperty(node, false, id, keys[i], null, previousValues[i]);
+                    }
+                }
+            }
+        }
+
+        private int find(long id){
+            int mask = table.length-1;
+            int i = Long.hashCode(id * 0x9E3779B97F4A7C15L) & mask;
+            while (tableSlots[i]!=0 && table[i]!=id) i = (i+1) & mask;
+            return i;
+        }
+
+        private void rehash(int capacity){
+            table = new long[capacity];
+            tableSlots = new int[capacity];
+            for (int slot=0; slot<size; slot++){
+                int i = find(ids[slot]);
+                table[i] = ids[slot];
+                tableSlots[i] = slot+1;
+            }
+        }
+
+        private void clear(){
+            if (table.length>4096){
+                table = new long[64];
+                tableSlots = new int[64];
+                ids = new long[32];
+                states = new byte[32];
+                types = new int[32];
+                starts = new long[32];
+                ends = new long[32];
+                heads = new int[32];
+            }
+            else{
+                Arrays.fill(tableSlots, 0);
+            }
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package bluewave.neo4j.plugins;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.charset.StandardCharsets;
+import javaxt.sql.*;
+import javaxt.json.JSONObject;
+
+
+//******************************************************************************
+//**  DatabaseSink Class
+//******************************************************************************
+/**
+ *   Used to write events to a ChangeStore in an H2 database. Each changed
+ *   entity is stored in a separate row of a daily partition, keyed by entity
+ *   id. Rows for the same transaction share a sequence number. Rows for the
+ *   same transaction (or chunk of a large transaction) are always written in
+ *   the same batch. Events are collected until the batch is full or the
+ *   stage calls flush() after the linger time expires, then written with a
+ *   single executeBatch() call per partition over a long-lived connection and
+ *   cached PreparedStatements.
+ *   <p/>
+ *   Repeated strings (actions, types, usernames, database names, labels and
+ *   property keys) are stored in a TOKEN table and rows only store the token
+ *   ids.
+ *
+ ******************************************************************************/
+
+public class DatabaseSink implements Sink {
+
+    public enum Commit {
+        BATCH, //one transaction per batch
+        AUTO   //autocommit every row
+    }
+
+    private static final String INSERT =
+    "(ts, seq, txid, chunk, db_id, user_id, action_id, type_id, entity_id, label_id, key_id, data) " +
+    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_TOKEN =
+    "INSERT INTO TOKEN (id, name) VALUES (?, ?)";
+
+    private Database database;
+    private ChangeStore store;
+    private Connection conn;
+    private PreparedStatement tokenStmt;
+    private final HashMap<String, PreparedStatement> statements = new HashMap<>();
+    private final ArrayList<PreparedStatement> pending = new ArrayList<>();
+    private final HashMap<String, Integer> tokens = new HashMap<>();
+    private final JsonReader reader = new JsonReader();
+    private int nextTokenId;
+
+    private int batchSize = 500;
+    private long linger = 1000; //ms
+    private Commit commit = Commit.BATCH;
+
+    private Event[] batch;
+    private int count;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public DatabaseSink(Database database) {
+        this.database = database;
+        this.store = new ChangeStore(database);
+    }
+
+
+  //**************************************************************************
+  //** setConfig
+  //**************************************************************************
+  /** Used to set options from the "database" section of the config file:
+   *  "batchSize" (transactions), "linger" (milliseconds), "commit" ("batch"
+   *  or "auto") and "retention" (days).
+   */
+    public void setConfig(JSONObject config){
+        if (config==null) return;
+
+        Integer batchSize = config.get("batchSize").toInteger();
+        if (batchSize!=null && batchSize>0) this.batchSize = batchSize;
+
+        Long linger = config.get("linger").toLong();
+        if (linger!=null && linger>=0) this.linger = linger;
+
+        String commit = config.get("commit").toString();
+        if (commit!=null) this.commit = Commit.valueOf(commit.toUpperCase());
+
+        Integer retention = config.get("retention").toInteger();
+        if (retention!=null) store.setRetention(retention);
+    }
+
+
+  //**************************************************************************
+  //** getStore
+  //**************************************************************************
+    public ChangeStore getStore(){
+        return store;
+    }
+
+
+  //**************************************************************************
+  //** getBatchSize
+  //**************************************************************************
+    public int getBatchSize(){
+        return batchSize;
+    }
+
+
+  //**************************************************************************
+  //** getLinger
+  //**************************************************************************
+    public long getLinger(){
+        return linger;
+    }
+
+
+  //**************************************************************************
+  //** isDurable
+  //**************************************************************************
+    public boolean isDurable(){
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** open
+  //**************************************************************************
+  /** Creates the database and token table as needed. Partitions are created
+   *  as changes are written. Rows in the TRANSACTION table written by older
+   *  versions of the plugin are left as-is.
+   */
+    public void open() throws Exception {
+
+        Connection conn = null;
+        try{
+            javaxt.io.File db = new javaxt.io.File(database.getHost() + ".mv.db");
+            if (!db.exists()) db.getDirectory().create();
+
+          //Connections are shared by this sink and the procedures
+            database.initConnectionPool();
+
+            conn = database.getConnection();
+            store.init(conn.getConnection());
+            conn.close();
+        }
+        catch(Exception e){
+            if (conn!=null) conn.close();
+            database.terminateConnectionPool();
+            throw e;
+        }
+
+        batch = new Event[batchSize];
+        for (int i=0; i<batch.length; i++) batch[i] = new Event();
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Adds events to the current batch. The batch is written to the database
+   *  whenever it fills up. Since the batch size is measured in transactions,
+   *  a transaction is never split across batches.
+   */
+    public void write(Event[] events, int length) throws Exception {
+        for (int i=0; i<length; i++){
+            batch[count++].copy(events[i]);
+            if (count==batch.length) flush();
+        }
+    }
+
+
+  //**************************************************************************
+  //** flush
+  //**************************************************************************
+  /** Writes all pending events to the database. Failed batches are retried
+   *  once with a fresh connection. If the retry fails, the batch is
+   *  discarded and the error is thrown so the stage can send the events
+   *  again.
+   */
+    public void flush() throws Exception {
+        if (count==0) return;
+        try{
+            for (int attempt=0; ; attempt++){
+                try{
+                    executeBatch();
+                    break;
+                }
+                catch(Exception e){
+                    closeConnection();
+                    errors.incrementAndGet();
+                    if (attempt>0) throw e;
+                    retries.incrementAndGet();
+                }
+            }
+        }
+        finally{
+            for (int i=0; i<count; i++) batch[i].clear();
+            count = 0;
+        }
+    }
+
+
+  //**************************************************************************
+  //** executeBatch
+  //**************************************************************************
+    private void executeBatch() throws Exception {
+        if (conn==null){
+            conn = database.getConnection();
+            java.sql.Connection c = conn.getConnection();
+            c.setAutoCommit(commit==Commit.AUTO);
+            tokenStmt = c.prepareStatement(INSERT_TOKEN);
+            loadTokens(c);
+        }
+
+        updatePartitions();
+
+        try{
+            for (int i=0; i<count; i++){
+                Event event = batch[i];
+                if (event.data==null) continue;
+                insert(event, getStatement(event.timestamp/1000000));
+            }
+            for (PreparedStatement stmt : pending) stmt.executeBatch();
+            pending.clear();
+            if (commit==Commit.BATCH) conn.getConnection().commit();
+        }
+        catch(Exception e){
+            try{
+                for (PreparedStatement stmt : pending) stmt.clearBatch();
+                pending.clear();
+                if (commit==Commit.BATCH) conn.getConnection().rollback();
+            }
+            catch(Exception ex){}
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** updatePartitions
+  //**************************************************************************
+  /** Creates the partitions needed for the current batch. Expired partitions
+   *  are dropped whenever a new partition is created. H2 commits the current
+   *  transaction before running DDL so this is done before any rows are
+   *  inserted, in autocommit mode, to keep the batch in a single transaction.
+   *  Events are not always in timestamp order so the check is made against
+   *  the partitions in the store rather than the last day seen.
+   */
+    private void updatePartitions() throws Exception {
+        java.sql.Connection c = conn.getConnection();
+        boolean autoCommit = c.getAutoCommit();
+        try{
+            for (int i=0; i<count; i++){
+                Event event = batch[i];
+                if (event.data==null) continue;
+                int day = store.getDay(event.timestamp/1000000);
+                if (store.hasPartition(day)) continue;
+
+                if (!c.getAutoCommit()) c.setAutoCommit(true);
+                for (String table : store.dropExpiredPartitions(c)){
+                    PreparedStatement stmt = statements.remove(table);
+                    if (stmt!=null) stmt.close();
+                }
+                store.createPartition(c, day);
+            }
+        }
+        finally{
+            if (c.getAutoCommit()!=autoCommit) c.setAutoCommit(autoCommit);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getStatement
+  //**************************************************************************
+  /** Returns a statement used to insert rows into the partition for a given
+   *  time. The partition is created by updatePartitions().
+   */
+    private PreparedStatement getStatement(long ms) throws Exception {
+        String table = ChangeStore.getTableName(store.getDay(ms));
+        PreparedStatement stmt = statements.get(table);
+        if (stmt==null){
+            stmt = conn.getConnection().prepareStatement("INSERT INTO " + table + " " + INSERT);
+            statements.put(table, stmt);
+        }
+        if (!pending.contains(stmt)) pending.add(stmt);
+        return stmt;
+    }
+
+
+  //**************************************************************************
+  //** insert
+  //**************************************************************************
+  /** Adds a row for every entity in an event. Nodes get a row for each
+   *  label, relationships store their type in the label column, and
+   *  properties store their key. Summaries have a row for every label, type
+   *  or key, without an entity id. The id and names are stored in their own
+   *  columns so the data column only gets the values that follow them in the
+   *  JSON entry (e.g. the start and end node of a relationship, the new and
+   *  old value of a property, or the count in a summary).
+   */
+    private void insert(Event event, PreparedStatement stmt) throws Exception {
+        Changes changes = event.data;
+        byte[] json = changes.getBytes();
+        long ts = event.timestamp/1000000;
+
+        for (int i=0; i<changes.size(); i++){
+            String type = changes.getType(i);
+            int actionId = getTokenId(changes.getAction(i));
+            int typeId = getTokenId(type);
+            boolean summary = type.endsWith("_summary");
+            boolean hasKey = type.startsWith("properties") || type.startsWith("relationship_property");
+            boolean hasLabels = type.startsWith("nodes") || type.startsWith("labels");
+
+            reader.reset(json, changes.getOffset(i), changes.getLength(i));
+            reader.beginArray();
+            while (reader.hasNext()){
+                reader.beginArray();
+                Long entityId = null;
+                if (!summary && reader.peek()==JsonReader.Token.NUMBER){
+                    entityId = reader.nextLong();
+                }
+                String label = null;
+                String key = null;
+                ArrayList<String> labels = null;
+                if (hasLabels && !summary){
+                    while (reader.hasNext()){
+                        if (labels==null) labels = new ArrayList<>();
+                        labels.add(reader.nextString());
+                    }
+                }
+                else{
+                    String name = reader.nextString();
+                    if (hasKey) key = name;
+                    else label = name;
+                }
+                String data = null;
+                if (reader.hasNext()){
+                    int start = reader.getPosition();
+                    reader.endArray();
+                    data = "[" + new String(json, start, reader.getPosition()-start, StandardCharsets.UTF_8);
+                }
+                else{
+                    reader.endArray();
+                }
+
+                stmt.setLong(1, ts);
+                stmt.setLong(2, event.sequence);
+                stmt.setLong(3, event.transactionId);
+                stmt.setInt(4, event.chunk);
+                setTokenId(stmt, 5, event.database);
+                setTokenId(stmt, 6, event.user);
+                stmt.setInt(7, actionId);
+                stmt.setInt(8, typeId);
+                if (entityId==null) stmt.setNull(9, java.sql.Types.BIGINT);
+                else stmt.setLong(9, entityId);
+                setTokenId(stmt, 11, key);
+                stmt.setString(12, data);
+
+                if (labels==null){
+                    setTokenId(stmt, 10, label);
+                    stmt.addBatch();
+                }
+                else{
+                    for (String l : labels){
+                        setTokenId(stmt, 10, l);
+                        stmt.addBatch();
+                    }
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** loadTokens
+  //**************************************************************************
+  /** Reads the token table into memory. Called whenever a new connection is
+   *  opened since tokens added in a failed batch are rolled back.
+   */
+    private void loadTokens(java.sql.Connection c) throws Exception {
+        tokens.clear();
+        nextTokenId = 1;
+        try (java.sql.Statement st = c.createStatement();
+            java.sql.ResultSet rs = st.executeQuery("SELECT id, name FROM TOKEN")){
+            while (rs.next()){
+                int id = rs.getInt(1);
+                tokens.put(rs.getString(2), id);
+                nextTokenId = Math.max(nextTokenId, id+1);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getTokenId
+  //**************************************************************************
+  /** Returns the id for a given string. New strings are added to the token
+   *  table in the current transaction.
+   */
+    private int getTokenId(String name) throws Exception {
+        Integer id = tokens.get(name);
+        if (id!=null) return id;
+
+        id = nextTokenId++;
+        tokenStmt.setInt(1, id);
+        tokenStmt.setString(2, name);
+        tokenStmt.executeUpdate();
+        tokens.put(name, id);
+        return id;
+    }
+
+
+  //**************************************************************************
+  //** setTokenId
+  //**************************************************************************
+    private void setTokenId(PreparedStatement stmt, int idx, String name) throws Exception {
+        if (name==null) stmt.setNull(idx, java.sql.Types.INTEGER);
+        else stmt.setInt(idx, getTokenId(name));
+    }
+
+
+  //**************************************************************************
+  //** getRetryCount
+  //**************************************************************************
+    public long getRetryCount(){
+        return retries.get();
+    }
+
+
+  //**************************************************************************
+  //** getErrorCount
+  //**************************************************************************
+    public long getErrorCount(){
+        return errors.get();
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Flushes pending events and closes the connection pool
+   */
+    public void close(){
+        try{
+            flush();
+        }
+        catch(Exception e){
+            e.printStackTrace();
+        }
+        closeConnection();
+        database.terminateConnectionPool();
+    }
+
+
+  //**************************************************************************
+  //** closeConnection
+  //**************************************************************************
+    private void closeConnection(){
+        for (PreparedStatement stmt : statements.values()){
+            try{ stmt.close(); } catch(Exception e){}
+        }
+        statements.clear();
+        pending.clear();
+        if (tokenStmt!=null){
+            try{ tokenStmt.close(); } catch(Exception e){}
+            tokenStmt = null;
+        }
+        if (conn!=null){
+            conn.close();
+            conn = null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Provider Class
+  //**************************************************************************
+  /** Creates a DatabaseSink from the "database" section of the config file.
+   *  The H2 database is created in the given "path". The change store is
+   *  made available to the procedures.
+   */
+    public static class Provider implements SinkProvider {
+
+        public String getName(){
+            return "database";
+        }
+
+        public Sink create(JSONObject config, Context context) throws Exception {
+            String path = config.get("path").toString();
+            if (path==null) throw new IllegalArgumentException("Missing database path");
+            javaxt.io.Directory dbDir = new javaxt.io.Directory(path.replace("\\", "/"));
+            dbDir.create();
+            path = new java.io.File(dbDir.toString()+"database").getCanonicalPath();
+
+            Database database = new Database();
+            database.setDriver("H2");
+            database.setHost(path);
+            database.setConnectionPoolSize(5);
+
+            DatabaseSink sink = new DatabaseSink(database);
+            sink.setConfig(config);
+            ChangeStore.setInstance(sink.getStore());
+            return sink;
+        }
+    }
+}
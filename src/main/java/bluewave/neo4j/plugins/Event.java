@@ -0,0 +1,221 @@
+package bluewave.neo4j.plugins;
+import javaxt.json.JSONObject;
+
+//******************************************************************************
+//**  Event Class
+//******************************************************************************
+/**
+ *   Mutable container for a transaction record. Each committed transaction
+ *   is logged as a single record with a sequence number, the transaction id,
+ *   the commit time, the database name, the user, and all the changes in the
+ *   transaction. Very large transactions are split into chunks. Each chunk
+ *   is logged as a separate record with the same sequence number and a chunk
+ *   number (e.g. 3 of 50). Instances are preallocated by the EventBuffer and reused,
+ *   so fields are copied in and out rather than handing references to new
+ *   objects around. Readers (e.g. BinaryLogReader) reuse events the same way.
+ *
+ ******************************************************************************/
+
+public class Event {
+
+    long timestamp;
+    long sequence;
+    long transactionId;
+    int chunk = 1;
+    int chunks = 1;
+    String database;
+    String user;
+    Changes data;
+    ChangeSet changes;
+
+
+  //**************************************************************************
+  //** getTimestamp
+  //**************************************************************************
+  /** Returns the commit time in nanoseconds
+   */
+    public long getTimestamp(){
+        return timestamp;
+    }
+
+
+  //**************************************************************************
+  //** getSequence
+  //**************************************************************************
+  /** Returns a sequence number assigned by the logger. Sequence numbers
+   *  increase monotonically, including across restarts, but may have gaps.
+   */
+    public long getSequence(){
+        return sequence;
+    }
+
+
+  //**************************************************************************
+  //** getTransactionId
+  //**************************************************************************
+  /** Returns the Neo4J transaction id
+   */
+    public long getTransactionId(){
+        return transactionId;
+    }
+
+
+  //**************************************************************************
+  //** getChunk
+  //**************************************************************************
+  /** Returns the chunk number, starting at 1
+   */
+    public int getChunk(){
+        return chunk;
+    }
+
+
+  //**************************************************************************
+  //** getChunks
+  //**************************************************************************
+  /** Returns the number of chunks in the transaction record. This is 1
+   *  unless the transaction was split up.
+   */
+    public int getChunks(){
+        return chunks;
+    }
+
+
+  //**************************************************************************
+  //** getDatabase
+  //**************************************************************************
+    public String getDatabase(){
+        return database;
+    }
+
+
+  //**************************************************************************
+  //** getUser
+  //**************************************************************************
+    public String getUser(){
+        return user;
+    }
+
+
+  //**************************************************************************
+  //** getData
+  //**************************************************************************
+  /** Returns the encoded changes in the transaction. The changes are a JSON
+   *  array with an entry for each type of change. Each entry is an array
+   *  with an action (e.g. "create"), a type (e.g. "nodes"), and a JSON array
+   *  with the changes.
+   */
+    public Changes getData(){
+        return data;
+    }
+
+
+  //**************************************************************************
+  //** getChanges
+  //**************************************************************************
+  /** Returns the transaction snapshot, if the record was created from one
+   */
+    public ChangeSet getChanges(){
+        return changes;
+    }
+
+
+  //**************************************************************************
+  //** set
+  //**************************************************************************
+    void set(long timestamp, long sequence, long transactionId, String database,
+        String user, Changes data, ChangeSet changes){
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+        this.transactionId = transactionId;
+        this.database = database;
+        this.user = user;
+        this.data = data;
+        this.changes = changes;
+        this.chunk = 1;
+        this.chunks = 1;
+    }
+
+
+  //**************************************************************************
+  //** setChunk
+  //**************************************************************************
+    void setChunk(int chunk, int chunks){
+        this.chunk = chunk;
+        this.chunks = chunks;
+    }
+
+
+  //**************************************************************************
+  //** copy
+  //**************************************************************************
+  /** Copies all the fields from the given event into this one
+   */
+    void copy(Event event){
+        set(event.timestamp, event.sequence, event.transactionId, event.database,
+        event.user, event.data, event.changes);
+        setChunk(event.chunk, event.chunks);
+    }
+
+
+  //**************************************************************************
+  //** clear
+  //**************************************************************************
+  /** Releases references so that slot reuse doesn't pin old data in memory
+   */
+    void clear(){
+        this.database = null;
+        this.user = null;
+        this.data = null;
+        this.changes = null;
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Writes the record as a JSON object. The encoded changes are copied into
+   *  the writer as-is.
+   */
+    void write(JsonWriter writer){
+        writer.beginObject();
+        writer.key("timestamp").value(timestamp);
+        writer.key("sequence").value(sequence);
+        writer.key("transaction").value(transactionId);
+        writer.key("chunk").value(chunk);
+        writer.key("chunks").value(chunks);
+        writer.key("database").value(database);
+        writer.key("user").value(user);
+        writer.key("changes");
+        if (data==null){
+            writer.value((Object) null);
+        }
+        else{
+            byte[] b = data.getBytes();
+            writer.raw(b, 0, b.length);
+        }
+        writer.endObject();
+    }
+
+
+  //**************************************************************************
+  //** parse
+  //**************************************************************************
+  /** Used to populate the record from a JSON string created by write()
+   */
+    void parse(String str){
+        JSONObject json = new JSONObject(str);
+        set(
+            json.get("timestamp").toLong(),
+            json.get("sequence").toLong(),
+            json.get("transaction").toLong(),
+            json.get("database").toString(),
+            json.get("user").toString(),
+            Changes.parse(json.get("changes").toJSONArray()),
+            null
+        );
+        Integer chunk = json.get("chunk").toInteger();
+        Integer chunks = json.get("chunks").toInteger();
+        if (chunk!=null && chunks!=null) setChunk(chunk, chunks);
+    }
+}
@@ -0,0 +1,501 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+//******************************************************************************
+//**  EventBuffer Class
+//******************************************************************************
+/**
+ *   Bounded, lock-free, multi-producer/single-consumer ring buffer used to
+ *   hand events from committing threads to the Logger. Slots are preallocated
+ *   and reused. Each slot has a sequence number that tells producers and the
+ *   consumer whether the slot is free or holds a published event, so neither
+ *   side needs a shared monitor.
+ *   <p/>
+ *   When the buffer is full, the configured Policy decides what to do with
+ *   new events: wait for space (up to a timeout), drop them, or write them
+ *   to a spill file that the consumer reads back once the buffer is empty.
+ *   Once an event has been spilled, new events are spilled too until the
+ *   consumer has read the spill file back, so events are always drained in
+ *   the order they were added.
+ *
+ ******************************************************************************/
+
+public class EventBuffer {
+
+    public enum Policy {
+        BLOCK, DROP, SPILL
+    }
+
+    private final Event[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private volatile Thread consumer;
+    private volatile boolean waiting;
+
+    private Tokens tokens;
+    private Policy policy = Policy.BLOCK;
+    private long timeout = 1000; //ms
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong highWater = new AtomicLong();
+
+    private File spillDir;
+    private File spillFile;
+    private OutputStream spillWriter;
+    private BufferedReader spillReader;
+    private File spillReaderFile;
+    private final Object spillLock = new Object();
+    private final AtomicLong spilled = new AtomicLong();
+    private volatile boolean spilling; //true until spilled events are read back
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param size Number of slots in the buffer. Rounded up to the next power
+   *  of 2.
+   */
+    public EventBuffer(int size){
+        int capacity = 1;
+        while (capacity<Math.max(size, 2)) capacity <<= 1;
+
+        slots = new Event[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i=0; i<capacity; i++){
+            slots[i] = new Event();
+            sequences.set(i, i);
+        }
+        mask = capacity-1;
+    }
+
+
+  //**************************************************************************
+  //** setPolicy
+  //**************************************************************************
+  /** Used to specify what to do when the buffer is full.
+   *  @param timeout Max time to wait for space, in milliseconds. Only used
+   *  with the BLOCK policy. Events are dropped after the timeout expires.
+   */
+    public void setPolicy(Policy policy, long timeout){
+        this.policy = policy==null ? Policy.BLOCK : policy;
+        this.timeout = Math.max(timeout, 0);
+    }
+
+
+  //**************************************************************************
+  //** setTokens
+  //**************************************************************************
+  /** Used to resolve label tokens when transaction snapshots are spilled
+   */
+    public void setTokens(Tokens tokens){
+        this.tokens = tokens;
+    }
+
+
+  //**************************************************************************
+  //** setSpillDirectory
+  //**************************************************************************
+  /** Directory used to store overflow events with the SPILL policy
+   */
+    public void setSpillDirectory(javaxt.io.Directory dir){
+        if (dir==null){
+            spillDir = null;
+        }
+        else{
+            dir.create();
+            spillDir = dir.exists() ? dir.toFile() : null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** copy
+  //**************************************************************************
+  /** Returns a new, empty buffer with the same capacity and overflow policy.
+   *  Spilled events are written to a subdirectory with the given name.
+   */
+    public EventBuffer copy(String name){
+        EventBuffer buffer = new EventBuffer(slots.length);
+        buffer.setPolicy(policy, timeout);
+        buffer.setTokens(tokens);
+        if (spillDir!=null){
+            buffer.setSpillDirectory(new javaxt.io.Directory(new File(spillDir, name)));
+        }
+        return buffer;
+    }
+
+
+  //**************************************************************************
+  //** setConsumer
+  //**************************************************************************
+  /** Used to register the thread that drains the buffer so producers can wake
+   *  it up when new events arrive.
+   */
+    public void setConsumer(Thread consumer){
+        this.consumer = consumer;
+    }
+
+
+  //**************************************************************************
+  //** getCapacity
+  //**************************************************************************
+    public int getCapacity(){
+        return slots.length;
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the approximate number of events in the buffer, not including
+   *  spilled events.
+   */
+    public int size(){
+        long n = tail.get()-head;
+        return (int) Math.max(0, Math.min(n, slots.length));
+    }
+
+
+  //**************************************************************************
+  //** getHighWaterMark
+  //**************************************************************************
+  /** Returns the max number of events that have been in the buffer at once
+   */
+    public long getHighWaterMark(){
+        return highWater.get();
+    }
+
+
+  //**************************************************************************
+  //** getDropCount
+  //**************************************************************************
+    public long getDropCount(){
+        return dropped.get();
+    }
+
+
+  //**************************************************************************
+  //** getSpillCount
+  //**************************************************************************
+  /** Returns the number of spilled events that have not been read back yet
+   */
+    public long getSpillCount(){
+        return spilled.get();
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to publish an event. Called by the producer threads. The fields in
+   *  the event are copied into a slot so the caller can reuse the event.
+   *  @return True if the event was added to the buffer or spilled to disk.
+   */
+    public boolean add(Event event){
+
+        if (!spilling && offer(event)) return true;
+
+
+      //If we're still here, the buffer is full
+        switch (policy){
+            case SPILL:
+                if (spill(event)) return true;
+                break;
+
+            case BLOCK:
+                long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeout);
+                int spins = 0;
+                while (System.nanoTime()<deadline){
+                    if (++spins<100) Thread.onSpinWait();
+                    else if (spins<200) Thread.yield();
+                    else LockSupport.parkNanos(100_000);
+
+                    if (offer(event)) return true;
+                }
+                break;
+
+            default:
+                break;
+        }
+
+        dropped.incrementAndGet();
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to publish a transaction snapshot. Same as add(Event) except that
+   *  the fields are set directly in a slot so the committing threads don't
+   *  need an event of their own. An event is only created if the buffer is
+   *  full.
+   *  @param timestamp Commit time in nanoseconds
+   *  @return True if the event was added to the buffer or spilled to disk.
+   */
+    public boolean add(long timestamp, long sequence, long transactionId,
+        String database, String user, ChangeSet changes){
+
+        long pos = spilling ? -1 : claim();
+        if (pos>=0){
+            slots[(int) (pos & mask)].set(timestamp, sequence, transactionId,
+            database, user, null, changes);
+            publish(pos);
+            return true;
+        }
+
+
+      //If we're still here, the buffer is full or events are being spilled
+        Event event = new Event();
+        event.set(timestamp, sequence, transactionId, database, user, null, changes);
+        return add(event);
+    }
+
+
+  //**************************************************************************
+  //** offer
+  //**************************************************************************
+  /** Tries to claim a slot and copy the event into it without waiting.
+   */
+    private boolean offer(Event event){
+        long pos = claim();
+        if (pos<0) return false;
+        slots[(int) (pos & mask)].copy(event);
+        publish(pos);
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** claim
+  //**************************************************************************
+  /** Tries to claim a slot without waiting. The slot must be passed to
+   *  publish() once it has been filled in.
+   *  @return Position of the slot or -1 if the buffer is full
+   */
+    private long claim(){
+        long pos = tail.get();
+        while (true){
+            int idx = (int) (pos & mask);
+            long seq = sequences.get(idx);
+            long dif = seq-pos;
+            if (dif==0){
+                if (tail.compareAndSet(pos, pos+1)) return pos;
+                pos = tail.get();
+            }
+            else if (dif<0){
+                return -1; //full
+            }
+            else{
+                pos = tail.get();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** publish
+  //**************************************************************************
+  /** Makes a claimed slot visible to the consumer
+   */
+    private void publish(long pos){
+
+      //Use a volatile write so the read of the waiting flag can't move ahead
+      //of it. Otherwise the consumer could park without seeing the event.
+        sequences.set((int) (pos & mask), pos+1);
+        if (waiting) wake();
+
+      //Update the high water mark. The CAS only happens when
+      //the mark goes up so it's cheap in the steady state.
+        long depth = pos+1-head;
+        long max = highWater.get();
+        while (depth>max && !highWater.compareAndSet(max, depth)) max = highWater.get();
+    }
+
+
+  //**************************************************************************
+  //** drain
+  //**************************************************************************
+  /** Used by the consumer to copy up to batch.length events out of the
+   *  buffer. Slots are released as soon as they are copied. Once the ring is
+   *  empty, spilled events are read back from disk. Events that were added
+   *  to the ring after the spill started are never older than the spilled
+   *  ones since producers don't use the ring while there is a spill file.
+   *  @return Number of events copied into the batch
+   */
+    public int drain(Event[] batch){
+        int n = 0;
+        long pos = head;
+        while (n<batch.length){
+            int idx = (int) (pos & mask);
+            if (sequences.get(idx)!=pos+1) break;
+
+            Event slot = slots[idx];
+            batch[n++].copy(slot);
+            slot.clear();
+            pos++;
+            sequences.lazySet(idx, pos+mask);
+        }
+        head = pos;
+
+        if (n==0 && spilling){
+            n = readSpill(batch);
+        }
+        return n;
+    }
+
+
+  //**************************************************************************
+  //** await
+  //**************************************************************************
+  /** Parks the consumer thread until a producer publishes an event or the
+   *  timeout expires.
+   */
+    public void await(long timeout, TimeUnit unit){
+        waiting = true;
+        try{
+            if (sequences.get((int) (head & mask))!=head+1 && !spilling){
+                LockSupport.parkNanos(this, unit.toNanos(timeout));
+            }
+        }
+        finally{
+            waiting = false;
+        }
+    }
+
+
+  //**************************************************************************
+  //** wake
+  //**************************************************************************
+  /** Unparks the consumer thread
+   */
+    public void wake(){
+        Thread t = consumer;
+        if (t!=null) LockSupport.unpark(t);
+    }
+
+
+  //**************************************************************************
+  //** spill
+  //**************************************************************************
+  /** Appends an event to the spill file. This is the overflow path so it's
+   *  ok to synchronize here. Transaction snapshots are converted into JSON
+   *  before they are written to disk, one line per chunk. If the consumer
+   *  has read back all the spilled events in the meantime, the event is
+   *  added to the ring instead, if there is room.
+   */
+    private boolean spill(Event event){
+        if (spillDir==null) return false;
+
+        Event copy = new Event();
+        copy.copy(event);
+        ChangeSet changes = copy.changes;
+        copy.changes = null;
+        JsonWriter changeWriter = new JsonWriter();
+        JsonWriter json = new JsonWriter();
+
+        synchronized (spillLock){
+            if (!spilling && offer(event)) return true;
+            try{
+                if (spillWriter==null){
+                    spillFile = new File(spillDir, System.currentTimeMillis() + ".spill");
+                    spillWriter = new BufferedOutputStream(new FileOutputStream(spillFile, true));
+                }
+
+                if (changes==null){
+                    writeSpill(copy, json);
+                }
+                else{
+                    ChangeSet.Chunks chunks = changes.encode(tokens, changeWriter);
+                    for (int chunk=1; chunks.hasNext(); chunk++){
+                        copy.data = chunks.next();
+                        copy.setChunk(chunk, chunks.size());
+                        writeSpill(copy, json);
+                    }
+                }
+                spillWriter.flush();
+                spilling = true;
+            }
+            catch(Exception e){
+                e.printStackTrace();
+                return false;
+            }
+        }
+        if (waiting) wake();
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** writeSpill
+  //**************************************************************************
+  /** Writes a line to the spill file. Caller must hold the spill lock.
+   */
+    private void writeSpill(Event event, JsonWriter json) throws IOException {
+        json.reset();
+        event.write(json);
+        spillWriter.write(json.getBuffer(), 0, json.size());
+        spillWriter.write('\n');
+        spilled.incrementAndGet();
+    }
+
+
+  //**************************************************************************
+  //** readSpill
+  //**************************************************************************
+  /** Reads spilled events back into the batch. The active spill file is
+   *  handed over to the consumer and producers start a new one as needed.
+   *  Producers go back to the ring once every spill file has been read.
+   */
+    private int readSpill(Event[] batch){
+        int n = 0;
+        try{
+            while (n<batch.length){
+                if (spillReader==null){
+                    synchronized (spillLock){
+                        if (spillWriter==null){
+                            spilling = false;
+                            break;
+                        }
+                        spillWriter.close();
+                        spillWriter = null;
+                        spillReaderFile = spillFile;
+                        spillFile = null;
+                    }
+                    spillReader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(spillReaderFile), StandardCharsets.UTF_8));
+                }
+
+                String line = spillReader.readLine();
+                if (line==null){
+                    spillReader.close();
+                    spillReader = null;
+                    spillReaderFile.delete();
+                    spillReaderFile = null;
+                    continue;
+                }
+                if (line.isEmpty()) continue;
+                spilled.decrementAndGet();
+                try{
+                    batch[n].parse(line);
+                    n++;
+                }
+                catch(Exception e){
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+        catch(Exception e){
+            e.printStackTrace();
+        }
+        return n;
+    }
+}
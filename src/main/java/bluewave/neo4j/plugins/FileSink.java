@@ -0,0 +1,569 @@
+package bluewave.neo4j.plugins;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import javaxt.json.JSONObject;
+
+
+//******************************************************************************
+//**  FileSink Class
+//******************************************************************************
+/**
+ *   Used to write events to a log file. A new file is created for each day
+ *   (e.g. 20261018.log). When a file reaches the max file size, the sink
+ *   rolls over to a numbered segment (e.g. 20261018.0001.log). Files are
+ *   written as text by default. Binary segments (see BinaryLogWriter) use
+ *   a ".bin" extension instead.
+ *   <p/>
+ *   Events are encoded into a reusable direct buffer which is written to
+ *   disk in large chunks. The day boundary and file size are tracked in
+ *   memory so there are no date formatting or file system calls per event.
+ *
+ ******************************************************************************/
+
+public class FileSink implements Sink {
+
+    public enum Format {
+        TEXT, BINARY
+    }
+
+    public enum Fsync {
+        NONE,     //leave it to the OS
+        INTERVAL, //every fsyncInterval ms
+        BATCH     //every flush
+    }
+
+    private File logDir;
+    private FileChannel outChannel;
+    private FileOutputStream outputFile;
+    private ZoneId zone = ZoneId.systemDefault();
+    private int date = -1;
+    private long nextDay;
+    private int segment;
+    private long size;
+    private Long maxFileSize;
+    private Format format = Format.TEXT;
+    private BinaryLogWriter binaryWriter;
+    private int blockSize = 64*1024;
+
+    private Fsync fsync = Fsync.NONE;
+    private long fsyncInterval = 1000; //ms
+    private long lastSync;
+    private boolean unsynced;
+
+    private ByteBuffer buffer;
+    private int bufferSize = 256*1024;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(java.nio.charset.CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(java.nio.charset.CodingErrorAction.REPLACE);
+    private final byte[] digits = new byte[20];
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public FileSink(File logDir) {
+        this.logDir = logDir;
+    }
+
+
+  //**************************************************************************
+  //** setConfig
+  //**************************************************************************
+  /** Used to set file options from the "logger" section of the config file:
+   *  "maxFileSize" (bytes), "bufferSize" (bytes), "format" ("text" or
+   *  "binary"), "fsync" ("none", "interval" or "batch") and "fsyncInterval"
+   *  (milliseconds).
+   */
+    public void setConfig(JSONObject config){
+        if (config==null) return;
+
+        Long maxFileSize = config.get("maxFileSize").toLong();
+        if (maxFileSize!=null) setMaxFileSize(maxFileSize);
+
+        Integer bufferSize = config.get("bufferSize").toInteger();
+        if (bufferSize!=null && bufferSize>=1024) this.bufferSize = bufferSize;
+
+        String format = config.get("format").toString();
+        if (format!=null) this.format = Format.valueOf(format.toUpperCase());
+
+        String fsync = config.get("fsync").toString();
+        if (fsync!=null) this.fsync = Fsync.valueOf(fsync.toUpperCase());
+
+        Long fsyncInterval = config.get("fsyncInterval").toLong();
+        if (fsyncInterval!=null && fsyncInterval>=0) this.fsyncInterval = fsyncInterval;
+    }
+
+
+  //**************************************************************************
+  //** isDurable
+  //**************************************************************************
+    public boolean isDurable(){
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** setMaxFileSize
+  //**************************************************************************
+    public void setMaxFileSize(Long maxFileSize){
+        this.maxFileSize = (maxFileSize==null || maxFileSize<=0) ? null : maxFileSize;
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Encodes events into the buffer. The buffer is written to disk whenever
+   *  it fills up.
+   */
+    public void write(Event[] batch, int length) throws Exception {
+        if (format==Format.BINARY){
+            writeBinary(batch, length);
+            return;
+        }
+
+        if (buffer==null) buffer = ByteBuffer.allocateDirect(bufferSize);
+
+        try{
+            for (int i=0; i<length; i++){
+                Event event = batch[i];
+                checkSegment();
+                putLong(event.timestamp);
+                putByte(',');
+                putLong(event.sequence);
+                putByte(',');
+                putLong(event.chunk);
+                putByte('/');
+                putLong(event.chunks);
+                putByte(',');
+                putLong(event.transactionId);
+                putByte(',');
+                putString(event.database);
+                putByte(',');
+                putString(event.user);
+                putByte(',');
+                if (event.data==null) putString(null);
+                else putBytes(event.data.getBytes());
+                putByte('\r');
+                putByte('\n');
+            }
+        }
+        catch(Exception e){
+            discard();
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** writeBinary
+  //**************************************************************************
+  /** Encodes events using the BinaryLogWriter. Blocks are written to disk
+   *  when they reach the block size.
+   */
+    private void writeBinary(Event[] batch, int length) throws Exception {
+        if (binaryWriter==null) binaryWriter = new BinaryLogWriter();
+
+        try{
+            for (int i=0; i<length; i++){
+                checkSegment();
+                binaryWriter.add(batch[i]);
+                if (binaryWriter.size()>=blockSize) writeBuffer();
+            }
+        }
+        catch(Exception e){
+            discard();
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** flush
+  //**************************************************************************
+  /** Writes the buffer to disk and syncs the file according to the fsync
+   *  policy
+   */
+    public void flush() throws Exception {
+        try{
+            writeBuffer();
+        }
+        catch(Exception e){
+            discard();
+            throw e;
+        }
+        if (!unsynced || outChannel==null) return;
+
+        switch (fsync){
+            case BATCH:
+                force();
+                break;
+            case INTERVAL:
+                if (System.currentTimeMillis()-lastSync>=fsyncInterval) force();
+                break;
+            default:
+                break;
+        }
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+    public void close(){
+        try{
+            writeBuffer();
+            if (unsynced && fsync!=Fsync.NONE) force();
+        }
+        catch(Exception e){
+            e.printStackTrace();
+        }
+        closeFile();
+        date = -1;
+    }
+
+
+  //**************************************************************************
+  //** checkSegment
+  //**************************************************************************
+  /** Opens a new file at the start of each day and when the current file
+   *  exceeds the max file size
+   */
+    private void checkSegment() throws Exception {
+        long now = System.currentTimeMillis();
+        if (now>=nextDay || outChannel==null){
+            writeBuffer();
+            openDay(now);
+        }
+        else if (maxFileSize!=null){
+            if (size+getPending()>=maxFileSize){
+                writeBuffer();
+                if (size>=maxFileSize){
+                    segment++;
+                    openSegment();
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** openDay
+  //**************************************************************************
+  /** Finds the last segment for the current day and opens it. This is the
+   *  only time the log directory is scanned.
+   */
+    private void openDay(long now) throws Exception {
+        LocalDate today = java.time.Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        date = today.getYear()*10000 + today.getMonthValue()*100 + today.getDayOfMonth();
+        nextDay = today.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+
+        segment = 0;
+        String prefix = date + ".";
+        String ext = getExtension();
+        File[] files = logDir.listFiles();
+        if (files!=null){
+            for (File file : files){
+                String name = file.getName();
+                if (!name.startsWith(prefix) || !name.endsWith(ext)) continue;
+                if (name.length()<=prefix.length()+ext.length()) continue;
+                String str = name.substring(prefix.length(), name.length()-ext.length());
+                try{
+                    segment = Math.max(segment, Integer.parseInt(str));
+                }
+                catch(NumberFormatException e){}
+            }
+        }
+
+        openSegment();
+        if (maxFileSize!=null && size>=maxFileSize){
+            segment++;
+            openSegment();
+        }
+    }
+
+
+  //**************************************************************************
+  //** openSegment
+  //**************************************************************************
+    private void openSegment() throws Exception {
+        closeFile();
+        File file = new File(logDir, getFileName(date, segment, getExtension()));
+        outputFile = new FileOutputStream(file, true);
+        outChannel = outputFile.getChannel();
+        size = outChannel.size();
+
+        if (format==Format.BINARY && size==0){
+            ByteBuffer header = BinaryLogWriter.getHeader();
+            while (header.hasRemaining()) size += outChannel.write(header);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getFileName
+  //**************************************************************************
+  /** Returns the file name for a given date and segment number (e.g.
+   *  20261018.log, 20261018.0001.log, etc)
+   *  @param ext File extension, including the leading dot (e.g. ".log")
+   */
+    public static String getFileName(int date, int segment, String ext){
+        if (segment==0) return date + ext;
+        return date + "." + String.format("%04d", segment) + ext;
+    }
+
+
+  //**************************************************************************
+  //** getExtension
+  //**************************************************************************
+    private String getExtension(){
+        return format==Format.BINARY ? ".bin" : ".log";
+    }
+
+
+  //**************************************************************************
+  //** closeFile
+  //**************************************************************************
+    private void closeFile(){
+        try{
+            if (outChannel!=null) outChannel.close();
+            if (outputFile!=null) outputFile.close();
+        }
+        catch(Exception e){
+        }
+        outChannel = null;
+        outputFile = null;
+        unsynced = false;
+    }
+
+
+  //**************************************************************************
+  //** writeBuffer
+  //**************************************************************************
+  /** Writes the buffer to the file. If the write fails, the file is
+   *  truncated to remove any partial record and closed. The file is
+   *  reopened on the next write.
+   */
+    private void writeBuffer() throws Exception {
+        boolean binary = binaryWriter!=null && binaryWriter.size()>0;
+        if (!binary && (buffer==null || buffer.position()==0)) return;
+        if (outChannel==null){
+            discard();
+            throw new java.io.IOException("Log file is not open");
+        }
+
+        long start = size;
+        try{
+            if (binary){
+                size += binaryWriter.writeTo(outChannel);
+            }
+            else{
+                buffer.flip();
+                while (buffer.hasRemaining()){
+                    size += outChannel.write(buffer);
+                }
+            }
+            unsynced = true;
+        }
+        catch(Exception e){
+            try{
+                outChannel.truncate(start);
+            }
+            catch(Exception ex){
+            }
+            closeFile();
+            throw e;
+        }
+        finally{
+            if (buffer!=null) buffer.clear();
+        }
+    }
+
+
+  //**************************************************************************
+  //** discard
+  //**************************************************************************
+  /** Discards events that haven't been written to the file. Called when the
+   *  sink fails since the stage sends the events again.
+   */
+    private void discard(){
+        if (buffer!=null) buffer.clear();
+        if (binaryWriter!=null) binaryWriter.reset();
+    }
+
+
+  //**************************************************************************
+  //** getPending
+  //**************************************************************************
+  /** Returns the number of bytes that haven't been written to disk yet
+   */
+    private int getPending(){
+        if (format==Format.BINARY) return binaryWriter.size();
+        return buffer.position();
+    }
+
+
+  //**************************************************************************
+  //** sync
+  //**************************************************************************
+  /** Forces written data to disk unless the fsync policy is "none". Called
+   *  before the read position in a spool is saved so the position never
+   *  gets ahead of the data on disk.
+   */
+    public void sync() throws Exception {
+        if (unsynced && outChannel!=null && fsync!=Fsync.NONE) force();
+    }
+
+
+  //**************************************************************************
+  //** force
+  //**************************************************************************
+    private void force() throws Exception {
+        try{
+            outChannel.force(false);
+        }
+        catch(Exception e){
+            closeFile();
+            throw e;
+        }
+        lastSync = System.currentTimeMillis();
+        unsynced = false;
+    }
+
+
+  //**************************************************************************
+  //** ensureCapacity
+  //**************************************************************************
+    private void ensureCapacity(int n) throws Exception {
+        if (buffer.remaining()<n) writeBuffer();
+    }
+
+
+  //**************************************************************************
+  //** putByte
+  //**************************************************************************
+    private void putByte(char c) throws Exception {
+        if (!buffer.hasRemaining()) writeBuffer();
+        buffer.put((byte) c);
+    }
+
+
+  //**************************************************************************
+  //** putLong
+  //**************************************************************************
+  /** Writes the decimal representation of a number without creating a string
+   */
+    private void putLong(long l) throws Exception {
+        ensureCapacity(20);
+        if (l==Long.MIN_VALUE){
+            putString(Long.toString(l));
+            return;
+        }
+        if (l<0){
+            buffer.put((byte) '-');
+            l = -l;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + (l % 10));
+            l /= 10;
+        } while (l>0);
+        buffer.put(digits, i, digits.length-i);
+    }
+
+
+  //**************************************************************************
+  //** putString
+  //**************************************************************************
+  /** Writes a string to the buffer as UTF-8. ASCII characters are copied
+   *  directly. Other characters go through the encoder.
+   */
+    private void putString(String str) throws Exception {
+        if (str==null) str = "null";
+        int len = str.length();
+        for (int i=0; i<len; i++){
+            char c = str.charAt(i);
+            if (c<0x80){
+                if (!buffer.hasRemaining()) writeBuffer();
+                buffer.put((byte) c);
+            }
+            else{
+                encode(CharBuffer.wrap(str, i, len));
+                return;
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** putBytes
+  //**************************************************************************
+  /** Copies bytes that have already been encoded (e.g. changes) to the
+   *  buffer
+   */
+    private void putBytes(byte[] b) throws Exception {
+        int offset = 0;
+        while (offset<b.length){
+            if (!buffer.hasRemaining()) writeBuffer();
+            int n = Math.min(buffer.remaining(), b.length-offset);
+            buffer.put(b, offset, n);
+            offset += n;
+        }
+    }
+
+
+  //**************************************************************************
+  //** encode
+  //**************************************************************************
+    private void encode(CharBuffer chars) throws Exception {
+        encoder.reset();
+        while (true){
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()){
+                writeBuffer();
+            }
+            else{
+                if (result.isError()) result.throwException();
+                break;
+            }
+        }
+        while (encoder.flush(buffer).isOverflow()) writeBuffer();
+    }
+
+
+  //**************************************************************************
+  //** Provider Class
+  //**************************************************************************
+  /** Creates a FileSink from the "logger" section of the config file
+   */
+    public static class Provider implements SinkProvider {
+
+        public String getName(){
+            return "file";
+        }
+
+        public String getSection(){
+            return "logger";
+        }
+
+        public Sink create(JSONObject config, Context context) throws Exception {
+            String path = config.get("path").toString();
+            if (path==null) throw new IllegalArgumentException("Missing log path");
+            javaxt.io.Directory dir = new javaxt.io.Directory(path);
+            dir.create();
+            if (!dir.exists()) throw new java.io.IOException("Invalid log directory: " + path);
+
+            FileSink sink = new FileSink(dir.toFile());
+            sink.setConfig(config);
+            return sink;
+        }
+    }
+}
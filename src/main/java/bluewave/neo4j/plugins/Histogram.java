@@ -0,0 +1,102 @@
+package bluewave.neo4j.plugins;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+//******************************************************************************
+//**  Histogram Class
+//******************************************************************************
+/**
+ *   Lock-free latency histogram with power of 2 buckets. Each bucket is a
+ *   LongAdder so many threads can record values without contending on the
+ *   same counter. Percentiles are approximate (within a factor of 2) which
+ *   is plenty to tell a 5 microsecond enqueue from a 5 millisecond one.
+ *
+ ******************************************************************************/
+
+public class Histogram {
+
+    private final LongAdder[] buckets = new LongAdder[64];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public Histogram(){
+        for (int i=0; i<buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+
+  //**************************************************************************
+  //** record
+  //**************************************************************************
+  /** Adds a value (e.g. a latency in nanoseconds) to the histogram. Bucket
+   *  0 is for zero, bucket n is for values from 2^(n-1) to 2^n-1.
+   */
+    public void record(long value){
+        if (value<0) value = 0;
+        buckets[64-Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        sum.add(value);
+
+        long m = max.get();
+        while (value>m && !max.compareAndSet(m, value)) m = max.get();
+    }
+
+
+  //**************************************************************************
+  //** getCount
+  //**************************************************************************
+    public long getCount(){
+        return count.sum();
+    }
+
+
+  //**************************************************************************
+  //** getMean
+  //**************************************************************************
+    public long getMean(){
+        long n = count.sum();
+        return n==0 ? 0 : sum.sum()/n;
+    }
+
+
+  //**************************************************************************
+  //** getMax
+  //**************************************************************************
+    public long getMax(){
+        return max.get();
+    }
+
+
+  //**************************************************************************
+  //** getPercentile
+  //**************************************************************************
+  /** Returns the upper bound of the bucket that contains the given
+   *  percentile, capped at the max value
+   *  @param p Percentile from 0 to 100
+   */
+    public long getPercentile(double p){
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i=0; i<counts.length; i++){
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total==0) return 0;
+
+        long target = (long) Math.ceil(total*Math.min(Math.max(p, 0), 100)/100.0);
+        long n = 0;
+        for (int i=0; i<counts.length; i++){
+            n += counts[i];
+            if (n>=target && n>0){
+                long upper = i==0 ? 0 : (i==63 ? Long.MAX_VALUE : (1L << i)-1);
+                return Math.min(upper, getMax());
+            }
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,263 @@
+package bluewave.neo4j.plugins;
+import java.nio.charset.StandardCharsets;
+
+
+//******************************************************************************
+//**  JsonReader Class
+//******************************************************************************
+/**
+ *   Pull parser used to read JSON created by the JsonWriter (e.g. changes)
+ *   directly from a byte array. Values are read one at a time so there's no
+ *   need to build a tree of JSONArrays. Only numbers and strings that are
+ *   requested are converted into Java objects. Instances are not thread safe
+ *   and can be reused via reset().
+ *
+ ******************************************************************************/
+
+public class JsonReader {
+
+    public enum Token {
+        ARRAY, OBJECT, STRING, NUMBER, BOOLEAN, NULL, END
+    }
+
+    private byte[] json;
+    private int pos;
+    private int end;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public JsonReader(byte[] json){
+        reset(json, 0, json.length);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public JsonReader(){
+    }
+
+
+  //**************************************************************************
+  //** reset
+  //**************************************************************************
+  /** Used to read a range of bytes
+   */
+    public void reset(byte[] json, int offset, int length){
+        this.json = json;
+        this.pos = offset;
+        this.end = offset+length;
+    }
+
+
+  //**************************************************************************
+  //** getPosition
+  //**************************************************************************
+  /** Returns the current offset in the byte array. Call peek() first to get
+   *  the offset of the next value (i.e. after any whitespace and commas).
+   */
+    public int getPosition(){
+        return pos;
+    }
+
+
+  //**************************************************************************
+  //** peek
+  //**************************************************************************
+  /** Returns the type of the next value. Returns END at the end of an array
+   *  or object, or at the end of the input.
+   */
+    public Token peek(){
+        skipSeparators();
+        if (pos>=end) return Token.END;
+        switch (json[pos]){
+            case '[': return Token.ARRAY;
+            case '{': return Token.OBJECT;
+            case '"': return Token.STRING;
+            case 't': case 'f': return Token.BOOLEAN;
+            case 'n': return Token.NULL;
+            case ']': case '}': return Token.END;
+            default: return Token.NUMBER;
+        }
+    }
+
+
+  //**************************************************************************
+  //** hasNext
+  //**************************************************************************
+  /** Returns true if there's another value in the current array or object
+   */
+    public boolean hasNext(){
+        return peek()!=Token.END;
+    }
+
+
+  //**************************************************************************
+  //** beginArray
+  //**************************************************************************
+    public void beginArray(){
+        expect('[');
+    }
+
+
+  //**************************************************************************
+  //** endArray
+  //**************************************************************************
+  /** Skips any values left in the current array and moves past the closing
+   *  bracket
+   */
+    public void endArray(){
+        while (hasNext()) skipValue();
+        expect(']');
+    }
+
+
+  //**************************************************************************
+  //** nextLong
+  //**************************************************************************
+    public long nextLong(){
+        skipSeparators();
+        boolean negative = false;
+        if (pos<end && json[pos]=='-'){
+            negative = true;
+            pos++;
+        }
+        long v = 0;
+        int start = pos;
+        while (pos<end && json[pos]>='0' && json[pos]<='9'){
+            v = v*10 + (json[pos++]-'0');
+        }
+        if (pos==start) throw new IllegalStateException("Expected number at " + pos);
+
+      //Skip fractions and exponents
+        while (pos<end){
+            byte b = json[pos];
+            if (b=='.' || b=='e' || b=='E' || b=='+' || b=='-' || (b>='0' && b<='9')) pos++;
+            else break;
+        }
+        return negative ? -v : v;
+    }
+
+
+  //**************************************************************************
+  //** nextString
+  //**************************************************************************
+  /** Returns the next string, or null if the next value is null
+   */
+    public String nextString(){
+        skipSeparators();
+        if (pos<end && json[pos]=='n'){
+            pos += 4;
+            return null;
+        }
+        expect('"');
+        int start = pos;
+        boolean escaped = false;
+        while (json[pos]!='"'){
+            if (json[pos]=='\\'){
+                escaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        int stop = pos++;
+        String str = new String(json, start, stop-start, StandardCharsets.UTF_8);
+        return escaped ? unescape(str) : str;
+    }
+
+
+  //**************************************************************************
+  //** skipValue
+  //**************************************************************************
+    public void skipValue(){
+        switch (peek()){
+            case ARRAY:
+            case OBJECT:
+                int depth = 0;
+                while (pos<end){
+                    byte b = json[pos++];
+                    if (b=='"'){
+                        while (json[pos]!='"'){
+                            if (json[pos]=='\\') pos++;
+                            pos++;
+                        }
+                        pos++;
+                    }
+                    else if (b=='[' || b=='{') depth++;
+                    else if (b==']' || b=='}'){
+                        if (--depth==0) return;
+                    }
+                }
+                break;
+            case STRING:
+                nextString();
+                break;
+            case NUMBER:
+                nextLong();
+                break;
+            case BOOLEAN:
+                pos += json[pos]=='t' ? 4 : 5;
+                break;
+            case NULL:
+                pos += 4;
+                break;
+            default:
+                break;
+        }
+    }
+
+
+  //**************************************************************************
+  //** skipSeparators
+  //**************************************************************************
+    private void skipSeparators(){
+        while (pos<end){
+            byte b = json[pos];
+            if (b==',' || b==':' || b==' ' || b=='\n' || b=='\r' || b=='\t') pos++;
+            else break;
+        }
+    }
+
+
+  //**************************************************************************
+  //** expect
+  //**************************************************************************
+    private void expect(char c){
+        skipSeparators();
+        if (pos>=end || json[pos]!=c){
+            throw new IllegalStateException("Expected " + c + " at " + pos);
+        }
+        pos++;
+    }
+
+
+  //**************************************************************************
+  //** unescape
+  //**************************************************************************
+    private static String unescape(String str){
+        StringBuilder out = new StringBuilder(str.length());
+        for (int i=0; i<str.length(); i++){
+            char c = str.charAt(i);
+            if (c!='\\' || i+1==str.length()){
+                out.append(c);
+                continue;
+            }
+            c = str.charAt(++i);
+            switch (c){
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'u':
+                    out.append((char) Integer.parseInt(str.substring(i+1, i+5), 16));
+                    i += 4;
+                    break;
+                default: out.append(c); break;
+            }
+        }
+        return out.toString();
+    }
+}
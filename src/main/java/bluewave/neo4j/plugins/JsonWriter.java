@@ -0,0 +1,352 @@
+package bluewave.neo4j.plugins;
+import java.util.Arrays;
+
+
+//******************************************************************************
+//**  JsonWriter Class
+//******************************************************************************
+/**
+ *   Streaming JSON encoder used to write UTF-8 directly into a reusable byte
+ *   array. Numbers and strings are encoded in place so no intermediate
+ *   objects (boxed numbers, nested JSONArrays, Strings) are created. Commas
+ *   are inserted automatically between values. Instances are not thread
+ *   safe and are meant to be reused by a single thread via reset().
+ *
+ ******************************************************************************/
+
+public class JsonWriter {
+
+    private byte[] buf;
+    private int size;
+    private boolean first = true;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] DECIMAL = ".0".getBytes();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public JsonWriter(){
+        this(1024);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public JsonWriter(int size){
+        buf = new byte[Math.max(size, 16)];
+    }
+
+
+  //**************************************************************************
+  //** reset
+  //**************************************************************************
+  /** Clears the writer so it can be reused. The internal buffer is kept.
+   */
+    public void reset(){
+        size = 0;
+        first = true;
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+    public int size(){
+        return size;
+    }
+
+
+  //**************************************************************************
+  //** getBuffer
+  //**************************************************************************
+  /** Returns the internal buffer. Only the first size() bytes are valid.
+   */
+    public byte[] getBuffer(){
+        return buf;
+    }
+
+
+  //**************************************************************************
+  //** toByteArray
+  //**************************************************************************
+  /** Returns a copy of the encoded bytes
+   */
+    public byte[] toByteArray(){
+        return Arrays.copyOf(buf, size);
+    }
+
+
+  //**************************************************************************
+  //** beginArray
+  //**************************************************************************
+    public JsonWriter beginArray(){
+        separator();
+        put('[');
+        first = true;
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** endArray
+  //**************************************************************************
+    public JsonWriter endArray(){
+        put(']');
+        first = false;
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** beginObject
+  //**************************************************************************
+    public JsonWriter beginObject(){
+        separator();
+        put('{');
+        first = true;
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** endObject
+  //**************************************************************************
+    public JsonWriter endObject(){
+        put('}');
+        first = false;
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** key
+  //**************************************************************************
+  /** Writes a key in an object. The next value is written without a comma.
+   */
+    public JsonWriter key(String key){
+        value(key);
+        put(':');
+        first = true;
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** value
+  //**************************************************************************
+    public JsonWriter value(long v){
+        separator();
+        putLong(v);
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** value
+  //**************************************************************************
+  /** Writes a floating point number. Whole numbers are written without
+   *  creating a String. NaN and infinity are written as null.
+   */
+    public JsonWriter value(double v){
+        if (Double.isNaN(v) || Double.isInfinite(v)){
+            return value((Object) null);
+        }
+        separator();
+        if (v==(long) v && Math.abs(v)<1e15){
+            putLong((long) v);
+            put(DECIMAL, 0, DECIMAL.length);
+        }
+        else{
+            String str = Double.toString(v);
+            ensureCapacity(str.length());
+            for (int i=0; i<str.length(); i++) buf[size++] = (byte) str.charAt(i);
+        }
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** value
+  //**************************************************************************
+    public JsonWriter value(boolean v){
+        separator();
+        byte[] b = v ? TRUE : FALSE;
+        put(b, 0, b.length);
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** value
+  //**************************************************************************
+    public JsonWriter value(String str){
+        separator();
+        if (str==null){
+            put(NULL, 0, NULL.length);
+            return this;
+        }
+
+        ensureCapacity(str.length()+2);
+        buf[size++] = '"';
+        for (int i=0; i<str.length(); i++){
+            char c = str.charAt(i);
+            if (c<0x80){
+                if (c=='"' || c=='\\'){
+                    ensureCapacity(2);
+                    buf[size++] = '\\';
+                    buf[size++] = (byte) c;
+                }
+                else if (c<0x20){
+                    ensureCapacity(6);
+                    buf[size++] = '\\';
+                    buf[size++] = 'u';
+                    buf[size++] = '0';
+                    buf[size++] = '0';
+                    buf[size++] = HEX[c >> 4];
+                    buf[size++] = HEX[c & 0xF];
+                }
+                else{
+                    ensureCapacity(1);
+                    buf[size++] = (byte) c;
+                }
+            }
+            else if (c<0x800){
+                ensureCapacity(2);
+                buf[size++] = (byte) (0xC0 | (c >> 6));
+                buf[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i+1<str.length() &&
+                     Character.isLowSurrogate(str.charAt(i+1))){
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                ensureCapacity(4);
+                buf[size++] = (byte) (0xF0 | (cp >> 18));
+                buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[size++] = (byte) (0x80 | (cp & 0x3F));
+            }
+            else if (Character.isSurrogate(c)){ //unpaired surrogate
+                ensureCapacity(1);
+                buf[size++] = '?';
+            }
+            else{
+                ensureCapacity(3);
+                buf[size++] = (byte) (0xE0 | (c >> 12));
+                buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        ensureCapacity(1);
+        buf[size++] = '"';
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** value
+  //**************************************************************************
+  /** Writes a boolean, number, string, or null
+   */
+    public JsonWriter value(Object obj){
+        if (obj==null){
+            separator();
+            put(NULL, 0, NULL.length);
+        }
+        else if (obj instanceof Long || obj instanceof Integer ||
+                 obj instanceof Short || obj instanceof Byte){
+            value(((Number) obj).longValue());
+        }
+        else if (obj instanceof Number){
+            value(((Number) obj).doubleValue());
+        }
+        else if (obj instanceof Boolean){
+            value(((Boolean) obj).booleanValue());
+        }
+        else{
+            value(obj.toString());
+        }
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** raw
+  //**************************************************************************
+  /** Writes a value that has already been encoded as JSON
+   */
+    public JsonWriter raw(byte[] b, int offset, int length){
+        separator();
+        put(b, offset, length);
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** separator
+  //**************************************************************************
+    private void separator(){
+        if (first) first = false;
+        else put(',');
+    }
+
+
+  //**************************************************************************
+  //** putLong
+  //**************************************************************************
+  /** Writes the decimal digits of a number without creating a String
+   */
+    private void putLong(long v){
+        if (v==Long.MIN_VALUE){
+            put(MIN_LONG, 0, MIN_LONG.length);
+            return;
+        }
+        ensureCapacity(20);
+        if (v<0){
+            buf[size++] = '-';
+            v = -v;
+        }
+        int start = size;
+        do {
+            buf[size++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        while (v>0);
+
+        for (int i=start, j=size-1; i<j; i++, j--){
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+    private void put(char c){
+        ensureCapacity(1);
+        buf[size++] = (byte) c;
+    }
+
+    private void put(byte[] b, int offset, int length){
+        ensureCapacity(length);
+        System.arraycopy(b, offset, buf, size, length);
+        size += length;
+    }
+
+
+  //**************************************************************************
+  //** ensureCapacity
+  //**************************************************************************
+    private void ensureCapacity(int n){
+        if (size+n>buf.length){
+            buf = Arrays.copyOf(buf, Math.max(buf.length*2, size+n));
+        }
+    }
+}
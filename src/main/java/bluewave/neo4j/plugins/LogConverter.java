@@ -0,0 +1,83 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+
+//******************************************************************************
+//**  LogConverter Class
+//******************************************************************************
+/**
+ *   Command line utility used to convert binary log segments back into the
+ *   text format (timestamp,sequence,chunk,transaction,database,user,
+ *   changes).
+ *   Example:
+ <pre>
+    java -cp bluewave_tx-1.0.0.jar bluewave.neo4j.plugins.LogConverter 20261018.bin 20261018.log
+ </pre>
+ *   If no output file is specified, records are written to standard out.
+ *
+ ******************************************************************************/
+
+public class LogConverter {
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] args) throws Exception {
+        if (args.length<1){
+            System.err.println("Usage: LogConverter <input> [output]");
+            System.exit(1);
+        }
+
+        File input = new File(args[0]);
+        OutputStream out = args.length>1 ?
+            new FileOutputStream(new File(args[1])) : System.out;
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64*1024);
+        try{
+            long n = convert(input, writer);
+            writer.flush();
+            if (args.length>1) System.err.println("Converted " + n + " records");
+        }
+        finally{
+            if (args.length>1) writer.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** convert
+  //**************************************************************************
+  /** Writes all the records in a binary log segment to the given writer
+   *  using the text log format.
+   *  @return Number of records converted
+   */
+    public static long convert(File input, Writer writer) throws IOException {
+        long n = 0;
+        try (BinaryLogReader reader = new BinaryLogReader(input)){
+            reader.setSkipCorruptBlocks(true);
+            Event event = new Event();
+            while (reader.next(event)){
+                writer.write(toString(event));
+                n++;
+            }
+            if (reader.getCorruptBlocks()>0){
+                System.err.println("Skipped " + reader.getCorruptBlocks() + " corrupt block(s)");
+            }
+        }
+        return n;
+    }
+
+
+  //**************************************************************************
+  //** toString
+  //**************************************************************************
+  /** Returns an event as a line in the text log format
+   */
+    public static String toString(Event event){
+        return event.timestamp + "," + event.sequence + "," + event.chunk + "/" + event.chunks + "," +
+        event.transactionId + "," +
+        event.database + "," + event.user + "," + event.data + "\r\n";
+    }
+}
@@ -0,0 +1,772 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.*;
+import javaxt.json.JSONObject;
+
+
+//******************************************************************************
+//**  LogScanner Class
+//******************************************************************************
+/**
+ *   Command line utility used to aggregate or replay log segments created by
+ *   the FileSink. Segments are memory-mapped and split on record boundaries
+ *   (lines in text logs, blocks in binary logs) so a single large segment
+ *   can be parsed by several threads. Splits are processed in a ForkJoinPool.
+ *   Examples:
+ <pre>
+    java -cp bluewave_tx-1.0.0.jar bluewave.neo4j.plugins.LogScanner count -by label,action,hour -from 2026-09-01 -to 2026-10-01 /bluewave/logs
+    java -cp bluewave_tx-1.0.0.jar bluewave.neo4j.plugins.LogScanner replay -database /bluewave/db /bluewave/logs
+    java -cp bluewave_tx-1.0.0.jar bluewave.neo4j.plugins.LogScanner replay -webserver http://localhost/graph/update 20261018.log
+ </pre>
+ *   The "count" command writes a CSV to standard out with the number of
+ *   changes for each combination of the "-by" dimensions. The "replay"
+ *   command writes records, in log order, to an H2 change store or a
+ *   webserver using the same sinks as the plugin.
+ *
+ ******************************************************************************/
+
+public class LogScanner {
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long splitSize = 32*1024*1024;
+    private long from = 0; //ms, inclusive
+    private long to = Long.MAX_VALUE; //ms, exclusive
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    private static final Pattern SEGMENT = Pattern.compile("(\\d{8})(\\.(\\d+))?\\.(log|bin)");
+
+
+  //**************************************************************************
+  //** Split Class
+  //**************************************************************************
+  /** A range of bytes in a segment that starts at a record boundary. Text
+   *  splits are adjusted to the next line when they are read.
+   */
+    private static class Split {
+        private final File file;
+        private final int version; //0 for text logs
+        private final long start;
+        private final long end;
+
+        private Split(File file, int version, long start, long end){
+            this.file = file;
+            this.version = version;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+    public static void main(String[] args) throws Exception {
+        if (args.length<2){
+            System.err.println(
+            "Usage: LogScanner count [-by action,type,label,key,user,database,minute,hour,day] [options] <files or directories>\r\n" +
+            "       LogScanner replay (-database <path> | -webserver <url> [-username <username> -password <password>]) [options] <files or directories>\r\n" +
+            "Options: -from <date>, -to <date>, -threads <n>, -splitSize <bytes>, -batchSize <n>");
+            System.exit(1);
+        }
+
+        String command = args[0];
+        LogScanner scanner = new LogScanner();
+        HashMap<String, String> options = new HashMap<>();
+        ArrayList<File> inputs = new ArrayList<>();
+        for (int i=1; i<args.length; i++){
+            if (args[i].startsWith("-") && i+1<args.length){
+                options.put(args[i].substring(1), args[++i]);
+            }
+            else{
+                inputs.add(new File(args[i]));
+            }
+        }
+
+        if (options.containsKey("threads")) scanner.setThreads(Integer.parseInt(options.get("threads")));
+        if (options.containsKey("splitSize")) scanner.setSplitSize(Long.parseLong(options.get("splitSize")));
+        if (options.containsKey("from")) scanner.from = parseDate(options.get("from"));
+        if (options.containsKey("to")) scanner.to = parseDate(options.get("to"));
+
+        List<File> files = getSegments(inputs);
+        if (files.isEmpty()){
+            System.err.println("No log segments found");
+            System.exit(1);
+        }
+
+        long t = System.currentTimeMillis();
+        if (command.equals("count")){
+            String by = options.get("by");
+            Aggregation aggregation = scanner.count(files, by==null ?
+                new String[]{"action", "type"} : by.split(","));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64*1024);
+            aggregation.write(writer);
+            writer.flush();
+        }
+        else if (command.equals("replay")){
+            Sink sink = createSink(options);
+            try{
+                scanner.replay(files, sink);
+            }
+            finally{
+                sink.close();
+            }
+        }
+        else{
+            System.err.println("Unknown command: " + command);
+            System.exit(1);
+        }
+
+        System.err.println("Scanned " + scanner.records.sum() + " records in " +
+        files.size() + " segment(s) in " + (System.currentTimeMillis()-t) + "ms");
+        if (scanner.skipped.sum()>0){
+            System.err.println("Skipped " + scanner.skipped.sum() + " corrupt record(s) or block(s)");
+        }
+    }
+
+
+  //**************************************************************************
+  //** setThreads
+  //**************************************************************************
+    public void setThreads(int threads){
+        this.threads = Math.max(1, threads);
+    }
+
+
+  //**************************************************************************
+  //** setSplitSize
+  //**************************************************************************
+  /** Target size of each split, in bytes (default 32MB)
+   */
+    public void setSplitSize(long splitSize){
+        this.splitSize = Math.max(4096, Math.min(splitSize, 1024*1024*1024));
+    }
+
+
+  //**************************************************************************
+  //** setTimeRange
+  //**************************************************************************
+  /** Used to limit the records to a time range
+   *  @param from Start time in milliseconds (inclusive)
+   *  @param to End time in milliseconds (exclusive)
+   */
+    public void setTimeRange(long from, long to){
+        this.from = from;
+        this.to = to;
+    }
+
+
+  //**************************************************************************
+  //** count
+  //**************************************************************************
+  /** Counts the changes in the given segments, grouped by the given
+   *  dimensions (action, type, label, key, user, database, minute, hour or
+   *  day). Nodes are counted once per label, like rows in the change store.
+   */
+    public Aggregation count(List<File> files, String[] dimensions) throws Exception {
+        List<Split> splits = getSplits(files);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try{
+            return pool.invoke(new CountTask(splits, 0, splits.size(), dimensions));
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+
+
+  //**************************************************************************
+  //** CountTask Class
+  //**************************************************************************
+  /** Aggregates a range of splits. Ranges are halved until there's a single
+   *  split per task and the results are merged on the way back up.
+   */
+    private class CountTask extends RecursiveTask<Aggregation> {
+        private static final long serialVersionUID = 1L;
+        private final List<Split> splits;
+        private final int lo;
+        private final int hi;
+        private final String[] dimensions;
+
+        private CountTask(List<Split> splits, int lo, int hi, String[] dimensions){
+            this.splits = splits;
+            this.lo = lo;
+            this.hi = hi;
+            this.dimensions = dimensions;
+        }
+
+        protected Aggregation compute(){
+            if (hi-lo<=1){
+                Aggregation aggregation = new Aggregation(dimensions);
+                if (hi>lo){
+                    try{
+                        read(splits.get(lo), aggregation, null);
+                    }
+                    catch(IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return aggregation;
+            }
+
+            int mid = (lo+hi)>>>1;
+            CountTask left = new CountTask(splits, lo, mid, dimensions);
+            left.fork();
+            Aggregation right = new CountTask(splits, mid, hi, dimensions).compute();
+            Aggregation aggregation = left.join();
+            aggregation.merge(right);
+            return aggregation;
+        }
+    }
+
+
+  //**************************************************************************
+  //** replay
+  //**************************************************************************
+  /** Writes all the records in the given segments to a sink. Splits are
+   *  parsed in parallel, a few at a time, while the calling thread writes the
+   *  parsed records in log order. Sinks that are thread safe are written to
+   *  directly by the workers instead, in no particular order.
+   */
+    public void replay(List<File> files, Sink sink) throws Exception {
+        List<Split> splits = getSplits(files);
+        int batchSize = sink.getBatchSize()>0 ? sink.getBatchSize() : 500;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try{
+            if (sink.isThreadSafe()){
+                ArrayList<ForkJoinTask<Object>> tasks = new ArrayList<>();
+                for (Split split : splits){
+                    tasks.add(pool.submit(() -> {
+                        ArrayList<Event> events = new ArrayList<>();
+                        read(split, null, events);
+                        write(events, sink, batchSize);
+                        return null;
+                    }));
+                }
+                for (ForkJoinTask<Object> task : tasks) task.get();
+            }
+            else{
+                ArrayDeque<ForkJoinTask<ArrayList<Event>>> pending = new ArrayDeque<>();
+                int next = 0;
+                while (next<splits.size() || !pending.isEmpty()){
+
+                  //Keep a couple of splits ahead of the writer
+                    while (next<splits.size() && pending.size()<threads+1){
+                        Split split = splits.get(next++);
+                        pending.add(pool.submit(() -> {
+                            ArrayList<Event> events = new ArrayList<>();
+                            read(split, null, events);
+                            return events;
+                        }));
+                    }
+
+                    write(pending.poll().get(), sink, batchSize);
+                }
+            }
+            sink.finish();
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Writes events to a sink in batches and flushes the sink
+   */
+    private static void write(List<Event> events, Sink sink, int batchSize) throws Exception {
+        Event[] batch = new Event[batchSize];
+        int n = 0;
+        for (Event event : events){
+            batch[n++] = event;
+            if (n==batch.length){
+                sink.write(batch, n);
+                n = 0;
+            }
+        }
+        if (n>0) sink.write(batch, n);
+        sink.flush();
+    }
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+  /** Reads all the records in a split that fall within the time range
+   *  @param aggregation If not null, changes are counted
+   *  @param events If not null, records are added to the list
+   */
+    private void read(Split split, Aggregation aggregation, List<Event> events) throws IOException {
+        try (FileChannel channel = FileChannel.open(split.file.toPath(), StandardOpenOption.READ)){
+            if (split.version==0) readText(split, channel, aggregation, events);
+            else readBinary(split, channel, aggregation, events);
+        }
+    }
+
+
+  //**************************************************************************
+  //** readText
+  //**************************************************************************
+  /** Reads records from a text log. The split owns every line that starts
+   *  before the end of the split, so the last line may run past the end.
+   */
+    private void readText(Split split, FileChannel channel, Aggregation aggregation, List<Event> events) throws IOException {
+        long size = channel.size();
+        long base = split.start>0 ? split.start-1 : 0;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+            base, Math.min(size-base, Integer.MAX_VALUE));
+
+
+      //Move to the start of the first line
+        int pos = 0;
+        if (split.start>0){
+            while (pos<buffer.limit() && buffer.get(pos)!='\n') pos++;
+            pos++;
+        }
+
+        int end = (int) Math.min(split.end-base, buffer.limit());
+        JsonReader reader = new JsonReader();
+        byte[] line = new byte[64*1024];
+        while (pos<end){
+
+          //Find the end of the line
+            int eol = pos;
+            while (eol<buffer.limit() && buffer.get(eol)!='\n') eol++;
+            int len = eol-pos;
+            if (len>0 && buffer.get(pos+len-1)=='\r') len--;
+            if (line.length<len) line = new byte[Math.max(len, line.length*2)];
+            buffer.position(pos);
+            buffer.get(line, 0, len);
+            pos = eol+1;
+            if (len==0) continue;
+
+
+          //Parse the fields before the changes:
+          //timestamp,sequence,chunk/chunks,transaction,database,user
+            try{
+                int[] idx = new int[1];
+                long timestamp = parseLong(line, idx, ',');
+                long sequence = parseLong(line, idx, ',');
+                int chunk = (int) parseLong(line, idx, '/');
+                int chunks = (int) parseLong(line, idx, ',');
+                long transactionId = parseLong(line, idx, ',');
+                String database = parseString(line, idx, len);
+                String user = parseString(line, idx, len);
+                int offset = idx[0];
+                if (offset>len) throw new IllegalStateException();
+
+                long ms = timestamp/1000000;
+                if (ms<from || ms>=to) continue;
+
+                boolean isNull = len-offset==4 && line[offset]=='n';
+                if (aggregation!=null && !isNull){
+                    aggregation.add(reader, line, offset, len-offset, ms, database, user);
+                }
+                if (events!=null){
+                    Event event = new Event();
+                    event.set(timestamp, sequence, transactionId, database, user,
+                    isNull ? null : new Changes(Arrays.copyOfRange(line, offset, len)), null);
+                    event.setChunk(chunk, chunks);
+                    events.add(event);
+                }
+                records.increment();
+            }
+            catch(Exception e){
+                skipped.increment();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** readBinary
+  //**************************************************************************
+  /** Reads the blocks in a binary log split. Blocks are self-contained
+   *  (each has its own dictionary) so they can be decoded independently.
+   */
+    private void readBinary(Split split, FileChannel channel, Aggregation aggregation, List<Event> events) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+            split.start, split.end-split.start);
+        BinaryLogReader reader = new BinaryLogReader(new BufferInputStream(buffer), split.version);
+        reader.setSkipCorruptBlocks(true);
+        JsonReader json = new JsonReader();
+
+        Event event = new Event();
+        while (reader.next(event)){
+            long ms = event.timestamp/1000000;
+            if (ms<from || ms>=to) continue;
+            records.increment();
+            if (aggregation!=null && event.data!=null){
+                byte[] b = event.data.getBytes();
+                aggregation.add(json, b, 0, b.length, ms, event.database, event.user);
+            }
+            if (events!=null){
+                events.add(event);
+                event = new Event();
+            }
+        }
+        skipped.add(reader.getCorruptBlocks());
+    }
+
+
+  //**************************************************************************
+  //** getSplits
+  //**************************************************************************
+  /** Splits segments into ranges of roughly splitSize bytes. Text segments
+   *  are split at fixed offsets. Binary segments are split between blocks.
+   */
+    private List<Split> getSplits(List<File> files) throws IOException {
+        ArrayList<Split> splits = new ArrayList<>();
+        for (File file : files){
+            if (BinaryLogReader.isBinaryLog(file)){
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+                    ByteBuffer header = ByteBuffer.allocate(BinaryLogWriter.HEADER_SIZE);
+                    channel.read(header, 0);
+                    int version = header.get(BinaryLogWriter.MAGIC.length);
+
+                    long size = channel.size();
+                    long start = BinaryLogWriter.HEADER_SIZE;
+                    long pos = start;
+                    ByteBuffer length = ByteBuffer.allocate(4);
+                    while (pos+8<=size){
+                        length.clear();
+                        channel.read(length, pos);
+                        int len = length.getInt(0);
+                        if (len<0 || pos+8+len>size) break;
+                        pos += 8+len;
+                        if (pos-start>=splitSize){
+                            splits.add(new Split(file, version, start, pos));
+                            start = pos;
+                        }
+                    }
+                    if (pos>start) splits.add(new Split(file, version, start, pos));
+                }
+            }
+            else{
+                long size = file.length();
+                for (long start=0; start<size; start+=splitSize){
+                    splits.add(new Split(file, 0, start, Math.min(start+splitSize, size)));
+                }
+            }
+        }
+        return splits;
+    }
+
+
+  //**************************************************************************
+  //** getSegments
+  //**************************************************************************
+  /** Returns log segments in the given files and directories, in the order
+   *  they were written (e.g. 20261018.log, 20261018.0001.log, 20261019.log)
+   */
+    public static List<File> getSegments(List<File> inputs){
+        ArrayList<File> files = new ArrayList<>();
+        for (File input : inputs){
+            if (input.isDirectory()){
+                File[] arr = input.listFiles();
+                ArrayList<File> segments = new ArrayList<>();
+                if (arr!=null){
+                    for (File file : arr){
+                        if (file.isFile() && SEGMENT.matcher(file.getName()).matches()) segments.add(file);
+                    }
+                }
+                segments.sort((a, b) -> {
+                    Matcher m1 = SEGMENT.matcher(a.getName());
+                    Matcher m2 = SEGMENT.matcher(b.getName());
+                    m1.matches();
+                    m2.matches();
+                    int c = m1.group(1).compareTo(m2.group(1));
+                    if (c!=0) return c;
+                    long s1 = m1.group(3)==null ? 0 : Long.parseLong(m1.group(3));
+                    long s2 = m2.group(3)==null ? 0 : Long.parseLong(m2.group(3));
+                    return Long.compare(s1, s2);
+                });
+                files.addAll(segments);
+            }
+            else if (input.isFile()){
+                files.add(input);
+            }
+        }
+        return files;
+    }
+
+
+  //**************************************************************************
+  //** createSink
+  //**************************************************************************
+  /** Returns a sink for the replay command. Sinks are created by the same
+   *  providers as the plugin uses.
+   */
+    private static Sink createSink(Map<String, String> options) throws Exception {
+        SinkProvider provider;
+        JSONObject config = new JSONObject();
+        if (options.containsKey("database")){
+            provider = new DatabaseSink.Provider();
+            config.set("path", options.get("database"));
+        }
+        else if (options.containsKey("webserver")){
+            provider = new WebSink.Provider();
+            config.set("url", options.get("webserver"));
+            config.set("username", options.get("username"));
+            config.set("password", options.get("password"));
+        }
+        else{
+            throw new IllegalArgumentException("Replay requires a -database or -webserver option");
+        }
+
+        String batchSize = options.get("batchSize");
+        if (batchSize!=null) config.set("batchSize", Integer.parseInt(batchSize));
+
+        Sink sink = provider.create(config, new SinkProvider.Context(null, new JSONObject()));
+        sink.open();
+        return sink;
+    }
+
+
+  //**************************************************************************
+  //** parseDate
+  //**************************************************************************
+  /** Parses a date (e.g. 2026-10-18), a local date and time (e.g.
+   *  2026-10-18T13:00) or a time in milliseconds
+   */
+    static long parseDate(String str){
+        if (str.matches("\\d+")) return Long.parseLong(str);
+        ZoneId zone = ZoneId.systemDefault();
+        if (str.length()==10) return LocalDate.parse(str).atStartOfDay(zone).toInstant().toEpochMilli();
+        return LocalDateTime.parse(str).atZone(zone).toInstant().toEpochMilli();
+    }
+
+
+  //**************************************************************************
+  //** parseLong
+  //**************************************************************************
+  /** Parses a number in a line, starting at idx[0], and moves idx past the
+   *  given separator
+   */
+    private static long parseLong(byte[] line, int[] idx, char separator){
+        int i = idx[0];
+        boolean negative = line[i]=='-';
+        if (negative) i++;
+        long v = 0;
+        int start = i;
+        while (line[i]!=separator){
+            byte b = line[i++];
+            if (b<'0' || b>'9') throw new NumberFormatException();
+            v = v*10 + (b-'0');
+        }
+        if (i==start) throw new NumberFormatException();
+        idx[0] = i+1;
+        return negative ? -v : v;
+    }
+
+
+  //**************************************************************************
+  //** parseString
+  //**************************************************************************
+  /** Returns the string in a line from idx[0] to the next comma. Returns
+   *  null for "null".
+   */
+    private static String parseString(byte[] line, int[] idx, int len){
+        int start = idx[0];
+        int i = start;
+        while (i<len && line[i]!=',') i++;
+        idx[0] = i+1;
+        if (i-start==4 && line[start]=='n' && line[start+1]=='u' &&
+            line[start+2]=='l' && line[start+3]=='l') return null;
+        return new String(line, start, i-start, StandardCharsets.UTF_8);
+    }
+
+
+  //**************************************************************************
+  //** Aggregation Class
+  //**************************************************************************
+  /** Number of changes for each combination of dimensions. Each task fills
+   *  its own instance and the results are merged.
+   */
+    public static class Aggregation {
+        private final String[] dimensions;
+        private final HashMap<String, long[]> counts = new HashMap<>();
+        private final StringBuilder str = new StringBuilder();
+        private final ZoneId zone = ZoneId.systemDefault();
+        private ChronoUnit unit;
+        private DateTimeFormatter format;
+        private long bucketStart = Long.MAX_VALUE;
+        private long bucketEnd;
+        private String bucket;
+
+        public Aggregation(String[] dimensions){
+            this.dimensions = new String[dimensions.length];
+            for (int i=0; i<dimensions.length; i++){
+                String dimension = dimensions[i].trim().toLowerCase();
+                switch (dimension){
+                    case "action": case "type": case "label": case "key":
+                    case "user": case "database":
+                        break;
+                    case "minute":
+                        unit = ChronoUnit.MINUTES;
+                        format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+                        break;
+                    case "hour":
+                        unit = ChronoUnit.HOURS;
+                        format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:00");
+                        break;
+                    case "day":
+                        unit = ChronoUnit.DAYS;
+                        format = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown dimension: " + dimension);
+                }
+                this.dimensions[i] = dimension;
+            }
+        }
+
+      /** Counts the changes in a JSON array of changes */
+        private void add(JsonReader reader, byte[] json, int offset, int length,
+            long ms, String database, String user){
+
+            if (unit!=null && (ms<bucketStart || ms>=bucketEnd)){
+                ZonedDateTime start = Instant.ofEpochMilli(ms).atZone(zone).truncatedTo(unit);
+                bucketStart = start.toInstant().toEpochMilli();
+                bucketEnd = start.plus(1, unit).toInstant().toEpochMilli();
+                bucket = start.format(format);
+            }
+
+            reader.reset(json, offset, length);
+            reader.beginArray();
+            while (reader.hasNext()){
+                reader.beginArray();
+                String action = reader.nextString();
+                String type = reader.nextString();
+                boolean summary = type.endsWith("_summary");
+                if (summary) type = type.substring(0, type.length()-"_summary".length());
+                boolean hasKey = type.startsWith("properties") || type.startsWith("relationship_property");
+                boolean hasLabels = type.startsWith("nodes") || type.startsWith("labels");
+
+                reader.beginArray();
+                while (reader.hasNext()){
+                    reader.beginArray();
+                    if (summary){
+                        String name = reader.nextString();
+                        long count = reader.nextLong();
+                        if (hasKey) add(action, type, null, name, database, user, count);
+                        else add(action, type, name, null, database, user, count);
+                    }
+                    else{
+                        if (reader.peek()==JsonReader.Token.NUMBER) reader.nextLong();
+                        if (hasLabels){
+                            boolean hasLabel = false;
+                            while (reader.hasNext()){
+                                add(action, type, reader.nextString(), null, database, user, 1);
+                                hasLabel = true;
+                            }
+                            if (!hasLabel) add(action, type, null, null, database, user, 1);
+                        }
+                        else{
+                            String name = reader.nextString();
+                            if (hasKey) add(action, type, null, name, database, user, 1);
+                            else add(action, type, name, null, database, user, 1);
+                        }
+                    }
+                    reader.endArray();
+                }
+                reader.endArray();
+                reader.endArray();
+            }
+        }
+
+        private void add(String action, String type, String label, String key,
+            String database, String user, long count){
+            str.setLength(0);
+            for (int i=0; i<dimensions.length; i++){
+                if (i>0) str.append('\t');
+                String value;
+                switch (dimensions[i]){
+                    case "action": value = action; break;
+                    case "type": value = type; break;
+                    case "label": value = label; break;
+                    case "key": value = key; break;
+                    case "user": value = user; break;
+                    case "database": value = database; break;
+                    default: value = bucket; break;
+                }
+                if (value!=null) str.append(value);
+            }
+            String k = str.toString();
+            long[] n = counts.get(k);
+            if (n==null) counts.put(k, new long[]{count});
+            else n[0] += count;
+        }
+
+      /** Adds the counts from another aggregation */
+        public void merge(Aggregation aggregation){
+            for (Map.Entry<String, long[]> entry : aggregation.counts.entrySet()){
+                long[] n = counts.get(entry.getKey());
+                if (n==null) counts.put(entry.getKey(), entry.getValue());
+                else n[0] += entry.getValue()[0];
+            }
+        }
+
+      /** Returns the number of changes for the given dimension values */
+        public long get(String... values){
+            long[] n = counts.get(String.join("\t", values));
+            return n==null ? 0 : n[0];
+        }
+
+      /** Writes the counts as CSV, sorted by the dimension values */
+        public void write(Writer writer) throws IOException {
+            writer.write(String.join(",", dimensions) + ",count\r\n");
+            for (String k : new TreeSet<>(counts.keySet())){
+                String[] values = k.split("\t", -1);
+                for (String value : values){
+                    if (value.indexOf(',')>=0 || value.indexOf('"')>=0){
+                        value = "\"" + value.replace("\"", "\"\"") + "\"";
+                    }
+                    writer.write(value);
+                    writer.write(',');
+                }
+                writer.write(Long.toString(counts.get(k)[0]));
+                writer.write("\r\n");
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** BufferInputStream Class
+  //**************************************************************************
+  /** Used to read a memory-mapped split with the BinaryLogReader
+   */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer){
+            this.buffer = buffer;
+        }
+
+        public int read(){
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len){
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
@@ -1,18 +1,7 @@
 package bluewave.neo4j.plugins;
-import java.util.List;
-import java.util.LinkedList;
-import java.text.SimpleDateFormat;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-
-import java.sql.Clob;
-import java.sql.PreparedStatement;
-
-import javaxt.sql.*;
-import javaxt.json.JSONArray;
-import javaxt.json.JSONObject;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
 import static javaxt.utils.Console.console;
 
 
@@ -20,26 +9,85 @@ import static javaxt.utils.Console.console;
 //**  Logger Class
 //******************************************************************************
 /**
- *   Used to log server activity to a text file. A new text file is created
- *   for each day.
+ *   Used to log transaction events to a text file, webserver, and/or
+ *   database. Events are added to a buffer by the committing threads and
+ *   fanned out by the logger thread to a SinkStage for each destination.
+ *   Each stage runs in its own thread so the slowest sink only holds up
+ *   itself. If there is a Spool, encoded events are appended to the spool
+ *   once and each stage reads them from there at its own pace.
+ *   <p/>
+ *   The stages and the coalescer are published to the logger thread as a
+ *   single Pipeline. When the config file is reloaded, a new pipeline is
+ *   built alongside the old one and swapped in with a single volatile write.
+ *   The logger thread picks it up between batches, so the committing threads
+ *   never wait and no events are dropped. The old stages drain in the
+ *   background.
  *
  ******************************************************************************/
 
 public class Logger implements Runnable {
 
-    private static List pool = new LinkedList();
-    private File logDir;
-    private FileChannel outChannel;
-    private FileOutputStream outputFile;
-    private int date;
+    private EventBuffer buffer;
+    private final Tokens tokens = new Tokens();
+    private Sequence sequence = new Sequence(null);
+    private int batchSize = 256;
+    private volatile boolean running = true;
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile Thread thread;
     private java.util.TimeZone tz;
-    private Long maxFileSize;
 
-    private JSONObject webconfig;
-    private Database database;
-    private final static long  jvm_diff;
-    static {
-        jvm_diff = System.currentTimeMillis()*1000_000-System.nanoTime();
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<Sink> sinks = new ArrayList<>();
+    private Coalescer coalescer;
+    private volatile Pipeline pipeline;
+    private Pipeline active; //pipeline used by the logger thread
+    private boolean stopped;
+    private final ArrayList<SinkStage> retiring = new ArrayList<>();
+    private final HashMap<SinkStage, Thread> handoffs = new HashMap<>(); //by new stage
+    private volatile Spool spool;
+    private final Histogram enqueueLatency = new Histogram();
+
+
+  //**************************************************************************
+  //** Pipeline Class
+  //**************************************************************************
+  /** The sink stages and coalescer used by the logger thread. A pipeline is
+   *  not modified once it has been published.
+   */
+    private static class Pipeline {
+        private final SinkStage[] stages;
+        private final SinkStage[] direct;
+        private final SinkStage[] coalesced;
+        private final Coalescer coalescer;
+
+        private Pipeline(SinkStage[] stages, Coalescer coalescer){
+            this.stages = stages;
+            this.coalescer = coalescer;
+
+          //Split the stages into ones that get every transaction and ones
+          //that get coalesced records
+            ArrayList<SinkStage> direct = new ArrayList<>();
+            ArrayList<SinkStage> coalesced = new ArrayList<>();
+            for (SinkStage stage : stages){
+                if (coalescer!=null && coalescer.accepts(stage.getName())) coalesced.add(stage);
+                else direct.add(stage);
+            }
+            this.direct = direct.toArray(new SinkStage[direct.size()]);
+            this.coalesced = coalesced.toArray(new SinkStage[coalesced.size()]);
+        }
+
+      /** Returns the coalescer if any of the stages get coalesced records */
+        private Coalescer getCoalescer(){
+            return coalesced.length==0 ? null : coalescer;
+        }
+
+      /** Returns the stage for a given sink name or null */
+        private SinkStage getStage(String name){
+            for (SinkStage stage : stages){
+                if (stage.getName().equals(name)) return stage;
+            }
+            return null;
+        }
     }
 
 
@@ -47,67 +95,209 @@ public class Logger implements Runnable {
   //** Constructor
   //**************************************************************************
     public Logger() {
-        this.date = -1;
         this.tz = javaxt.utils.Date.getTimeZone("UTC");
+        this.buffer = new EventBuffer(65536);
+        this.buffer.setTokens(tokens);
     }
 
 
   //**************************************************************************
-  //** setDirectory
+  //** setBuffer
   //**************************************************************************
-    public void setDirectory(javaxt.io.Directory dir){
-        if (dir==null){
-            logDir = null;
-        }
-        else{
-            dir.create();
-            if (dir.exists()){
-                logDir = dir.toFile();
-            }
-            else{
-                logDir = null;
-            }
+  /** Used to replace the default event buffer. Must be called before the
+   *  logger is started.
+   */
+    public void setBuffer(EventBuffer buffer){
+        if (buffer!=null){
+            buffer.setTokens(tokens);
+            this.buffer = buffer;
         }
     }
 
 
   //**************************************************************************
-  //** setMaxFileSize
+  //** setSequence
   //**************************************************************************
-    public void setMaxFileSize(Long maxFileSize){
-        this.maxFileSize = maxFileSize;
+  /** Used to replace the default, in-memory sequence generator with one that
+   *  persists across restarts
+   */
+    public void setSequence(Sequence sequence){
+        if (sequence!=null) this.sequence = sequence;
     }
 
 
   //**************************************************************************
-  //** setDatabase
+  //** getTokens
   //**************************************************************************
-    public void setDatabase(Database database) throws Exception {
-        this.database = database;
-        initDatabase();
+  /** Returns the token table used to encode labels in transaction snapshots
+   */
+    public Tokens getTokens(){
+        return tokens;
     }
 
 
   //**************************************************************************
-  //** setWebServer
+  //** setBatchSize
   //**************************************************************************
-    public void setWebServer(JSONObject webconfig){
-        this.webconfig = webconfig;
+  /** Max number of events the consumer drains from the buffer at a time
+   */
+    public void setBatchSize(int batchSize){
+        if (batchSize>0) this.batchSize = batchSize;
+    }
+
+
+  //**************************************************************************
+  //** addSink
+  //**************************************************************************
+  /** Adds a destination for events. The sink should be open. Must be called
+   *  before the logger is started.
+   *  @param name Name of the sink (e.g. "webserver"). Names must be unique.
+   */
+    public void addSink(String name, Sink sink){
+        if (names.contains(name)) throw new IllegalArgumentException("Duplicate sink: " + name);
+        names.add(name);
+        sinks.add(sink);
+    }
+
+
+  //**************************************************************************
+  //** setCoalescer
+  //**************************************************************************
+  /** Used to fold changes from many transactions into net changes before
+   *  they are sent to some or all of the sinks. Must be called before the
+   *  logger is started.
+   */
+    public void setCoalescer(Coalescer coalescer){
+        this.coalescer = coalescer;
+    }
+
+
+  //**************************************************************************
+  //** getCoalescer
+  //**************************************************************************
+    public Coalescer getCoalescer(){
+        Pipeline p = pipeline;
+        return p==null ? coalescer : p.coalescer;
+    }
+
+
+  //**************************************************************************
+  //** setSpool
+  //**************************************************************************
+  /** Used to keep pending events in a durable spool instead of in-memory
+   *  buffers for each sink. Must be called before the logger is started.
+   */
+    public void setSpool(Spool spool){
+        this.spool = spool;
+    }
+
+
+  //**************************************************************************
+  //** getSpool
+  //**************************************************************************
+    public Spool getSpool(){
+        return spool;
     }
 
 
   //**************************************************************************
   //** log
   //**************************************************************************
-    public void log(String action, String type, JSONArray data, String user){
-        long t = getCurrentTime();
+  /** Adds a transaction record to the buffer. Called by the committing
+   *  threads so this method never takes a lock. The snapshot is converted
+   *  into JSON and given a sequence number by the logger thread.
+   *  @param transactionId Neo4J transaction id
+   *  @param commitTime Commit time in milliseconds
+   *  @param database Name of the database
+   *  @return False if the record was dropped
+   */
+    public boolean log(ChangeSet changes, long transactionId, long commitTime, String database){
+        long t = System.nanoTime();
+        boolean added = buffer.add(commitTime*1000_000, 0, transactionId,
+        database, changes.getUser(), changes);
+        enqueueLatency.record(System.nanoTime()-t);
+        return added;
+    }
+
+
+  //**************************************************************************
+  //** getBuffer
+  //**************************************************************************
+  /** Returns the buffer used to hand events to the logger thread
+   */
+    public EventBuffer getBuffer(){
+        return buffer;
+    }
+
+
+  //**************************************************************************
+  //** getEnqueueLatency
+  //**************************************************************************
+  /** Returns the time spent by the committing threads in log(), in
+   *  nanoseconds
+   */
+    public Histogram getEnqueueLatency(){
+        return enqueueLatency;
+    }
+
+
+  //**************************************************************************
+  //** getStages
+  //**************************************************************************
+  /** Returns the pipeline stages for the configured sinks. Each stage reports
+   *  its own backlog and lag. Stages are created when the logger starts.
+   */
+    public SinkStage[] getStages(){
+        Pipeline p = pipeline;
+        return p==null ? new SinkStage[0] : p.stages;
+    }
+
+
+  //**************************************************************************
+  //** reload
+  //**************************************************************************
+  /** Replaces the sinks and coalescer. Can be called from any thread while
+   *  the logger is running. The new stages are created here and handed to
+   *  the logger thread, which switches to them between batches. Sinks that
+   *  are no longer used, or that have been replaced, are stopped in the
+   *  background: stages with an in-memory buffer write all the events they
+   *  were given, and stages that read from the spool save their position so
+   *  the new sink with the same name picks up where the old one stopped. A
+   *  new sink is started once the old sink with the same name has stopped,
+   *  so the two never write at the same time.
+   *  @param sinks Open sinks, by name, in the order they should be added
+   *  @return False if the logger has stopped. The sinks are closed.
+   */
+    public boolean reload(Map<String, Sink> sinks, Coalescer coalescer){
+        synchronized (this){
+            if (pipeline!=null && !stopped){
+
+              //Discard the last pipeline if the logger thread hasn't used it
+                if (pipeline!=active) discard(pipeline);
+
+                ArrayList<SinkStage> stages = new ArrayList<>();
+                for (Map.Entry<String, Sink> entry : sinks.entrySet()){
+                    stages.add(createStage(entry.getKey(), entry.getValue(), coalescer));
+                }
+                pipeline = new Pipeline(stages.toArray(new SinkStage[stages.size()]), coalescer);
+                buffer.wake();
+                return true;
+            }
 
-        synchronized (pool) {
-            pool.add(new Object[]{
-                t, action, type, data, user
-            });
-            pool.notifyAll();
+          //Replace the sinks that haven't been started yet
+            if (pipeline==null && !stopped){
+                for (Sink sink : this.sinks) sink.close();
+                this.names.clear();
+                this.sinks.clear();
+                this.names.addAll(sinks.keySet());
+                this.sinks.addAll(sinks.values());
+                this.coalescer = coalescer;
+                return true;
+            }
         }
+
+        for (Sink sink : sinks.values()) sink.close();
+        return false;
     }
 
 
@@ -115,222 +305,379 @@ public class Logger implements Runnable {
   //** stop
   //**************************************************************************
     public void stop(){
-        synchronized (pool) {
-            pool.clear();
-            pool.add(0, null);
-            pool.notifyAll();
+        stop(0);
+    }
+
+
+  //**************************************************************************
+  //** stop
+  //**************************************************************************
+  /** Stops the logger and the sink stages. Events that are still in the
+   *  buffers are written before the threads exit, as long as that can be
+   *  done within the given timeout. This method blocks until the threads
+   *  exit or the timeout expires.
+   *  @param timeout Max time to wait, in milliseconds
+   */
+    public void stop(long timeout){
+        deadline = System.currentTimeMillis()+Math.max(0, timeout);
+        running = false;
+        buffer.wake();
+
+        Thread t = thread;
+        if (t==null || t==Thread.currentThread()) return;
+        try{
+            long wait = deadline-System.currentTimeMillis();
+            if (wait>0) t.join(wait);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
         }
     }
 
 
   //**************************************************************************
-  //** run
+  //** close
   //**************************************************************************
-    public void run() {
-        while (true) {
+  /** Closes the sinks and the spool without starting the logger. Used when
+   *  the logger is stopped before it starts. Events in the buffer are not
+   *  written.
+   */
+    public void close(){
+        ArrayList<Sink> sinks;
+        synchronized (this){
+            stopped = true;
+            sinks = new ArrayList<>(this.sinks);
+            this.sinks.clear();
+            this.names.clear();
+        }
+        int pending = buffer.size();
+        if (pending>0) console.log(pending + " events not logged");
+        for (Sink sink : sinks) sink.close();
+        if (spool!=null) spool.close();
+    }
 
-            Object obj;
-            synchronized (pool) {
-                while (pool.isEmpty()) {
-                  try {
-                    pool.wait();
-                  }
-                  catch (InterruptedException e) {
-                      break;
-                  }
-                }
-                obj = pool.remove(0);
-            }
 
-            if (obj==null) return;
+  //**************************************************************************
+  //** run
+  //**************************************************************************
+  /** Fans out events from the buffer to the sink stages. Changes are encoded
+   *  once, into a reusable writer, and the encoded bytes are shared by all
+   *  the stages. Large transactions are encoded and published one chunk at
+   *  a time. If there is a coalescer, sinks that want net changes get a
+   *  coalesced record at the end of each window instead of the individual
+   *  transactions.
+   */
+    public void run() {
+        thread = Thread.currentThread();
+        buffer.setConsumer(thread);
+        Pipeline current;
+        synchronized (this){
+            current = new Pipeline(createStages(), coalescer);
+            active = current;
+            pipeline = current;
+        }
+        for (SinkStage stage : current.stages) start(stage);
 
+        Coalescer coalescer = current.getCoalescer();
+        SinkStage[] directStages = current.direct;
+        SinkStage[] coalescedStages = current.coalesced;
+        Event merged = new Event();
 
-          //Unpack data
-            Object[] arr = (Object[]) obj;
-            Long timestamp = (Long) arr[0];
-            String action = (String) arr[1];
-            String type = (String) arr[2];
-            JSONArray data = (JSONArray) arr[3];
-            String user = (String) arr[4];
 
+        Event[] batch = new Event[batchSize];
+        for (int i=0; i<batch.length; i++) batch[i] = new Event();
+        JsonWriter json = new JsonWriter(64*1024);
 
+        while (true) {
 
-          //Log info to a file
-            if (logDir!=null){
-                try{
-                    String str = timestamp + "," + action + "," + type + "," + data + "," + user + "\r\n";
-                    byte[] b = str.getBytes();
-                    ByteBuffer output = ByteBuffer.allocateDirect(b.length);
-                    output.put(b);
-                    output.flip();
-                    getFileChannel().write(output);
-                }
-                catch(Exception e){
-                    e.printStackTrace();
+          //Switch to a new pipeline after a reload. The last window of the
+          //old coalescer is released to the old stages first.
+            Pipeline next = pipeline;
+            if (next!=current){
+                if (coalescer!=null) release(coalescer, merged, coalescedStages, json);
+                if (spool!=null) spool.flush();
+                synchronized (this){
+                    next = pipeline;
+                    active = next;
                 }
+                swap(current, next);
+                current = next;
+                coalescer = current.getCoalescer();
+                directStages = current.direct;
+                coalescedStages = current.coalesced;
             }
 
+            int n = buffer.drain(batch);
+            if (n==0){
+                if (coalescer!=null && coalescer.isDue()){
+                    release(coalescer, merged, coalescedStages, json);
+                }
+                if (spool!=null) spool.flush();
+                if (!running) break;
+                long wait = coalescer==null ? 1000 : coalescer.getDelay(1000);
+                buffer.await(wait, TimeUnit.MILLISECONDS);
+                continue;
+            }
 
-          //Post info to a webserver
-            if (webconfig!=null){
-                try{
-                    JSONArray msg = new JSONArray();
-                    msg.add(timestamp);
-                    msg.add(action);
-                    msg.add(type);
-                    msg.add(data);
-                    msg.add(user);
-
-                    String url = webconfig.get("url").toString();
-                    if (url!=null){
-                        javaxt.http.Request request = new javaxt.http.Request(url);
-                        String username = webconfig.get("username").toString();
-                        String password = webconfig.get("password").toString();
-                        if (username!=null && password!=null){
-                            request.setCredentials(username, password);
+            for (int i=0; i<n; i++){
+                Event event = batch[i];
+                event.sequence = sequence.next();
+                SinkStage[] targets = current.stages;
+                int streams = Spool.DIRECT | Spool.COALESCED;
+                if (coalescer!=null){
+                    if (coalescer.add(event)){
+                        targets = directStages;
+                        streams = Spool.DIRECT;
+                    }
+                    else{
+                        release(coalescer, merged, coalescedStages, json);
+                        if (coalescer.add(event)){
+                            targets = directStages;
+                            streams = Spool.DIRECT;
                         }
-                        request.setRequestMethod("POST");
-                        request.setNumRedirects(0);
-
-                        request.write(msg.toString());
                     }
                 }
-                catch(Exception e){
-                }
+                publish(event, targets, streams, json);
+                event.clear();
             }
 
+            if (coalescer!=null && coalescer.isDue()){
+                release(coalescer, merged, coalescedStages, json);
+            }
+            if (spool!=null) spool.flush();
 
-          //Update database
-            if (database!=null){
-                Connection conn = null;
-                try{
-                    conn = database.getConnection();
-                    java.sql.Connection c = conn.getConnection();
-
-                    PreparedStatement preparedStatement = c.prepareStatement(
-                    "INSERT INTO TRANSACTION (action, type, data, username, timestamp) " +
-                    "VALUES (?, ?, ?, ?, ?)");
-
-                    Clob clob = c.createClob();
-                    clob.setString(1, data.toString());
+            if (!running && System.currentTimeMillis()>=deadline) break;
+        }
 
-                    preparedStatement.setString(1, action);
-                    preparedStatement.setString(2, type);
-                    preparedStatement.setClob(3, clob);
-                    preparedStatement.setString(4, user);
-                    preparedStatement.setLong(5, timestamp);
-                    preparedStatement.executeUpdate();
-                    preparedStatement.close();
 
-                    conn.close();
-                }
-                catch(Exception e){
-                    if (conn!=null) conn.close();
-                }
+      //Release the last window
+        if (coalescer!=null) release(coalescer, merged, coalescedStages, json);
+        if (spool!=null) spool.flush();
+
+
+      //Stop the stages. Each stage drains its own buffer until the deadline.
+      //Stages that are still draining after a reload are stopped first so
+      //the stages that replace them can start.
+        int pending = buffer.size();
+        if (pending>0) console.log(pending + " events not logged");
+        ArrayList<SinkStage> retiring;
+        ArrayList<Thread> handoffs;
+        synchronized (this){
+            stopped = true;
+            if (pipeline!=active) discard(pipeline);
+            pipeline = active;
+            retiring = new ArrayList<>(this.retiring);
+            handoffs = new ArrayList<>(this.handoffs.values());
+        }
+        for (SinkStage stage : retiring) stage.stop(deadline);
+        for (Thread t : handoffs){
+            try{
+                long wait = deadline-System.currentTimeMillis();
+                if (wait>0) t.join(wait);
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
             }
         }
+        synchronized (this){
+            active = null; //stages that haven't started by now are not started
+        }
+        for (SinkStage stage : current.stages) stage.stop(deadline);
+        for (SinkStage stage : current.stages) stage.join(deadline);
+        for (SinkStage stage : current.stages){
+            Metrics.unregister(stage.getObjectName());
+            if (!stage.isStarted()) stage.getSink().close();
+        }
+        if (spool!=null) spool.close();
     }
 
 
   //**************************************************************************
-  //** getFileChannel
+  //** publish
   //**************************************************************************
-    private FileChannel getFileChannel() throws Exception {
-
-        int date = Integer.parseInt(new SimpleDateFormat("yyyyMMdd").format(new java.util.Date()));
-        if (date>this.date){
-            this.date = date;
-
-            if (outputFile!=null) outputFile.close();
-            if (outChannel!=null) outChannel.close();
-
-            File file = new File(logDir, this.date + ".log");
-            outputFile = new FileOutputStream(file, true);
-            outChannel = outputFile.getChannel();
+  /** Hands a transaction record to the given sink stages. Snapshots are
+   *  encoded here, one chunk at a time.
+   *  @param streams Spool streams the record belongs to. Stages that read
+   *  from the spool get the record from there. Records are always added to
+   *  the spool, even if there are no stages, so the change feed procedure
+   *  can read them.
+   */
+    private void publish(Event event, SinkStage[] targets, int streams, JsonWriter json){
+        if (targets.length==0 && spool==null) return;
+        ChangeSet changes = event.changes;
+        if (changes==null){
+            add(event, targets, streams);
         }
         else{
-            File file = new File(logDir, this.date + ".log");
-            if (maxFileSize!=null){
-                if (file.length()>maxFileSize){
-                    if (outputFile!=null) outputFile.close();
-                    if (outChannel!=null) outChannel.close();
-                    throw new Exception("Log file too big: " + file.length() + " vs " + maxFileSize);
-                }
+            event.changes = null;
+            ChangeSet.Chunks chunks = changes.encode(tokens, json);
+            for (int chunk=1; chunks.hasNext(); chunk++){
+                event.data = chunks.next();
+                event.setChunk(chunk, chunks.size());
+                add(event, targets, streams);
             }
         }
-        return outChannel;
     }
 
 
   //**************************************************************************
-  //** initDatabase
+  //** add
   //**************************************************************************
-    private void initDatabase() throws Exception {
-
-
-      //Create tables as needed
-        Connection conn = null;
-        try{
-            conn = database.getConnection();
-
-            boolean initSchema;
-            javaxt.io.File db = new javaxt.io.File(database.getHost() + ".mv.db");
-            if (!db.exists()){
-                initSchema = true;
+  /** Adds an encoded record to the spool and to the stages that don't read
+   *  from the spool
+   */
+    private void add(Event event, SinkStage[] targets, int streams){
+        if (spool!=null){
+            try{
+                spool.append(event, streams);
             }
-            else{
-                Table[] tables = Database.getTables(conn);
-                initSchema = tables.length==0;
+            catch(Exception e){
+                console.log("Failed to spool event " + event.sequence + ": " + e.getMessage());
             }
+        }
+        for (SinkStage stage : targets){
+            if (!stage.isSpooled()) stage.add(event);
+        }
+    }
 
 
-            if (initSchema){
-                db.getDirectory().create();
+  //**************************************************************************
+  //** release
+  //**************************************************************************
+  /** Publishes the net changes in the current window, if any
+   */
+    private void release(Coalescer coalescer, Event merged, SinkStage[] targets, JsonWriter json){
+        if (coalescer.poll(merged)) publish(merged, targets, Spool.COALESCED, json);
+        merged.clear();
+    }
 
-                String cmd =
-                "CREATE TABLE IF NOT EXISTS TRANSACTION( " +
-                "id bigint auto_increment, " +
-                "action varchar(10), "+
-                "type varchar(25), " +
-                "data clob, " +
-                "username varchar(35), " +
-                "timestamp LONG);";
 
-                java.sql.Statement stmt = conn.getConnection().createStatement();
-                stmt.execute(cmd);
-                stmt.close();
-            }
+  //**************************************************************************
+  //** createStages
+  //**************************************************************************
+  /** Creates a pipeline stage for each configured sink
+   */
+    private SinkStage[] createStages(){
+        ArrayList<SinkStage> stages = new ArrayList<>();
+        for (int i=0; i<sinks.size(); i++){
+            stages.add(createStage(names.get(i), sinks.get(i), coalescer));
+        }
+        return stages.toArray(new SinkStage[stages.size()]);
+    }
 
 
-            conn.close();
+  //**************************************************************************
+  //** createStage
+  //**************************************************************************
+  /** Creates a stage for a sink. Durable sinks read from the spool, if there
+   *  is one. Other sinks get their own copy of the event buffer, with the
+   *  same size and overflow policy as the main buffer.
+   */
+    private SinkStage createStage(String name, Sink sink, Coalescer coalescer){
+        SinkStage stage;
+        if (spool!=null && sink.isDurable()){
+            int stream = coalescer!=null && coalescer.accepts(name) ?
+                Spool.COALESCED : Spool.DIRECT;
+            stage = new SinkStage(name, sink, spool, stream);
         }
-        catch(Exception e){
-            if (conn!=null) conn.close();
-            throw e;
+        else{
+            stage = new SinkStage(name, sink, buffer.copy(name));
         }
+        int batchSize = sink.getBatchSize();
+        stage.setBatchSize(batchSize>0 ? batchSize : this.batchSize);
+        stage.setLinger(sink.getLinger());
+        return stage;
+    }
 
 
-      //Inititalize connection pool
-        database.initConnectionPool();
+  //**************************************************************************
+  //** start
+  //**************************************************************************
+  /** Starts a stage and publishes its metrics via JMX
+   */
+    private void start(SinkStage stage){
+        try{
+            stage.start();
+            Metrics.register(stage.getObjectName(), stage);
+        }
+        catch(Exception e){
+            console.log("Failed to start " + stage.getName() + " sink: " + e.getMessage());
+        }
     }
 
 
   //**************************************************************************
-  //** getDate
+  //** swap
   //**************************************************************************
-    public javaxt.utils.Date getDate(){
-        javaxt.utils.Date d = new javaxt.utils.Date();
-        d.setTimeZone(tz);
-        return d;
+  /** Stops the stages in the old pipeline and starts the stages in the new
+   *  one. Called by the logger thread once it has stopped handing events to
+   *  the old stages. New stages are started right away unless they replace
+   *  an old stage with the same name. In that case, the new stage is started
+   *  by a separate thread once the old one has stopped.
+   */
+    private void swap(Pipeline prev, Pipeline next){
+        for (SinkStage stage : prev.stages){
+            SinkStage successor = next.getStage(stage.getName());
+
+          //Spooled stages stop right away if there is a new stage to pick
+          //up where they left off. Other stages drain their buffers first.
+            if (successor!=null && stage.isSpooled()) stage.stop();
+            else stage.stop(Long.MAX_VALUE);
+
+          //If the old stage is itself waiting to replace another stage (i.e.
+          //after back-to-back reloads), wait for that handoff to finish
+            Thread prior;
+            synchronized (this){
+                prior = handoffs.get(stage);
+            }
+
+            Thread t = new Thread(() -> {
+                try{
+                    if (prior!=null) prior.join();
+                }
+                catch(InterruptedException e){
+                    return;
+                }
+                stage.join(Long.MAX_VALUE);
+                Metrics.unregister(stage.getObjectName());
+                if (!stage.isStarted()) stage.getSink().close();
+                synchronized (this){
+                    if (successor!=null && active==next) start(successor);
+                    retiring.remove(stage);
+                    if (successor!=null) handoffs.remove(successor);
+                }
+                stage.release();
+            }, "bluewave-tx-" + stage.getName() + "-handoff");
+            t.setDaemon(true);
+            synchronized (this){
+                retiring.add(stage);
+                if (successor!=null) handoffs.put(successor, t);
+            }
+            t.start();
+        }
+
+        for (SinkStage stage : next.stages){
+            if (prev.getStage(stage.getName())==null) start(stage);
+        }
     }
 
 
   //**************************************************************************
-  //** getCurrentTime
+  //** discard
   //**************************************************************************
-  /** Returns current time in nanoseconds
+  /** Closes the sinks in a pipeline that was never used
    */
-    private static long getCurrentTime(){
-        return System.nanoTime()+jvm_diff;
+    private void discard(Pipeline p){
+        for (SinkStage stage : p.stages) stage.getSink().close();
+    }
+
+
+  //**************************************************************************
+  //** getDate
+  //**************************************************************************
+    public javaxt.utils.Date getDate(){
+        javaxt.utils.Date d = new javaxt.utils.Date();
+        d.setTimeZone(tz);
+        return d;
     }
 }
\ No newline at end of file
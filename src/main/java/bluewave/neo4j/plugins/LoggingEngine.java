@@ -0,0 +1,531 @@
+package bluewave.neo4j.plugins;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import javaxt.json.JSONObject;
+import static javaxt.utils.Console.console;
+
+
+//******************************************************************************
+//**  LoggingEngine Class
+//******************************************************************************
+/**
+ *   Process-wide logger shared by the transaction listeners for all the
+ *   databases in a Neo4J instance. The config file is parsed once and there
+ *   is a single logger thread, buffer, sequence, and set of sinks (one
+ *   writer per log file, one connection to the H2 database, one web client).
+ *   Events are tagged with the name of the database they came from.
+ *   <p/>
+ *   Listeners call acquire() when they are created and release() when their
+ *   database shuts down. Only the buffer and capture options are set up in
+ *   acquire() so databases start quickly. Directories, database tables and
+ *   sinks are created by the logger thread. Events are held in the buffer
+ *   until the sinks are ready. The engine is stopped when the last listener
+ *   releases it. Pending events are written before the threads exit, up to
+ *   the "shutdownTimeout" in the "queue" section of the config file.
+ *   <p/>
+ *   Once the sinks are ready, the config file is watched for changes. A
+ *   new set of sinks, capture options and filters is built from the new
+ *   config and, if everything is valid, swapped in without restarting Neo4J.
+ *   Changes to the "queue", "spool" and "metrics" sections still require a
+ *   restart.
+ *
+ ******************************************************************************/
+
+public class LoggingEngine {
+
+    private static LoggingEngine engine;
+    private static int references;
+    private static LoggingEngine stopping; //engine being stopped by release()
+
+    private final Logger logger;
+    private final Metrics metrics;
+    private volatile CaptureConfig captureConfig;
+    private final Thread thread;
+    private long shutdownTimeout = 10000; //ms
+
+    private final java.io.File pluginDir;
+    private JSONObject config;
+    private volatile WatchService watchService;
+    private volatile boolean stopped;
+    private static final String CONFIG_FILE = "config.json";
+    private static final long RELOAD_DELAY = 500; //ms
+
+
+  //**************************************************************************
+  //** acquire
+  //**************************************************************************
+  /** Returns the shared engine, creating and starting it as needed. Returns
+   *  null if the config file can't be parsed. If the previous engine is
+   *  still stopping, waits for it to finish first since both would use the
+   *  same files.
+   *  @param pluginDir Directory with the plugin jar and config file
+   */
+    public static synchronized LoggingEngine acquire(java.io.File pluginDir){
+        while (engine==null && stopping!=null){
+            try{
+                LoggingEngine.class.wait();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        if (engine==null){
+            JSONObject config;
+            try{
+                javaxt.io.File configFile = new javaxt.io.File(pluginDir, CONFIG_FILE);
+                config = new JSONObject(configFile.getText());
+            }
+            catch(Exception e){
+                console.log(e.getMessage());
+                return null;
+            }
+
+            engine = new LoggingEngine(config, pluginDir);
+            references = 0;
+        }
+        references++;
+        return engine;
+    }
+
+
+  //**************************************************************************
+  //** getInstance
+  //**************************************************************************
+  /** Returns the shared engine or null if it hasn't been started
+   */
+    public static synchronized LoggingEngine getInstance(){
+        return engine;
+    }
+
+
+  //**************************************************************************
+  //** release
+  //**************************************************************************
+  /** Called when a listener is no longer in use. Stops the engine when there
+   *  are no more listeners. The engine is stopped outside the lock so other
+   *  threads (e.g. procedures calling getInstance) aren't held up while the
+   *  pending events are written.
+   */
+    public static void release(LoggingEngine e){
+        synchronized (LoggingEngine.class){
+            if (e==null || e!=engine) return;
+            references--;
+            if (references>0) return;
+            engine = null;
+            stopping = e;
+        }
+
+        try{
+            e.stop();
+        }
+        finally{
+            synchronized (LoggingEngine.class){
+                ChangeStore.setInstance(null);
+                stopping = null;
+                LoggingEngine.class.notifyAll();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    private LoggingEngine(JSONObject config, java.io.File pluginDir){
+        this.config = config;
+        this.pluginDir = pluginDir;
+
+      //Instantiate logger
+        logger = new Logger();
+        logger.setSequence(new Sequence(new java.io.File(pluginDir, "sequence")));
+        metrics = new Metrics(logger);
+
+
+      //Configure event buffer
+        try{
+            JSONObject json = config.get("queue").toJSONObject();
+            if (json!=null){
+                Integer size = json.get("size").toInteger();
+                EventBuffer buffer = new EventBuffer(size==null ? 65536 : size);
+
+                String policy = json.get("policy").toString();
+                Long timeout = json.get("timeout").toLong();
+                buffer.setPolicy(
+                    policy==null ? null : EventBuffer.Policy.valueOf(policy.toUpperCase()),
+                    timeout==null ? 1000 : timeout
+                );
+
+                String spillDir = json.get("path").toString();
+                buffer.setSpillDirectory(new javaxt.io.Directory(spillDir==null ?
+                    new java.io.File(pluginDir, "spill").toString() : spillDir));
+
+                logger.setBuffer(buffer);
+
+                Integer batchSize = json.get("batchSize").toInteger();
+                if (batchSize!=null) logger.setBatchSize(batchSize);
+
+                Long shutdownTimeout = json.get("shutdownTimeout").toLong();
+                if (shutdownTimeout!=null) this.shutdownTimeout = Math.max(0, shutdownTimeout);
+            }
+        }
+        catch(Exception e){
+            console.log(e.getMessage());
+        }
+
+
+      //Get capture options
+        CaptureConfig captureConfig = new CaptureConfig();
+        try{
+            captureConfig.setConfig(config.get("capture").toJSONObject());
+        }
+        catch(Exception e){
+            console.log(e.getMessage());
+        }
+
+
+      //Compile capture filter
+        try{
+            JSONObject json = config.get("filter").toJSONObject();
+            if (json!=null) captureConfig.setFilter(new CaptureFilter(json, logger.getTokens()));
+        }
+        catch(Exception e){
+            console.log(e.getMessage());
+        }
+        this.captureConfig = captureConfig;
+
+
+      //Publish metrics via JMX
+        Metrics.register(Metrics.OBJECT_NAME, metrics);
+
+
+      //Start the logger thread. The sinks are configured in the background.
+      //The config file is watched once the sinks are ready. If the engine is
+      //stopped in the meantime, the sinks are closed without starting.
+        thread = new Thread(() -> {
+            configure(config, pluginDir);
+            if (!stopped) watch();
+            if (stopped) logger.close();
+            else logger.run();
+        }, "bluewave-logger");
+        thread.start();
+    }
+
+
+  //**************************************************************************
+  //** configure
+  //**************************************************************************
+  /** Creates directories and initializes the sinks. Called by the logger
+   *  thread before it starts draining the buffer.
+   */
+    private void configure(JSONObject config, java.io.File pluginDir){
+        if (stopped) return;
+
+      //Create sinks
+        try{
+            LinkedHashMap<String, Sink> sinks = createSinks(config, false);
+            for (String name : sinks.keySet()) logger.addSink(name, sinks.get(name));
+        }
+        catch(Exception e){
+            console.log(e.getMessage());
+        }
+
+
+      //Get coalescing options
+        try{
+            JSONObject json = config.get("coalesce").toJSONObject();
+            if (json!=null) logger.setCoalescer(new Coalescer(json, captureConfig));
+        }
+        catch(Exception e){
+            console.log(e.getMessage());
+        }
+
+
+      //Open spool. Replaces the in-memory buffers for each sink.
+        try{
+            JSONObject json = config.get("spool").toJSONObject();
+            if (json!=null){
+                String path = json.get("path").toString();
+                java.io.File dir = path==null ?
+                    new java.io.File(pluginDir, "spool") : new java.io.File(path);
+                logger.setSpool(new Spool(dir, json));
+            }
+        }
+        catch(Exception e){
+            console.log("Failed to open spool: " + e.getMessage());
+        }
+
+
+      //Write metrics to a file. Uses the log directory by default.
+        try{
+            JSONObject json = config.get("metrics").toJSONObject();
+            if (json!=null){
+                Long interval = json.get("interval").toLong();
+                String path = json.get("path").toString();
+                if (path==null) path = config.get("logger").get("path").toString();
+                if (interval!=null && path!=null && !stopped){
+                    javaxt.io.Directory dir = new javaxt.io.Directory(path);
+                    dir.create();
+                    metrics.start(dir.toFile(), interval);
+                }
+            }
+        }
+        catch(Exception e){
+            console.log(e.getMessage());
+        }
+    }
+
+
+  //**************************************************************************
+  //** createSinks
+  //**************************************************************************
+  /** Creates and opens a sink for each provider with a section in the config
+   *  file. Providers are found with the ServiceLoader so sinks in other jars
+   *  in the plugins folder are picked up too.
+   *  @param strict If true, the first error is thrown and the sinks that
+   *  were already opened are closed. Otherwise, errors are logged and the
+   *  sink is skipped.
+   */
+    private LinkedHashMap<String, Sink> createSinks(JSONObject config, boolean strict) throws Exception {
+        LinkedHashMap<String, Sink> sinks = new LinkedHashMap<>();
+        SinkProvider.Context context = new SinkProvider.Context(pluginDir, config);
+        try{
+            for (SinkProvider provider : java.util.ServiceLoader.load(
+                SinkProvider.class, SinkProvider.class.getClassLoader())){
+                Sink sink = null;
+                try{
+                    JSONObject json = config.get(provider.getSection()).toJSONObject();
+                    if (json==null) continue;
+                    if (sinks.containsKey(provider.getName())){
+                        throw new IllegalArgumentException("Duplicate sink");
+                    }
+                    sink = provider.create(json, context);
+                    sink.open();
+                    sinks.put(provider.getName(), sink);
+                }
+                catch(Exception e){
+                    if (sink!=null) sink.close();
+                    String msg = "Failed to create " + provider.getName() + " sink: " + e.getMessage();
+                    if (strict) throw new Exception(msg, e);
+                    console.log(msg);
+                }
+            }
+        }
+        catch(Exception | java.util.ServiceConfigurationError e){
+            if (!strict){
+                console.log(e.getMessage());
+                return sinks;
+            }
+            for (Sink sink : sinks.values()) sink.close();
+            if (e instanceof Exception) throw (Exception) e;
+            throw new Exception(e.getMessage(), e);
+        }
+        return sinks;
+    }
+
+
+  //**************************************************************************
+  //** watch
+  //**************************************************************************
+  /** Starts a thread that watches the config file and reloads it when it
+   *  changes. Editors often save a file in several steps so the file is
+   *  reloaded once it hasn't changed for a short time.
+   */
+    private void watch(){
+        try{
+            Path dir = pluginDir.toPath();
+            watchService = dir.getFileSystem().newWatchService();
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch(Exception e){
+            console.log("Failed to watch config file: " + e.getMessage());
+            return;
+        }
+        if (stopped){
+            close(watchService);
+            return;
+        }
+
+        Thread t = new Thread(() -> {
+            try{
+                while (!stopped){
+                    if (!hasChanged(watchService.take())) continue;
+
+                  //Wait for the file to settle
+                    WatchKey key;
+                    while ((key = watchService.poll(RELOAD_DELAY, TimeUnit.MILLISECONDS))!=null){
+                        hasChanged(key);
+                    }
+                    if (stopped) break;
+
+                    try{
+                        reload();
+                    }
+                    catch(Exception e){
+                        console.log("Config not reloaded: " + e.getMessage());
+                    }
+                }
+            }
+            catch(ClosedWatchServiceException | InterruptedException e){
+            }
+        }, "bluewave-config");
+        t.setDaemon(true);
+        t.start();
+    }
+
+
+  //**************************************************************************
+  //** hasChanged
+  //**************************************************************************
+  /** Returns true if any of the events for a watch key are for the config
+   *  file. Resets the key.
+   */
+    private static boolean hasChanged(WatchKey key){
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()){
+            if (event.kind()==StandardWatchEventKinds.OVERFLOW) changed = true;
+            else if (CONFIG_FILE.equals(event.context().toString())) changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+
+
+  //**************************************************************************
+  //** reload
+  //**************************************************************************
+  /** Parses the config file and, if it has changed, replaces the sinks,
+   *  capture options, filters and coalescer. Everything is created and
+   *  validated before anything is replaced. If there is an error, the
+   *  current config is left as-is.
+   */
+    private synchronized void reload(){
+        if (stopped) return;
+        JSONObject config;
+        try{
+            javaxt.io.File configFile = new javaxt.io.File(pluginDir, CONFIG_FILE);
+            config = new JSONObject(configFile.getText());
+        }
+        catch(Exception e){
+            console.log("Config not reloaded. Failed to parse " + CONFIG_FILE + ": " + e.getMessage());
+            return;
+        }
+        if (config.toString().equals(this.config.toString())) return;
+
+
+      //Get capture options and compile the filter
+        CaptureConfig captureConfig = new CaptureConfig();
+        Coalescer coalescer = null;
+        try{
+            captureConfig.setConfig(config.get("capture").toJSONObject());
+            JSONObject json = config.get("filter").toJSONObject();
+            if (json!=null) captureConfig.setFilter(new CaptureFilter(json, logger.getTokens()));
+
+            json = config.get("coalesce").toJSONObject();
+            if (json!=null) coalescer = new Coalescer(json, captureConfig);
+        }
+        catch(Exception e){
+            console.log("Config not reloaded: " + e.getMessage());
+            return;
+        }
+
+
+      //Create and open the new sinks alongside the old ones. The providers
+      //may replace the change store used by the procedures so it is restored
+      //if anything fails.
+        ChangeStore store = ChangeStore.getInstance();
+        LinkedHashMap<String, Sink> sinks;
+        try{
+            sinks = createSinks(config, true);
+        }
+        catch(Exception e){
+            ChangeStore.setInstance(store);
+            console.log("Config not reloaded. " + e.getMessage());
+            return;
+        }
+
+
+      //Swap in the new config
+        if (stopped){
+            for (Sink sink : sinks.values()) sink.close();
+            ChangeStore.setInstance(store);
+            return;
+        }
+        if (!logger.reload(sinks, coalescer)){
+            ChangeStore.setInstance(store);
+            return;
+        }
+        this.captureConfig = captureConfig;
+
+        for (String section : new String[]{"queue", "spool", "metrics"}){
+            if (!java.util.Objects.equals(config.get(section).toString(), this.config.get(section).toString())){
+                console.log("Changes to the \"" + section + "\" section require a restart");
+            }
+        }
+        this.config = config;
+        console.log("Reloaded " + CONFIG_FILE);
+    }
+
+
+  //**************************************************************************
+  //** stop
+  //**************************************************************************
+  /** Stops the logger and waits for pending events to be written, up to the
+   *  shutdown timeout
+   */
+    private void stop(){
+        stopped = true;
+        close(watchService);
+        metrics.stop();
+        Metrics.unregister(Metrics.OBJECT_NAME);
+        long deadline = System.currentTimeMillis()+shutdownTimeout;
+        logger.stop(shutdownTimeout);
+        try{
+            long wait = deadline-System.currentTimeMillis();
+            if (wait>0) thread.join(wait);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+    private static void close(WatchService watchService){
+        if (watchService==null) return;
+        try{
+            watchService.close();
+        }
+        catch(Exception e){
+        }
+    }
+
+
+  //**************************************************************************
+  //** getLogger
+  //**************************************************************************
+    public Logger getLogger(){
+        return logger;
+    }
+
+
+  //**************************************************************************
+  //** getMetrics
+  //**************************************************************************
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+
+  //**************************************************************************
+  //** getCaptureConfig
+  //**************************************************************************
+    public CaptureConfig getCaptureConfig(){
+        return captureConfig;
+    }
+}
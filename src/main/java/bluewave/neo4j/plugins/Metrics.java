@@ -0,0 +1,289 @@
+package bluewave.neo4j.plugins;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import static javaxt.utils.Console.console;
+
+
+//******************************************************************************
+//**  Metrics Class
+//******************************************************************************
+/**
+ *   Used to report how the logger is doing: queue depth, time spent by the
+ *   committing threads handing off events, and events, bytes, latencies,
+ *   retries, drops and errors for each sink. The counters themselves live
+ *   in the Logger, EventBuffer and SinkStage classes and are updated without
+ *   locks. This class only reads them. Metrics are published via JMX, the
+ *   bluewave.tx.metrics() procedure, and an optional metrics file.
+ *
+ ******************************************************************************/
+
+public class Metrics implements MetricsMBean {
+
+    public static final String OBJECT_NAME = "bluewave.tx:type=Logger";
+
+    private final Logger logger;
+    private ScheduledExecutorService scheduler;
+
+
+  //**************************************************************************
+  //** Metric Class
+  //**************************************************************************
+  /** A single value. Fields are public so instances can be returned directly
+   *  by the procedures.
+   */
+    public static class Metric {
+        public String component;
+        public String name;
+        public long value;
+
+        public Metric(String component, String name, long value){
+            this.component = component;
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public Metrics(Logger logger){
+        this.logger = logger;
+    }
+
+
+  //**************************************************************************
+  //** getQueueDepth
+  //**************************************************************************
+    public long getQueueDepth(){
+        return logger.getBuffer().size();
+    }
+
+
+  //**************************************************************************
+  //** getQueueCapacity
+  //**************************************************************************
+    public long getQueueCapacity(){
+        return logger.getBuffer().getCapacity();
+    }
+
+
+  //**************************************************************************
+  //** getQueueHighWaterMark
+  //**************************************************************************
+    public long getQueueHighWaterMark(){
+        return logger.getBuffer().getHighWaterMark();
+    }
+
+
+  //**************************************************************************
+  //** getDropCount
+  //**************************************************************************
+    public long getDropCount(){
+        return logger.getBuffer().getDropCount();
+    }
+
+
+  //**************************************************************************
+  //** getSpillCount
+  //**************************************************************************
+    public long getSpillCount(){
+        return logger.getBuffer().getSpillCount();
+    }
+
+
+  //**************************************************************************
+  //** getEnqueued
+  //**************************************************************************
+    public long getEnqueued(){
+        return logger.getEnqueueLatency().getCount();
+    }
+
+
+  //**************************************************************************
+  //** getEnqueueLatencyMean
+  //**************************************************************************
+    public long getEnqueueLatencyMean(){
+        return logger.getEnqueueLatency().getMean();
+    }
+
+
+  //**************************************************************************
+  //** getEnqueueLatency50
+  //**************************************************************************
+    public long getEnqueueLatency50(){
+        return logger.getEnqueueLatency().getPercentile(50);
+    }
+
+
+  //**************************************************************************
+  //** getEnqueueLatency99
+  //**************************************************************************
+    public long getEnqueueLatency99(){
+        return logger.getEnqueueLatency().getPercentile(99);
+    }
+
+
+  //**************************************************************************
+  //** getEnqueueLatencyMax
+  //**************************************************************************
+    public long getEnqueueLatencyMax(){
+        return logger.getEnqueueLatency().getMax();
+    }
+
+
+  //**************************************************************************
+  //** getValues
+  //**************************************************************************
+  /** Returns a snapshot of all the metrics for the logger and the sinks
+   */
+    public List<Metric> getValues(){
+        ArrayList<Metric> values = new ArrayList<>();
+        String c = "logger";
+        values.add(new Metric(c, "queueDepth", getQueueDepth()));
+        values.add(new Metric(c, "queueCapacity", getQueueCapacity()));
+        values.add(new Metric(c, "queueHighWaterMark", getQueueHighWaterMark()));
+        values.add(new Metric(c, "dropped", getDropCount()));
+        values.add(new Metric(c, "spilled", getSpillCount()));
+        values.add(new Metric(c, "enqueued", getEnqueued()));
+        values.add(new Metric(c, "enqueueLatencyMean", getEnqueueLatencyMean()));
+        values.add(new Metric(c, "enqueueLatency50", getEnqueueLatency50()));
+        values.add(new Metric(c, "enqueueLatency99", getEnqueueLatency99()));
+        values.add(new Metric(c, "enqueueLatencyMax", getEnqueueLatencyMax()));
+
+        Coalescer coalescer = logger.getCoalescer();
+        if (coalescer!=null){
+            c = "coalesce";
+            values.add(new Metric(c, "events", coalescer.getEventsIn()));
+            values.add(new Metric(c, "records", coalescer.getEventsOut()));
+            values.add(new Metric(c, "pending", coalescer.getPending()));
+        }
+
+        Spool spool = logger.getSpool();
+        if (spool!=null){
+            values.add(new Metric("spool", "bytes", spool.getSize()));
+        }
+
+        for (SinkStage stage : logger.getStages()){
+            c = stage.getName();
+            values.add(new Metric(c, "pending", stage.getPending()));
+            values.add(new Metric(c, "highWaterMark", stage.getHighWaterMark()));
+            values.add(new Metric(c, "events", stage.getProcessed()));
+            values.add(new Metric(c, "bytes", stage.getBytes()));
+            values.add(new Metric(c, "errors", stage.getErrors()));
+            values.add(new Metric(c, "retries", stage.getRetries()));
+            values.add(new Metric(c, "failed", stage.getFailed()));
+            values.add(new Metric(c, "dropped", stage.getDropCount()));
+            values.add(new Metric(c, "lag", stage.getLag()));
+            values.add(new Metric(c, "writeLatencyMean", stage.getWriteLatencyMean()));
+            values.add(new Metric(c, "writeLatency50", stage.getWriteLatency50()));
+            values.add(new Metric(c, "writeLatency99", stage.getWriteLatency99()));
+            values.add(new Metric(c, "writeLatencyMax", stage.getWriteLatencyMax()));
+            values.add(new Metric(c, "flushLatency99", stage.getFlushLatency99()));
+            values.add(new Metric(c, "flushLatencyMax", stage.getFlushLatencyMax()));
+        }
+        return values;
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Writes a snapshot of the metrics as a JSON object, grouped by component
+   */
+    public void write(JsonWriter json){
+        json.beginObject();
+        json.key("timestamp").value(System.currentTimeMillis());
+        String component = null;
+        for (Metric metric : getValues()){
+            if (!metric.component.equals(component)){
+                if (component!=null) json.endObject();
+                component = metric.component;
+                json.key(component).beginObject();
+            }
+            json.key(metric.name).value(metric.value);
+        }
+        if (component!=null) json.endObject();
+        json.endObject();
+    }
+
+
+  //**************************************************************************
+  //** start
+  //**************************************************************************
+  /** Used to append a snapshot of the metrics to a "metrics.log" file at a
+   *  fixed interval. Each line in the file is a JSON object.
+   *  @param interval Time between snapshots, in milliseconds
+   */
+    public synchronized void start(File dir, long interval){
+        if (scheduler!=null || dir==null || interval<=0) return;
+        File file = new File(dir, "metrics.log");
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bluewave-tx-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            JsonWriter json = new JsonWriter();
+            write(json);
+            try (FileOutputStream out = new FileOutputStream(file, true)){
+                out.write(json.getBuffer(), 0, json.size());
+                out.write('\n');
+            }
+            catch(Exception e){
+                console.log(e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+
+  //**************************************************************************
+  //** stop
+  //**************************************************************************
+  /** Stops writing to the metrics file
+   */
+    public synchronized void stop(){
+        if (scheduler==null) return;
+        scheduler.shutdown();
+        scheduler = null;
+    }
+
+
+  //**************************************************************************
+  //** register
+  //**************************************************************************
+  /** Used to register an MBean with the platform MBean server. Replaces any
+   *  MBean with the same name.
+   */
+    public static void register(String name, Object mbean){
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(mbean, objectName);
+        }
+        catch(Exception e){
+            console.log(e.getMessage());
+        }
+    }
+
+
+  //**************************************************************************
+  //** unregister
+  //**************************************************************************
+    public static void unregister(String name){
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        }
+        catch(Exception e){
+            console.log(e.getMessage());
+        }
+    }
+}
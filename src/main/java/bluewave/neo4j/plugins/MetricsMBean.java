@@ -0,0 +1,36 @@
+package bluewave.neo4j.plugins;
+
+//******************************************************************************
+//**  MetricsMBean Interface
+//******************************************************************************
+/**
+ *   JMX attributes for the logger. Registered as bluewave.tx:type=Logger.
+ *   Latencies are in nanoseconds.
+ *
+ ******************************************************************************/
+
+public interface MetricsMBean {
+
+  /** Number of events waiting for the logger thread */
+    public long getQueueDepth();
+
+  /** Max number of events that can be held in the queue */
+    public long getQueueCapacity();
+
+  /** Max number of events that have been in the queue at once */
+    public long getQueueHighWaterMark();
+
+  /** Number of events dropped because the queue was full */
+    public long getDropCount();
+
+  /** Number of spilled events that haven't been read back yet */
+    public long getSpillCount();
+
+  /** Number of transactions handed to the logger */
+    public long getEnqueued();
+
+    public long getEnqueueLatencyMean();
+    public long getEnqueueLatency50();
+    public long getEnqueueLatency99();
+    public long getEnqueueLatencyMax();
+}
@@ -1,259 +1,107 @@
 package bluewave.neo4j.plugins;
 
 import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Label;
-import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.event.PropertyEntry;
-import org.neo4j.graphdb.event.LabelEntry;
 import org.neo4j.graphdb.event.TransactionData;
 import org.neo4j.graphdb.event.TransactionEventListener;
 import org.neo4j.logging.internal.LogService;
 
-import java.util.*;
-import javaxt.json.JSONArray;
-import javaxt.json.JSONObject;
-import static javaxt.utils.Console.console;
 
+public class Neo4JTransactionEventListener implements TransactionEventListener<ChangeSet> {
 
-public class Neo4JTransactionEventListener implements TransactionEventListener<Object> {
-
-    private Logger logger;
-    private javaxt.io.File configFile;
+    private volatile LoggingEngine engine;
+    private volatile Logger logger;
+    private String databaseName;
 
 
   //**************************************************************************
   //** Constructor
   //**************************************************************************
+  /** Creates a listener for a database. All the listeners in the Neo4J
+   *  instance share the same LoggingEngine. The config file is read from
+   *  the directory with the plugin jar.
+   */
     public Neo4JTransactionEventListener(final GraphDatabaseService graphDatabaseService, final LogService logsvc){
-
-      //Find the config file
-        javaxt.io.Jar jar = new javaxt.io.Jar(this);
-        java.io.File pluginDir = jar.getFile().getParentFile();
-        configFile = new javaxt.io.File(pluginDir, "config.json");
-
-
-      //Parse the config file
-        JSONObject config = null;
-        try{
-            config = new JSONObject(configFile.getText());
-        }
-        catch(Exception e){
-            console.log(e.getMessage());
-            return;
-        }
-
-
-      //Instantiate logger
-        logger = new Logger();
-
-
-      //Set path to the log file directory
-        try{
-            javaxt.io.Directory logDir = new javaxt.io.Directory(config.get("logger").get("path").toString());
-            logger.setDirectory(logDir);
-        }
-        catch(Exception e){
-        }
-
-
-      //Initialize database
-        try{
-            JSONObject json = config.get("database").toJSONObject();
-            String path = json.get("path").toString().replace("\\", "/");
-            javaxt.io.Directory dbDir = new javaxt.io.Directory(path);
-            dbDir.create();
-            path = new java.io.File(dbDir.toString()+"database").getCanonicalPath();
-
-            javaxt.sql.Database database = new javaxt.sql.Database();
-            database.setDriver("H2");
-            database.setHost(path);
-            database.setConnectionPoolSize(25);
-            logger.setDatabase(database);
-        }
-        catch(Exception e){
-
-        }
-
-
-      //Get webserver config
-        try{
-            logger.setWebServer(config.get("webserver").toJSONObject());
-        }
-        catch(Exception e){
-        }
-
-
-        //console.log("starting logger...");
-        new Thread(logger).start();
+        this(graphDatabaseService, new javaxt.io.Jar(Neo4JTransactionEventListener.class).getFile().getParentFile());
     }
 
 
   //**************************************************************************
-  //** beforeCommit
-  //**************************************************************************
-    public Object beforeCommit(final TransactionData data, final Transaction transaction,
-        final GraphDatabaseService databaseService) throws Exception {
-        if (logger==null) return null;
-        String user = data.username();
-
-        Iterable<Node> createdNodes = data.createdNodes();
-        if (createdNodes!=null) {
-            Iterator<Node> it = createdNodes.iterator();
-            if (it.hasNext()) logger.log("create","nodes",getNodeInfo(it),user);
-        }
-
-
-        Iterable<Node> deletedNodes = data.deletedNodes();
-        if (data.deletedNodes()!=null) {
-            Iterator<Node> it = deletedNodes.iterator();
-            if (it.hasNext()) logger.log("delete","nodes",getNodeInfo(it),user);
-        }
-
-
-        Iterable<Relationship> createdRelationships = data.createdRelationships();
-        if (createdRelationships!=null) {
-            Iterator<Relationship> it = createdRelationships.iterator();
-            if (it.hasNext()) logger.log("create","relationships",getRelationshipInfo(it),user);
-        }
-
-
-        Iterable<Relationship> deletedRelationships = data.deletedRelationships();
-        if (data.deletedRelationships()!=null) {
-            Iterator<Relationship> it = deletedRelationships.iterator();
-            if (it.hasNext()) logger.log("delete","relationships",getRelationshipInfo(it),user);
-        }
-
-
-        Iterable<LabelEntry> assignedLabels = data.assignedLabels();
-        if (assignedLabels!=null) {
-            Iterator<LabelEntry> it = assignedLabels.iterator();
-            if (it.hasNext()) logger.log("create","labels",getLabelInfo(it),user);
-        }
-
-
-        Iterable<LabelEntry> removedLabels = data.assignedLabels();
-        if (removedLabels!=null) {
-            Iterator<LabelEntry> it = removedLabels.iterator();
-            if (it.hasNext()) logger.log("delete","labels",getLabelInfo(it),user);
-        }
-
-
-        Iterable<PropertyEntry<Node>> assignedNodeProperties = data.assignedNodeProperties();
-        if (assignedNodeProperties!=null) {
-            Iterator<PropertyEntry<Node>> it = assignedNodeProperties.iterator();
-            if (it.hasNext()) logger.log("create","properties",getPropertyInfo(it),user);
-        }
-
-
-        Iterable<PropertyEntry<Node>> removedNodeProperties = data.removedNodeProperties();
-        if (removedNodeProperties!=null) {
-            Iterator<PropertyEntry<Node>> it = removedNodeProperties.iterator();
-            if (it.hasNext()) logger.log("delete","properties",getPropertyInfo(it),user);
-        }
-
-
-        Iterable<PropertyEntry<Relationship>> assignedRelationshipProperties = data.assignedRelationshipProperties();
-        if (assignedRelationshipProperties!=null) {
-            Iterator<PropertyEntry<Relationship>> it = assignedRelationshipProperties.iterator();
-            if (it.hasNext()) logger.log("create","relationship_property",getRelationshipPropertyInfo(it),user);
-        }
-
-
-        Iterable<PropertyEntry<Relationship>> removedRelationshipProperties = data.removedRelationshipProperties();
-        if (removedRelationshipProperties!=null) {
-            Iterator<PropertyEntry<Relationship>> it = removedRelationshipProperties.iterator();
-            if (it.hasNext()) logger.log("delete","relationship_property",getRelationshipPropertyInfo(it),user);
-        }
-
-        return null;
-    }
-
-
-  //**************************************************************************
-  //** afterCommit
+  //** Constructor
   //**************************************************************************
-    public void afterCommit(final TransactionData data, final Object state,
-        final GraphDatabaseService databaseService){
-    }
+  /** Creates a listener for a database using the config file in the given
+   *  directory (e.g. for an embedded database)
+   */
+    public Neo4JTransactionEventListener(final GraphDatabaseService graphDatabaseService, final java.io.File pluginDir){
+        databaseName = graphDatabaseService.databaseName();
 
-
-  //**************************************************************************
-  //** afterRollback
-  //**************************************************************************
-    public void afterRollback(final TransactionData data, final Object state,
-        final GraphDatabaseService databaseService){
+      //Get the shared logger
+        engine = LoggingEngine.acquire(pluginDir);
+        if (engine==null) return;
+        logger = engine.getLogger();
     }
 
 
   //**************************************************************************
-  //** getNodeInfo
+  //** close
   //**************************************************************************
-    private JSONArray getNodeInfo(Iterator<Node> it){
-        JSONArray arr = new JSONArray();
-
-        try{
-            while(it.hasNext()){
-                JSONArray entry = new JSONArray();
-                Node node = it.next();
-                Long nodeID = node.getId();
-                entry.add(nodeID);
-
-                Iterable<Label> labels = node.getLabels();
-                if (labels!=null){
-                    Iterator<Label> i2 = labels.iterator();
-                    while (i2.hasNext()){
-                        String label = i2.next().name();
-                        if (label!=null){
-                            entry.add(label);
-                        }
-                    }
-                }
-
-                arr.add(entry);
-            }
-        }
-        catch(Exception e){
-            console.log(e.getMessage());
-        }
-
-        return arr;
+  /** Releases the shared logger. Called when the database shuts down.
+   */
+    public void close(){
+        LoggingEngine.release(engine);
+        engine = null;
+        logger = null;
     }
 
 
   //**************************************************************************
-  //** getRelationshipInfo
+  //** beforeCommit
   //**************************************************************************
-    private JSONArray getRelationshipInfo(Iterator<Relationship> it){
-        JSONArray arr = new JSONArray();
-        return arr;
-    }
+  /** Takes a compact snapshot of the changes in the transaction. The snapshot
+   *  is passed to afterCommit() as the listener state. Nothing is logged
+   *  until the transaction commits. Transactions from users excluded by the
+   *  capture filter are skipped before anything is read. The capture options
+   *  are read once per transaction since they can change when the config
+   *  file is reloaded.
+   */
+    public ChangeSet beforeCommit(final TransactionData data, final Transaction transaction,
+        final GraphDatabaseService databaseService) throws Exception {
+        LoggingEngine engine = this.engine;
+        Logger logger = this.logger;
+        if (engine==null || logger==null) return null;
 
+        CaptureConfig captureConfig = engine.getCaptureConfig();
+        CaptureFilter filter = captureConfig.getFilter();
+        if (filter!=null && !filter.acceptUser(data.username())) return null;
 
-  //**************************************************************************
-  //** getLabelInfo
-  //**************************************************************************
-    private JSONArray getLabelInfo(Iterator<LabelEntry> it){
-        JSONArray arr = new JSONArray();
-        return arr;
+        ChangeSet changes = new ChangeSet(data, logger.getTokens(), captureConfig);
+        if (changes.isEmpty()) return null;
+        return changes;
     }
 
 
   //**************************************************************************
-  //** getPropertyInfo
+  //** afterCommit
   //**************************************************************************
-    private JSONArray getPropertyInfo(Iterator<PropertyEntry<Node>> it){
-        JSONArray arr = new JSONArray();
-        return arr;
+  /** Hands the snapshot to the logger. The transaction is logged as a single
+   *  record, which is encoded and written asynchronously by the logger
+   *  threads.
+   */
+    public void afterCommit(final TransactionData data, final ChangeSet state,
+        final GraphDatabaseService databaseService){
+        Logger logger = this.logger;
+        if (logger==null || state==null) return;
+        logger.log(state, data.getTransactionId(), data.getCommitTime(), databaseName);
     }
 
 
   //**************************************************************************
-  //** getRelationshipPropertyInfo
+  //** afterRollback
   //**************************************************************************
-    private JSONArray getRelationshipPropertyInfo(Iterator<PropertyEntry<Relationship>> it){
-        JSONArray arr = new JSONArray();
-        return arr;
+  /** Discards the snapshot. Changes from transactions that roll back are not
+   *  logged.
+   */
+    public void afterRollback(final TransactionData data, final ChangeSet state,
+        final GraphDatabaseService databaseService){
     }
 }
\ No newline at end of file
@@ -55,7 +55,12 @@ public class Neo4JTransactionEventListenerExtensionFactory extends ExtensionFact
         @Override
         public void shutdown()
         {
-            this.databaseManagementService.unregisterTransactionEventListener(this.db.databaseName(), this.transactionEventhandler);
+            if (this.transactionEventhandler != null)
+            {
+                this.databaseManagementService.unregisterTransactionEventListener(this.db.databaseName(), this.transactionEventhandler);
+                this.transactionEventhandler.close();
+                this.transactionEventhandler = null;
+            }
         }
     }
     public Neo4JTransactionEventListenerExtensionFactory()
@@ -0,0 +1,98 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+//******************************************************************************
+//**  Sequence Class
+//******************************************************************************
+/**
+ *   Used to generate monotonically increasing sequence numbers for
+ *   transaction records. Numbers are reserved in blocks and the upper bound
+ *   of the current block is saved to a file. After a restart, the sequence
+ *   resumes from the saved bound so numbers never go backwards, although
+ *   there may be gaps. The file is only written when a new block is
+ *   reserved.
+ *
+ ******************************************************************************/
+
+public class Sequence {
+
+    private final AtomicLong next = new AtomicLong();
+    private volatile long limit;
+    private final long blockSize;
+    private final File file;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param file File used to persist the sequence. If null, the sequence
+   *  starts at 1 and is not persisted.
+   */
+    public Sequence(File file){
+        this(file, 100_000);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public Sequence(File file, long blockSize){
+        this.file = file;
+        this.blockSize = blockSize;
+
+        long start = 1;
+        if (file!=null && file.exists()){
+            try{
+                String str = new String(java.nio.file.Files.readAllBytes(file.toPath()),
+                StandardCharsets.UTF_8).trim();
+                start = Math.max(start, Long.parseLong(str));
+            }
+            catch(Exception e){
+                e.printStackTrace();
+            }
+        }
+        next.set(start);
+        limit = start;
+        if (file==null) limit = Long.MAX_VALUE;
+    }
+
+
+  //**************************************************************************
+  //** next
+  //**************************************************************************
+  /** Returns the next number in the sequence
+   */
+    public long next(){
+        long n = next.getAndIncrement();
+        if (n>=limit) reserve(n);
+        return n;
+    }
+
+
+  //**************************************************************************
+  //** reserve
+  //**************************************************************************
+  /** Saves the upper bound of the next block to disk
+   */
+    private synchronized void reserve(long n){
+        if (n<limit) return;
+        long newLimit = n + blockSize;
+        try{
+            File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)){
+                out.write(Long.toString(newLimit).getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            java.nio.file.Files.move(tmp.toPath(), file.toPath(),
+            java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+            java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(Exception e){
+            e.printStackTrace();
+        }
+        limit = newLimit;
+    }
+}
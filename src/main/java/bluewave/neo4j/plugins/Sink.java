@@ -0,0 +1,117 @@
+package bluewave.neo4j.plugins;
+
+//******************************************************************************
+//**  Sink Interface
+//******************************************************************************
+/**
+ *   Destination for log events (e.g. file, webserver, database). Each sink
+ *   is driven by its own SinkStage so a slow sink doesn't hold up the others.
+ *   Methods are called from a single worker thread, unless the sink is
+ *   thread safe. Sinks are created by a SinkProvider and declare how they
+ *   want to be fed (batch size, linger time) so the stage can batch events
+ *   for each sink accordingly.
+ *
+ ******************************************************************************/
+
+public interface Sink {
+
+  /** Prepares the sink for writing (e.g. creates tables or opens
+   *  connections). Called once, before the first write.
+   */
+    public default void open() throws Exception {
+    }
+
+  /** Writes events to the sink. Sinks may hold on to events until flush()
+   *  is called but must copy them since the array is reused. Throws an
+   *  exception if the events can't be written. Sinks discard any events
+   *  they are holding when write(), flush() or sync() fails since the
+   *  stage sends them again from the spool.
+   */
+    public void write(Event[] batch, int length) throws Exception;
+
+  /** Writes any pending events. Called when the stage is idle or the linger
+   *  time has expired. Throws an exception if the events can't be written.
+   */
+    public void flush() throws Exception;
+
+  /** Flushes pending events and releases resources
+   */
+    public void close();
+
+  /** Waits until everything passed to flush() has been written. Sinks that
+   *  write asynchronously (e.g. WebSink) should block until their requests
+   *  complete. Called before the read position in a spool is saved.
+   *  Throws an exception if any of the events were lost.
+   */
+    public default void sync() throws Exception {
+    }
+
+  /** Returns the number of events, from the end of the last write() calls,
+   *  that the sink is still holding after sync() returns (e.g. rows waiting
+   *  for a row group to fill up). The read position in a spool is only saved
+   *  up to the events before them.
+   */
+    public default int getPendingCount(){
+        return 0;
+    }
+
+  /** Writes all the events the sink is holding, including the ones counted
+   *  by getPendingCount(), and waits until they have been written. Called
+   *  before the stage stops. Throws an exception if any of the events were
+   *  lost.
+   */
+    public default void finish() throws Exception {
+        flush();
+        sync();
+    }
+
+  /** Returns the preferred number of events per write() call, or 0 to use
+   *  the "batchSize" from the queue section of the config file
+   */
+    public default int getBatchSize(){
+        return 0;
+    }
+
+  /** Returns the max time, in milliseconds, to wait for a batch to fill up
+   *  before calling flush()
+   */
+    public default long getLinger(){
+        return 0;
+    }
+
+  /** Returns true if write() and flush() can be called from more than one
+   *  thread at a time (e.g. when replaying logs with the LogScanner)
+   */
+    public default boolean isThreadSafe(){
+        return false;
+    }
+
+  /** Returns true if events are persisted once sync() returns. Durable
+   *  sinks read from the spool, if there is one, and resume from their last
+   *  saved offset after a restart. Other sinks are fed from memory.
+   */
+    public default boolean isDurable(){
+        return false;
+    }
+
+  /** Returns the number of times the sink retried a failed write. Used for
+   *  metrics. Can be called from any thread.
+   */
+    public default long getRetryCount(){
+        return 0;
+    }
+
+  /** Returns the number of failed writes (e.g. failed requests), including
+   *  ones that succeeded when retried. Can be called from any thread.
+   */
+    public default long getErrorCount(){
+        return 0;
+    }
+
+  /** Returns the number of events the sink gave up on (e.g. after all
+   *  retries). Can be called from any thread.
+   */
+    public default long getFailedCount(){
+        return 0;
+    }
+}
@@ -0,0 +1,63 @@
+package bluewave.neo4j.plugins;
+import java.io.File;
+import javaxt.json.JSONObject;
+
+//******************************************************************************
+//**  SinkProvider Interface
+//******************************************************************************
+/**
+ *   Used to create sinks from the config file. Providers are discovered with
+ *   the java.util.ServiceLoader so a new sink can be shipped in a separate
+ *   jar in the Neo4J plugins folder, with a provider listed in
+ *   META-INF/services/bluewave.neo4j.plugins.SinkProvider. A sink is created
+ *   for every provider with a matching section in the config file. The
+ *   built-in sinks (file, webserver and database) are created the same way.
+ *
+ ******************************************************************************/
+
+public interface SinkProvider {
+
+  /** Returns the name of the sink (e.g. "webserver"). The name is used in
+   *  metrics, spool offsets and the "sinks" list in the coalesce section.
+   */
+    public String getName();
+
+  /** Returns the section of the config file with the options for the sink.
+   *  Defaults to the name of the sink.
+   */
+    public default String getSection(){
+        return getName();
+    }
+
+  /** Returns a new sink. Called by the logger thread when the plugin starts.
+   *  The sink is opened before any events are written to it.
+   *  @param config Options from the section of the config file
+   */
+    public Sink create(JSONObject config, Context context) throws Exception;
+
+
+  //**************************************************************************
+  //** Context Class
+  //**************************************************************************
+  /** Settings shared by all the sinks
+   */
+    public static class Context {
+        private final File pluginDir;
+        private final JSONObject config;
+
+        public Context(File pluginDir, JSONObject config){
+            this.pluginDir = pluginDir;
+            this.config = config;
+        }
+
+      /** Returns the directory with the plugin jar and config file */
+        public File getPluginDir(){
+            return pluginDir;
+        }
+
+      /** Returns the entire config file */
+        public JSONObject getConfig(){
+            return config;
+        }
+    }
+}
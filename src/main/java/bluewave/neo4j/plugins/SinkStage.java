@@ -0,0 +1,650 @@
+package bluewave.neo4j.plugins;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import static javaxt.utils.Console.console;
+
+
+//******************************************************************************
+//**  SinkStage Class
+//******************************************************************************
+/**
+ *   Pipeline stage used to feed events to a single Sink. Each stage has its
+ *   own EventBuffer and worker thread so a slow sink (e.g. a webserver that
+ *   takes seconds to respond) only falls behind itself. The Logger fans out
+ *   every event to all the stages. Metrics for each stage are published
+ *   via JMX (see SinkStageMBean).
+ *   <p/>
+ *   When a Spool is configured, the stage reads events from the spool with
+ *   its own cursor instead of an in-memory buffer. The cursor is opened when
+ *   the stage starts. The cursor position is saved once the sink has written
+ *   the events, so the stage picks up where it left off after a restart or
+ *   after the sink is replaced. Sinks that hold on to events after sync()
+ *   (e.g. the ArchiveSink fills up a row group first) report how many, and
+ *   the position is only saved up to the events before them. If the sink
+ *   fails, the cursor is moved back to the last saved position and the
+ *   events are written again after a delay.
+ *
+ ******************************************************************************/
+
+public class SinkStage implements Runnable, SinkStageMBean {
+
+    private final String name;
+    private final Sink sink;
+    private final EventBuffer buffer;
+    private final Spool spool;
+    private final int stream;
+    private volatile Spool.Cursor cursor;
+    private static final long COMMIT_INTERVAL = 1000; //ms
+    private static final long BACKOFF = 500; //ms
+    private static final long MAX_BACKOFF = 60000; //ms
+    private int batchSize = 256;
+    private long linger = 0; //ms
+    private volatile Thread thread;
+    private volatile boolean running;
+    private volatile long deadline = Long.MAX_VALUE;
+
+    private volatile long processed;
+    private volatile long bytes;
+    private final Histogram writeLatency = new Histogram();
+    private final Histogram flushLatency = new Histogram();
+    private volatile long lastTimestamp;
+    private volatile long errors;
+    private volatile long failed;
+    private long unflushed;
+    private int failures;
+
+  //Cursor position after each write() and the number of events written up
+  //to that point. Used to find the position to save when the sink is still
+  //holding some of the events.
+    private final ArrayDeque<long[]> writes = new ArrayDeque<>();
+    private long written;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public SinkStage(String name, Sink sink, EventBuffer buffer) {
+        this.name = name;
+        this.sink = sink;
+        this.buffer = buffer;
+        this.spool = null;
+        this.stream = 0;
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Creates a stage that reads events from a spool
+   *  @param stream Spool stream to read (e.g. Spool.DIRECT)
+   */
+    public SinkStage(String name, Sink sink, Spool spool, int stream) {
+        this.name = name;
+        this.sink = sink;
+        this.buffer = null;
+        this.spool = spool;
+        this.stream = stream;
+    }
+
+
+  //**************************************************************************
+  //** getName
+  //**************************************************************************
+    public String getName(){
+        return name;
+    }
+
+
+  //**************************************************************************
+  //** getSink
+  //**************************************************************************
+    public Sink getSink(){
+        return sink;
+    }
+
+
+  //**************************************************************************
+  //** setBatchSize
+  //**************************************************************************
+    public void setBatchSize(int batchSize){
+        if (batchSize>0) this.batchSize = batchSize;
+    }
+
+
+  //**************************************************************************
+  //** setLinger
+  //**************************************************************************
+  /** Max time, in milliseconds, to hold events in the sink before calling
+   *  flush(). When set to 0, the sink is flushed every time the stage runs
+   *  out of events.
+   */
+    public void setLinger(long linger){
+        this.linger = Math.max(0, linger);
+    }
+
+
+  //**************************************************************************
+  //** isSpooled
+  //**************************************************************************
+  /** Returns true if the stage reads events from a spool
+   */
+    public boolean isSpooled(){
+        return spool!=null;
+    }
+
+
+  //**************************************************************************
+  //** start
+  //**************************************************************************
+  /** Opens the spool cursor, if any, and starts the worker thread
+   */
+    public void start() throws java.io.IOException {
+        if (spool!=null) cursor = spool.open(name, stream);
+        running = true;
+        thread = new Thread(this, "bluewave-tx-" + name);
+        thread.setDaemon(true);
+        if (cursor==null) buffer.setConsumer(thread);
+        else cursor.setConsumer(thread);
+        thread.start();
+    }
+
+
+  //**************************************************************************
+  //** isStarted
+  //**************************************************************************
+    public boolean isStarted(){
+        return thread!=null;
+    }
+
+
+  //**************************************************************************
+  //** stop
+  //**************************************************************************
+  /** Stops the worker thread. Pending events in the sink are flushed.
+   */
+    public void stop(){
+        stop(System.currentTimeMillis());
+    }
+
+
+  //**************************************************************************
+  //** stop
+  //**************************************************************************
+  /** Stops the worker thread once all the events in the buffer have been
+   *  written or the deadline expires, whichever comes first. Events that are
+   *  still in the buffer after the deadline are not written.
+   *  @param deadline Time in milliseconds since the epoch
+   */
+    public void stop(long deadline){
+        this.deadline = deadline;
+        running = false;
+        Spool.Cursor cursor = this.cursor;
+        if (spool==null) buffer.wake();
+        else if (cursor!=null) cursor.wake();
+    }
+
+
+  //**************************************************************************
+  //** join
+  //**************************************************************************
+  /** Waits for the worker thread to exit, up to the given deadline
+   *  @return True if the thread has exited
+   */
+    public boolean join(long deadline){
+        Thread t = thread;
+        if (t==null) return true;
+        try{
+            long wait = deadline-System.currentTimeMillis();
+            if (wait>0) t.join(wait);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        return !t.isAlive();
+    }
+
+
+  //**************************************************************************
+  //** release
+  //**************************************************************************
+  /** Closes the spool cursor. Called once the stage has stopped and, if the
+   *  sink was replaced, the new stage has opened its own cursor.
+   */
+    public void release(){
+        Spool.Cursor cursor = this.cursor;
+        if (cursor!=null) cursor.close();
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Called by the Logger to hand an event to this stage. Not used when
+   *  the stage reads from a spool.
+   */
+    public boolean add(Event event){
+        if (spool!=null) return false;
+        return buffer.add(event);
+    }
+
+
+  //**************************************************************************
+  //** getPending
+  //**************************************************************************
+  /** Returns the number of events waiting to be written by this stage
+   */
+    public long getPending(){
+        Spool.Cursor cursor = this.cursor;
+        if (spool!=null) return cursor==null ? 0 : cursor.getPending();
+        return buffer.size() + buffer.getSpillCount();
+    }
+
+
+  //**************************************************************************
+  //** getProcessed
+  //**************************************************************************
+    public long getProcessed(){
+        return processed;
+    }
+
+
+  //**************************************************************************
+  //** getBytes
+  //**************************************************************************
+    public long getBytes(){
+        return bytes;
+    }
+
+
+  //**************************************************************************
+  //** getErrors
+  //**************************************************************************
+  /** Returns the number of errors thrown by the sink plus the number of
+   *  failed writes reported by the sink itself (e.g. failed requests)
+   */
+    public long getErrors(){
+        return errors + sink.getErrorCount();
+    }
+
+
+  //**************************************************************************
+  //** getRetries
+  //**************************************************************************
+    public long getRetries(){
+        return sink.getRetryCount();
+    }
+
+
+  //**************************************************************************
+  //** getFailed
+  //**************************************************************************
+  /** Returns the number of events the sink gave up on plus the number of
+   *  events lost when the sink failed. Events read from a spool aren't
+   *  lost since they are written again.
+   */
+    public long getFailed(){
+        return failed + sink.getFailedCount();
+    }
+
+
+  //**************************************************************************
+  //** getHighWaterMark
+  //**************************************************************************
+    public long getHighWaterMark(){
+        Spool.Cursor cursor = this.cursor;
+        if (spool!=null) return cursor==null ? 0 : cursor.getHighWaterMark();
+        return buffer.getHighWaterMark();
+    }
+
+
+  //**************************************************************************
+  //** getWriteLatency
+  //**************************************************************************
+  /** Returns the time spent in Sink.write(), in nanoseconds
+   */
+    public Histogram getWriteLatency(){
+        return writeLatency;
+    }
+
+
+  //**************************************************************************
+  //** getFlushLatency
+  //**************************************************************************
+  /** Returns the time spent in Sink.flush(), in nanoseconds
+   */
+    public Histogram getFlushLatency(){
+        return flushLatency;
+    }
+
+
+  //**************************************************************************
+  //** getWriteLatencyMean
+  //**************************************************************************
+    public long getWriteLatencyMean(){
+        return writeLatency.getMean();
+    }
+
+
+  //**************************************************************************
+  //** getWriteLatency50
+  //**************************************************************************
+    public long getWriteLatency50(){
+        return writeLatency.getPercentile(50);
+    }
+
+
+  //**************************************************************************
+  //** getWriteLatency99
+  //**************************************************************************
+    public long getWriteLatency99(){
+        return writeLatency.getPercentile(99);
+    }
+
+
+  //**************************************************************************
+  //** getWriteLatencyMax
+  //**************************************************************************
+    public long getWriteLatencyMax(){
+        return writeLatency.getMax();
+    }
+
+
+  //**************************************************************************
+  //** getFlushLatency99
+  //**************************************************************************
+    public long getFlushLatency99(){
+        return flushLatency.getPercentile(99);
+    }
+
+
+  //**************************************************************************
+  //** getFlushLatencyMax
+  //**************************************************************************
+    public long getFlushLatencyMax(){
+        return flushLatency.getMax();
+    }
+
+
+  //**************************************************************************
+  //** getObjectName
+  //**************************************************************************
+  /** Returns the name used to register the stage with JMX
+   */
+    public String getObjectName(){
+        return "bluewave.tx:type=Sink,name=" + name;
+    }
+
+
+  //**************************************************************************
+  //** getDropCount
+  //**************************************************************************
+  /** Returns the number of events dropped because the buffer was full, or
+   *  the number of corrupt records skipped in the spool
+   */
+    public long getDropCount(){
+        Spool.Cursor cursor = this.cursor;
+        if (spool!=null) return cursor==null ? 0 : cursor.getCorruptCount();
+        return buffer.getDropCount();
+    }
+
+
+  //**************************************************************************
+  //** getLag
+  //**************************************************************************
+  /** Returns how far behind this stage is, in milliseconds. This is the age
+   *  of the last event written by the sink if there are events waiting, or
+   *  0 if the stage is caught up.
+   */
+    public long getLag(){
+        if (getPending()==0) return 0;
+        long t = lastTimestamp;
+        if (t==0) return 0;
+        return Math.max(0, System.currentTimeMillis()-(t/1000_000));
+    }
+
+
+  //**************************************************************************
+  //** run
+  //**************************************************************************
+    public void run() {
+        Spool.Cursor cursor = this.cursor;
+        Event[] batch = new Event[batchSize];
+        for (int i=0; i<batch.length; i++) batch[i] = new Event();
+
+        boolean dirty = false;
+        long firstWrite = 0;
+        long lastCommit = System.currentTimeMillis();
+        long wait = linger>0 ? Math.min(linger, 1000) : 1000;
+
+      //Position of the last event the sink is known to have written. The
+      //cursor is moved back here whenever the sink fails.
+        long good = cursor==null ? 0 : cursor.getPosition();
+        long retryAt = 0;
+
+        while (true) {
+
+          //Wait before sending events to a sink that failed
+            if (retryAt>0){
+                if (!running) break;
+                long delay = retryAt-System.currentTimeMillis();
+                if (delay>0){
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(delay));
+                    continue;
+                }
+                retryAt = 0;
+            }
+
+            int n = cursor==null ? buffer.drain(batch) : cursor.drain(batch);
+            if (n>0){
+                long t = System.nanoTime();
+                boolean ok = write(batch, n);
+                writeLatency.record(System.nanoTime()-t);
+                if (cursor!=null){
+                    written += n;
+                    writes.add(new long[]{cursor.getPosition(), written});
+                }
+                if (!dirty){
+                    dirty = true;
+                    firstWrite = System.currentTimeMillis();
+                }
+                lastTimestamp = batch[n-1].timestamp;
+                processed += n;
+                unflushed += n;
+                long size = 0;
+                for (int i=0; i<n; i++){
+                    if (batch[i].data!=null) size += batch[i].data.getBytes().length;
+                    batch[i].clear();
+                }
+                bytes += size;
+                if (!ok){
+                    retryAt = fail(cursor, good);
+                    lastCommit = 0;
+                    dirty = false;
+                    continue;
+                }
+            }
+
+            if (dirty){
+                if (linger==0 || System.currentTimeMillis()-firstWrite>=linger){
+                    dirty = false;
+                    if (!flush()){
+                        retryAt = fail(cursor, good);
+                        lastCommit = 0;
+                        continue;
+                    }
+                }
+            }
+
+          //Save the cursor position once everything has been flushed. The
+          //position is saved right away after a failure so the events aren't
+          //written again if the sink fails a second time.
+            if (cursor!=null && !dirty && cursor.getPosition()>good &&
+                System.currentTimeMillis()-lastCommit>=COMMIT_INTERVAL){
+                long position = commit(cursor);
+                if (position<0){
+                    retryAt = fail(cursor, good);
+                    lastCommit = 0;
+                    continue;
+                }
+                good = Math.max(good, position);
+                lastCommit = System.currentTimeMillis();
+            }
+
+          //Once stopped, keep draining until the buffer is empty or the
+          //deadline expires
+            if (!running){
+                if (n==0 || System.currentTimeMillis()>=deadline) break;
+                continue;
+            }
+
+            if (n==0){
+                if (cursor==null) buffer.await(wait, TimeUnit.MILLISECONDS);
+                else cursor.await(wait, TimeUnit.MILLISECONDS);
+            }
+        }
+
+
+      //Save the cursor position only if the last events were written. The
+      //sink is closed either way.
+        boolean ok = retryAt==0;
+        if (ok) ok = finish();
+        if (ok && cursor!=null) cursor.commit(cursor.getPosition());
+        long pending = getPending();
+        if (pending>0){
+            if (cursor==null) console.log(pending + " events not written to " + name);
+            else console.log(pending + " events left in the spool for " + name);
+        }
+        else if (!ok && cursor!=null){
+            console.log("Events since the last commit will be written to " + name + " again");
+        }
+        sink.close();
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+    private boolean write(Event[] batch, int n){
+        try{
+            sink.write(batch, n);
+            return true;
+        }
+        catch(Exception e){
+            errors++;
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+
+  //**************************************************************************
+  //** flush
+  //**************************************************************************
+    private boolean flush(){
+        long t = System.nanoTime();
+        try{
+            sink.flush();
+            unflushed = 0;
+            return true;
+        }
+        catch(Exception e){
+            errors++;
+            e.printStackTrace();
+            return false;
+        }
+        finally{
+            flushLatency.record(System.nanoTime()-t);
+        }
+    }
+
+
+  //**************************************************************************
+  //** finish
+  //**************************************************************************
+  /** Writes everything the sink is holding. Called when the stage stops.
+   */
+    private boolean finish(){
+        long t = System.nanoTime();
+        try{
+            sink.finish();
+            unflushed = 0;
+            return true;
+        }
+        catch(Exception e){
+            errors++;
+            e.printStackTrace();
+            return false;
+        }
+        finally{
+            flushLatency.record(System.nanoTime()-t);
+        }
+    }
+
+
+  //**************************************************************************
+  //** commit
+  //**************************************************************************
+  /** Waits for the sink to finish writing the events it has been given and
+   *  saves the cursor position. If the sink is still holding some of the
+   *  events, the position after the last write() that it has finished with
+   *  is saved instead.
+   *  @return The position that was saved, 0 if the sink is still holding
+   *  all the new events, or -1 if the sink failed to sync
+   */
+    private long commit(Spool.Cursor cursor){
+        long position = cursor.getPosition();
+        try{
+            sink.sync();
+        }
+        catch(Exception e){
+            errors++;
+            e.printStackTrace();
+            return -1;
+        }
+        failures = 0;
+
+        int pending = sink.getPendingCount();
+        if (pending>0){
+            long done = written-pending;
+            position = -1;
+            while (!writes.isEmpty() && writes.peek()[1]<=done){
+                position = writes.poll()[0];
+            }
+            if (position<0) return 0;
+        }
+        else{
+            writes.clear();
+        }
+
+        cursor.commit(position);
+        return position;
+    }
+
+
+  //**************************************************************************
+  //** fail
+  //**************************************************************************
+  /** Called after the sink throws an exception. Sinks discard the events
+   *  they haven't flushed when they fail. A spooled stage moves the cursor
+   *  back to the last good position so the events are read again, and
+   *  waits before retrying. The wait doubles after each failure, up to
+   *  MAX_BACKOFF. Events given to a stage without a spool are lost.
+   *  @param good Position of the last event known to be written
+   *  @return Time to resume writing, in milliseconds since the epoch, or 0
+   */
+    private long fail(Spool.Cursor cursor, long good){
+        if (cursor==null){
+            failed += unflushed;
+            unflushed = 0;
+            return 0;
+        }
+        cursor.rewind(good);
+        unflushed = 0;
+        writes.clear();
+        long backoff = Math.min(MAX_BACKOFF, BACKOFF << Math.min(failures, 16));
+        failures++;
+        console.log(name + " failed, retrying in " + backoff + "ms");
+        return System.currentTimeMillis()+backoff;
+    }
+}
@@ -0,0 +1,48 @@
+package bluewave.neo4j.plugins;
+
+//******************************************************************************
+//**  SinkStageMBean Interface
+//******************************************************************************
+/**
+ *   JMX attributes for a SinkStage. Registered as
+ *   bluewave.tx:type=Sink,name=[file|webserver|database]. Latencies are in
+ *   nanoseconds.
+ *
+ ******************************************************************************/
+
+public interface SinkStageMBean {
+
+  /** Number of events waiting to be written, including spilled events */
+    public long getPending();
+
+  /** Max number of events that have been in the stage's buffer at once */
+    public long getHighWaterMark();
+
+  /** Number of events handed to the sink */
+    public long getProcessed();
+
+  /** Number of bytes of changes handed to the sink */
+    public long getBytes();
+
+  /** Number of errors, including failed writes that were retried */
+    public long getErrors();
+
+  /** Number of retries */
+    public long getRetries();
+
+  /** Number of events the sink gave up on */
+    public long getFailed();
+
+  /** Number of events dropped because the stage's buffer was full */
+    public long getDropCount();
+
+  /** Age of the last event written, in milliseconds, if the stage is behind */
+    public long getLag();
+
+    public long getWriteLatencyMean();
+    public long getWriteLatency50();
+    public long getWriteLatency99();
+    public long getWriteLatencyMax();
+    public long getFlushLatency99();
+    public long getFlushLatencyMax();
+}
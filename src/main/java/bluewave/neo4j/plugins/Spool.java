@@ -0,0 +1,851 @@
+package bluewave.neo4j.plugins;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import javaxt.json.JSONObject;
+import static javaxt.utils.Console.console;
+
+
+//******************************************************************************
+//**  Spool Class
+//******************************************************************************
+/**
+ *   Durable, append-only queue of encoded transaction records shared by all
+ *   the sinks. Records are appended by the Logger thread to memory-mapped
+ *   segment files. Each sink reads the spool with its own Cursor and
+ *   persists its read offset once its writes have been acknowledged, so
+ *   after a crash or restart every sink resumes where it left off. Since
+ *   pending records live on disk instead of the heap, a long outage (e.g. the
+ *   webserver is down) only costs disk space.
+ *   <p/>
+ *   Offsets are logical byte positions across all segments. Each segment is
+ *   named after the offset of its first byte (e.g. 00000000000067108864.spool).
+ *   A record consists of a 4 byte length, a CRC32 checksum and the payload.
+ *   A length of 0 marks the end of the data in a segment. Segments that all
+ *   the cursors have moved past are deleted, once they are older than the
+ *   retention period.
+ *   <p/>
+ *   The spool can also be read from any thread by sequence number (see
+ *   read()). This is used by the change feed procedure so external consumers
+ *   can pull records at their own pace. Each segment keeps a sparse index of
+ *   sequence numbers so reads don't have to scan the segment from the start.
+ *   The last sequence number in the recycled segments is saved in a file so
+ *   consumers that fall too far behind are told to resync instead of
+ *   silently skipping records.
+ *
+ ******************************************************************************/
+
+public class Spool {
+
+    private final File dir;
+    private int segmentSize = 64*1024*1024;
+    private boolean fsync;
+    private long retention = 24*60*60*1000; //ms
+    private volatile long recycled; //last sequence number that was recycled
+    private final RandomAccessFile recycledFile;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final ArrayList<Cursor> cursors = new ArrayList<>();
+
+  //Writer state. Only the Logger thread appends records.
+    private Segment active;
+    private ByteBuffer activeBuffer;
+    private long writeOffset;
+    private long records;
+    private byte[] scratch = new byte[4096];
+    private final CRC32 crc = new CRC32();
+
+  //Offset and record count visible to the cursors
+    private volatile long published;
+    private volatile long publishedRecords;
+
+  //Streams. Records are tagged with the streams they belong to (e.g.
+  //individual transactions vs coalesced records) and cursors only read the
+  //records in their stream.
+    public static final int DIRECT = 1;
+    public static final int COALESCED = 2;
+
+    private static final String EXTENSION = ".spool";
+    private static final int INDEX_INTERVAL = 64*1024; //bytes between index entries
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Opens a spool, creating the directory as needed. Existing segments are
+   *  scanned to find the end of the data. Records that were partially written
+   *  when the process died are discarded.
+   *  @param config Options from the "spool" section of the config file:
+   *  "segmentSize" (bytes), "fsync" ("none" or "batch") and "retention"
+   *  (min time to keep segments after they are filled, in milliseconds,
+   *  defaults to a day)
+   */
+    public Spool(File dir, JSONObject config) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        if (!dir.isDirectory()) throw new IOException("Invalid spool directory: " + dir);
+
+        if (config!=null){
+            Integer segmentSize = config.get("segmentSize").toInteger();
+            if (segmentSize!=null && segmentSize>=4096) this.segmentSize = segmentSize;
+            fsync = "batch".equalsIgnoreCase(config.get("fsync").toString());
+            Long retention = config.get("retention").toLong();
+            if (retention!=null) this.retention = Math.max(0, retention);
+        }
+
+
+      //Load the last recycled sequence number. It is stored twice, the
+      //second time inverted, like the cursor offsets.
+        recycledFile = new RandomAccessFile(new File(dir, "recycled.sequence"), "rw");
+        if (recycledFile.length()>=16){
+            long a = recycledFile.readLong();
+            long b = recycledFile.readLong();
+            if (a==~b) recycled = a;
+        }
+
+
+      //Open existing segments
+        File[] files = dir.listFiles();
+        if (files!=null){
+            for (File file : files){
+                String name = file.getName();
+                if (!name.endsWith(EXTENSION)) continue;
+                try{
+                    long base = Long.parseLong(name.substring(0, name.length()-EXTENSION.length()));
+                    segments.put(base, new Segment(file, base, 0));
+                }
+                catch(NumberFormatException e){
+                }
+            }
+        }
+
+
+      //Count records and find the end of the data
+        long n = 0;
+        for (Segment segment : segments.values()){
+            segment.firstRecord = n;
+            long end = segment.base;
+            ByteBuffer buffer = segment.buffer.duplicate();
+            while (true){
+                int pos = (int) (end-segment.base);
+                int len = check(buffer, pos);
+                if (len<=0) break;
+                if (end==segment.base) segment.firstSequence = buffer.getLong(pos+8+1+8);
+                if ((buffer.get(pos+8) & DIRECT)!=0) segment.index(buffer.getLong(pos+8+1+8), pos);
+                end += 8+len;
+                n++;
+            }
+            active = segment;
+            activeBuffer = segment.buffer.duplicate();
+            writeOffset = end;
+        }
+        records = n;
+
+
+      //Clear anything after the last good record so it isn't mistaken for
+      //data when the space is reused
+        if (active!=null){
+            ByteBuffer buffer = active.buffer.duplicate();
+            int from = (int) (writeOffset-active.base);
+            byte[] zeros = new byte[8192];
+            buffer.position(from);
+            while (buffer.hasRemaining()) buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+        }
+
+        published = writeOffset;
+        publishedRecords = records;
+    }
+
+
+  //**************************************************************************
+  //** open
+  //**************************************************************************
+  /** Returns a cursor for a sink. The read offset is loaded from a file in
+   *  the spool directory. If there is no offset (e.g. the first time the
+   *  spool is used), the cursor starts at the oldest record.
+   *  @param name Name of the sink (e.g. "webserver")
+   *  @param stream Records to read (DIRECT or COALESCED)
+   */
+    public synchronized Cursor open(String name, int stream) throws IOException {
+        Cursor cursor = new Cursor(name, stream);
+        cursors.add(cursor);
+        return cursor;
+    }
+
+
+  //**************************************************************************
+  //** append
+  //**************************************************************************
+  /** Appends an event to the spool. The event isn't visible to the cursors
+   *  until flush() is called. Called by the Logger thread only.
+   *  @param streams Streams the event belongs to (e.g. DIRECT|COALESCED)
+   */
+    public void append(Event event, int streams) throws IOException {
+
+      //Encode the payload
+        int len = 1+8+8+8+4+4;
+        byte[] database = getBytes(event.database);
+        byte[] user = getBytes(event.user);
+        byte[] data = event.data==null ? null : event.data.getBytes();
+        len += 4+(database==null ? 0 : database.length);
+        len += 4+(user==null ? 0 : user.length);
+        len += 4+(data==null ? 0 : data.length);
+        if (scratch.length<len) scratch = new byte[Math.max(len, scratch.length*2)];
+
+        ByteBuffer payload = ByteBuffer.wrap(scratch, 0, len);
+        payload.put((byte) streams);
+        payload.putLong(event.timestamp);
+        payload.putLong(event.sequence);
+        payload.putLong(event.transactionId);
+        payload.putInt(event.chunk);
+        payload.putInt(event.chunks);
+        putBytes(payload, database);
+        putBytes(payload, user);
+        putBytes(payload, data);
+
+        crc.reset();
+        crc.update(scratch, 0, len);
+
+
+      //Move to a new segment if there's no room for the record and an end
+      //marker
+        if (active==null || writeOffset-active.base+8+len+4>active.capacity){
+            roll(8+len+4);
+        }
+
+
+      //Write the payload and checksum before the length so a partial record
+      //never looks complete
+        ByteBuffer buffer = activeBuffer;
+        int pos = (int) (writeOffset-active.base);
+        if (pos==0) active.firstSequence = event.sequence;
+        if ((streams & DIRECT)!=0) active.index(event.sequence, pos);
+        buffer.position(pos+8);
+        buffer.put(scratch, 0, len);
+        buffer.putInt(pos+4, (int) crc.getValue());
+        buffer.putInt(pos, len);
+
+        writeOffset += 8+len;
+        records++;
+    }
+
+
+  //**************************************************************************
+  //** flush
+  //**************************************************************************
+  /** Makes appended records visible to the cursors and wakes up the sink
+   *  threads. With the "batch" fsync option, the active segment is also
+   *  forced to disk. Called by the Logger thread after each batch.
+   */
+    public void flush(){
+        if (published==writeOffset) return;
+        if (fsync && active!=null) active.buffer.force();
+        publishedRecords = records;
+        published = writeOffset;
+
+        Cursor[] arr;
+        synchronized (this){
+            arr = cursors.toArray(new Cursor[cursors.size()]);
+        }
+        for (Cursor cursor : arr){
+            Thread t = cursor.consumer;
+            if (t!=null && cursor.waiting) LockSupport.unpark(t);
+        }
+    }
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+  /** Returns records with a sequence number greater than the given value, in
+   *  sequence order. Only individual transactions are returned, not
+   *  coalesced records. Chunks of a transaction are never split across
+   *  calls, so more than "limit" records may be returned. Use 0 to start at
+   *  the oldest record in the spool. Can be called from any thread.
+   *  @throws IllegalStateException if records after the given sequence have
+   *  already been recycled
+   */
+    public List<Event> read(long sequence, int limit){
+        ArrayList<Event> events = new ArrayList<>();
+        if (sequence>0 && sequence<recycled) throw new IllegalStateException(
+            "Records after sequence " + sequence + " have been recycled. " +
+            "Resync and start again from 0.");
+        if (limit<=0) return events;
+        long end = published;
+        long last = -1;
+
+        Segment segment = findSegment(sequence);
+        int pos = segment==null ? 0 : segment.find(sequence);
+        while (segment!=null){
+            ByteBuffer buffer = segment.buffer.duplicate();
+            while (segment.base+pos<end && pos+8<=segment.capacity){
+                int len = buffer.getInt(pos);
+                if (len<=0 || pos+8+len>segment.capacity) break;
+                int offset = pos;
+                pos += 8+len;
+
+              //Check the stream and sequence before copying the record
+                if ((buffer.get(offset+8) & DIRECT)==0) continue;
+                long seq = buffer.getLong(offset+8+1+8);
+                if (seq<=sequence) continue;
+                if (events.size()>=limit && seq!=last) return events;
+
+                byte[] payload = new byte[len];
+                buffer.position(offset+8);
+                buffer.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, len);
+                if ((int) crc.getValue()!=buffer.getInt(offset+4)) continue;
+
+                Event event = new Event();
+                decode(payload, event);
+                events.add(event);
+                last = seq;
+            }
+            segment = getNextSegment(segment);
+            pos = 0;
+        }
+        return events;
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Flushes the spool and forces the segments to disk. Cursors should be
+   *  committed before the spool is closed.
+   */
+    public synchronized void close(){
+        flush();
+        for (Segment segment : segments.values()){
+            try{
+                segment.buffer.force();
+            }
+            catch(Exception e){
+            }
+        }
+        for (Cursor cursor : cursors.toArray(new Cursor[cursors.size()])) cursor.close();
+        try{
+            recycledFile.close();
+        }
+        catch(IOException e){
+        }
+    }
+
+
+  //**************************************************************************
+  //** getSize
+  //**************************************************************************
+  /** Returns the number of bytes in the spool, not including space reserved
+   *  at the end of the active segment
+   */
+    public synchronized long getSize(){
+        if (segments.isEmpty()) return 0;
+        return published-segments.firstKey();
+    }
+
+
+  //**************************************************************************
+  //** roll
+  //**************************************************************************
+  /** Starts a new segment
+   *  @param minSize Space needed for the next record
+   */
+    private synchronized void roll(int minSize) throws IOException {
+        long base = active==null ? writeOffset : active.base+active.capacity;
+        int capacity = Math.max(segmentSize, minSize);
+        File file = new File(dir, String.format("%020d", base) + EXTENSION);
+        Segment segment = new Segment(file, base, capacity);
+        segment.firstRecord = records;
+        segments.put(base, segment);
+        if (active!=null){
+            if (fsync) active.buffer.force();
+            active.closed = System.currentTimeMillis();
+        }
+        active = segment;
+        activeBuffer = segment.buffer.duplicate();
+        writeOffset = base;
+        recycle();
+    }
+
+
+  //**************************************************************************
+  //** recycle
+  //**************************************************************************
+  /** Deletes segments that all the cursors have moved past and that are
+   *  older than the retention period. The last sequence number in the
+   *  deleted segments is saved before they are deleted.
+   */
+    private synchronized void recycle(){
+        long min = Long.MAX_VALUE;
+        for (Cursor cursor : cursors) min = Math.min(min, cursor.committed);
+        long cutoff = System.currentTimeMillis()-retention;
+
+        ArrayList<Segment> expired = new ArrayList<>();
+        long sequence = recycled;
+        for (Segment segment : segments.values()){
+            if (segment==active || segment.base+segment.capacity>min) break;
+            if (segment.closed>cutoff) break;
+            expired.add(segment);
+            sequence = Math.max(sequence, getLastSequence(segment));
+        }
+        if (expired.isEmpty()) return;
+
+        if (sequence>recycled){
+            try{
+                recycledFile.seek(0);
+                recycledFile.writeLong(sequence);
+                recycledFile.writeLong(~sequence);
+                recycledFile.getFD().sync();
+            }
+            catch(IOException e){
+                console.log("Failed to save recycled sequence: " + e.getMessage());
+                return;
+            }
+            recycled = sequence;
+        }
+
+        for (Segment segment : expired){
+            segments.remove(segment.base);
+            segment.delete();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getLastSequence
+  //**************************************************************************
+  /** Returns the sequence number of the last individual transaction in a
+   *  segment, or -1 if there isn't one. Starts at the last index entry.
+   */
+    private long getLastSequence(Segment segment){
+        ByteBuffer buffer = segment.buffer.duplicate();
+        long last = -1;
+        int pos = segment.find(Long.MAX_VALUE);
+        while (pos+8<=segment.capacity){
+            int len = buffer.getInt(pos);
+            if (len<=0 || pos+8+len>segment.capacity) break;
+            if ((buffer.get(pos+8) & DIRECT)!=0) last = buffer.getLong(pos+8+1+8);
+            pos += 8+len;
+        }
+        return last;
+    }
+
+
+  //**************************************************************************
+  //** getSegment
+  //**************************************************************************
+  /** Returns the segment with the given offset. If the offset has been
+   *  recycled, returns the oldest segment. Returns null if the spool is
+   *  empty.
+   */
+    private synchronized Segment getSegment(long offset){
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry==null) entry = segments.firstEntry();
+        return entry==null ? null : entry.getValue();
+    }
+
+
+  //**************************************************************************
+  //** findSegment
+  //**************************************************************************
+  /** Returns the newest segment that starts at or before the given sequence
+   *  number, or the oldest segment if there isn't one
+   */
+    private synchronized Segment findSegment(long sequence){
+        for (Segment segment : segments.descendingMap().values()){
+            long first = segment.firstSequence;
+            if (first>=0 && first<=sequence) return segment;
+        }
+        return segments.isEmpty() ? null : segments.firstEntry().getValue();
+    }
+
+
+  //**************************************************************************
+  //** getNextSegment
+  //**************************************************************************
+    private synchronized Segment getNextSegment(Segment segment){
+        Map.Entry<Long, Segment> entry = segments.higherEntry(segment.base);
+        return entry==null ? null : entry.getValue();
+    }
+
+
+  //**************************************************************************
+  //** check
+  //**************************************************************************
+  /** Returns the length of the payload of the record at the given position
+   *  in a segment, or -1 if there's no valid record there
+   */
+    private int check(ByteBuffer buffer, int pos){
+        if (pos+8>buffer.capacity()) return -1;
+        int len = buffer.getInt(pos);
+        if (len<=0 || pos+8+len>buffer.capacity()) return -1;
+        int checksum = buffer.getInt(pos+4);
+
+        byte[] b = new byte[len];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(pos+8);
+        dup.get(b);
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, len);
+        return (int) crc.getValue()==checksum ? len : -1;
+    }
+
+
+  //**************************************************************************
+  //** decode
+  //**************************************************************************
+  /** Copies a record payload into an event
+   */
+    private static void decode(byte[] payload, Event event){
+        ByteBuffer record = ByteBuffer.wrap(payload);
+        record.get(); //streams
+        long timestamp = record.getLong();
+        long sequence = record.getLong();
+        long transactionId = record.getLong();
+        int chunk = record.getInt();
+        int chunks = record.getInt();
+        String database = getString(record);
+        String user = getString(record);
+        byte[] data = getBytes(record);
+        event.set(timestamp, sequence, transactionId, database, user,
+        data==null ? null : new Changes(data), null);
+        event.setChunk(chunk, chunks);
+    }
+
+
+  //**************************************************************************
+  //** getBytes
+  //**************************************************************************
+    private static byte[] getBytes(String str){
+        return str==null ? null : str.getBytes(StandardCharsets.UTF_8);
+    }
+
+
+  //**************************************************************************
+  //** putBytes
+  //**************************************************************************
+    private static void putBytes(ByteBuffer buffer, byte[] b){
+        if (b==null){
+            buffer.putInt(-1);
+        }
+        else{
+            buffer.putInt(b.length);
+            buffer.put(b);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getString
+  //**************************************************************************
+    private static String getString(ByteBuffer buffer){
+        byte[] b = getBytes(buffer);
+        return b==null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+
+  //**************************************************************************
+  //** getBytes
+  //**************************************************************************
+    private static byte[] getBytes(ByteBuffer buffer){
+        int len = buffer.getInt();
+        if (len<0) return null;
+        byte[] b = new byte[len];
+        buffer.get(b);
+        return b;
+    }
+
+
+  //**************************************************************************
+  //** Segment Class
+  //**************************************************************************
+  /** A memory-mapped segment file
+   */
+    private static class Segment {
+        private final File file;
+        private final long base;
+        private final int capacity;
+        private final MappedByteBuffer buffer;
+        private long firstRecord;
+        private volatile long firstSequence = -1;
+        private long closed; //ms
+
+      //Sparse index of individual transactions: sequence numbers and the
+      //positions of their records. Entries are only added by the writer
+      //and are published by incrementing indexSize.
+        private final long[] indexSequences;
+        private final int[] indexPositions;
+        private volatile int indexSize;
+
+      /** Maps a segment file. New files are created with the given capacity
+       *  (zero filled). Existing files keep their size. */
+        private Segment(File file, long base, int capacity) throws IOException {
+            this.file = file;
+            this.base = base;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+                if (raf.length()==0) raf.setLength(capacity);
+                this.capacity = (int) raf.length();
+                this.closed = file.lastModified();
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+            }
+            int n = this.capacity/INDEX_INTERVAL+1;
+            indexSequences = new long[n];
+            indexPositions = new int[n];
+        }
+
+      /** Adds a record to the index if it is far enough from the last entry.
+       *  Called by the writer only. */
+        private void index(long sequence, int pos){
+            int n = indexSize;
+            if (n>0 && pos-indexPositions[n-1]<INDEX_INTERVAL) return;
+            if (n==indexPositions.length) return;
+            indexSequences[n] = sequence;
+            indexPositions[n] = pos;
+            indexSize = n+1;
+        }
+
+      /** Returns the position of the last indexed record with a sequence
+       *  number less than or equal to the given value, or 0 if there isn't
+       *  one. Records before this position all have a lower sequence. */
+        private int find(long sequence){
+            int lo = 0;
+            int hi = indexSize-1;
+            int pos = 0;
+            while (lo<=hi){
+                int mid = (lo+hi)>>>1;
+                if (indexSequences[mid]<=sequence){
+                    pos = indexPositions[mid];
+                    lo = mid+1;
+                }
+                else{
+                    hi = mid-1;
+                }
+            }
+            return pos;
+        }
+
+        private void delete(){
+            if (!file.delete()) file.deleteOnExit();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Cursor Class
+  //**************************************************************************
+  /** Read position of a single sink. Records are read with drain() and the
+   *  position is persisted with commit(), once the sink has written them.
+   *  Used by the sink thread only, except for the counters.
+   */
+    public class Cursor {
+
+        private final String name;
+        private final int stream;
+        private final RandomAccessFile offsetFile;
+        private volatile long committed;
+        private long position;
+        private long positionRecords;
+        private Segment segment;
+        private ByteBuffer buffer;
+        private volatile Thread consumer;
+        private volatile boolean waiting;
+        private volatile long corrupt;
+        private volatile long highWater;
+        private final CRC32 crc = new CRC32();
+
+        private Cursor(String name, int stream) throws IOException {
+            this.name = name;
+            this.stream = stream;
+
+          //Load the offset. The offset is stored twice, the second time
+          //inverted, so a torn write can be detected.
+            offsetFile = new RandomAccessFile(new File(dir, name + ".offset"), "rw");
+            long offset = -1;
+            if (offsetFile.length()>=16){
+                long a = offsetFile.readLong();
+                long b = offsetFile.readLong();
+                if (a==~b) offset = a;
+            }
+            if (offset<0 || offset>published){
+                offset = segments.isEmpty() ? published : segments.firstKey();
+            }
+            committed = offset;
+            seek(offset);
+        }
+
+      /** Moves the read position to the given offset and counts the records
+       *  before it */
+        private void seek(long offset){
+            position = offset;
+            segment = getSegment(position);
+            if (segment!=null){
+                if (position<segment.base) position = segment.base;
+                positionRecords = segment.firstRecord;
+                buffer = segment.buffer.duplicate();
+                long p = segment.base;
+                while (p<position && p-segment.base+8<=segment.capacity){
+                    int len = buffer.getInt((int) (p-segment.base));
+                    if (len<=0) break;
+                    p += 8+len;
+                    positionRecords++;
+                }
+            }
+            else{
+                positionRecords = publishedRecords;
+            }
+        }
+
+      /** Returns the name of the sink */
+        public String getName(){
+            return name;
+        }
+
+      /** Used to register the thread that reads the cursor so it can be
+       *  woken up when new records are published */
+        public void setConsumer(Thread consumer){
+            this.consumer = consumer;
+        }
+
+      /** Parks the consumer thread until records are published or the
+       *  timeout expires */
+        public void await(long timeout, TimeUnit unit){
+            waiting = true;
+            try{
+                if (position>=published) LockSupport.parkNanos(this, unit.toNanos(timeout));
+            }
+            finally{
+                waiting = false;
+            }
+        }
+
+      /** Unparks the consumer thread */
+        public void wake(){
+            Thread t = consumer;
+            if (t!=null) LockSupport.unpark(t);
+        }
+
+      /** Copies up to batch.length records in this cursor's stream into the
+       *  batch and advances the read position. Records in other streams are
+       *  skipped.
+       *  @return Number of events copied into the batch
+       */
+        public int drain(Event[] batch){
+            int n = 0;
+            long end = published;
+            long pending = publishedRecords-positionRecords;
+            if (pending>highWater) highWater = pending;
+
+            while (n<batch.length && position<end){
+                if (segment==null || position<segment.base){
+                    segment = getSegment(position);
+                    if (segment==null) break;
+                    if (position<segment.base) position = segment.base;
+                    buffer = segment.buffer.duplicate();
+                }
+
+              //Move to the next segment when we reach the end marker
+                int pos = (int) (position-segment.base);
+                int len = pos+8>segment.capacity ? 0 : buffer.getInt(pos);
+                if (len<=0 || pos+8+len>segment.capacity){
+                    Segment next = getNextSegment(segment);
+                    if (next==null) break;
+                    if (len!=0) corrupt++;
+                    segment = next;
+                    buffer = segment.buffer.duplicate();
+                    position = segment.base;
+                    positionRecords = segment.firstRecord;
+                    continue;
+                }
+
+
+              //Read the record
+                byte[] payload = new byte[len];
+                buffer.position(pos+8);
+                buffer.get(payload);
+                position += 8+len;
+                positionRecords++;
+
+                crc.reset();
+                crc.update(payload, 0, len);
+                if ((int) crc.getValue()!=buffer.getInt(pos+4)){
+                    corrupt++;
+                    continue;
+                }
+
+                if ((payload[0] & stream)==0) continue;
+                decode(payload, batch[n]);
+                n++;
+            }
+            return n;
+        }
+
+      /** Returns the current read position. Pass this to commit() once the
+       *  events returned by drain() have been written. */
+        public long getPosition(){
+            return position;
+        }
+
+      /** Persists the read offset so the sink resumes from here after a
+       *  restart. Segments that all the cursors have moved past are
+       *  deleted. */
+        public void commit(long offset){
+            if (offset<=committed) return;
+            try{
+                offsetFile.seek(0);
+                offsetFile.writeLong(offset);
+                offsetFile.writeLong(~offset);
+                if (fsync) offsetFile.getFD().sync();
+            }
+            catch(IOException e){
+                console.log("Failed to save " + name + " offset: " + e.getMessage());
+                return;
+            }
+            committed = offset;
+            recycle();
+        }
+
+      /** Moves the read position back to an offset returned by getPosition()
+       *  so the records after it are read again (e.g. after the sink failed
+       *  to write them). The offset can't be before the last commit since
+       *  older segments may have been recycled. */
+        public void rewind(long offset){
+            seek(Math.max(offset, committed));
+        }
+
+      /** Returns the number of records that haven't been read yet */
+        public long getPending(){
+            return Math.max(0, publishedRecords-positionRecords);
+        }
+
+      /** Returns the max number of records that have been waiting at once */
+        public long getHighWaterMark(){
+            return highWater;
+        }
+
+      /** Returns the number of corrupt records that were skipped */
+        public long getCorruptCount(){
+            return corrupt;
+        }
+
+      /** Closes the offset file and removes the cursor from the spool so it
+       *  no longer holds up recycling. The saved offset is kept. */
+        public void close(){
+            synchronized (Spool.this){
+                cursors.remove(this);
+            }
+            try{
+                offsetFile.close();
+            }
+            catch(IOException e){
+            }
+        }
+    }
+}
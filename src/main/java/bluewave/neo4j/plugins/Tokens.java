@@ -0,0 +1,73 @@
+package bluewave.neo4j.plugins;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+//******************************************************************************
+//**  Tokens Class
+//******************************************************************************
+/**
+ *   Used to map strings (e.g. labels) to small integer ids so transaction
+ *   snapshots can store them in primitive arrays. Lookups are lock-free. New
+ *   tokens are added under a lock, which only happens the first time a
+ *   string is seen.
+ *
+ ******************************************************************************/
+
+public class Tokens {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int size;
+
+
+  //**************************************************************************
+  //** getId
+  //**************************************************************************
+  /** Returns the id for a given string. Assigns a new id if the string hasn't
+   *  been seen before.
+   */
+    public int getId(String name){
+        Integer id = ids.get(name);
+        if (id!=null) return id;
+        return add(name);
+    }
+
+
+  //**************************************************************************
+  //** getName
+  //**************************************************************************
+  /** Returns the string for a given id or null if the id is unknown
+   */
+    public String getName(int id){
+        String[] names = this.names;
+        if (id<0 || id>=names.length) return null;
+        return names[id];
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+    public synchronized int size(){
+        return size;
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+    private synchronized int add(String name){
+        Integer id = ids.get(name);
+        if (id!=null) return id;
+
+        int n = size++;
+        String[] names = this.names;
+        if (n>=names.length){
+            names = java.util.Arrays.copyOf(names, names.length*2);
+        }
+        names[n] = name;
+        this.names = names;
+        ids.put(name, n);
+        return n;
+    }
+}
@@ -0,0 +1,172 @@
+package bluewave.neo4j.plugins;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.neo4j.procedure.*;
+
+
+//******************************************************************************
+//**  TransactionProcedures Class
+//******************************************************************************
+/**
+ *   Cypher procedures used to query the change store and the logger
+ *   metrics. Times are in milliseconds since the epoch. The "to" parameter
+ *   defaults to -1 which means now. Example:
+ *   <pre>
+ *   CALL bluewave.tx.history(123, 0, -1) YIELD timestamp, user, action, type, data
+ *   </pre>
+ *   The history procedures require the "database" section in the config
+ *   file. The change feed requires the "spool" section. Consumers pass the
+ *   cursor from the last record they processed to get the next batch:
+ *   <pre>
+ *   CALL bluewave.tx.changes(0, 1000) YIELD sequence, data, cursor
+ *   </pre>
+ *
+ ******************************************************************************/
+
+public class TransactionProcedures {
+
+
+  //**************************************************************************
+  //** Record Class
+  //**************************************************************************
+  /** A transaction record returned by the change feed. The cursor is the
+   *  value to pass as "sinceSequence" to resume after this record. It is
+   *  only advanced on the last chunk of a transaction so a consumer that
+   *  stops partway through a transaction gets all of its chunks again.
+   */
+    public static class Record {
+        public long sequence;
+        public long transaction;
+        public long timestamp; //ms
+        public long chunk;
+        public long chunks;
+        public String database;
+        public String user;
+        public String data;
+        public long cursor;
+    }
+
+
+  //**************************************************************************
+  //** history
+  //**************************************************************************
+    @Procedure(name="bluewave.tx.history", mode=Mode.READ)
+    @Description("Returns changes to a node or relationship with the given id")
+    public Stream<ChangeStore.Change> history(
+        @Name("entityId") long entityId,
+        @Name(value="from", defaultValue="0") long from,
+        @Name(value="to", defaultValue="-1") long to,
+        @Name(value="limit", defaultValue="10000") long limit) throws Exception {
+        List<ChangeStore.Change> changes = getStore().getHistory(
+            entityId, from, getTime(to), getLimit(limit));
+        return changes.stream();
+    }
+
+
+  //**************************************************************************
+  //** byUser
+  //**************************************************************************
+    @Procedure(name="bluewave.tx.byUser", mode=Mode.READ)
+    @Description("Returns changes made by the given user")
+    public Stream<ChangeStore.Change> byUser(
+        @Name("user") String user,
+        @Name(value="from", defaultValue="0") long from,
+        @Name(value="to", defaultValue="-1") long to,
+        @Name(value="limit", defaultValue="10000") long limit) throws Exception {
+        List<ChangeStore.Change> changes = getStore().getChangesByUser(
+            user, from, getTime(to), getLimit(limit));
+        return changes.stream();
+    }
+
+
+  //**************************************************************************
+  //** byLabel
+  //**************************************************************************
+    @Procedure(name="bluewave.tx.byLabel", mode=Mode.READ)
+    @Description("Returns changes to nodes with the given label or relationships with the given type")
+    public Stream<ChangeStore.Change> byLabel(
+        @Name("label") String label,
+        @Name(value="from", defaultValue="0") long from,
+        @Name(value="to", defaultValue="-1") long to,
+        @Name(value="limit", defaultValue="10000") long limit) throws Exception {
+        List<ChangeStore.Change> changes = getStore().getChangesByLabel(
+            label, from, getTime(to), getLimit(limit));
+        return changes.stream();
+    }
+
+
+  //**************************************************************************
+  //** changes
+  //**************************************************************************
+    @Procedure(name="bluewave.tx.changes", mode=Mode.READ)
+    @Description("Returns transaction records with a sequence number greater than sinceSequence, in sequence order")
+    public Stream<Record> changes(
+        @Name(value="sinceSequence", defaultValue="0") long sinceSequence,
+        @Name(value="maxRecords", defaultValue="1000") long maxRecords){
+
+        LoggingEngine engine = LoggingEngine.getInstance();
+        Spool spool = engine==null ? null : engine.getLogger().getSpool();
+        if (spool==null) throw new IllegalStateException(
+            "Change feed is not available. Check the spool config.");
+
+        List<Event> events = spool.read(sinceSequence, getLimit(maxRecords));
+        ArrayList<Record> records = new ArrayList<>(events.size());
+        for (Event event : events){
+            Record record = new Record();
+            record.sequence = event.getSequence();
+            record.transaction = event.getTransactionId();
+            record.timestamp = event.getTimestamp()/1000_000;
+            record.chunk = event.getChunk();
+            record.chunks = event.getChunks();
+            record.database = event.getDatabase();
+            record.user = event.getUser();
+            Changes data = event.getData();
+            record.data = data==null ? null : new String(data.getBytes(), StandardCharsets.UTF_8);
+            record.cursor = record.chunk<record.chunks ? record.sequence-1 : record.sequence;
+            records.add(record);
+        }
+        return records.stream();
+    }
+
+
+  //**************************************************************************
+  //** metrics
+  //**************************************************************************
+    @Procedure(name="bluewave.tx.metrics", mode=Mode.READ)
+    @Description("Returns queue, latency, and error metrics for the logger and each sink")
+    public Stream<Metrics.Metric> metrics(){
+        LoggingEngine engine = LoggingEngine.getInstance();
+        if (engine==null) throw new IllegalStateException(
+            "Logger is not running. Check the config file.");
+        return engine.getMetrics().getValues().stream();
+    }
+
+
+  //**************************************************************************
+  //** getStore
+  //**************************************************************************
+    private static ChangeStore getStore(){
+        ChangeStore store = ChangeStore.getInstance();
+        if (store==null) throw new IllegalStateException(
+            "Change store is not available. Check the database config.");
+        return store;
+    }
+
+
+  //**************************************************************************
+  //** getTime
+  //**************************************************************************
+    private static long getTime(long time){
+        return time<0 ? System.currentTimeMillis() : time;
+    }
+
+
+  //**************************************************************************
+  //** getLimit
+  //**************************************************************************
+    private static int getLimit(long limit){
+        return (int) Math.max(0, Math.min(limit, Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,252 @@
+package bluewave.neo4j.plugins;
+
+
+//******************************************************************************
+//**  ValueEncoder Class
+//******************************************************************************
+/**
+ *   Used to write Neo4J property values to a JsonWriter. Values are encoded
+ *   by type: numbers and booleans are written directly and arrays of
+ *   primitives are written element by element without boxing. Values that
+ *   would take up more than maxSize bytes are replaced with a summary, e.g.
+ *   {"size":1048576,"hash":"af63bd4c8601b7df"}, so that huge string or array
+ *   properties don't blow up the logs. The hash is a 64 bit FNV-1a hash of
+ *   the value and can be used to tell whether two large values are the same.
+ *
+ ******************************************************************************/
+
+public class ValueEncoder {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Writes a property value.
+   *  @param maxSize Max number of bytes to write for a value. Values over the
+   *  limit are replaced with their size and hash. Use 0 for no limit.
+   */
+    public static void write(Object value, JsonWriter writer, int maxSize){
+        if (value==null){
+            writer.value((Object) null);
+        }
+        else if (value instanceof String){
+            writeString((String) value, writer, maxSize);
+        }
+        else if (value instanceof Long || value instanceof Integer ||
+                 value instanceof Short || value instanceof Byte){
+            writer.value(((Number) value).longValue());
+        }
+        else if (value instanceof Double || value instanceof Float){
+            writer.value(((Number) value).doubleValue());
+        }
+        else if (value instanceof Boolean){
+            writer.value(((Boolean) value).booleanValue());
+        }
+        else if (value instanceof Character){
+            writeString(value.toString(), writer, maxSize);
+        }
+        else if (value.getClass().isArray()){
+            writeArray(value, writer, maxSize);
+        }
+        else{ //temporal and spatial values
+            writeString(value.toString(), writer, maxSize);
+        }
+    }
+
+
+  //**************************************************************************
+  //** writeString
+  //**************************************************************************
+    private static void writeString(String str, JsonWriter writer, int maxSize){
+        if (maxSize>0 && str.length()>maxSize/3){
+            int size = getSize(str);
+            if (size>maxSize){
+                long hash = FNV_OFFSET;
+                for (int i=0; i<str.length(); i++){
+                    hash = (hash ^ str.charAt(i)) * FNV_PRIME;
+                }
+                writeSummary(size, hash, writer);
+                return;
+            }
+        }
+        writer.value(str);
+    }
+
+
+  //**************************************************************************
+  //** writeArray
+  //**************************************************************************
+  /** Writes an array property. Arrays that are too big are replaced with a
+   *  summary. The size of numeric arrays is estimated from the number of
+   *  elements so the check doesn't cost anything.
+   */
+    private static void writeArray(Object arr, JsonWriter writer, int maxSize){
+
+        if (arr instanceof long[]){
+            long[] a = (long[]) arr;
+            if (tooBig(a.length, 20, maxSize)){
+                long hash = FNV_OFFSET;
+                for (long v : a) hash = (hash ^ v) * FNV_PRIME;
+                writeSummary(a.length*8, hash, writer);
+                return;
+            }
+            writer.beginArray();
+            for (long v : a) writer.value(v);
+            writer.endArray();
+        }
+        else if (arr instanceof int[]){
+            int[] a = (int[]) arr;
+            if (tooBig(a.length, 11, maxSize)){
+                long hash = FNV_OFFSET;
+                for (int v : a) hash = (hash ^ v) * FNV_PRIME;
+                writeSummary(a.length*4, hash, writer);
+                return;
+            }
+            writer.beginArray();
+            for (int v : a) writer.value(v);
+            writer.endArray();
+        }
+        else if (arr instanceof short[]){
+            short[] a = (short[]) arr;
+            if (tooBig(a.length, 6, maxSize)){
+                long hash = FNV_OFFSET;
+                for (short v : a) hash = (hash ^ v) * FNV_PRIME;
+                writeSummary(a.length*2, hash, writer);
+                return;
+            }
+            writer.beginArray();
+            for (short v : a) writer.value(v);
+            writer.endArray();
+        }
+        else if (arr instanceof byte[]){
+            byte[] a = (byte[]) arr;
+            if (tooBig(a.length, 4, maxSize)){
+                long hash = FNV_OFFSET;
+                for (byte v : a) hash = (hash ^ (v & 0xFF)) * FNV_PRIME;
+                writeSummary(a.length, hash, writer);
+                return;
+            }
+            writer.beginArray();
+            for (byte v : a) writer.value(v);
+            writer.endArray();
+        }
+        else if (arr instanceof double[]){
+            double[] a = (double[]) arr;
+            if (tooBig(a.length, 24, maxSize)){
+                long hash = FNV_OFFSET;
+                for (double v : a) hash = (hash ^ Double.doubleToLongBits(v)) * FNV_PRIME;
+                writeSummary(a.length*8, hash, writer);
+                return;
+            }
+            writer.beginArray();
+            for (double v : a) writer.value(v);
+            writer.endArray();
+        }
+        else if (arr instanceof float[]){
+            float[] a = (float[]) arr;
+            if (tooBig(a.length, 16, maxSize)){
+                long hash = FNV_OFFSET;
+                for (float v : a) hash = (hash ^ Float.floatToIntBits(v)) * FNV_PRIME;
+                writeSummary(a.length*4, hash, writer);
+                return;
+            }
+            writer.beginArray();
+            for (float v : a) writer.value(v);
+            writer.endArray();
+        }
+        else if (arr instanceof boolean[]){
+            boolean[] a = (boolean[]) arr;
+            if (tooBig(a.length, 6, maxSize)){
+                long hash = FNV_OFFSET;
+                for (boolean v : a) hash = (hash ^ (v ? 1 : 0)) * FNV_PRIME;
+                writeSummary(a.length, hash, writer);
+                return;
+            }
+            writer.beginArray();
+            for (boolean v : a) writer.value(v);
+            writer.endArray();
+        }
+        else if (arr instanceof char[]){
+            writeString(new String((char[]) arr), writer, maxSize);
+        }
+        else{
+            Object[] a = (Object[]) arr;
+            if (maxSize>0){
+                int size = 2;
+                for (Object v : a){
+                    size += v instanceof String ? getSize((String) v)+3 : 24;
+                    if (size>maxSize) break;
+                }
+                if (size>maxSize){
+                    long hash = FNV_OFFSET;
+                    size = 0;
+                    for (Object v : a){
+                        String str = String.valueOf(v);
+                        size += getSize(str);
+                        for (int i=0; i<str.length(); i++){
+                            hash = (hash ^ str.charAt(i)) * FNV_PRIME;
+                        }
+                        hash = (hash ^ 0xFF) * FNV_PRIME; //separator
+                    }
+                    writeSummary(size, hash, writer);
+                    return;
+                }
+            }
+            writer.beginArray();
+            for (Object v : a) write(v, writer, 0);
+            writer.endArray();
+        }
+    }
+
+
+  //**************************************************************************
+  //** tooBig
+  //**************************************************************************
+  /** Returns true if an array with the given number of elements could take
+   *  up more than maxSize bytes, using the max encoded size of an element
+   */
+    private static boolean tooBig(int length, int elementSize, int maxSize){
+        return maxSize>0 && 2L+(long)length*elementSize>maxSize;
+    }
+
+
+  //**************************************************************************
+  //** writeSummary
+  //**************************************************************************
+    private static void writeSummary(int size, long hash, JsonWriter writer){
+        char[] hex = new char[16];
+        for (int i=15; i>=0; i--){
+            hex[i] = HEX[(int) (hash & 0xF)];
+            hash >>>= 4;
+        }
+        writer.beginObject();
+        writer.key("size").value(size);
+        writer.key("hash").value(new String(hex));
+        writer.endObject();
+    }
+
+
+  //**************************************************************************
+  //** getSize
+  //**************************************************************************
+  /** Returns the number of bytes needed to encode a string in UTF-8
+   */
+    private static int getSize(String str){
+        int size = 0;
+        for (int i=0; i<str.length(); i++){
+            char c = str.charAt(i);
+            if (c<0x80) size++;
+            else if (c<0x800) size += 2;
+            else if (Character.isHighSurrogate(c)){
+                size += 4;
+                i++;
+            }
+            else size += 3;
+        }
+        return size;
+    }
+}
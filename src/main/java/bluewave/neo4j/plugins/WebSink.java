@@ -0,0 +1,511 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import javaxt.json.JSONObject;
+import static javaxt.utils.Console.console;
+
+
+//******************************************************************************
+//**  WebSink Class
+//******************************************************************************
+/**
+ *   Used to post events to a webserver. Events are sent in batches as a JSON
+ *   array of transaction records, where each record is a JSON object with a
+ *   timestamp, sequence, transaction id, database, user, and changes.
+ *   Requests are sent asynchronously over a shared HttpClient so connections
+ *   are kept alive between posts. Failed requests are retried with
+ *   exponential backoff and jitter. Batches that still fail are written to
+ *   an overflow file so they can be replayed later.
+ *
+ ******************************************************************************/
+
+public class WebSink implements Sink {
+
+    private URI url;
+    private String authorization;
+    private int batchSize = 500;
+    private long linger = 0; //ms
+    private boolean gzip = false;
+    private int maxInFlight = 4;
+    private int maxRetries = 5;
+    private long backoff = 250; //ms
+    private long maxBackoff = 30000; //ms
+    private long timeout = 30000; //ms
+    private File overflowDir;
+
+    private HttpClient client;
+    private Semaphore inFlight;
+    private ScheduledExecutorService scheduler;
+    private final Set<Batch> retrying = ConcurrentHashMap.newKeySet();
+
+    private JsonWriter body;
+    private int count;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final Object overflowLock = new Object();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param webconfig The "webserver" section of the config file. Supported
+   *  options include:
+   *  <ul>
+   *  <li>url: endpoint to post to ("host" is also accepted)</li>
+   *  <li>username/password: credentials for basic authentication</li>
+   *  <li>batchSize: max number of events per request</li>
+   *  <li>linger: max time to wait for a batch to fill up (ms)</li>
+   *  <li>gzip: whether to compress request bodies</li>
+   *  <li>maxInFlight: max number of concurrent requests</li>
+   *  <li>retries: number of times to retry a failed request</li>
+   *  <li>backoff/maxBackoff: initial and max delay between retries (ms)</li>
+   *  <li>timeout: request timeout (ms)</li>
+   *  <li>overflow: directory used to store batches that couldn't be sent</li>
+   *  </ul>
+   */
+    public WebSink(JSONObject webconfig) {
+
+        String url = webconfig.get("url").toString();
+        if (url==null) url = webconfig.get("host").toString();
+        if (url==null) throw new IllegalArgumentException("Missing webserver url");
+        this.url = URI.create(url);
+
+        String username = webconfig.get("username").toString();
+        String password = webconfig.get("password").toString();
+        if (username!=null && password!=null){
+            authorization = "Basic " + Base64.getEncoder().encodeToString(
+            (username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        }
+
+        Integer batchSize = webconfig.get("batchSize").toInteger();
+        if (batchSize!=null && batchSize>0) this.batchSize = batchSize;
+
+        Long linger = webconfig.get("linger").toLong();
+        if (linger!=null && linger>=0) this.linger = linger;
+
+        Boolean gzip = webconfig.get("gzip").toBoolean();
+        if (gzip!=null) this.gzip = gzip;
+
+        Integer maxInFlight = webconfig.get("maxInFlight").toInteger();
+        if (maxInFlight!=null && maxInFlight>0) this.maxInFlight = maxInFlight;
+
+        Integer retries = webconfig.get("retries").toInteger();
+        if (retries!=null && retries>=0) this.maxRetries = retries;
+
+        Long backoff = webconfig.get("backoff").toLong();
+        if (backoff!=null && backoff>0) this.backoff = backoff;
+
+        Long maxBackoff = webconfig.get("maxBackoff").toLong();
+        if (maxBackoff!=null && maxBackoff>0) this.maxBackoff = maxBackoff;
+
+        Long timeout = webconfig.get("timeout").toLong();
+        if (timeout!=null && timeout>0) this.timeout = timeout;
+
+        String overflow = webconfig.get("overflow").toString();
+        if (overflow!=null) setOverflowDirectory(new javaxt.io.Directory(overflow));
+
+
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofMillis(this.timeout))
+            .build();
+
+        inFlight = new Semaphore(this.maxInFlight);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bluewave-tx-webserver-retry");
+            t.setDaemon(true);
+            return t;
+        });
+
+        body = new JsonWriter(64*1024);
+    }
+
+
+  //**************************************************************************
+  //** setOverflowDirectory
+  //**************************************************************************
+  /** Directory used to store batches that failed after all retries
+   */
+    public void setOverflowDirectory(javaxt.io.Directory dir){
+        if (dir==null){
+            overflowDir = null;
+        }
+        else{
+            dir.create();
+            overflowDir = dir.exists() ? dir.toFile() : null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** setScheduler
+  //**************************************************************************
+  /** Used to replace the executor that schedules retries (e.g. in tests).
+   *  The executor is shut down when the sink is closed.
+   */
+    void setScheduler(ScheduledExecutorService scheduler){
+        this.scheduler.shutdownNow();
+        this.scheduler = scheduler;
+    }
+
+
+  //**************************************************************************
+  //** hasOverflowDirectory
+  //**************************************************************************
+    public boolean hasOverflowDirectory(){
+        return overflowDir!=null;
+    }
+
+
+  //**************************************************************************
+  //** getBatchSize
+  //**************************************************************************
+    public int getBatchSize(){
+        return batchSize;
+    }
+
+
+  //**************************************************************************
+  //** getLinger
+  //**************************************************************************
+    public long getLinger(){
+        return linger;
+    }
+
+
+  //**************************************************************************
+  //** isDurable
+  //**************************************************************************
+  /** Returns true. Events are acknowledged by the webserver (or written to
+   *  the overflow file) by the time sync() returns.
+   */
+    public boolean isDurable(){
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** getSentCount
+  //**************************************************************************
+  /** Returns the number of events successfully posted to the webserver
+   */
+    public long getSentCount(){
+        return sent.get();
+    }
+
+
+  //**************************************************************************
+  //** getRetryCount
+  //**************************************************************************
+    public long getRetryCount(){
+        return retries.get();
+    }
+
+
+  //**************************************************************************
+  //** getErrorCount
+  //**************************************************************************
+  /** Returns the number of failed requests, including retries
+   */
+    public long getErrorCount(){
+        return errors.get();
+    }
+
+
+  //**************************************************************************
+  //** getFailedCount
+  //**************************************************************************
+  /** Returns the number of events that couldn't be posted after all retries
+   */
+    public long getFailedCount(){
+        return failed.get();
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Adds events to the current request. The request is sent once it has
+   *  batchSize events.
+   */
+    public void write(Event[] batch, int length) throws Exception {
+        for (int i=0; i<length; i++){
+            if (count==0){
+                body.reset();
+                body.beginArray();
+            }
+            batch[i].write(body);
+            count++;
+            if (count==batchSize) flush();
+        }
+    }
+
+
+  //**************************************************************************
+  //** flush
+  //**************************************************************************
+  /** Sends pending events. Blocks if the max number of requests are already
+   *  in flight.
+   */
+    public void flush() throws Exception {
+        if (count==0) return;
+        body.endArray();
+        Batch batch = new Batch(body.toByteArray(), count);
+        body.reset();
+        count = 0;
+
+        inFlight.acquire();
+        send(batch);
+    }
+
+
+  //**************************************************************************
+  //** sync
+  //**************************************************************************
+  /** Waits for requests in flight to complete. A batch is complete once it
+   *  has been accepted by the webserver or written to the overflow file.
+   *  Throws an exception if any batch since the last sync was neither.
+   */
+    public void sync() throws Exception {
+        long wait = Math.max(timeout, maxBackoff) * (maxRetries+1);
+        if (!await(wait)){
+            throw new java.util.concurrent.TimeoutException("Requests still in flight after " + wait + "ms");
+        }
+
+        long n = lost.getAndSet(0);
+        if (n>0) throw new IOException(n + " events were not posted or written to the overflow file");
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Sends pending events and waits for requests in flight to complete.
+   *  Batches that are still waiting to be retried after that are written to
+   *  the overflow file.
+   */
+    public void close(){
+        try{
+            flush();
+        }
+        catch(Exception e){
+            e.printStackTrace();
+        }
+        long wait = Math.max(timeout, maxBackoff) * (maxRetries+1);
+        await(wait);
+        scheduler.shutdownNow();
+
+
+      //Drain the retry queue. Requests that are still being sent are written
+      //to the overflow file if they fail since they can no longer be retried.
+        for (Batch batch : retrying){
+            if (retrying.remove(batch)){
+                overflow(batch, "sink closed before the request could be retried");
+                inFlight.release();
+            }
+        }
+        await(timeout);
+    }
+
+
+  //**************************************************************************
+  //** await
+  //**************************************************************************
+  /** Waits for requests in flight to complete, up to the given time
+   *  @return True if there are no requests in flight
+   */
+    private boolean await(long wait){
+        try{
+            if (inFlight.tryAcquire(maxInFlight, wait, TimeUnit.MILLISECONDS)){
+                inFlight.release(maxInFlight);
+                return true;
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** send
+  //**************************************************************************
+  /** Posts a batch to the webserver. Caller must hold an inFlight permit.
+   *  The permit is released once the batch is sent or written to the
+   *  overflow file.
+   */
+    private void send(Batch batch){
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(url)
+            .timeout(Duration.ofMillis(timeout))
+            .header("Content-Type", "application/json");
+        if (authorization!=null) request.header("Authorization", authorization);
+
+        try{
+            if (gzip){
+                request.header("Content-Encoding", "gzip");
+                request.POST(HttpRequest.BodyPublishers.ofByteArray(batch.getCompressed()));
+            }
+            else{
+                request.POST(HttpRequest.BodyPublishers.ofByteArray(batch.data));
+            }
+        }
+        catch(Exception e){
+            errors.incrementAndGet();
+            overflow(batch, e.toString());
+            inFlight.release();
+            return;
+        }
+
+
+        client.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding())
+        .whenComplete((response, error) -> {
+
+            int status = response==null ? -1 : response.statusCode();
+            if (status>=200 && status<300){
+                sent.addAndGet(batch.count);
+                inFlight.release();
+                return;
+            }
+            errors.incrementAndGet();
+
+
+          //Don't retry requests the server rejected outright
+            boolean retry = batch.attempts<maxRetries;
+            if (status>=400 && status<500 && status!=408 && status!=429) retry = false;
+
+            if (retry){
+                retries.incrementAndGet();
+                long delay = getDelay(batch.attempts++);
+                retrying.add(batch);
+                try{
+                    scheduler.schedule(() -> {
+                        if (retrying.remove(batch)) send(batch);
+                    }, delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                catch(RejectedExecutionException e){
+                    //sink is closed
+                    if (!retrying.remove(batch)) return;
+                }
+            }
+
+            overflow(batch, error==null ? "HTTP " + status : error.toString());
+            inFlight.release();
+        });
+    }
+
+
+  //**************************************************************************
+  //** getDelay
+  //**************************************************************************
+  /** Returns the time to wait before the next attempt using exponential
+   *  backoff with jitter. The delay is randomized between 50% and 100% of
+   *  the backoff so retries from concurrent requests are spread out.
+   */
+    private long getDelay(int attempt){
+        long delay = backoff << Math.min(attempt, 20);
+        if (delay<=0 || delay>maxBackoff) delay = maxBackoff;
+        long half = delay/2;
+        return half + ThreadLocalRandom.current().nextLong(half+1);
+    }
+
+
+  //**************************************************************************
+  //** overflow
+  //**************************************************************************
+  /** Appends a batch that couldn't be sent to the overflow file. Each line in
+   *  the file is a JSON array of events, ready to be posted again.
+   */
+    private void overflow(Batch batch, String reason){
+        failed.addAndGet(batch.count);
+        console.log("Failed to post " + batch.count + " events to " + url + ": " + reason);
+        if (overflowDir==null){
+            lost.addAndGet(batch.count);
+            return;
+        }
+
+        String date = new java.text.SimpleDateFormat("yyyyMMdd").format(new java.util.Date());
+        File file = new File(overflowDir, date + ".webserver.json");
+        synchronized (overflowLock){
+            try (FileOutputStream out = new FileOutputStream(file, true)){
+                out.write(batch.data);
+                out.write('\n');
+            }
+            catch(Exception e){
+                lost.addAndGet(batch.count);
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** Batch Class
+  //**************************************************************************
+  /** Request body for a batch of events
+   */
+    private class Batch {
+        private final byte[] data;
+        private final int count;
+        private byte[] compressed;
+        private int attempts;
+
+        private Batch(byte[] data, int count){
+            this.data = data;
+            this.count = count;
+        }
+
+        private byte[] getCompressed() throws IOException {
+            if (compressed==null){
+                ByteArrayOutputStream bas = new ByteArrayOutputStream(data.length/4+64);
+                try (GZIPOutputStream out = new GZIPOutputStream(bas)){
+                    out.write(data);
+                }
+                compressed = bas.toByteArray();
+            }
+            return compressed;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Provider Class
+  //**************************************************************************
+  /** Creates a WebSink from the "webserver" section of the config file.
+   *  Failed batches are written to the log directory unless an "overflow"
+   *  directory is specified.
+   */
+    public static class Provider implements SinkProvider {
+
+        public String getName(){
+            return "webserver";
+        }
+
+        public Sink create(JSONObject config, Context context) throws Exception {
+            WebSink sink = new WebSink(config);
+            if (!sink.hasOverflowDirectory()){
+                String path = context.getConfig().get("logger").get("path").toString();
+                if (path!=null) sink.setOverflowDirectory(new javaxt.io.Directory(path));
+            }
+            return sink;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package bluewave.neo4j.plugins;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+//******************************************************************************
+//**  SinkStageTest Class
+//******************************************************************************
+/**
+ *   Tests a SinkStage that reads from a Spool. The stage writes to a
+ *   TestSink that records the sequence numbers it was given and fails the
+ *   first sync() call.
+ *
+ ******************************************************************************/
+
+public class SinkStageTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+
+  //**************************************************************************
+  //** testRewind
+  //**************************************************************************
+  /** When sync() fails, the cursor is moved back to the last saved position
+   *  and the events are written again. The position is only saved once
+   *  sync() succeeds.
+   */
+    @Test
+    public void testRewind() throws Exception {
+        File dir = tmp.newFolder("spool");
+        Spool spool = new Spool(dir, null);
+        for (int i=1; i<=10; i++) append(spool, i);
+
+        TestSink sink = new TestSink(1);
+        SinkStage stage = new SinkStage("test", sink, spool, Spool.DIRECT);
+        stage.start();
+        assertTrue(sink.synced.await(30, TimeUnit.SECONDS));
+        stage.stop();
+        assertTrue(stage.join(System.currentTimeMillis()+30000));
+        stage.release();
+        spool.close();
+
+        ArrayList<Long> expected = new ArrayList<>();
+        for (int i=0; i<2; i++){
+            for (long j=1; j<=10; j++) expected.add(j);
+        }
+        assertEquals(expected, sink.sequences);
+        assertEquals(1, stage.getErrors());
+        assertTrue(sink.closed);
+
+
+      //The position was saved after the second sync
+        spool = new Spool(dir, null);
+        Spool.Cursor cursor = spool.open("test", Spool.DIRECT);
+        assertEquals(0, cursor.getPending());
+        spool.close();
+    }
+
+
+  //**************************************************************************
+  //** testRewindWithoutSync
+  //**************************************************************************
+  /** If sync() never succeeds, the position isn't saved and the events are
+   *  read again when the spool is opened after a restart.
+   */
+    @Test
+    public void testRewindWithoutSync() throws Exception {
+        File dir = tmp.newFolder("spool");
+        Spool spool = new Spool(dir, null);
+        for (int i=1; i<=10; i++) append(spool, i);
+
+        TestSink sink = new TestSink(Integer.MAX_VALUE);
+        SinkStage stage = new SinkStage("test", sink, spool, Spool.DIRECT);
+        stage.start();
+        assertTrue(sink.failed.await(30, TimeUnit.SECONDS));
+        stage.stop();
+        assertTrue(stage.join(System.currentTimeMillis()+30000));
+        stage.release();
+        spool.close();
+
+        assertTrue(sink.sequences.size()>=10);
+        assertEquals(1L, (long) sink.sequences.get(0));
+
+        spool = new Spool(dir, null);
+        Spool.Cursor cursor = spool.open("test", Spool.DIRECT);
+        assertEquals(10, cursor.getPending());
+        Event[] batch = new Event[20];
+        for (int i=0; i<batch.length; i++) batch[i] = new Event();
+        assertEquals(10, cursor.drain(batch));
+        assertEquals(1, batch[0].getSequence());
+        spool.close();
+    }
+
+
+  //**************************************************************************
+  //** append
+  //**************************************************************************
+    private static void append(Spool spool, long sequence) throws Exception {
+        byte[] json = "[[\"create\",\"nodes\",[[1,\"Person\"]]]]".getBytes(StandardCharsets.UTF_8);
+        Event event = new Event();
+        event.set(System.currentTimeMillis()*1000000L, sequence, sequence, "neo4j", "neo4j", new Changes(json), null);
+        spool.append(event, Spool.DIRECT);
+        spool.flush();
+    }
+
+
+  //**************************************************************************
+  //** TestSink Class
+  //**************************************************************************
+  /** Records the sequence numbers of the events it is given. The first n
+   *  calls to sync() fail.
+   */
+    private static class TestSink implements Sink {
+        private final List<Long> sequences = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch synced = new CountDownLatch(1);
+        private final CountDownLatch failed = new CountDownLatch(1);
+        private int failures;
+        private volatile boolean closed;
+
+        private TestSink(int failures){
+            this.failures = failures;
+        }
+
+        public void write(Event[] batch, int length){
+            for (int i=0; i<length; i++) sequences.add(batch[i].getSequence());
+        }
+
+        public void flush(){
+        }
+
+        public void sync() throws Exception {
+            if (failures>0){
+                failures--;
+                failed.countDown();
+                throw new Exception("Sync failed");
+            }
+            synced.countDown();
+        }
+
+        public void close(){
+            closed = true;
+        }
+
+        public boolean isDurable(){
+            return true;
+        }
+    }
+}
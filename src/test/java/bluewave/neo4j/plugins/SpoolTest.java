@@ -0,0 +1,210 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+//******************************************************************************
+//**  SpoolTest Class
+//******************************************************************************
+/**
+ *   Tests how the Spool recovers from a crash. A crash is simulated by
+ *   abandoning a spool without closing it (and without committing the
+ *   cursors) and opening a new one on the same directory. Partially written
+ *   records are simulated by truncating or corrupting the segment file.
+ *
+ ******************************************************************************/
+
+public class SpoolTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+
+  //**************************************************************************
+  //** init
+  //**************************************************************************
+    @Before
+    public void init() throws Exception {
+        dir = tmp.newFolder("spool");
+    }
+
+
+  //**************************************************************************
+  //** testTruncatedTail
+  //**************************************************************************
+  /** A record cut short at the end of a segment is discarded when the spool
+   *  is opened. New records are appended where it started.
+   */
+    @Test
+    public void testTruncatedTail() throws Exception {
+        Spool spool = createSpool(10);
+        long offset = getOffset(spool, 9);
+        spool.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(getSegmentFile(), "rw")){
+            raf.setLength(offset+12);
+        }
+
+        spool = new Spool(dir, null);
+        assertSequences(spool.read(0, 100), 1, 9);
+        append(spool, 10);
+        assertSequences(spool.read(0, 100), 1, 10);
+
+        Spool.Cursor cursor = spool.open("test", Spool.DIRECT);
+        assertEquals(10, cursor.drain(createBatch(20)));
+        assertEquals(0, cursor.getCorruptCount());
+        spool.close();
+    }
+
+
+  //**************************************************************************
+  //** testCorruptTail
+  //**************************************************************************
+  /** A record with a bad checksum at the end of the data is discarded when
+   *  the spool is opened and overwritten by the next record.
+   */
+    @Test
+    public void testCorruptTail() throws Exception {
+        Spool spool = createSpool(10);
+        long offset = getOffset(spool, 9);
+        spool.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(getSegmentFile(), "rw")){
+            raf.seek(offset+8+5);
+            int b = raf.read();
+            raf.seek(offset+8+5);
+            raf.write(~b);
+        }
+
+        spool = new Spool(dir, null);
+        assertSequences(spool.read(0, 100), 1, 9);
+        append(spool, 11);
+
+        Spool.Cursor cursor = spool.open("test", Spool.DIRECT);
+        Event[] batch = createBatch(20);
+        assertEquals(10, cursor.drain(batch));
+        assertEquals(9, batch[8].getSequence());
+        assertEquals(11, batch[9].getSequence());
+        assertEquals(0, cursor.getCorruptCount());
+        spool.close();
+    }
+
+
+  //**************************************************************************
+  //** testResume
+  //**************************************************************************
+  /** After a crash, a cursor resumes from the last committed position. The
+   *  records read after the commit are read again.
+   */
+    @Test
+    public void testResume() throws Exception {
+        Spool spool = createSpool(20);
+        Spool.Cursor cursor = spool.open("test", Spool.DIRECT);
+        Event[] batch = createBatch(5);
+        assertEquals(5, cursor.drain(batch));
+        cursor.commit(cursor.getPosition());
+        assertEquals(5, cursor.drain(batch));
+        assertEquals(10, batch[4].getSequence());
+
+
+      //Open the directory again without closing the spool
+        spool = new Spool(dir, null);
+        cursor = spool.open("test", Spool.DIRECT);
+        assertEquals(15, cursor.getPending());
+        batch = createBatch(20);
+        assertEquals(15, cursor.drain(batch));
+        assertEquals(6, batch[0].getSequence());
+        assertEquals(20, batch[14].getSequence());
+
+
+      //Records appended after the restart follow on from the old ones
+        append(spool, 21);
+        assertEquals(1, cursor.drain(batch));
+        assertEquals(21, batch[0].getSequence());
+        cursor.commit(cursor.getPosition());
+        spool.close();
+
+        spool = new Spool(dir, null);
+        cursor = spool.open("test", Spool.DIRECT);
+        assertEquals(0, cursor.getPending());
+        assertEquals(0, cursor.drain(batch));
+        spool.close();
+    }
+
+
+  //**************************************************************************
+  //** createSpool
+  //**************************************************************************
+  /** Returns a new spool with records numbered 1 to n
+   */
+    private Spool createSpool(int n) throws Exception {
+        Spool spool = new Spool(dir, null);
+        for (int i=1; i<=n; i++) append(spool, i);
+        return spool;
+    }
+
+
+  //**************************************************************************
+  //** append
+  //**************************************************************************
+    private static void append(Spool spool, long sequence) throws Exception {
+        byte[] json = "[[\"create\",\"nodes\",[[1,\"Person\"]]]]".getBytes(StandardCharsets.UTF_8);
+        Event event = new Event();
+        event.set(System.currentTimeMillis()*1000000L, sequence, sequence, "neo4j", "neo4j", new Changes(json), null);
+        spool.append(event, Spool.DIRECT);
+        spool.flush();
+    }
+
+
+  //**************************************************************************
+  //** getOffset
+  //**************************************************************************
+  /** Returns the offset of the record after the first n records
+   */
+    private static long getOffset(Spool spool, int n) throws Exception {
+        Spool.Cursor cursor = spool.open("probe", Spool.DIRECT);
+        assertEquals(n, cursor.drain(createBatch(n)));
+        long offset = cursor.getPosition();
+        cursor.close();
+        return offset;
+    }
+
+
+  //**************************************************************************
+  //** getSegmentFile
+  //**************************************************************************
+    private File getSegmentFile(){
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".spool"));
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+
+  //**************************************************************************
+  //** createBatch
+  //**************************************************************************
+    private static Event[] createBatch(int n){
+        Event[] batch = new Event[n];
+        for (int i=0; i<n; i++) batch[i] = new Event();
+        return batch;
+    }
+
+
+  //**************************************************************************
+  //** assertSequences
+  //**************************************************************************
+  /** Checks that the events are numbered from first to last, in order
+   */
+    private static void assertSequences(List<Event> events, long first, long last){
+        assertEquals(last-first+1, events.size());
+        for (int i=0; i<events.size(); i++){
+            assertEquals(first+i, events.get(i).getSequence());
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package bluewave.neo4j.plugins;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.sun.net.httpserver.HttpServer;
+import javaxt.json.JSONObject;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+//******************************************************************************
+//**  WebSinkTest Class
+//******************************************************************************
+/**
+ *   Tests the WebSink against an in-process HTTP server. The server responds
+ *   to each request with the next status code in a queue (200 once the queue
+ *   is empty). Requests can be held with a gate until the test opens it.
+ *   Retries are scheduled with a TestScheduler that records the delays
+ *   instead of waiting, so none of the tests depend on timing.
+ *
+ ******************************************************************************/
+
+public class WebSinkTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private HttpServer server;
+    private final LinkedBlockingQueue<Integer> statusCodes = new LinkedBlockingQueue<>();
+    private final List<Long> requests = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final Semaphore arrivals = new Semaphore(0);
+    private volatile CountDownLatch gate;
+    private volatile int defaultStatus = 200;
+    private File overflowDir;
+
+
+  //**************************************************************************
+  //** start
+  //**************************************************************************
+    @Before
+    public void start() throws Exception {
+        overflowDir = tmp.newFolder("overflow");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            int n = active.incrementAndGet();
+            maxActive.accumulateAndGet(n, Math::max);
+            try{
+                requests.add(System.nanoTime());
+                try (InputStream in = exchange.getRequestBody()){
+                    bodies.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                arrivals.release();
+                CountDownLatch gate = this.gate;
+                if (gate!=null) gate.await();
+                Integer status = statusCodes.poll();
+                exchange.sendResponseHeaders(status==null ? defaultStatus : status, -1);
+            }
+            catch(InterruptedException e){
+                exchange.sendResponseHeaders(500, -1);
+            }
+            finally{
+                active.decrementAndGet();
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+
+  //**************************************************************************
+  //** stop
+  //**************************************************************************
+    @After
+    public void stop(){
+        CountDownLatch gate = this.gate;
+        if (gate!=null) gate.countDown();
+        server.stop(0);
+    }
+
+
+  //**************************************************************************
+  //** testRetry
+  //**************************************************************************
+  /** Failed requests are retried until the server accepts the batch
+   */
+    @Test
+    public void testRetry() throws Exception {
+        statusCodes.add(503);
+        statusCodes.add(500);
+        WebSink sink = createSink(5, 10, 100, 4, 1000);
+        sink.write(createEvents(3), 3);
+        sink.flush();
+        sink.sync();
+        sink.close();
+
+        assertEquals(3, requests.size());
+        assertEquals(2, sink.getRetryCount());
+        assertEquals(2, sink.getErrorCount());
+        assertEquals(3, sink.getSentCount());
+        assertEquals(0, sink.getFailedCount());
+        assertEquals(bodies.get(0), bodies.get(2));
+        assertNull(getOverflowFile());
+    }
+
+
+  //**************************************************************************
+  //** testNoRetry
+  //**************************************************************************
+  /** Requests rejected by the server (4xx) are not retried
+   */
+    @Test
+    public void testNoRetry() throws Exception {
+        statusCodes.add(400);
+        WebSink sink = createSink(5, 10, 100, 4, 1000);
+        sink.write(createEvents(1), 1);
+        sink.flush();
+        sink.sync();
+        sink.close();
+
+        assertEquals(1, requests.size());
+        assertEquals(0, sink.getRetryCount());
+        assertEquals(1, sink.getFailedCount());
+        assertNotNull(getOverflowFile());
+    }
+
+
+  //**************************************************************************
+  //** testBackoff
+  //**************************************************************************
+  /** The delay between retries doubles after each attempt. With jitter, the
+   *  delay is between 50% and 100% of the backoff.
+   */
+    @Test
+    public void testBackoff() throws Exception {
+        defaultStatus = 503;
+        WebSink sink = createSink(3, 100, 10000, 4, 10000);
+        TestScheduler scheduler = new TestScheduler(true);
+        sink.setScheduler(scheduler);
+        sink.write(createEvents(1), 1);
+        sink.flush();
+        sink.sync();
+        sink.close();
+
+        assertEquals(4, requests.size());
+        assertEquals(3, sink.getRetryCount());
+        assertEquals(3, scheduler.delays.size());
+        for (int i=0; i<3; i++){
+            long delay = scheduler.delays.poll();
+            long backoff = 100L << i;
+            assertTrue("Retry " + (i+1) + " delay " + delay + "ms", delay>=backoff/2 && delay<=backoff);
+        }
+    }
+
+
+  //**************************************************************************
+  //** testMaxBackoff
+  //**************************************************************************
+  /** The delay between retries never exceeds the maxBackoff
+   */
+    @Test
+    public void testMaxBackoff() throws Exception {
+        defaultStatus = 503;
+        WebSink sink = createSink(4, 100, 150, 4, 10000);
+        TestScheduler scheduler = new TestScheduler(true);
+        sink.setScheduler(scheduler);
+        sink.write(createEvents(1), 1);
+        sink.flush();
+        sink.sync();
+        sink.close();
+
+        assertEquals(5, requests.size());
+        assertEquals(4, scheduler.delays.size());
+        for (int i=0; i<4; i++){
+            long delay = scheduler.delays.poll();
+            long backoff = Math.min(100L << i, 150);
+            assertTrue("Retry " + (i+1) + " delay " + delay + "ms", delay>=backoff/2 && delay<=backoff);
+        }
+    }
+
+
+  //**************************************************************************
+  //** testMaxInFlight
+  //**************************************************************************
+  /** No more than maxInFlight requests are sent at once. flush() blocks
+   *  until a request completes.
+   */
+    @Test
+    public void testMaxInFlight() throws Exception {
+        gate = new CountDownLatch(1);
+        WebSink sink = createSink(0, 10, 100, 2, 10000);
+        Event[] events = createEvents(1);
+        Thread writer = new Thread(() -> {
+            try{
+                for (int i=0; i<6; i++){
+                    sink.write(events, 1);
+                    sink.flush();
+                }
+            }
+            catch(Exception e){
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+
+      //The server holds the first two requests so the writer can't finish
+        assertTrue(arrivals.tryAcquire(2, 10, TimeUnit.SECONDS));
+        assertTrue(writer.isAlive());
+        assertEquals(2, requests.size());
+
+        gate.countDown();
+        writer.join(10000);
+        assertFalse(writer.isAlive());
+        sink.sync();
+        sink.close();
+
+        assertEquals(6, requests.size());
+        assertEquals(2, maxActive.get());
+        assertEquals(6, sink.getSentCount());
+    }
+
+
+  //**************************************************************************
+  //** testOverflow
+  //**************************************************************************
+  /** Batches that fail after all retries are written to the overflow file,
+   *  one JSON array per line
+   */
+    @Test
+    public void testOverflow() throws Exception {
+        defaultStatus = 500;
+        WebSink sink = createSink(1, 10, 100, 4, 1000);
+        sink.write(createEvents(2), 2);
+        sink.flush();
+        sink.write(createEvents(1), 1);
+        sink.flush();
+        sink.sync();
+        sink.close();
+
+        assertEquals(4, requests.size());
+        assertEquals(3, sink.getFailedCount());
+        File file = getOverflowFile();
+        assertNotNull(file);
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(bodies.contains(lines.get(0)));
+        assertTrue(bodies.contains(lines.get(1)));
+    }
+
+
+  //**************************************************************************
+  //** testSyncWithoutOverflow
+  //**************************************************************************
+  /** sync() throws if a batch couldn't be posted and there is no overflow
+   *  directory
+   */
+    @Test
+    public void testSyncWithoutOverflow() throws Exception {
+        defaultStatus = 500;
+        WebSink sink = createSink(0, 10, 100, 4, 1000);
+        sink.setOverflowDirectory(null);
+        sink.write(createEvents(1), 1);
+        sink.flush();
+        try{
+            sink.sync();
+            fail("sync() should fail when a batch is lost");
+        }
+        catch(IOException e){
+        }
+        sink.sync();
+        sink.close();
+    }
+
+
+  //**************************************************************************
+  //** testCloseDrainsRetries
+  //**************************************************************************
+  /** Batches that are still waiting to be retried when close() gives up
+   *  waiting are written to the overflow file instead of being dropped. The
+   *  scheduler never runs the retry so the batch is always in the queue.
+   */
+    @Test
+    public void testCloseDrainsRetries() throws Exception {
+        defaultStatus = 503;
+        WebSink sink = createSink(2, 100, 100, 4, 100);
+        TestScheduler scheduler = new TestScheduler(false);
+        sink.setScheduler(scheduler);
+        sink.write(createEvents(2), 2);
+        sink.flush();
+        assertNotNull(scheduler.delays.poll(10, TimeUnit.SECONDS));
+        sink.close();
+
+        assertEquals(1, requests.size());
+        File file = getOverflowFile();
+        assertNotNull(file);
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertEquals(bodies.get(0), lines.get(0));
+        assertEquals(2, sink.getFailedCount());
+    }
+
+
+  //**************************************************************************
+  //** createSink
+  //**************************************************************************
+    private WebSink createSink(int retries, long backoff, long maxBackoff, int maxInFlight, long timeout){
+        JSONObject config = new JSONObject();
+        config.set("url", "http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        config.set("retries", retries);
+        config.set("backoff", backoff);
+        config.set("maxBackoff", maxBackoff);
+        config.set("maxInFlight", maxInFlight);
+        config.set("timeout", timeout);
+        config.set("overflow", overflowDir.toString());
+        return new WebSink(config);
+    }
+
+
+  //**************************************************************************
+  //** createEvents
+  //**************************************************************************
+    private static Event[] createEvents(int n){
+        byte[] json = "[[\"create\",\"nodes\",[[1,\"Person\"]]]]".getBytes(StandardCharsets.UTF_8);
+        Event[] events = new Event[n];
+        for (int i=0; i<n; i++){
+            events[i] = new Event();
+            events[i].set(System.currentTimeMillis()*1000000L, i+1, i+1, "neo4j", "neo4j", new Changes(json), null);
+        }
+        return events;
+    }
+
+
+  //**************************************************************************
+  //** TestScheduler Class
+  //**************************************************************************
+  /** Records the delay of every retry. Retries are either run right away or
+   *  never run at all.
+   */
+    private static class TestScheduler extends ScheduledThreadPoolExecutor {
+        private final LinkedBlockingQueue<Long> delays = new LinkedBlockingQueue<>();
+        private final boolean run;
+
+        private TestScheduler(boolean run){
+            super(1);
+            this.run = run;
+        }
+
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit){
+            delays.add(unit.toMillis(delay));
+            if (run) return super.schedule(command, 0, unit);
+            return super.schedule(command, 1, TimeUnit.DAYS);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getOverflowFile
+  //**************************************************************************
+    private File getOverflowFile(){
+        String date = new java.text.SimpleDateFormat("yyyyMMdd").format(new Date());
+        File file = new File(overflowDir, date + ".webserver.json");
+        return file.exists() && file.length()>0 ? file : null;
+    }
+}